@@ -0,0 +1,102 @@
+package com.example.webrtctest;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 音频电平表，按16位PCM计算RMS和峰值（dBFS，满幅方波为0dB）
+ * RMS在功率上做积分，上升和下降用不同的时间常数；峰值瞬时上升，保持一段时间后按固定速度回落。
+ * process在采集线程上调用，不分配内存；最新的结果打包成一个long放在原子变量里，
+ * UI线程每帧读取一次，不需要加锁也不需要为每次更新提交任务。不依赖Android，可以直接在JVM上测试
+ */
+public class AudioLevelMeter {
+    // 电平下限，静音时显示这个值
+    public static final float MIN_DBFS = -90f;
+    private static final double FULL_SCALE = 32768.0;
+    // RMS积分的上升和下降时间常数
+    private static final double RMS_ATTACK_SECONDS = 0.05;
+    private static final double RMS_RELEASE_SECONDS = 0.3;
+    // 峰值保持时间和之后的回落速度
+    private static final double PEAK_HOLD_SECONDS = 0.5;
+    private static final double PEAK_FALL_DB_PER_SECOND = 20;
+
+    private final int sampleRate;
+    // 以下状态只在调用process的线程上访问
+    private double meanSquare = 0;
+    private double peakDb = MIN_DBFS;
+    private double peakHoldRemaining = 0;
+    // 高32位是RMS、低32位是峰值的float位模式
+    private final AtomicLong published = new AtomicLong(pack(MIN_DBFS, MIN_DBFS));
+
+    public AudioLevelMeter(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * 处理一块采样（buffer的前count个），更新并发布电平
+     */
+    public void process(short[] buffer, int count) {
+        if (count <= 0) {
+            return;
+        }
+        double sumSquares = 0;
+        int maxAbs = 0;
+        for (int i = 0; i < count; i++) {
+            int sample = buffer[i];
+            sumSquares += (double) sample * sample;
+            int abs = sample < 0 ? -sample : sample;
+            if (abs > maxAbs) {
+                maxAbs = abs;
+            }
+        }
+        double blockSeconds = count / (double) sampleRate;
+
+        double blockMeanSquare = sumSquares / count;
+        double tau = blockMeanSquare > meanSquare ? RMS_ATTACK_SECONDS : RMS_RELEASE_SECONDS;
+        meanSquare += (1 - Math.exp(-blockSeconds / tau)) * (blockMeanSquare - meanSquare);
+
+        double blockPeakDb = toDbfs(maxAbs / FULL_SCALE);
+        if (blockPeakDb >= peakDb) {
+            peakDb = blockPeakDb;
+            peakHoldRemaining = PEAK_HOLD_SECONDS;
+        } else if (peakHoldRemaining > 0) {
+            peakHoldRemaining -= blockSeconds;
+        } else {
+            peakDb = Math.max(blockPeakDb, peakDb - PEAK_FALL_DB_PER_SECOND * blockSeconds);
+        }
+
+        published.set(pack((float) toDbfs(Math.sqrt(meanSquare) / FULL_SCALE), (float) peakDb));
+    }
+
+    /**
+     * 清除积分和峰值，重新开始测量
+     */
+    public void reset() {
+        meanSquare = 0;
+        peakDb = MIN_DBFS;
+        peakHoldRemaining = 0;
+        published.set(pack(MIN_DBFS, MIN_DBFS));
+    }
+
+    /**
+     * 最新发布的电平，用rmsDbfs/peakDbfs解出两个值；可以在任意线程调用
+     */
+    public long getLevels() {
+        return published.get();
+    }
+
+    public static float rmsDbfs(long levels) {
+        return Float.intBitsToFloat((int) (levels >>> 32));
+    }
+
+    public static float peakDbfs(long levels) {
+        return Float.intBitsToFloat((int) levels);
+    }
+
+    private static long pack(float rmsDbfs, float peakDbfs) {
+        return ((long) Float.floatToRawIntBits(rmsDbfs) << 32) | (Float.floatToRawIntBits(peakDbfs) & 0xFFFFFFFFL);
+    }
+
+    private static double toDbfs(double amplitude) {
+        return amplitude > 0 ? Math.max(MIN_DBFS, 20 * Math.log10(amplitude)) : MIN_DBFS;
+    }
+}
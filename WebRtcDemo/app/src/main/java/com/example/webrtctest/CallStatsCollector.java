@@ -0,0 +1,487 @@
+package com.example.webrtctest;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 通话质量统计
+ * 每秒对每个PeerConnection调用一次getStats，把码率、解码/丢弃帧数、RTT、丢包率、抖动和选中的候选对
+ * 按连接记录在定长的基本类型环形数组里（每个连接最近HISTORY_SIZE秒），定期在日志里输出百分位；
+ * 连接关闭后它的序列写入导出文件并移除，停止时导出其余的序列，整段通话的CSV用于离线分析。
+ * 每次取到统计后通过PeerStatsListener通知发送带宽估计和对方报告的丢包率，用于按连接调整发送码率
+ */
+public class CallStatsCollector {
+    private static final String TAG = "CallStatsCollector";
+    private static final long SAMPLE_INTERVAL_MS = 1000;
+    // 每个连接保留的采样数
+    private static final int HISTORY_SIZE = 600;
+    // 每隔多少次采样输出一次百分位
+    private static final int LOG_EVERY_SAMPLES = 10;
+
+    // 记录的指标，单位见名称
+    private enum Metric {
+        OUTBOUND_KBPS,
+        INBOUND_KBPS,
+        // 一个采样间隔内解码和丢弃的视频帧数
+        FRAMES_DECODED,
+        FRAMES_DROPPED,
+        RTT_MS,
+        // 接收方向一个采样间隔内的丢包率，0~100
+        PACKET_LOSS_PERCENT,
+        JITTER_MS,
+        // 选中候选对上的发送带宽估计
+        AVAILABLE_OUTGOING_KBPS,
+        // 对方RTCP报告的视频丢包率，0~100
+        REMOTE_LOSS_PERCENT
+    }
+
+    private static final Metric[] METRICS = Metric.values();
+
+    // 一个连接的时间序列和计算差值用的上一次累计值，由外层的this锁保护
+    private static final class PeerSeries {
+        final long[] elapsedMs = new long[HISTORY_SIZE];
+        final float[][] values = new float[METRICS.length][HISTORY_SIZE];
+        // 下标指向candidatePairs
+        final int[] candidatePair = new int[HISTORY_SIZE];
+        final List<String> candidatePairs = new ArrayList<>();
+        // 下一个写入位置和有效采样数
+        int next = 0;
+        int size = 0;
+
+        boolean hasPrevious = false;
+        double previousTimestampUs;
+        long bytesSent;
+        long bytesReceived;
+        long framesDecoded;
+        long framesDropped;
+        long packetsReceived;
+        long packetsLost;
+
+        int candidatePairIndex(String description) {
+            int index = candidatePairs.indexOf(description);
+            if (index < 0) {
+                candidatePairs.add(description);
+                index = candidatePairs.size() - 1;
+            }
+            return index;
+        }
+    }
+
+    private final PeerConnectionManager peerManager;
+    private final String mode;
+    // 导出目录，为null时不导出
+    private final File exportDir;
+    private ScheduledExecutorService scheduler;
+    private volatile PeerStatsListener peerStatsListener;
+
+    // 以下状态由this锁保护
+    private final Map<String, PeerSeries> series = new LinkedHashMap<>();
+    private long startedAt;
+    private long startedAtWallMs;
+    private long sampleCount = 0;
+    private BufferedWriter overflowWriter;
+    private File exportFile;
+    // 计算百分位时复用的排序缓冲区
+    private final float[] scratch = new float[HISTORY_SIZE];
+
+    public CallStatsCollector(PeerConnectionManager peerManager, String mode, File exportDir) {
+        this.peerManager = peerManager;
+        this.mode = mode;
+        this.exportDir = exportDir;
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        startedAt = SystemClock.elapsedRealtime();
+        startedAtWallMs = System.currentTimeMillis();
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "call-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::collect, SAMPLE_INTERVAL_MS, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        Log.d(TAG, "开始统计通话质量，模式: " + mode);
+    }
+
+    /**
+     * 停止统计，在统计线程上导出整段通话的时间序列后退出
+     */
+    public void stop() {
+        ScheduledExecutorService stopping;
+        synchronized (this) {
+            stopping = scheduler;
+            scheduler = null;
+        }
+        if (stopping == null) {
+            return;
+        }
+        stopping.execute(this::exportSession);
+        stopping.shutdown();
+    }
+
+    // 指定连接最近的采样中某个指标的百分位（0~1），没有采样时返回NaN；调用方持有this锁
+    private float getPercentile(String peerId, Metric metric, double percentile) {
+        PeerSeries peer = series.get(peerId);
+        if (peer == null || peer.size == 0) {
+            return Float.NaN;
+        }
+        float[] values = peer.values[metric.ordinal()];
+        int count = 0;
+        for (int i = 0; i < peer.size; i++) {
+            float value = values[i];
+            // 没有取到的指标记为NaN，不参与统计
+            if (!Float.isNaN(value)) {
+                scratch[count++] = value;
+            }
+        }
+        if (count == 0) {
+            return Float.NaN;
+        }
+        Arrays.sort(scratch, 0, count);
+        int index = (int) Math.ceil(percentile * count) - 1;
+        return scratch[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    // 指定连接当前选中的候选对，如"host/udp -> srflx"，还没有采样时返回null；调用方持有this锁
+    private String getCandidatePair(String peerId) {
+        PeerSeries peer = series.get(peerId);
+        if (peer == null || peer.size == 0) {
+            return null;
+        }
+        int last = (peer.next + HISTORY_SIZE - 1) % HISTORY_SIZE;
+        return peer.candidatePairs.get(peer.candidatePair[last]);
+    }
+
+    public void setPeerStatsListener(PeerStatsListener listener) {
+        peerStatsListener = listener;
+    }
+
+    private void collect() {
+        List<String> peerIds = peerManager.getPeerIds();
+        boolean log;
+        synchronized (this) {
+            sampleCount++;
+            log = sampleCount % LOG_EVERY_SAMPLES == 0;
+            removeClosedPeers(peerIds);
+        }
+        if (log) {
+            for (String peerId : peerIds) {
+                Log.d(TAG, describe(peerId));
+            }
+        }
+        // 统计结果在WebRTC的信令线程上异步返回；连接已经销毁时跳过
+        for (String peerId : peerIds) {
+            peerManager.requestStats(peerId, report -> onStatsDelivered(peerId, report));
+        }
+    }
+
+    // 已关闭的连接：序列写入导出文件后移除，避免成员多次进出时一直增长；调用方持有this锁
+    private void removeClosedPeers(List<String> peerIds) {
+        Iterator<Map.Entry<String, PeerSeries>> iterator = series.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, PeerSeries> entry = iterator.next();
+            if (peerIds.contains(entry.getKey())) {
+                continue;
+            }
+            // 关闭前刚发出的统计请求返回时会再建一个空序列，下一轮直接移除
+            if (entry.getValue().size > 0) {
+                Log.d(TAG, describe(entry.getKey()));
+                writeSeries(entry.getKey(), entry.getValue());
+            }
+            iterator.remove();
+        }
+    }
+
+    private synchronized String describe(String peerId) {
+        return String.format(Locale.US,
+                "用户%s: 上行p50/p95 %.0f/%.0fkbps, 下行p50/p95 %.0f/%.0fkbps, RTT p50/p95 %.0f/%.0fms, "
+                        + "丢包p95 %.1f%%, 抖动p95 %.1fms, 丢帧p95 %.0f, 候选对 %s",
+                peerId,
+                getPercentile(peerId, Metric.OUTBOUND_KBPS, 0.5), getPercentile(peerId, Metric.OUTBOUND_KBPS, 0.95),
+                getPercentile(peerId, Metric.INBOUND_KBPS, 0.5), getPercentile(peerId, Metric.INBOUND_KBPS, 0.95),
+                getPercentile(peerId, Metric.RTT_MS, 0.5), getPercentile(peerId, Metric.RTT_MS, 0.95),
+                getPercentile(peerId, Metric.PACKET_LOSS_PERCENT, 0.95), getPercentile(peerId, Metric.JITTER_MS, 0.95),
+                getPercentile(peerId, Metric.FRAMES_DROPPED, 0.95), getCandidatePair(peerId));
+    }
+
+    private void onStatsDelivered(String peerId, RTCStatsReport report) {
+        Map<String, RTCStats> statsMap = report.getStatsMap();
+        long bytesSent = 0;
+        long bytesReceived = 0;
+        long framesDecoded = 0;
+        long framesDropped = 0;
+        long packetsReceived = 0;
+        long packetsLost = 0;
+        double jitterSeconds = Double.NaN;
+        double rttSeconds = Double.NaN;
+        double remoteLossFraction = Double.NaN;
+        double availableOutgoingBps = Double.NaN;
+        String selectedPairId = null;
+        for (RTCStats stats : statsMap.values()) {
+            Map<String, Object> members = stats.getMembers();
+            switch (stats.getType()) {
+                case "outbound-rtp":
+                    bytesSent += longMember(members, "bytesSent");
+                    break;
+                case "inbound-rtp":
+                    bytesReceived += longMember(members, "bytesReceived");
+                    packetsReceived += longMember(members, "packetsReceived");
+                    packetsLost += longMember(members, "packetsLost");
+                    framesDecoded += longMember(members, "framesDecoded");
+                    framesDropped += longMember(members, "framesDropped");
+                    // 取各路接收流中最大的抖动
+                    double jitter = doubleMember(members, "jitter");
+                    if (!Double.isNaN(jitter) && (Double.isNaN(jitterSeconds) || jitter > jitterSeconds)) {
+                        jitterSeconds = jitter;
+                    }
+                    break;
+                case "remote-inbound-rtp":
+                    // 没有选中的候选对时用对端RTCP报告的RTT
+                    if (Double.isNaN(rttSeconds)) {
+                        rttSeconds = doubleMember(members, "roundTripTime");
+                    }
+                    if ("video".equals(members.get("kind"))) {
+                        remoteLossFraction = doubleMember(members, "fractionLost");
+                    }
+                    break;
+                case "transport":
+                    Object pairId = members.get("selectedCandidatePairId");
+                    if (pairId != null) {
+                        selectedPairId = pairId.toString();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        String pairDescription = "none";
+        RTCStats pair = selectedPairId != null ? statsMap.get(selectedPairId) : null;
+        if (pair != null) {
+            double pairRtt = doubleMember(pair.getMembers(), "currentRoundTripTime");
+            if (!Double.isNaN(pairRtt)) {
+                rttSeconds = pairRtt;
+            }
+            availableOutgoingBps = doubleMember(pair.getMembers(), "availableOutgoingBitrate");
+            pairDescription = describeCandidate(statsMap, pair.getMembers().get("localCandidateId"), true)
+                    + " -> " + describeCandidate(statsMap, pair.getMembers().get("remoteCandidateId"), false);
+        }
+
+        synchronized (this) {
+            PeerSeries peer = series.get(peerId);
+            if (peer == null) {
+                peer = new PeerSeries();
+                series.put(peerId, peer);
+            }
+            double timestampUs = report.getTimestampUs();
+            if (peer.hasPrevious && timestampUs > peer.previousTimestampUs) {
+                double intervalMs = (timestampUs - peer.previousTimestampUs) / 1000;
+                long lostDelta = Math.max(0, packetsLost - peer.packetsLost);
+                long receivedDelta = Math.max(0, packetsReceived - peer.packetsReceived);
+                int slot = peer.next;
+                if (peer.size == HISTORY_SIZE) {
+                    writeOverflow(peerId, peer, slot);
+                }
+                peer.elapsedMs[slot] = SystemClock.elapsedRealtime() - startedAt;
+                float[][] values = peer.values;
+                values[Metric.OUTBOUND_KBPS.ordinal()][slot] =
+                        (float) (Math.max(0, bytesSent - peer.bytesSent) * 8 / intervalMs);
+                values[Metric.INBOUND_KBPS.ordinal()][slot] =
+                        (float) (Math.max(0, bytesReceived - peer.bytesReceived) * 8 / intervalMs);
+                values[Metric.FRAMES_DECODED.ordinal()][slot] = Math.max(0, framesDecoded - peer.framesDecoded);
+                values[Metric.FRAMES_DROPPED.ordinal()][slot] = Math.max(0, framesDropped - peer.framesDropped);
+                values[Metric.RTT_MS.ordinal()][slot] = (float) (rttSeconds * 1000);
+                values[Metric.PACKET_LOSS_PERCENT.ordinal()][slot] = lostDelta + receivedDelta == 0 ? 0
+                        : lostDelta * 100f / (lostDelta + receivedDelta);
+                values[Metric.JITTER_MS.ordinal()][slot] = (float) (jitterSeconds * 1000);
+                values[Metric.AVAILABLE_OUTGOING_KBPS.ordinal()][slot] = (float) (availableOutgoingBps / 1000);
+                values[Metric.REMOTE_LOSS_PERCENT.ordinal()][slot] = (float) (remoteLossFraction * 100);
+                peer.candidatePair[slot] = peer.candidatePairIndex(pairDescription);
+                peer.next = (slot + 1) % HISTORY_SIZE;
+                peer.size = Math.min(peer.size + 1, HISTORY_SIZE);
+            }
+            peer.hasPrevious = true;
+            peer.previousTimestampUs = timestampUs;
+            peer.bytesSent = bytesSent;
+            peer.bytesReceived = bytesReceived;
+            peer.framesDecoded = framesDecoded;
+            peer.framesDropped = framesDropped;
+            peer.packetsReceived = packetsReceived;
+            peer.packetsLost = packetsLost;
+        }
+
+        PeerStatsListener listener = peerStatsListener;
+        if (listener != null) {
+            listener.onPeerStats(peerId, Double.isNaN(availableOutgoingBps) ? -1 : (long) availableOutgoingBps,
+                    Double.isNaN(remoteLossFraction) ? -1 : remoteLossFraction);
+        }
+    }
+
+    // 候选的类型和协议，本端候选还带上网络类型，如"srflx/udp/wifi"
+    private static String describeCandidate(Map<String, RTCStats> statsMap, Object candidateId, boolean local) {
+        RTCStats candidate = candidateId != null ? statsMap.get(candidateId.toString()) : null;
+        if (candidate == null) {
+            return "?";
+        }
+        Map<String, Object> members = candidate.getMembers();
+        StringBuilder description = new StringBuilder().append(members.get("candidateType"))
+                .append('/').append(members.get("protocol"));
+        if (local && members.get("networkType") != null) {
+            description.append('/').append(members.get("networkType"));
+        }
+        return description.toString();
+    }
+
+    // 数值成员可能是Integer、Long、Double或BigInteger（uint64）
+    private static long longMember(Map<String, Object> members, String name) {
+        Object value = members.get(name);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static double doubleMember(Map<String, Object> members, String name) {
+        Object value = members.get(name);
+        return value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+    }
+
+    /**
+     * 每个连接每次取到统计时在WebRTC的信令线程上回调
+     */
+    public interface PeerStatsListener {
+        // availableOutgoingBps未知时为-1，remoteLossFraction为0~1，未知时为-1
+        void onPeerStats(String peerId, long availableOutgoingBps, double remoteLossFraction);
+    }
+
+    // ---------------------------------------------------------------- 导出
+
+    // 导出文件每行一个采样：用户ID、通话开始后的毫秒数、各项指标和候选对
+    // 导出时需要整段通话的序列，环形数组满了以后即将覆盖的采样先写进导出文件；调用方持有this锁
+    private void writeOverflow(String peerId, PeerSeries peer, int slot) {
+        try {
+            BufferedWriter writer = openExportWriter();
+            if (writer != null) {
+                writeRow(writer, peerId, peer, slot);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "写入统计文件失败", e);
+            closeExportWriter();
+        }
+    }
+
+    private synchronized void exportSession() {
+        try {
+            BufferedWriter writer = openExportWriter();
+            if (writer == null) {
+                return;
+            }
+            for (Map.Entry<String, PeerSeries> entry : series.entrySet()) {
+                writeRows(writer, entry.getKey(), entry.getValue());
+            }
+            writer.flush();
+            Log.d(TAG, "通话质量统计已导出: " + exportFile.getAbsolutePath());
+            for (String peerId : series.keySet()) {
+                Log.d(TAG, describe(peerId));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "导出统计文件失败", e);
+        } finally {
+            closeExportWriter();
+        }
+    }
+
+    // 已关闭的连接在统计过程中写出；调用方持有this锁
+    private void writeSeries(String peerId, PeerSeries peer) {
+        try {
+            BufferedWriter writer = openExportWriter();
+            if (writer != null) {
+                writeRows(writer, peerId, peer);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "写入统计文件失败", e);
+            closeExportWriter();
+        }
+    }
+
+    // 第一次写入时创建文件并写表头，导出目录不可用时返回null；调用方持有this锁
+    private BufferedWriter openExportWriter() throws IOException {
+        if (overflowWriter != null || exportDir == null) {
+            return overflowWriter;
+        }
+        if (!exportDir.isDirectory() && !exportDir.mkdirs()) {
+            throw new IOException("无法创建目录: " + exportDir);
+        }
+        String name = "call-stats-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US)
+                .format(new Date(startedAtWallMs)) + ".csv";
+        exportFile = new File(exportDir, name);
+        overflowWriter = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(exportFile), StandardCharsets.UTF_8));
+        overflowWriter.write("# mode=" + mode + ", startedAt=" + startedAtWallMs
+                + ", intervalMs=" + SAMPLE_INTERVAL_MS + "\n");
+        overflowWriter.write("peerId,elapsedMs");
+        for (Metric metric : METRICS) {
+            overflowWriter.write(',');
+            overflowWriter.write(metric.name().toLowerCase(Locale.US));
+        }
+        overflowWriter.write(",candidatePair\n");
+        return overflowWriter;
+    }
+
+    private void closeExportWriter() {
+        if (overflowWriter == null) {
+            return;
+        }
+        try {
+            overflowWriter.close();
+        } catch (IOException e) {
+            Log.w(TAG, "关闭统计文件失败: " + e.getMessage());
+        }
+        overflowWriter = null;
+    }
+
+    // 环形数组里的采样按时间顺序写出；调用方持有this锁
+    private static void writeRows(BufferedWriter writer, String peerId, PeerSeries peer) throws IOException {
+        int first = (peer.next + HISTORY_SIZE - peer.size) % HISTORY_SIZE;
+        for (int i = 0; i < peer.size; i++) {
+            writeRow(writer, peerId, peer, (first + i) % HISTORY_SIZE);
+        }
+    }
+
+    // 调用方持有this锁
+    private static void writeRow(BufferedWriter writer, String peerId, PeerSeries peer, int slot) throws IOException {
+        writer.write(peerId);
+        writer.write(',');
+        writer.write(Long.toString(peer.elapsedMs[slot]));
+        for (float[] values : peer.values) {
+            writer.write(',');
+            float value = values[slot];
+            if (!Float.isNaN(value)) {
+                writer.write(String.format(Locale.US, "%.1f", value));
+            }
+        }
+        writer.write(',');
+        writer.write(peer.candidatePairs.get(peer.candidatePair[slot]));
+        writer.write('\n');
+    }
+}
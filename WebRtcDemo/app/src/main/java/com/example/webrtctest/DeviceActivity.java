@@ -12,6 +12,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 import android.widget.Button;
 import android.widget.ProgressBar;
@@ -41,6 +42,7 @@ import org.webrtc.audio.JavaAudioDeviceModule;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DeviceActivity extends AppCompatActivity implements View.OnClickListener {
     private static final String TAG = "DeviceActivity";
@@ -53,6 +55,11 @@ public class DeviceActivity extends AppCompatActivity implements View.OnClickLis
     private static final int STOP_MICROPHONE_TEST_BUTTON_ID = 4;
     private static final int START_SPEAKER_TEST_BUTTON_ID = 5;
     private static final int STOP_SPEAKER_TEST_BUTTON_ID = 6;
+    private static final int MICROPHONE_SAMPLE_RATE = 44100;
+    // 每次读取10毫秒的采样，读完立即读下一块
+    private static final int LEVEL_BLOCK_SAMPLES = MICROPHONE_SAMPLE_RATE / 100;
+    // 音量条显示的电平范围，低于它显示为0
+    private static final float LEVEL_DISPLAY_FLOOR_DBFS = -60f;
     
     private TextView deviceInfoText;
     private SurfaceViewRenderer cameraPreview;
@@ -78,14 +85,31 @@ public class DeviceActivity extends AppCompatActivity implements View.OnClickLis
     private SurfaceTextureHelper surfaceTextureHelper;
     private boolean isCameraActive = false;
     private boolean isMicrophoneTestActive = false;
+    // 当前采集线程的退出标志，每次开始监听新建一个；join超时的旧线程只看自己的标志
+    private AtomicBoolean audioLevelRunning;
     private boolean isSpeakerTestActive = false;
     
     // 音频测试相关
     private Handler audioHandler = new Handler(Looper.getMainLooper());
-    private Runnable audioLevelRunnable;
     private AudioTrack audioPlayer;
     private AudioRecord audioRecord;
     private Thread audioRecordThread;
+    // 采集线程计算电平，UI每帧读取一次最新值；每个采集线程有自己的电平表和读取缓冲，
+    // 停止时旧线程可能还阻塞在read上，不能和下一次监听的线程共用
+    private AudioLevelMeter audioLevelMeter;
+    // 上一次显示的值，变化时才更新控件
+    private int displayedRmsDb = Integer.MIN_VALUE;
+    private int displayedPeakDb = Integer.MIN_VALUE;
+    private final Choreographer.FrameCallback audioLevelFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (audioLevelMeter == null) {
+                return;
+            }
+            updateAudioLevelViews(audioLevelMeter.getLevels());
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
     // 生成测试音频数据（440Hz正弦波）
     private byte[] audioTestData;
 
@@ -412,7 +436,7 @@ public class DeviceActivity extends AppCompatActivity implements View.OnClickLis
                 return;
             }
             
-            int sampleRate = 44100;
+            int sampleRate = MICROPHONE_SAMPLE_RATE;
             int channelConfig = AudioFormat.CHANNEL_IN_MONO;
             int audioFormat = AudioFormat.ENCODING_PCM_16BIT;
             
@@ -420,6 +444,8 @@ public class DeviceActivity extends AppCompatActivity implements View.OnClickLis
             if (bufferSize == AudioRecord.ERROR || bufferSize == AudioRecord.ERROR_BAD_VALUE) {
                 bufferSize = sampleRate * 2; // 默认缓冲区大小
             }
+            // 至少能放下几块读取的数据，连续读取时不会溢出
+            bufferSize = Math.max(bufferSize, LEVEL_BLOCK_SAMPLES * 2 * 4);
             
             // 创建AudioRecord用于录制测试音频
             audioRecord = new AudioRecord(
@@ -478,53 +504,59 @@ public class DeviceActivity extends AppCompatActivity implements View.OnClickLis
     }
     
     // 开始监听音频级别
+    // 采集线程连续读取，每块算一次电平发布到audioLevelMeter；UI通过Choreographer每帧取一次最新值
     private void startAudioLevelMonitoring() {
-        if (audioRecord != null) {
-            audioRecord.startRecording();
+        if (audioRecord == null) {
+            return;
         }
+        audioRecord.startRecording();
+        displayedRmsDb = Integer.MIN_VALUE;
+        displayedPeakDb = Integer.MIN_VALUE;
         
-        audioRecordThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
-                short[] buffer = new short[1024];
-                
-                while (isMicrophoneTestActive && audioRecord != null) {
-                    try {
-                        int readSize = audioRecord.read(buffer, 0, buffer.length);
-                        if (readSize > 0) {
-                            // 计算音量级别
-                            long sum = 0;
-                            for (int i = 0; i < readSize; i++) {
-                                sum += Math.abs(buffer[i]);
-                            }
-                            double average = sum / (double) readSize;
-                            final int levelPercent = (int) (average / 32768.0 * 100); // 转换为百分比
-                            
-                            // 更新UI显示音量级别
-                            runOnUiThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    microphoneStatusText.setText("麦克风测试运行中 - 音量级别: " + levelPercent + "%");
-                                    microphoneVolumeProgress.setProgress(levelPercent);
-                                }
-                            });
-                        }
-                        
-                        // 短暂休眠以控制更新频率
-                        Thread.sleep(100);
-                    } catch (Exception e) {
-                        Log.e(TAG, "音频级别监测异常", e);
-                        break;
-                    }
+        AudioRecord record = audioRecord;
+        AudioLevelMeter meter = new AudioLevelMeter(MICROPHONE_SAMPLE_RATE);
+        short[] buffer = new short[LEVEL_BLOCK_SAMPLES];
+        AtomicBoolean running = new AtomicBoolean(true);
+        audioLevelMeter = meter;
+        audioLevelRunning = running;
+        audioRecordThread = new Thread(() -> {
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+            while (running.get()) {
+                // read会阻塞到这一块采样就绪，不需要休眠
+                int readSize = record.read(buffer, 0, buffer.length);
+                if (readSize < 0) {
+                    Log.e(TAG, "读取麦克风数据失败: " + readSize);
+                    break;
                 }
+                meter.process(buffer, readSize);
             }
-        });
+        }, "audio-level-monitor");
         audioRecordThread.start();
+        Choreographer.getInstance().postFrameCallback(audioLevelFrameCallback);
+    }
+    
+    // 在UI线程调用，只有显示的整数dB变化时才更新控件
+    private void updateAudioLevelViews(long levels) {
+        int rmsDb = Math.round(AudioLevelMeter.rmsDbfs(levels));
+        int peakDb = Math.round(AudioLevelMeter.peakDbfs(levels));
+        if (rmsDb == displayedRmsDb && peakDb == displayedPeakDb) {
+            return;
+        }
+        displayedRmsDb = rmsDb;
+        displayedPeakDb = peakDb;
+        float fraction = (rmsDb - LEVEL_DISPLAY_FLOOR_DBFS) / -LEVEL_DISPLAY_FLOOR_DBFS;
+        microphoneVolumeProgress.setProgress(Math.round(Math.max(0f, Math.min(1f, fraction)) * 100));
+        microphoneStatusText.setText("麦克风测试运行中 - 音量: " + rmsDb + " dBFS，峰值: " + peakDb + " dBFS");
     }
     
-    // 停止监听音频级别
+    // 停止监听音频级别，采集线程在当前这块读完后退出
     private void stopAudioLevelMonitoring() {
+        if (audioLevelRunning != null) {
+            audioLevelRunning.set(false);
+            audioLevelRunning = null;
+        }
+        audioLevelMeter = null;
+        Choreographer.getInstance().removeFrameCallback(audioLevelFrameCallback);
         if (audioRecordThread != null) {
             try {
                 audioRecordThread.join(1000); // 等待最多1秒
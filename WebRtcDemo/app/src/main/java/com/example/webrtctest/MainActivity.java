@@ -21,10 +21,6 @@ import androidx.core.view.WindowInsetsCompat;
 
 import com.google.android.material.textfield.TextInputEditText;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.net.URISyntaxException;
 import java.util.UUID;
 
@@ -238,59 +234,61 @@ public class MainActivity extends AppCompatActivity implements WebSocketClientWr
 
     @Override
     public void onMessageReceived(String message) {
-        Log.d(TAG, "Message received: " + message);
-        // 处理收到的消息
+        // 处理收到的消息：先取type分发，只解码需要的字段
         try {
-            JSONObject json = new JSONObject(message);
-            String type = json.getString("type");
+            SignalingMessage msg = SignalingMessage.decode(message);
+            String type = msg.type();
+            Log.d(TAG, "Message received: " + type);
+            if (type == null) {
+                return;
+            }
             
             switch (type) {
                 case "roomInfo":
-                    handleRoomInfo(json);
+                    handleRoomInfo(msg);
                     break;
                 case "roomCreated":
-                    handleRoomCreated(json);
+                    handleRoomCreated(msg);
                     break;
                 case "roomExists":  // 添加处理房间已存在的case
-                    handleRoomExists(json);
+                    handleRoomExists(msg);
                     break;
                 case "joined":  // 添加处理成功加入房间的情况
-                    handleRoomJoined(json);
+                    handleRoomJoined(msg);
                     break;
                 case "error":
-                    handleError(json);
+                    handleError(msg);
                     break;
                 default:
                     // 其他消息类型保持原有处理方式
                     break;
             }
-        } catch (JSONException e) {
+        } catch (SignalingMessage.DecodeException e) {
             Log.e(TAG, "JSON解析错误: " + e.getMessage());
         }
     }
 
-    private void handleRoomInfo(JSONObject json) {
+    private void handleRoomInfo(SignalingMessage json) {
         try {
-            JSONArray roomsArray = json.getJSONArray("rooms");
+            java.util.List<SignalingMessage> roomsArray = json.getObjectArray("rooms");
             StringBuilder info = new StringBuilder("当前房间信息:\n");
             
-            if (roomsArray.length() == 0) {
+            if (roomsArray.isEmpty()) {
                 info.append("暂无活跃房间");
             } else {
-                for (int i = 0; i < roomsArray.length(); i++) {
-                    JSONObject room = roomsArray.getJSONObject(i);
+                for (SignalingMessage room : roomsArray) {
                     String roomId = room.getString("roomId");
                     int userCount = room.getInt("userCount");
-                    JSONArray users = room.getJSONArray("users");
+                    java.util.List<String> users = room.getStringArray("users");
                     info.append("房间: ").append(roomId)
                         .append(", 用户数: ").append(userCount);
                     
                     // 显示用户列表
-                    if (users.length() > 0) {
+                    if (!users.isEmpty()) {
                         info.append(", 用户列表: ");
-                        for (int j = 0; j < users.length(); j++) {
+                        for (int j = 0; j < users.size(); j++) {
                             if (j > 0) info.append(", ");
-                            info.append(users.getString(j));
+                            info.append(users.get(j));
                         }
                     }
                     info.append("\n");
@@ -304,12 +302,12 @@ public class MainActivity extends AppCompatActivity implements WebSocketClientWr
                        .setPositiveButton("确定", null)
                        .show();
             });
-        } catch (JSONException e) {
+        } catch (SignalingMessage.DecodeException e) {
             Log.e(TAG, "房间信息解析错误: " + e.getMessage());
         }
     }
 
-    private void handleRoomCreated(JSONObject json) {
+    private void handleRoomCreated(SignalingMessage json) {
         try {
             String roomId = json.getString("roomId");
             String msg = json.getString("message");
@@ -321,13 +319,13 @@ public class MainActivity extends AppCompatActivity implements WebSocketClientWr
                 intent.putExtra("ROOM_ID", roomId);
                 startActivity(intent);
             });
-        } catch (JSONException e) {
+        } catch (SignalingMessage.DecodeException e) {
             Log.e(TAG, "房间创建响应解析错误: " + e.getMessage());
         }
     }
 
     // 添加处理房间已存在的方法
-    private void handleRoomExists(JSONObject json) {
+    private void handleRoomExists(SignalingMessage json) {
         try {
             String roomId = json.getString("roomId");
             String msg = json.getString("message");
@@ -339,13 +337,13 @@ public class MainActivity extends AppCompatActivity implements WebSocketClientWr
                 intent.putExtra("ROOM_ID", roomId);
                 startActivity(intent);
             });
-        } catch (JSONException e) {
+        } catch (SignalingMessage.DecodeException e) {
             Log.e(TAG, "房间存在响应解析错误: " + e.getMessage());
         }
     }
 
     // 添加处理成功加入房间的方法
-    private void handleRoomJoined(JSONObject json) {
+    private void handleRoomJoined(SignalingMessage json) {
         try {
             String roomId = json.getString("roomId");
             String userId = json.getString("userId");
@@ -357,18 +355,18 @@ public class MainActivity extends AppCompatActivity implements WebSocketClientWr
                 intent.putExtra("ROOM_ID", roomId);
                 startActivity(intent);
             });
-        } catch (JSONException e) {
+        } catch (SignalingMessage.DecodeException e) {
             Log.e(TAG, "房间加入响应解析错误: " + e.getMessage());
         }
     }
 
-    private void handleError(JSONObject json) {
+    private void handleError(SignalingMessage json) {
         try {
             String errorMsg = json.getString("message");
             runOnUiThread(() -> {
                 Toast.makeText(this, "错误: " + errorMsg, Toast.LENGTH_LONG).show();
             });
-        } catch (JSONException e) {
+        } catch (SignalingMessage.DecodeException e) {
             Log.e(TAG, "错误信息解析错误: " + e.getMessage());
         }
     }
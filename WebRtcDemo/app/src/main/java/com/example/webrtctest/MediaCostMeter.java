@@ -0,0 +1,170 @@
+package com.example.webrtctest;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 上行带宽和CPU测量
+ * 定期汇总所有PeerConnection的outbound-rtp发送字节数，换算成上行码率，同时按进程CPU时间计算CPU占用；
+ * 网状模式下每个远程用户都要上传一份完整的本地流，SFU模式下只上传一份，
+ * 同一个房间分别用两种模式跑一段时间，对比日志中的汇总即可
+ */
+public class MediaCostMeter {
+    private static final String TAG = "MediaCostMeter";
+    private static final long SAMPLE_INTERVAL_MS = 2000;
+
+    /**
+     * 一次采样结果
+     */
+    public static class Sample {
+        public final String mode;
+        // 参与测量的PeerConnection数量（网状模式为远程用户数，SFU模式为1）
+        public final int connectionCount;
+        public final long uplinkKbps;
+        // 进程CPU占用，按所有核心折算，0~100
+        public final float cpuPercent;
+
+        Sample(String mode, int connectionCount, long uplinkKbps, float cpuPercent) {
+            this.mode = mode;
+            this.connectionCount = connectionCount;
+            this.uplinkKbps = uplinkKbps;
+            this.cpuPercent = cpuPercent;
+        }
+
+        @Override
+        public String toString() {
+            return "Sample{mode=" + mode + ", connections=" + connectionCount
+                    + ", uplink=" + uplinkKbps + "kbps, cpu=" + String.format("%.1f", cpuPercent) + "%}";
+        }
+    }
+
+    private final PeerConnectionManager peerManager;
+    private final String mode;
+    private final int cores = Runtime.getRuntime().availableProcessors();
+    private ScheduledExecutorService scheduler;
+
+    // 以下状态由this锁保护
+    // 每个连接上一次统计到的累计发送字节数
+    private final Map<String, Long> lastBytesSent = new HashMap<>();
+    // 两次采样之间新增的发送字节数
+    private long intervalBytesSent = 0;
+    private long lastSampleAt = 0;
+    private long lastCpuMs = 0;
+    private Sample lastSample;
+    private long sampleCount = 0;
+    private long totalUplinkKbps = 0;
+    private long maxUplinkKbps = 0;
+    private double totalCpuPercent = 0;
+    private float maxCpuPercent = 0;
+
+    public MediaCostMeter(PeerConnectionManager peerManager, String mode) {
+        this.peerManager = peerManager;
+        this.mode = mode;
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        lastSampleAt = SystemClock.elapsedRealtime();
+        lastCpuMs = Process.getElapsedCpuTime();
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "media-cost-meter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::sample, SAMPLE_INTERVAL_MS, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        Log.d(TAG, "开始测量上行带宽和CPU，模式: " + mode);
+    }
+
+    /**
+     * 停止测量并输出整段时间的汇总
+     */
+    public void stop() {
+        ScheduledExecutorService stopping;
+        synchronized (this) {
+            stopping = scheduler;
+            scheduler = null;
+        }
+        if (stopping == null) {
+            return;
+        }
+        stopping.shutdownNow();
+        Log.d(TAG, "测量结束，" + getSummary());
+    }
+
+    public synchronized Sample getLastSample() {
+        return lastSample;
+    }
+
+    public synchronized String getSummary() {
+        long count = Math.max(sampleCount, 1);
+        return "模式: " + mode + "，采样次数: " + sampleCount
+                + "，上行 平均/最大: " + (totalUplinkKbps / count) + "/" + maxUplinkKbps + "kbps"
+                + "，CPU 平均/最大: " + String.format("%.1f", totalCpuPercent / count)
+                + "/" + String.format("%.1f", maxCpuPercent) + "%";
+    }
+
+    private void sample() {
+        List<String> peerIds = peerManager.getPeerIds();
+        Sample sample;
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            long cpuMs = Process.getElapsedCpuTime();
+            long wallMs = Math.max(now - lastSampleAt, 1);
+            long uplinkKbps = intervalBytesSent * 8 / wallMs;
+            float cpuPercent = (cpuMs - lastCpuMs) * 100f / (wallMs * cores);
+            lastSampleAt = now;
+            lastCpuMs = cpuMs;
+            intervalBytesSent = 0;
+            // 已关闭的连接不再参与统计
+            lastBytesSent.keySet().retainAll(new HashSet<>(peerIds));
+
+            sample = new Sample(mode, peerIds.size(), uplinkKbps, cpuPercent);
+            lastSample = sample;
+            sampleCount++;
+            totalUplinkKbps += uplinkKbps;
+            maxUplinkKbps = Math.max(maxUplinkKbps, uplinkKbps);
+            totalCpuPercent += cpuPercent;
+            maxCpuPercent = Math.max(maxCpuPercent, cpuPercent);
+        }
+        Log.d(TAG, sample.toString());
+
+        // 统计结果异步返回，计入下一次采样
+        for (String peerId : peerIds) {
+            peerManager.requestStats(peerId, report -> onStatsDelivered(peerId, report));
+        }
+    }
+
+    private void onStatsDelivered(String peerId, RTCStatsReport report) {
+        long bytesSent = 0;
+        for (RTCStats stats : report.getStatsMap().values()) {
+            if (!"outbound-rtp".equals(stats.getType())) {
+                continue;
+            }
+            Object value = stats.getMembers().get("bytesSent");
+            if (value instanceof Number) {
+                bytesSent += ((Number) value).longValue();
+            }
+        }
+        synchronized (this) {
+            Long previous = lastBytesSent.put(peerId, bytesSent);
+            if (previous != null && bytesSent >= previous) {
+                intervalBytesSent += bytesSent - previous;
+            }
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package com.example.webrtctest;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * 网络配置实体类
  * 用于集中管理应用中的网络相关配置
@@ -12,6 +15,41 @@ public class NetworkConfig {
     // 是否为真机调试模式
     private static boolean isRealDeviceDebug = true; // 默认为真机调试
     
+    // SFU模式下所有人只和服务器端的这个虚拟用户建立一个连接
+    public static final String SFU_PEER_ID = "sfu";
+    
+    // 是否使用SFU模式（默认网状模式，每个远程用户一个连接）
+    private static boolean isSfuMode = false;
+    
+    // 连续失败这么多次的服务器暂时不选，冷却时间过后再给一次机会
+    private static final int MAX_CONSECUTIVE_FAILURES = 2;
+    private static final long FAILURE_COOLDOWN_MS = 60_000;
+    // 超过这个时间的RTT不再代表当前网络，按没有测到处理
+    private static final long RTT_MAX_AGE_MS = 5 * 60_000;
+    
+    // 备用信令服务器和各服务器最近的心跳结果，由NetworkConfig.class同步；
+    // 主服务器的结果按当前地址记录，修改主机或端口后旧地址的结果不再参与选择
+    private static final Map<String, ServerHealth> backupServers = new LinkedHashMap<>();
+    private static String primaryHealthUrl;
+    private static ServerHealth primaryHealth;
+    
+    private static final class ServerHealth {
+        // 平滑后的心跳往返时间，-1表示还没有测到
+        long rttMs = -1;
+        long rttMeasuredAt;
+        // 连续失败（心跳超时、连接出错）的次数，测到RTT后清零
+        int failures = 0;
+        long lastFailureAt;
+        
+        boolean isAvailable(long nowMs) {
+            return failures < MAX_CONSECUTIVE_FAILURES || nowMs - lastFailureAt >= FAILURE_COOLDOWN_MS;
+        }
+        
+        long recentRttMs(long nowMs) {
+            return rttMs >= 0 && nowMs - rttMeasuredAt <= RTT_MAX_AGE_MS ? rttMs : -1;
+        }
+    }
+    
     // 获取WebSocket服务器地址
     public static String getWebSocketServerUrl() {
         return "ws://" + signalingServerHost + ":" + signalingServerPort;
@@ -52,17 +90,138 @@ public class NetworkConfig {
         isRealDeviceDebug = realDeviceDebug;
     }
     
+    // 是否为SFU模式
+    public static boolean isSfuMode() {
+        return isSfuMode;
+    }
+    
+    // 设置是否使用SFU模式，需要连接支持SFU的服务器（sfu-server模块）
+    public static void setSfuMode(boolean sfuMode) {
+        isSfuMode = sfuMode;
+    }
+    
     // 获取适用于模拟器的地址
     public static String getEmulatorServerUrl() {
         return "ws://10.0.2.2:" + signalingServerPort;
     }
     
-    // 根据设备类型获取合适的服务器地址
-    public static String getSuitableServerUrl() {
+    // 根据设备类型获取主服务器地址
+    public static String getPrimaryServerUrl() {
         if (isRealDeviceDebug()) {
             return getWebSocketServerUrl();
         } else {
             return getEmulatorServerUrl();
         }
     }
+    
+    // 添加备用信令服务器地址（如ws://192.168.1.20:8080），主服务器不可用或明显更慢时改用
+    public static synchronized void addSignalingServerCandidate(String url) {
+        if (!backupServers.containsKey(url)) {
+            backupServers.put(url, new ServerHealth());
+        }
+    }
+    
+    // 移除所有备用服务器和已记录的心跳结果
+    public static synchronized void clearSignalingServerCandidates() {
+        backupServers.clear();
+        primaryHealthUrl = null;
+        primaryHealth = null;
+    }
+    
+    // 记录服务器的平滑心跳往返时间，由WebSocketClientWrapper在收到pong时调用；不是已配置的服务器时忽略
+    public static void reportServerRtt(String url, long rttMs) {
+        reportServerRtt(url, rttMs, System.currentTimeMillis());
+    }
+    
+    static synchronized void reportServerRtt(String url, long rttMs, long nowMs) {
+        ServerHealth health = configuredHealth(url);
+        if (health == null) {
+            return;
+        }
+        health.rttMs = rttMs;
+        health.rttMeasuredAt = nowMs;
+        health.failures = 0;
+    }
+    
+    // 记录一次服务器不可用（心跳超时或连接失败）
+    public static void reportServerFailure(String url) {
+        reportServerFailure(url, System.currentTimeMillis());
+    }
+    
+    static synchronized void reportServerFailure(String url, long nowMs) {
+        ServerHealth health = configuredHealth(url);
+        if (health == null) {
+            return;
+        }
+        health.failures++;
+        health.lastFailureAt = nowMs;
+    }
+    
+    // 获取合适的服务器地址，在新建信令连接时调用
+    // 没有备用服务器时就是主服务器；否则在可用的服务器中选最近RTT最低的，没有测到RTT时优先主服务器，
+    // 连续失败的服务器在冷却期内跳过；全部不可用时选最早失败的那个，它最接近冷却结束
+    public static String getSuitableServerUrl() {
+        return getSuitableServerUrl(System.currentTimeMillis());
+    }
+    
+    static synchronized String getSuitableServerUrl(long nowMs) {
+        String primary = getPrimaryServerUrl();
+        if (backupServers.isEmpty()) {
+            return primary;
+        }
+        Map<String, ServerHealth> servers = new LinkedHashMap<>();
+        servers.put(primary, configuredHealth(primary));
+        for (Map.Entry<String, ServerHealth> entry : backupServers.entrySet()) {
+            servers.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+        
+        String best = null;
+        long bestRtt = -1;
+        String firstAvailable = null;
+        String leastRecentFailure = primary;
+        long leastRecentFailureAt = Long.MAX_VALUE;
+        for (Map.Entry<String, ServerHealth> entry : servers.entrySet()) {
+            ServerHealth health = entry.getValue();
+            if (!health.isAvailable(nowMs)) {
+                if (health.lastFailureAt < leastRecentFailureAt) {
+                    leastRecentFailureAt = health.lastFailureAt;
+                    leastRecentFailure = entry.getKey();
+                }
+                continue;
+            }
+            if (firstAvailable == null) {
+                firstAvailable = entry.getKey();
+            }
+            long rtt = health.recentRttMs(nowMs);
+            if (rtt >= 0 && (best == null || rtt < bestRtt)) {
+                best = entry.getKey();
+                bestRtt = rtt;
+            }
+        }
+        if (best != null) {
+            return best;
+        }
+        return firstAvailable != null ? firstAvailable : leastRecentFailure;
+    }
+    
+    // 调用方持有NetworkConfig.class锁
+    private static ServerHealth configuredHealth(String url) {
+        ServerHealth backup = backupServers.get(url);
+        if (backup != null) {
+            return backup;
+        }
+        if (url.equals(getPrimaryServerUrl())) {
+            return primaryHealthOf(url);
+        }
+        return null;
+    }
+    
+    // 只保留当前主服务器的记录
+    private static ServerHealth primaryHealthOf(String url) {
+        if (primaryHealth == null || !url.equals(primaryHealthUrl)) {
+            primaryHealthUrl = url;
+            primaryHealth = new ServerHealth();
+        }
+        return primaryHealth;
+    }
 }
\ No newline at end of file
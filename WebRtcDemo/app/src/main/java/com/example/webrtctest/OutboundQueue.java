@@ -0,0 +1,230 @@
+package com.example.webrtctest;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 信令发送队列，由WebSocketClientWrapper在自己的锁内使用，本身不是线程安全的
+ * 房间操作和SDP/ICE互相依赖（加入房间之前不能协商，离开之后的候选没有意义），按调用顺序发送；
+ * 只有不影响其他消息的查询排在最后。getRoomInfo的结果只和发出的时间有关，队列里最多保留一条，新的请求替换旧的；
+ * 取出时发给同一用户的ICE消息合并成一条iceCandidates，但不会越过发给这个用户的SDP或任何房间操作
+ */
+final class OutboundQueue {
+    private static final int PRIORITY_ORDERED = 0;
+    private static final int PRIORITY_INFO = 1;
+    // 一条合并后的iceCandidates最多由多少条消息合成
+    private static final int MAX_MERGED_MESSAGES = 32;
+
+    private static final class Entry {
+        final String text;
+        final String type;
+        final String targetUserId;
+        // 只有ICE消息保留解码结果，合并时取候选的原始文本
+        final SignalingMessage decoded;
+
+        Entry(String text, String type, String targetUserId, SignalingMessage decoded) {
+            this.text = text;
+            this.type = type;
+            this.targetUserId = targetUserId;
+            this.decoded = decoded;
+        }
+
+        boolean isIce() {
+            return decoded != null;
+        }
+    }
+
+    // 合并中的一组ICE消息，位置在它的第一条消息处
+    private static final class IceBatch {
+        final Entry first;
+        final StringBuilder candidates = new StringBuilder(1024);
+        int messages = 0;
+
+        IceBatch(Entry first) {
+            this.first = first;
+        }
+    }
+
+    private final int capacity;
+    private final List<ArrayDeque<Entry>> queues = new ArrayList<>(2);
+    private int size = 0;
+    private int iceCount = 0;
+    private boolean roomInfoQueued = false;
+
+    OutboundQueue(int capacity) {
+        this.capacity = capacity;
+        for (int i = 0; i <= PRIORITY_INFO; i++) {
+            queues.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * 放入一条消息，被合并时也返回true；队列满且没有可以让出位置的查询请求时返回false
+     */
+    boolean offer(String text) {
+        String type = null;
+        String targetUserId = null;
+        SignalingMessage decoded = null;
+        try {
+            SignalingMessage message = SignalingMessage.decode(text);
+            type = message.type();
+            targetUserId = message.optString("targetUserId", null);
+            if ("iceCandidate".equals(type) || "iceCandidates".equals(type)) {
+                decoded = message;
+            }
+        } catch (SignalingMessage.DecodeException e) {
+            // 格式不对的消息按顺序原样发送，由服务器回错误
+        }
+        if ("getRoomInfo".equals(type) && roomInfoQueued) {
+            evictRoomInfo();
+        }
+        if (size >= capacity && !evictRoomInfo()) {
+            return false;
+        }
+        queues.get(priorityOf(type)).addLast(new Entry(text, type, targetUserId, decoded));
+        size++;
+        if (decoded != null) {
+            iceCount++;
+        }
+        if ("getRoomInfo".equals(type)) {
+            roomInfoQueued = true;
+        }
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * 队列里的ICE消息条数（合并前）
+     */
+    int iceCount() {
+        return iceCount;
+    }
+
+    /**
+     * 按发送顺序取出全部消息，ICE消息在这里合并
+     */
+    List<String> drain() {
+        List<String> out = new ArrayList<>(size);
+        for (ArrayDeque<Entry> queue : queues) {
+            if (queue.isEmpty()) {
+                continue;
+            }
+            // 元素为String或IceBatch，IceBatch在最后统一生成文本
+            List<Object> ordered = new ArrayList<>(queue.size());
+            Map<String, IceBatch> openBatches = new HashMap<>();
+            for (Entry entry : queue) {
+                String key = entry.targetUserId != null ? entry.targetUserId : "";
+                if (!entry.isIce()) {
+                    // 发给同一用户的其他消息之后的候选不能合并到它前面；房间操作没有目标用户，所有候选都不能越过
+                    if (entry.targetUserId == null) {
+                        openBatches.clear();
+                    } else {
+                        openBatches.remove(key);
+                    }
+                    ordered.add(entry.text);
+                    continue;
+                }
+                IceBatch batch = openBatches.get(key);
+                if (batch == null || batch.messages >= MAX_MERGED_MESSAGES) {
+                    batch = new IceBatch(entry);
+                    openBatches.put(key, batch);
+                    ordered.add(batch);
+                }
+                appendCandidates(batch, entry);
+            }
+            for (Object item : ordered) {
+                out.add(item instanceof IceBatch ? toMessage((IceBatch) item) : (String) item);
+            }
+            queue.clear();
+        }
+        size = 0;
+        iceCount = 0;
+        roomInfoQueued = false;
+        return out;
+    }
+
+    /**
+     * 丢弃全部消息，返回丢弃的条数
+     */
+    int clear() {
+        int dropped = size;
+        for (ArrayDeque<Entry> queue : queues) {
+            queue.clear();
+        }
+        size = 0;
+        iceCount = 0;
+        roomInfoQueued = false;
+        return dropped;
+    }
+
+    private boolean evictRoomInfo() {
+        ArrayDeque<Entry> infoQueue = queues.get(PRIORITY_INFO);
+        if (infoQueue.pollFirst() == null) {
+            return false;
+        }
+        size--;
+        roomInfoQueued = false;
+        return true;
+    }
+
+    private static int priorityOf(String type) {
+        return "getRoomInfo".equals(type) ? PRIORITY_INFO : PRIORITY_ORDERED;
+    }
+
+    private static void appendCandidates(IceBatch batch, Entry entry) {
+        batch.messages++;
+        if (batch.messages == 1) {
+            // 只有一条时原样发送，第二条加入时才需要拼出第一条的候选
+            return;
+        }
+        if (batch.messages == 2) {
+            appendCandidateText(batch, batch.first);
+        }
+        appendCandidateText(batch, entry);
+    }
+
+    private static void appendCandidateText(IceBatch batch, Entry entry) {
+        StringBuilder candidates = batch.candidates;
+        try {
+            SignalingMessage message = entry.decoded;
+            if ("iceCandidates".equals(entry.type)) {
+                CharSequence array = message.rawValue("candidates");
+                CharSequence items = array.subSequence(1, array.length() - 1);
+                if (items.toString().trim().isEmpty()) {
+                    return;
+                }
+                separate(candidates).append(items);
+            } else {
+                separate(candidates).append("{\"candidate\":").append(message.rawValue("candidate"))
+                        .append(",\"sdpMid\":").append(message.rawValue("sdpMid"))
+                        .append(",\"sdpMLineIndex\":").append(message.rawValue("sdpMLineIndex")).append('}');
+            }
+        } catch (SignalingMessage.DecodeException e) {
+            // 缺字段的候选对端也无法使用，丢弃
+        }
+    }
+
+    private static StringBuilder separate(StringBuilder candidates) {
+        return candidates.length() > 0 ? candidates.append(',') : candidates;
+    }
+
+    private static String toMessage(IceBatch batch) {
+        if (batch.messages == 1) {
+            return batch.first.text;
+        }
+        StringBuilder message = new StringBuilder(batch.candidates.length() + 96)
+                .append("{\"type\":\"iceCandidates\",\"targetUserId\":");
+        try {
+            message.append(batch.first.decoded.rawValue("targetUserId"));
+        } catch (SignalingMessage.DecodeException e) {
+            message.append("null");
+        }
+        return message.append(",\"candidates\":[").append(batch.candidates).append("]}").toString();
+    }
+}
@@ -0,0 +1,541 @@
+package com.example.webrtctest;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.webrtc.AudioSource;
+import org.webrtc.AudioTrack;
+import org.webrtc.DefaultVideoDecoderFactory;
+import org.webrtc.DefaultVideoEncoderFactory;
+import org.webrtc.EglBase;
+import org.webrtc.IceCandidate;
+import org.webrtc.MediaConstraints;
+import org.webrtc.MediaStreamTrack;
+import org.webrtc.PeerConnection;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.RTCStatsCollectorCallback;
+import org.webrtc.RtpParameters;
+import org.webrtc.RtpSender;
+import org.webrtc.RtpTransceiver;
+import org.webrtc.VideoSource;
+import org.webrtc.VideoTrack;
+import org.webrtc.audio.AudioDeviceModule;
+import org.webrtc.audio.JavaAudioDeviceModule;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * PeerConnection管理器
+ * 整个通话只创建一个PeerConnectionFactory（编解码器工厂和音频设备只有一份），
+ * 所有远程用户的连接共用同一套本地音视频轨道，并从预先准备好的RTCConfiguration创建；
+ * 记录每个连接的建立耗时，释放时按 连接 → 轨道 → 源 → 工厂 → 音频设备 的顺序销毁；
+ * 连接还没创建或还没设置远程描述时收到的ICE候选先按用户缓存，设置远程描述后再统一添加；
+ * 开启simulcast时视频按VideoLayer的三层同时编码，否则每个连接一路编码，以对方选择的层为上限，
+ * 由SenderBitrateController按这个连接的带宽估计和丢包率调整码率和分辨率
+ */
+public class PeerConnectionManager {
+    private static final String TAG = "PeerConnectionManager";
+    private static final String LOCAL_STREAM_ID = "ARDAMS";
+    private static final String LOCAL_AUDIO_TRACK_ID = "local_audio_track";
+    private static final String LOCAL_VIDEO_TRACK_ID = "local_video_track";
+    // 每个用户最多缓存的ICE候选数，超过的丢弃并计数
+    private static final int MAX_PENDING_CANDIDATES = 64;
+
+    // PeerConnectionFactory.initialize是进程级的初始化，只需要调用一次
+    private static boolean factoryInitialized = false;
+
+    /**
+     * 单个连接的建立耗时
+     */
+    public static class PeerSetupStats {
+        public final String userId;
+        // createPeerConnection本身的耗时
+        public final long createCostMs;
+        // 从创建连接到ICE连通的耗时，还没连通时为-1
+        public final long connectCostMs;
+
+        PeerSetupStats(String userId, long createCostMs, long connectCostMs) {
+            this.userId = userId;
+            this.createCostMs = createCostMs;
+            this.connectCostMs = connectCostMs;
+        }
+
+        @Override
+        public String toString() {
+            return "PeerSetupStats{userId=" + userId + ", createCostMs=" + createCostMs
+                    + ", connectCostMs=" + connectCostMs + "}";
+        }
+    }
+
+    /**
+     * 远程ICE候选的累计计数
+     */
+    public static class IceCandidateCounters {
+        // 收到时无法立即添加而进入缓存的数量
+        public final long buffered;
+        // 直接或从缓存中添加到连接的数量
+        public final long applied;
+        // 缓存已满、连接关闭时仍未添加而丢弃的数量
+        public final long dropped;
+
+        IceCandidateCounters(long buffered, long applied, long dropped) {
+            this.buffered = buffered;
+            this.applied = applied;
+            this.dropped = dropped;
+        }
+
+        @Override
+        public String toString() {
+            return "IceCandidateCounters{buffered=" + buffered + ", applied=" + applied
+                    + ", dropped=" + dropped + "}";
+        }
+    }
+
+    private static class Peer {
+        final PeerConnection connection;
+        final long createdAt;
+        final long createCostMs;
+        long connectCostMs = -1;
+        boolean remoteDescriptionSet = false;
+        final List<IceCandidate> pendingCandidates = new ArrayList<>();
+        // 连接已销毁，由Peer对象的锁保护：销毁在this锁之外进行，其他线程取统计时用它避免访问已销毁的连接
+        boolean disposed = false;
+
+        Peer(PeerConnection connection, long createdAt, long createCostMs) {
+            this.connection = connection;
+            this.createdAt = createdAt;
+            this.createCostMs = createCostMs;
+        }
+    }
+
+    private final AudioDeviceModule audioDeviceModule;
+    private final PeerConnectionFactory factory;
+    private final PeerConnection.RTCConfiguration rtcConfig;
+    // SFU转发时同一个连接里有多个发布者的轨道，轨道ID加上随机后缀避免重复
+    private final String trackIdSuffix = "_" + UUID.randomUUID().toString().substring(0, 8);
+
+    // 以下状态由this锁保护
+    private final Map<String, Peer> peers = new LinkedHashMap<>();
+    // 连接创建之前就收到的ICE候选，创建连接时转入Peer.pendingCandidates
+    private final Map<String, List<IceCandidate>> earlyCandidates = new HashMap<>();
+    private long bufferedCandidates = 0;
+    private long appliedCandidates = 0;
+    private long droppedCandidates = 0;
+    private AudioSource audioSource;
+    private AudioTrack localAudioTrack;
+    private VideoSource videoSource;
+    private VideoTrack localVideoTrack;
+    // 对方通过selectLayer选择的层，连接创建后或收到选择时应用到视频sender
+    private final Map<String, VideoLayer> requestedLayers = new HashMap<>();
+    private final SenderBitrateController bitrateController = new SenderBitrateController();
+    private boolean simulcastEnabled = false;
+    private boolean released = false;
+
+    public PeerConnectionManager(Context context, EglBase.Context eglContext) {
+        long start = SystemClock.elapsedRealtime();
+        initializeFactoryOnce(context.getApplicationContext());
+
+        audioDeviceModule = JavaAudioDeviceModule.builder(context.getApplicationContext())
+                .createAudioDeviceModule();
+        factory = PeerConnectionFactory.builder()
+                .setVideoEncoderFactory(new DefaultVideoEncoderFactory(eglContext, true, true))
+                .setVideoDecoderFactory(new DefaultVideoDecoderFactory(eglContext))
+                .setAudioDeviceModule(audioDeviceModule)
+                .createPeerConnectionFactory();
+        rtcConfig = createRtcConfiguration();
+
+        Log.d(TAG, "PeerConnectionFactory创建完成，耗时: " + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    private static synchronized void initializeFactoryOnce(Context appContext) {
+        if (factoryInitialized) {
+            return;
+        }
+        PeerConnectionFactory.initialize(PeerConnectionFactory.InitializationOptions.builder(appContext)
+                .createInitializationOptions());
+        factoryInitialized = true;
+    }
+
+    // 所有连接共用的配置，只构建一次
+    private static PeerConnection.RTCConfiguration createRtcConfiguration() {
+        List<PeerConnection.IceServer> iceServers = new ArrayList<>();
+        iceServers.add(PeerConnection.IceServer.builder("stun:stun.l.google.com:19302").createIceServer());
+
+        PeerConnection.RTCConfiguration config = new PeerConnection.RTCConfiguration(iceServers);
+        config.sdpSemantics = PeerConnection.SdpSemantics.UNIFIED_PLAN;
+        config.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.ENABLED;
+        config.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
+        config.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
+        config.continualGatheringPolicy = PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
+        config.iceTransportsType = PeerConnection.IceTransportsType.ALL;
+        return config;
+    }
+
+    /**
+     * 创建本地音频轨道，重复调用返回同一个轨道
+     */
+    public synchronized AudioTrack createLocalAudioTrack() {
+        checkNotReleased();
+        if (localAudioTrack == null) {
+            audioSource = factory.createAudioSource(new MediaConstraints());
+            localAudioTrack = factory.createAudioTrack(LOCAL_AUDIO_TRACK_ID + trackIdSuffix, audioSource);
+        }
+        return localAudioTrack;
+    }
+
+    /**
+     * 创建本地视频源，采集器通过它的CapturerObserver输出画面
+     */
+    public synchronized VideoSource createLocalVideoSource() {
+        checkNotReleased();
+        if (videoSource == null) {
+            videoSource = factory.createVideoSource(false);
+        }
+        return videoSource;
+    }
+
+    /**
+     * 基于本地视频源创建本地视频轨道，重复调用返回同一个轨道
+     */
+    public synchronized VideoTrack createLocalVideoTrack() {
+        checkNotReleased();
+        if (localVideoTrack == null) {
+            localVideoTrack = factory.createVideoTrack(LOCAL_VIDEO_TRACK_ID + trackIdSuffix, createLocalVideoSource());
+        }
+        return localVideoTrack;
+    }
+
+    /**
+     * 之后创建的连接是否以simulcast发布视频，SFU模式下开启
+     */
+    public synchronized void setSimulcastEnabled(boolean enabled) {
+        simulcastEnabled = enabled;
+    }
+
+    public synchronized PeerConnection getPeerConnection(String userId) {
+        Peer peer = peers.get(userId);
+        return peer != null ? peer.connection : null;
+    }
+
+    /**
+     * 获取或创建与某个远程用户的连接，新连接会加入已创建的本地音视频轨道
+     */
+    public synchronized PeerConnection getOrCreatePeerConnection(String userId, PeerConnection.Observer observer) {
+        checkNotReleased();
+        Peer peer = peers.get(userId);
+        if (peer != null) {
+            return peer.connection;
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        PeerConnection connection = factory.createPeerConnection(rtcConfig, observer);
+        if (connection == null) {
+            Log.e(TAG, "创建PeerConnection失败，用户ID: " + userId);
+            return null;
+        }
+        List<String> streamIds = Collections.singletonList(LOCAL_STREAM_ID);
+        if (localAudioTrack != null) {
+            connection.addTrack(localAudioTrack, streamIds);
+        }
+        if (localVideoTrack != null && simulcastEnabled) {
+            connection.addTransceiver(localVideoTrack, new RtpTransceiver.RtpTransceiverInit(
+                    RtpTransceiver.RtpTransceiverDirection.SEND_RECV, streamIds, createSimulcastEncodings()));
+        } else if (localVideoTrack != null) {
+            connection.addTrack(localVideoTrack, streamIds);
+        } else {
+            Log.w(TAG, "本地视频轨道为空，未添加到PeerConnection，用户ID: " + userId);
+        }
+        long createCostMs = SystemClock.elapsedRealtime() - start;
+        peer = new Peer(connection, start, createCostMs);
+        List<IceCandidate> early = earlyCandidates.remove(userId);
+        if (early != null) {
+            peer.pendingCandidates.addAll(early);
+        }
+        peers.put(userId, peer);
+        VideoLayer layer = requestedLayers.get(userId);
+        if (layer != null && !simulcastEnabled) {
+            applySenderTarget(userId, connection, bitrateController.onLayerChanged(userId, layer));
+        }
+        Log.d(TAG, "为用户 " + userId + " 创建PeerConnection，耗时: " + createCostMs + "ms，当前连接数: " + peers.size());
+        return connection;
+    }
+
+    /**
+     * 添加远程ICE候选；连接不存在或还没设置远程描述时先缓存
+     */
+    public synchronized void addRemoteIceCandidate(String userId, IceCandidate candidate) {
+        Peer peer = peers.get(userId);
+        if (peer != null && peer.remoteDescriptionSet) {
+            peer.connection.addIceCandidate(candidate);
+            appliedCandidates++;
+            return;
+        }
+        List<IceCandidate> pending;
+        if (peer != null) {
+            pending = peer.pendingCandidates;
+        } else {
+            pending = earlyCandidates.get(userId);
+            if (pending == null) {
+                pending = new ArrayList<>();
+                earlyCandidates.put(userId, pending);
+            }
+        }
+        if (pending.size() >= MAX_PENDING_CANDIDATES) {
+            droppedCandidates++;
+            Log.w(TAG, "用户 " + userId + " 缓存的ICE候选已满，丢弃一个候选");
+            return;
+        }
+        pending.add(candidate);
+        bufferedCandidates++;
+        Log.d(TAG, "缓存用户 " + userId + " 的ICE候选，" + (peer == null ? "连接未创建" : "远程描述未设置")
+                + "，已缓存: " + pending.size());
+    }
+
+    /**
+     * 远程描述设置成功后调用，把缓存的ICE候选添加到连接
+     */
+    public synchronized void onRemoteDescriptionSet(String userId) {
+        Peer peer = peers.get(userId);
+        if (peer == null) {
+            return;
+        }
+        peer.remoteDescriptionSet = true;
+        if (peer.pendingCandidates.isEmpty()) {
+            return;
+        }
+        for (IceCandidate candidate : peer.pendingCandidates) {
+            peer.connection.addIceCandidate(candidate);
+        }
+        appliedCandidates += peer.pendingCandidates.size();
+        Log.d(TAG, "远程描述已设置，为用户 " + userId + " 添加缓存的ICE候选: " + peer.pendingCandidates.size());
+        peer.pendingCandidates.clear();
+    }
+
+    /**
+     * 对方选择了它要接收的层：作为发给它的那一路视频的分辨率和码率上限，连接还没创建时记下来，创建后应用
+     */
+    public synchronized void applyVideoLayer(String userId, VideoLayer layer) {
+        requestedLayers.put(userId, layer);
+        Peer peer = peers.get(userId);
+        if (peer != null && !simulcastEnabled) {
+            applySenderTarget(userId, peer.connection, bitrateController.onLayerChanged(userId, layer));
+        }
+    }
+
+    /**
+     * 某个连接的发送带宽估计（bps，未知时不大于0）和对方报告的视频丢包率（0~1，未知时小于0），
+     * 在对方选择的层以内调整发给它的视频；simulcast时各层的码率由编码器分配，不做调整
+     */
+    public synchronized void onSendBandwidthEstimate(String userId, long availableBps, double lossFraction) {
+        Peer peer = peers.get(userId);
+        if (peer == null || simulcastEnabled) {
+            return;
+        }
+        VideoLayer ceiling = requestedLayers.getOrDefault(userId, VideoLayer.HIGH);
+        SenderBitrateController.Target target =
+                bitrateController.onEstimate(userId, ceiling, availableBps, lossFraction);
+        if (target != null) {
+            applySenderTarget(userId, peer.connection, target);
+        }
+    }
+
+    /**
+     * 异步获取与某个用户的连接的统计，连接不存在或已销毁时返回false；
+     * 可以在任意线程调用，和销毁互斥，不会对已销毁的连接调用getStats
+     */
+    public boolean requestStats(String userId, RTCStatsCollectorCallback callback) {
+        Peer peer;
+        synchronized (this) {
+            peer = peers.get(userId);
+        }
+        if (peer == null) {
+            return false;
+        }
+        synchronized (peer) {
+            if (peer.disposed) {
+                return false;
+            }
+            peer.connection.getStats(callback);
+            return true;
+        }
+    }
+
+    public synchronized IceCandidateCounters getIceCandidateCounters() {
+        return new IceCandidateCounters(bufferedCandidates, appliedCandidates, droppedCandidates);
+    }
+
+    /**
+     * 由连接的Observer转发ICE状态，用来统计连接建立耗时
+     */
+    public void onIceConnectionChange(String userId, PeerConnection.IceConnectionState state) {
+        if (state != PeerConnection.IceConnectionState.CONNECTED
+                && state != PeerConnection.IceConnectionState.COMPLETED) {
+            return;
+        }
+        long connectCostMs;
+        synchronized (this) {
+            Peer peer = peers.get(userId);
+            if (peer == null || peer.connectCostMs >= 0) {
+                return;
+            }
+            peer.connectCostMs = SystemClock.elapsedRealtime() - peer.createdAt;
+            connectCostMs = peer.connectCostMs;
+        }
+        Log.d(TAG, "与用户 " + userId + " 的连接建立耗时: " + connectCostMs + "ms");
+    }
+
+    /**
+     * 关闭并销毁与某个用户的连接
+     */
+    public void closePeerConnection(String userId) {
+        Peer peer;
+        synchronized (this) {
+            peer = peers.remove(userId);
+            requestedLayers.remove(userId);
+            bitrateController.remove(userId);
+            dropPendingCandidates(peer, earlyCandidates.remove(userId));
+        }
+        if (peer != null) {
+            disposePeer(userId, peer);
+        }
+    }
+
+    /**
+     * 关闭所有连接，本地轨道和工厂保留，之后还可以重新建立连接
+     */
+    public void closeAllPeerConnections() {
+        Map<String, Peer> closing;
+        synchronized (this) {
+            closing = new LinkedHashMap<>(peers);
+            peers.clear();
+            requestedLayers.clear();
+            for (String userId : closing.keySet()) {
+                bitrateController.remove(userId);
+            }
+            for (Peer peer : closing.values()) {
+                dropPendingCandidates(peer, null);
+            }
+            for (List<IceCandidate> early : earlyCandidates.values()) {
+                dropPendingCandidates(null, early);
+            }
+            earlyCandidates.clear();
+        }
+        for (Map.Entry<String, Peer> entry : closing.entrySet()) {
+            disposePeer(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public synchronized List<String> getPeerIds() {
+        return new ArrayList<>(peers.keySet());
+    }
+
+    public synchronized int getPeerCount() {
+        return peers.size();
+    }
+
+    public synchronized List<PeerSetupStats> getPeerSetupStats() {
+        List<PeerSetupStats> stats = new ArrayList<>(peers.size());
+        for (Map.Entry<String, Peer> entry : peers.entrySet()) {
+            Peer peer = entry.getValue();
+            stats.add(new PeerSetupStats(entry.getKey(), peer.createCostMs, peer.connectCostMs));
+        }
+        return stats;
+    }
+
+    /**
+     * 释放所有资源，之后不能再使用本对象
+     */
+    public void release() {
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            released = true;
+        }
+        closeAllPeerConnections();
+        synchronized (this) {
+            // 轨道要先于源销毁，源要先于工厂销毁
+            if (localAudioTrack != null) {
+                localAudioTrack.dispose();
+                localAudioTrack = null;
+            }
+            if (localVideoTrack != null) {
+                localVideoTrack.dispose();
+                localVideoTrack = null;
+            }
+            if (audioSource != null) {
+                audioSource.dispose();
+                audioSource = null;
+            }
+            if (videoSource != null) {
+                videoSource.dispose();
+                videoSource = null;
+            }
+        }
+        factory.dispose();
+        audioDeviceModule.release();
+        Log.d(TAG, "PeerConnectionManager已释放");
+    }
+
+    private static List<RtpParameters.Encoding> createSimulcastEncodings() {
+        List<RtpParameters.Encoding> encodings = new ArrayList<>();
+        for (VideoLayer layer : VideoLayer.values()) {
+            RtpParameters.Encoding encoding = new RtpParameters.Encoding(layer.rid, true, layer.scaleResolutionDownBy);
+            encoding.maxBitrateBps = layer.maxBitrateBps;
+            encodings.add(encoding);
+        }
+        return encodings;
+    }
+
+    // 调用方持有this锁
+    private void applySenderTarget(String userId, PeerConnection connection, SenderBitrateController.Target target) {
+        for (RtpSender sender : connection.getSenders()) {
+            if (sender.track() == null || !MediaStreamTrack.VIDEO_TRACK_KIND.equals(sender.track().kind())) {
+                continue;
+            }
+            RtpParameters parameters = sender.getParameters();
+            for (RtpParameters.Encoding encoding : parameters.encodings) {
+                encoding.scaleResolutionDownBy = target.scaleResolutionDownBy;
+                encoding.maxBitrateBps = target.maxBitrateBps;
+            }
+            parameters.degradationPreference = target.maintainResolution
+                    ? RtpParameters.DegradationPreference.MAINTAIN_RESOLUTION
+                    : RtpParameters.DegradationPreference.BALANCED;
+            boolean applied = sender.setParameters(parameters);
+            Log.d(TAG, "发给用户 " + userId + " 的视频调整为 " + target + (applied ? "" : " 失败"));
+        }
+    }
+
+    // 调用方持有this锁
+    private void dropPendingCandidates(Peer peer, List<IceCandidate> early) {
+        if (peer != null) {
+            droppedCandidates += peer.pendingCandidates.size();
+            peer.pendingCandidates.clear();
+        }
+        if (early != null) {
+            droppedCandidates += early.size();
+        }
+    }
+
+    private void disposePeer(String userId, Peer peer) {
+        synchronized (peer) {
+            peer.disposed = true;
+            peer.connection.close();
+            peer.connection.dispose();
+        }
+        Log.d(TAG, "已关闭与用户 " + userId + " 的PeerConnection");
+    }
+
+    private void checkNotReleased() {
+        if (released) {
+            throw new IllegalStateException("PeerConnectionManager已释放");
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.webrtctest;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.webrtc.EglBase;
+import org.webrtc.SurfaceViewRenderer;
+
+import java.util.ArrayDeque;
+
+/**
+ * 远程画面渲染器池，只在UI线程使用
+ * SurfaceViewRenderer.init会创建EglRenderer、它的渲染线程和EGL上下文，代价比较大；
+ * 用户离开后渲染器清空画面放回池中，之后加入的用户直接复用，不再重新init
+ */
+final class RemoteRendererPool {
+    private static final String TAG = "RemoteRendererPool";
+
+    private final Context context;
+    private final EglBase.Context eglContext;
+    private final int capacity;
+    private final ArrayDeque<SurfaceViewRenderer> idle = new ArrayDeque<>();
+    private int created = 0;
+
+    RemoteRendererPool(Context context, EglBase.Context eglContext, int capacity) {
+        this.context = context;
+        this.eglContext = eglContext;
+        this.capacity = capacity;
+    }
+
+    /**
+     * 取一个已经init的渲染器，池里没有时新建
+     */
+    SurfaceViewRenderer acquire() {
+        SurfaceViewRenderer renderer = idle.pollFirst();
+        if (renderer != null) {
+            return renderer;
+        }
+        renderer = new SurfaceViewRenderer(context);
+        renderer.init(eglContext, null);
+        created++;
+        Log.d(TAG, "创建远程渲染器，累计创建: " + created);
+        return renderer;
+    }
+
+    /**
+     * 放回不再使用的渲染器，调用前需要断开视频轨道；在从容器中移除之前调用，清空画面时surface还在。
+     * 池满时直接释放
+     */
+    void recycle(SurfaceViewRenderer renderer) {
+        if (idle.size() >= capacity) {
+            renderer.release();
+            return;
+        }
+        renderer.clearImage();
+        idle.addLast(renderer);
+    }
+
+    /**
+     * 释放池中所有渲染器，在EGL上下文释放之前调用
+     */
+    void releaseAll() {
+        for (SurfaceViewRenderer renderer : idle) {
+            renderer.release();
+        }
+        idle.clear();
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.webrtctest;
+
+import java.util.Locale;
+
+/**
+ * 信令连接的往返时间统计
+ * 平滑值和偏差按TCP的方式计算（RFC 6298，α=1/8，β=1/4），用于重连退避和服务器选择；
+ * 分布放在固定的毫秒区间里，用于日志里看百分位。方法由this同步，心跳线程写、其他线程读
+ */
+public class RttHistogram {
+    // 各区间的上界（毫秒，含），最后一个区间收纳更大的值
+    private static final long[] BUCKET_BOUNDS_MS = {
+            10, 20, 30, 50, 75, 100, 150, 200, 300, 500, 750, 1000, 2000, 5000
+    };
+
+    private final long[] buckets = new long[BUCKET_BOUNDS_MS.length + 1];
+    private long count = 0;
+    private long maxMs = 0;
+    private double smoothedMs = 0;
+    private double varianceMs = 0;
+
+    public synchronized void record(long rttMs) {
+        int index = 0;
+        while (index < BUCKET_BOUNDS_MS.length && rttMs > BUCKET_BOUNDS_MS[index]) {
+            index++;
+        }
+        buckets[index]++;
+        maxMs = Math.max(maxMs, rttMs);
+        if (count == 0) {
+            smoothedMs = rttMs;
+            varianceMs = rttMs / 2.0;
+        } else {
+            varianceMs = 0.75 * varianceMs + 0.25 * Math.abs(smoothedMs - rttMs);
+            smoothedMs = 0.875 * smoothedMs + 0.125 * rttMs;
+        }
+        count++;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * 平滑后的RTT，没有样本时为-1
+     */
+    public synchronized long getSmoothedRttMs() {
+        return count == 0 ? -1 : Math.round(smoothedMs);
+    }
+
+    /**
+     * 重传超时的估计值 SRTT + 4 × RTTVAR，没有样本时为-1
+     */
+    public synchronized long getTimeoutEstimateMs() {
+        return count == 0 ? -1 : Math.round(smoothedMs + 4 * varianceMs);
+    }
+
+    /**
+     * 百分位所在区间的上界，最后一个区间返回最大值；没有样本时为-1
+     */
+    public synchronized long getPercentileMs(double percentile) {
+        if (count == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(percentile * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(BUCKET_BOUNDS_MS[i], maxMs);
+            }
+        }
+        return maxMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (count == 0) {
+            return "RTT: 无样本";
+        }
+        return String.format(Locale.US, "RTT: 样本%d, 平滑%dms, p50≤%dms, p90≤%dms, p99≤%dms, 最大%dms",
+                count, Math.round(smoothedMs), getPercentileMs(0.5), getPercentileMs(0.9),
+                getPercentileMs(0.99), maxMs);
+    }
+}
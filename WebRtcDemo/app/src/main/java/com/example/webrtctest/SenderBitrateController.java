@@ -0,0 +1,153 @@
+package com.example.webrtctest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 网状模式下按每个连接的带宽估计调整发给对方的视频
+ * 每个连接一路编码，对方选择的层（VideoLayer）是上限；在上限之内按getStats的availableOutgoingBitrate
+ * 和对方RTCP报告的丢包率决定码率，码率不够时降低分辨率。估计值先做平滑，每次调整的幅度有上下限，
+ * 一个连接变差只影响发给它的那一路，不会拖低其他连接。不依赖Android和WebRTC，由PeerConnectionManager在锁内调用
+ */
+final class SenderBitrateController {
+    // 估计值和丢包率的平滑系数
+    private static final double SMOOTHING = 0.3;
+    // 码率只用到带宽估计的这个比例，给音频和重传留余量
+    private static final double HEADROOM = 0.85;
+    // 丢包率超过这个值时按丢包率降低码率，介于两者之间时不再提高
+    private static final double HIGH_LOSS = 0.10;
+    private static final double LOW_LOSS = 0.02;
+    // 每次调整最多降低30%、提高15%
+    private static final double MAX_DECREASE = 0.7;
+    private static final double MAX_INCREASE = 1.15;
+    private static final int MIN_BITRATE_BPS = 100_000;
+    // 码率至少达到某一层上限的这个比例才使用这一层的分辨率，升高分辨率还要再多20%，避免来回切换
+    private static final double MIN_LAYER_FILL = 0.6;
+    private static final double UPGRADE_MARGIN = 1.2;
+    // 码率变化小于这个比例、分辨率也不变时不重新设置参数
+    private static final double MIN_CHANGE = 0.05;
+
+    /**
+     * 要应用到视频sender的参数
+     */
+    static final class Target {
+        final int maxBitrateBps;
+        final double scaleResolutionDownBy;
+        // 已经主动降低了分辨率时让编码器只降帧率，否则由编码器平衡两者
+        final boolean maintainResolution;
+
+        Target(int maxBitrateBps, double scaleResolutionDownBy, boolean maintainResolution) {
+            this.maxBitrateBps = maxBitrateBps;
+            this.scaleResolutionDownBy = scaleResolutionDownBy;
+            this.maintainResolution = maintainResolution;
+        }
+
+        @Override
+        public String toString() {
+            return (maxBitrateBps / 1000) + "kbps, 缩小" + scaleResolutionDownBy + "倍"
+                    + (maintainResolution ? ", 保持分辨率" : "");
+        }
+    }
+
+    private static final class PeerState {
+        double smoothedBps = -1;
+        double smoothedLoss = 0;
+        double targetBps;
+        VideoLayer ceiling;
+        VideoLayer resolution;
+        Target applied;
+    }
+
+    private final Map<String, PeerState> peers = new HashMap<>();
+
+    /**
+     * 对方选择的层变化或连接刚创建：按新的上限重新计算，返回要应用的参数
+     * 上限降低时码率立即降到新上限；上限提高时不按每次15%爬升，直接用到当前估计允许的码率（没有估计时用新上限），
+     * 丢包较多时保持原码率
+     */
+    Target onLayerChanged(String userId, VideoLayer ceiling) {
+        PeerState state = stateOf(userId, ceiling);
+        if (ceiling.maxBitrateBps > state.ceiling.maxBitrateBps && state.smoothedLoss <= LOW_LOSS) {
+            double available = state.smoothedBps > 0 ? state.smoothedBps * HEADROOM : ceiling.maxBitrateBps;
+            state.targetBps = Math.max(state.targetBps, available);
+        }
+        state.ceiling = ceiling;
+        state.targetBps = Math.max(MIN_BITRATE_BPS, Math.min(state.targetBps, ceiling.maxBitrateBps));
+        state.resolution = selectResolution(state.targetBps, ceiling, state.resolution);
+        state.applied = toTarget(state, ceiling);
+        return state.applied;
+    }
+
+    /**
+     * 收到一次带宽估计（bps，未知时不大于0）和对方报告的丢包率（0~1），参数需要变化时返回新的参数，否则返回null
+     */
+    Target onEstimate(String userId, VideoLayer ceiling, long availableBps, double lossFraction) {
+        PeerState state = stateOf(userId, ceiling);
+        if (availableBps > 0) {
+            state.smoothedBps = state.smoothedBps < 0 ? availableBps
+                    : state.smoothedBps + SMOOTHING * (availableBps - state.smoothedBps);
+        }
+        if (lossFraction >= 0) {
+            state.smoothedLoss += SMOOTHING * (lossFraction - state.smoothedLoss);
+        }
+
+        double desired = state.smoothedBps > 0 ? state.smoothedBps * HEADROOM : ceiling.maxBitrateBps;
+        if (state.smoothedLoss > HIGH_LOSS) {
+            desired = Math.min(desired, state.targetBps * (1 - 0.5 * state.smoothedLoss));
+        } else if (state.smoothedLoss > LOW_LOSS) {
+            desired = Math.min(desired, state.targetBps);
+        }
+        desired = Math.max(state.targetBps * MAX_DECREASE, Math.min(state.targetBps * MAX_INCREASE, desired));
+        state.targetBps = Math.max(MIN_BITRATE_BPS, Math.min(ceiling.maxBitrateBps, desired));
+        state.resolution = selectResolution(state.targetBps, ceiling, state.resolution);
+
+        Target target = toTarget(state, ceiling);
+        Target applied = state.applied;
+        if (applied != null && applied.scaleResolutionDownBy == target.scaleResolutionDownBy
+                && applied.maintainResolution == target.maintainResolution
+                && Math.abs(target.maxBitrateBps - applied.maxBitrateBps) < applied.maxBitrateBps * MIN_CHANGE) {
+            return null;
+        }
+        state.applied = target;
+        return target;
+    }
+
+    void remove(String userId) {
+        peers.remove(userId);
+    }
+
+    private PeerState stateOf(String userId, VideoLayer ceiling) {
+        PeerState state = peers.get(userId);
+        if (state == null) {
+            state = new PeerState();
+            // 还没有带宽估计，从上限开始，由之后的估计往下调
+            state.targetBps = ceiling.maxBitrateBps;
+            state.ceiling = ceiling;
+            state.resolution = ceiling;
+            peers.put(userId, state);
+        }
+        return state;
+    }
+
+    // 不超过上限的、码率够用的最高分辨率
+    private static VideoLayer selectResolution(double targetBps, VideoLayer ceiling, VideoLayer current) {
+        VideoLayer selected = VideoLayer.LOW;
+        for (VideoLayer layer : VideoLayer.values()) {
+            if (layer.scaleResolutionDownBy < ceiling.scaleResolutionDownBy) {
+                break;
+            }
+            double required = layer.maxBitrateBps * MIN_LAYER_FILL;
+            if (current != null && layer.scaleResolutionDownBy < current.scaleResolutionDownBy) {
+                required *= UPGRADE_MARGIN;
+            }
+            if (targetBps >= required) {
+                selected = layer;
+            }
+        }
+        return selected;
+    }
+
+    private static Target toTarget(PeerState state, VideoLayer ceiling) {
+        return new Target((int) state.targetBps, state.resolution.scaleResolutionDownBy, state.resolution != ceiling);
+    }
+}
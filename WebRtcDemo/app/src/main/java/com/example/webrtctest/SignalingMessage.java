@@ -0,0 +1,455 @@
+package com.example.webrtctest;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 信令消息解码器
+ * 只扫描一遍顶层对象，记录每个字段值在原始文本中的位置，不构建JSONObject；
+ * 先读type分发，各处理逻辑再按需取自己用到的字段，SDP等大字段只在取值时解码一次，
+ * 嵌套对象和数组也是原始文本上的视图。不依赖Android和org.json，可以直接在JVM上测试。
+ * 与原来的JSONObject一样，重复的字段名、不匹配的括号、无效的转义都按格式错误处理
+ */
+public final class SignalingMessage {
+
+    /**
+     * 消息格式错误或字段缺失/类型不符
+     */
+    public static class DecodeException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public DecodeException(String message) {
+            super(message);
+        }
+    }
+
+    // 每个字段占4个int：key起点、key终点（不含引号）、value起点、value终点（不含）
+    private static final int SLOT = 4;
+
+    private final String text;
+    private final int end;
+    private int[] members = new int[8 * SLOT];
+    private int memberCount = 0;
+    private String type;
+
+    private SignalingMessage(String text, int end) {
+        this.text = text;
+        this.end = end;
+    }
+
+    /**
+     * 解码一条消息，只建立顶层字段索引
+     */
+    public static SignalingMessage decode(String text) throws DecodeException {
+        if (text == null) {
+            throw new DecodeException("消息为空");
+        }
+        int begin = skipWhitespace(text, 0, text.length());
+        SignalingMessage message = new SignalingMessage(text, text.length());
+        int objectEnd = message.indexObject(begin);
+        if (skipWhitespace(text, objectEnd, text.length()) != text.length()) {
+            throw new DecodeException("消息末尾有多余内容");
+        }
+        return message;
+    }
+
+    /**
+     * 消息类型，没有type字段时为null
+     */
+    public String type() throws DecodeException {
+        if (type == null) {
+            type = optString("type", null);
+        }
+        return type;
+    }
+
+    public boolean has(String key) {
+        return find(key) >= 0;
+    }
+
+    public String getString(String key) throws DecodeException {
+        int slot = require(key);
+        return decodeString(slot);
+    }
+
+    public String optString(String key, String fallback) throws DecodeException {
+        int slot = find(key);
+        if (slot < 0 || text.charAt(members[slot + 2]) != '"') {
+            return fallback;
+        }
+        return decodeString(slot);
+    }
+
+    public int getInt(String key) throws DecodeException {
+        long value = getLong(key);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new DecodeException("整数超出范围: " + key);
+        }
+        return (int) value;
+    }
+
+    public long getLong(String key) throws DecodeException {
+        int slot = require(key);
+        int from = members[slot + 2];
+        int to = members[slot + 3];
+        boolean negative = text.charAt(from) == '-';
+        int i = negative ? from + 1 : from;
+        if (i >= to) {
+            throw new DecodeException("字段不是整数: " + key);
+        }
+        // 按负数累加，Long.MIN_VALUE也能表示
+        long value = 0;
+        for (; i < to; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new DecodeException("字段不是整数: " + key);
+            }
+            int digit = c - '0';
+            if (value < (Long.MIN_VALUE + digit) / 10) {
+                throw new DecodeException("整数超出范围: " + key);
+            }
+            value = value * 10 - digit;
+        }
+        if (!negative) {
+            if (value == Long.MIN_VALUE) {
+                throw new DecodeException("整数超出范围: " + key);
+            }
+            value = -value;
+        }
+        return value;
+    }
+
+    /**
+     * 字段值在原始文本中的视图（字符串保留引号和转义），不复制内容，用于转发或统计长度
+     */
+    public CharSequence rawValue(String key) throws DecodeException {
+        int slot = require(key);
+        return CharBuffer.wrap(text, members[slot + 2], members[slot + 3]);
+    }
+
+    /**
+     * 字段原始文本长度，字段不存在时为-1
+     */
+    public int rawLength(String key) {
+        int slot = find(key);
+        return slot < 0 ? -1 : members[slot + 3] - members[slot + 2];
+    }
+
+    /**
+     * 取字符串数组字段
+     */
+    public List<String> getStringArray(String key) throws DecodeException {
+        int slot = require(key);
+        List<String> values = new ArrayList<>();
+        int i = expectArray(slot, key);
+        while (true) {
+            i = skipWhitespace(text, i, end);
+            if (values.isEmpty() && i < end && text.charAt(i) == ']') {
+                return values;
+            }
+            if (i >= end || text.charAt(i) != '"') {
+                throw new DecodeException("数组元素不是字符串: " + key);
+            }
+            int valueEnd = skipString(i);
+            values.add(unescape(i, valueEnd));
+            i = afterElement(valueEnd, key);
+            if (text.charAt(i - 1) == ']') {
+                return values;
+            }
+        }
+    }
+
+    /**
+     * 取对象数组字段，每个元素都是原始文本上的SignalingMessage视图
+     */
+    public List<SignalingMessage> getObjectArray(String key) throws DecodeException {
+        int slot = require(key);
+        List<SignalingMessage> values = new ArrayList<>();
+        int i = expectArray(slot, key);
+        while (true) {
+            i = skipWhitespace(text, i, end);
+            if (values.isEmpty() && i < end && text.charAt(i) == ']') {
+                return values;
+            }
+            SignalingMessage element = new SignalingMessage(text, end);
+            int elementEnd = element.indexObject(i);
+            values.add(element);
+            i = afterElement(elementEnd, key);
+            if (text.charAt(i - 1) == ']') {
+                return values;
+            }
+        }
+    }
+
+    /**
+     * 用于日志的简短描述：类型、字段名和长度，不输出SDP等字段内容
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("SignalingMessage{");
+        for (int slot = 0; slot < memberCount * SLOT; slot += SLOT) {
+            if (slot > 0) {
+                builder.append(", ");
+            }
+            builder.append(text, members[slot], members[slot + 1]).append('=');
+            int length = members[slot + 3] - members[slot + 2];
+            if (length <= 64) {
+                builder.append(text, members[slot + 2], members[slot + 3]);
+            } else {
+                builder.append('<').append(length).append(" chars>");
+            }
+        }
+        return builder.append('}').toString();
+    }
+
+    // ---------------------------------------------------------------- 扫描
+
+    // 从'{'开始扫描一个对象并记录字段位置，返回对象结束后的位置
+    private int indexObject(int i) throws DecodeException {
+        if (i >= end || text.charAt(i) != '{') {
+            throw new DecodeException("消息不是JSON对象");
+        }
+        i = skipWhitespace(text, i + 1, end);
+        if (i < end && text.charAt(i) == '}') {
+            return i + 1;
+        }
+        while (true) {
+            if (i >= end || text.charAt(i) != '"') {
+                throw new DecodeException("字段名格式错误，位置: " + i);
+            }
+            int keyEnd = skipString(i);
+            int colon = skipWhitespace(text, keyEnd, end);
+            if (colon >= end || text.charAt(colon) != ':') {
+                throw new DecodeException("缺少冒号，位置: " + colon);
+            }
+            int valueStart = skipWhitespace(text, colon + 1, end);
+            int valueEnd = skipValue(valueStart);
+            if (findRange(i + 1, keyEnd - 1) >= 0) {
+                throw new DecodeException("字段重复: " + text.substring(i + 1, keyEnd - 1));
+            }
+            addMember(i + 1, keyEnd - 1, valueStart, valueEnd);
+
+            i = skipWhitespace(text, valueEnd, end);
+            if (i >= end) {
+                throw new DecodeException("对象未结束");
+            }
+            char c = text.charAt(i);
+            if (c == '}') {
+                return i + 1;
+            }
+            if (c != ',') {
+                throw new DecodeException("字段之间缺少逗号，位置: " + i);
+            }
+            i = skipWhitespace(text, i + 1, end);
+        }
+    }
+
+    private void addMember(int keyStart, int keyEnd, int valueStart, int valueEnd) {
+        int offset = memberCount * SLOT;
+        if (offset + SLOT > members.length) {
+            members = Arrays.copyOf(members, members.length * 2);
+        }
+        members[offset] = keyStart;
+        members[offset + 1] = keyEnd;
+        members[offset + 2] = valueStart;
+        members[offset + 3] = valueEnd;
+        memberCount++;
+    }
+
+    // 跳过任意值，返回值结束后的位置
+    private int skipValue(int i) throws DecodeException {
+        if (i >= end) {
+            throw new DecodeException("缺少字段值");
+        }
+        char c = text.charAt(i);
+        if (c == '"') {
+            return skipString(i);
+        }
+        if (c == '{' || c == '[') {
+            return skipContainer(i);
+        }
+        int j = i;
+        while (j < end) {
+            char d = text.charAt(j);
+            if (d == ',' || d == '}' || d == ']' || isWhitespace(d)) {
+                break;
+            }
+            j++;
+        }
+        if (j == i) {
+            throw new DecodeException("字段值格式错误，位置: " + i);
+        }
+        return j;
+    }
+
+    // 从引号开始跳过一个字符串，返回结束引号之后的位置
+    private int skipString(int i) throws DecodeException {
+        for (int j = i + 1; j < end; j++) {
+            char c = text.charAt(j);
+            if (c == '\\') {
+                j++;
+            } else if (c == '"') {
+                return j + 1;
+            }
+        }
+        throw new DecodeException("字符串未结束，位置: " + i);
+    }
+
+    // 跳过对象或数组，只跟踪括号配对和字符串边界
+    private int skipContainer(int i) throws DecodeException {
+        char[] closers = new char[8];
+        int depth = 0;
+        for (int j = i; j < end; j++) {
+            char c = text.charAt(j);
+            if (c == '"') {
+                j = skipString(j) - 1;
+            } else if (c == '{' || c == '[') {
+                if (depth == closers.length) {
+                    closers = Arrays.copyOf(closers, depth * 2);
+                }
+                closers[depth++] = c == '{' ? '}' : ']';
+            } else if (c == '}' || c == ']') {
+                if (closers[--depth] != c) {
+                    throw new DecodeException("括号不匹配，位置: " + j);
+                }
+                if (depth == 0) {
+                    return j + 1;
+                }
+            }
+        }
+        throw new DecodeException("对象或数组未结束，位置: " + i);
+    }
+
+    private int expectArray(int slot, String key) throws DecodeException {
+        int from = members[slot + 2];
+        if (text.charAt(from) != '[') {
+            throw new DecodeException("字段不是数组: " + key);
+        }
+        return from + 1;
+    }
+
+    // 数组元素之后应该是','或']'，返回其后的位置
+    private int afterElement(int i, String key) throws DecodeException {
+        i = skipWhitespace(text, i, end);
+        if (i < end && (text.charAt(i) == ',' || text.charAt(i) == ']')) {
+            return i + 1;
+        }
+        throw new DecodeException("数组格式错误: " + key);
+    }
+
+    private int find(String key) {
+        int length = key.length();
+        for (int slot = 0; slot < memberCount * SLOT; slot += SLOT) {
+            int keyStart = members[slot];
+            if (members[slot + 1] - keyStart == length && text.regionMatches(keyStart, key, 0, length)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    // 按原始文本比较字段名，用于扫描时检查重复
+    private int findRange(int keyStart, int keyEnd) {
+        int length = keyEnd - keyStart;
+        for (int slot = 0; slot < memberCount * SLOT; slot += SLOT) {
+            if (members[slot + 1] - members[slot] == length
+                    && text.regionMatches(members[slot], text, keyStart, length)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int require(String key) throws DecodeException {
+        int slot = find(key);
+        if (slot < 0) {
+            throw new DecodeException("缺少字段: " + key);
+        }
+        return slot;
+    }
+
+    private String decodeString(int slot) throws DecodeException {
+        int from = members[slot + 2];
+        if (text.charAt(from) != '"') {
+            throw new DecodeException("字段不是字符串: " + text.substring(members[slot], members[slot + 1]));
+        }
+        return unescape(from, members[slot + 3]);
+    }
+
+    // 解码[from, to)之间带引号的字符串，没有转义时直接截取
+    private String unescape(int from, int to) throws DecodeException {
+        int contentStart = from + 1;
+        int contentEnd = to - 1;
+        int escape = text.indexOf('\\', contentStart);
+        if (escape < 0 || escape >= contentEnd) {
+            return text.substring(contentStart, contentEnd);
+        }
+        StringBuilder builder = new StringBuilder(contentEnd - contentStart);
+        builder.append(text, contentStart, escape);
+        for (int i = escape; i < contentEnd; i++) {
+            char c = text.charAt(i);
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+            if (++i >= contentEnd) {
+                throw new DecodeException("转义字符不完整");
+            }
+            char e = text.charAt(i);
+            switch (e) {
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'u':
+                    if (i + 4 >= contentEnd) {
+                        throw new DecodeException("unicode转义不完整");
+                    }
+                    int code = 0;
+                    for (int k = i + 1; k <= i + 4; k++) {
+                        char h = text.charAt(k);
+                        int digit = h < 128 ? Character.digit(h, 16) : -1;
+                        if (digit < 0) {
+                            throw new DecodeException("unicode转义格式错误");
+                        }
+                        code = code * 16 + digit;
+                    }
+                    builder.append((char) code);
+                    i += 4;
+                    break;
+                case '"':
+                case '\\':
+                case '/':
+                    builder.append(e);
+                    break;
+                default:
+                    throw new DecodeException("无效的转义字符: \\" + e);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static int skipWhitespace(String text, int i, int end) {
+        while (i < end && isWhitespace(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+}
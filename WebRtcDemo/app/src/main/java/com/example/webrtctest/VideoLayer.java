@@ -0,0 +1,54 @@
+package com.example.webrtctest;
+
+/**
+ * 视频空间层
+ * SFU模式下本地视频按这三层同时编码发布（simulcast），订阅方按自己画面格子的大小选择一层；
+ * 网状模式下每个连接只编码一路，按对方选择的层调整这路的分辨率和码率。不依赖Android，可以直接在JVM上测试
+ */
+public enum VideoLayer {
+    LOW("q", 4.0, 150_000),
+    MEDIUM("h", 2.0, 500_000),
+    HIGH("f", 1.0, 1_500_000);
+
+    // 画面比格子小一些也可以接受，放大不超过这个比例
+    private static final double MAX_UPSCALE = 1.25;
+
+    public final String rid;
+    public final double scaleResolutionDownBy;
+    public final int maxBitrateBps;
+
+    VideoLayer(String rid, double scaleResolutionDownBy, int maxBitrateBps) {
+        this.rid = rid;
+        this.scaleResolutionDownBy = scaleResolutionDownBy;
+        this.maxBitrateBps = maxBitrateBps;
+    }
+
+    /**
+     * 按rid查找，未知的rid返回null
+     */
+    public static VideoLayer fromRid(String rid) {
+        for (VideoLayer layer : values()) {
+            if (layer.rid.equals(rid)) {
+                return layer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 为宽高为tileWidth×tileHeight像素的画面格子选择最低的够用的层；格子尺寸未知时选最高层
+     */
+    public static VideoLayer select(int tileWidth, int tileHeight, int captureWidth, int captureHeight) {
+        if (tileWidth <= 0 || tileHeight <= 0) {
+            return HIGH;
+        }
+        for (VideoLayer layer : values()) {
+            double width = captureWidth / layer.scaleResolutionDownBy;
+            double height = captureHeight / layer.scaleResolutionDownBy;
+            if (width * MAX_UPSCALE >= tileWidth && height * MAX_UPSCALE >= tileHeight) {
+                return layer;
+            }
+        }
+        return HIGH;
+    }
+}
@@ -3,6 +3,7 @@ import android.os.Bundle;
 import android.util.Log;
 import android.util.TypedValue;
 import android.view.Gravity;
+import android.view.View;
 import android.view.ViewGroup;
 import android.widget.FrameLayout;
 import android.widget.GridLayout;
@@ -18,23 +19,23 @@ import org.webrtc.Camera1Enumerator;
 import org.webrtc.CameraEnumerator;
 import org.webrtc.CameraVideoCapturer;
 import org.webrtc.DataChannel;
-import org.webrtc.DefaultVideoDecoderFactory;
-import org.webrtc.DefaultVideoEncoderFactory;
 import org.webrtc.EglBase;
 import org.webrtc.IceCandidate;
 import org.webrtc.MediaConstraints;
 import org.webrtc.MediaStream;
 import org.webrtc.PeerConnection;
-import org.webrtc.PeerConnectionFactory;
+import org.webrtc.RtpReceiver;
 import org.webrtc.SdpObserver;
 import org.webrtc.SessionDescription;
 import org.webrtc.SurfaceViewRenderer;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
 import org.webrtc.VideoTrack;
-import org.webrtc.audio.JavaAudioDeviceModule;
 
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -44,9 +45,28 @@ import java.util.Map;
  */
 public class WebRtcActivity extends AppCompatActivity implements WebRtcSignalingClient.SignalingCallback {
     private static final String TAG = "WebRtcActivity";
+    // 采集分辨率，也是simulcast最高层的分辨率
+    private static final int CAPTURE_WIDTH = 1280;
+    private static final int CAPTURE_HEIGHT = 720;
+    private static final int CAPTURE_FPS = 30;
+    // 远程画面的网格列数、格子大小（dp）和外边距（px）
+    private static final int REMOTE_GRID_COLUMNS = 2;
+    private static final int REMOTE_TILE_WIDTH_DP = 160;
+    private static final int REMOTE_TILE_HEIGHT_DP = 120;
+    private static final int REMOTE_TILE_MARGIN_PX = 10;
+    // 渲染器池保留的空闲渲染器数
+    private static final int MAX_POOLED_RENDERERS = 4;
     
     private WebRtcSignalingClient signalingClient;
-    private PeerConnectionFactory peerConnectionFactory;
+    private PeerConnectionManager peerManager;
+    // 信令处理和PeerConnection操作都在工作线程上串行执行，UI线程只更新界面
+    private final WebRtcWorker worker = new WebRtcWorker();
+    // SFU模式下只向服务器发布一次本地流，远程用户的流由服务器转发过来；否则每个远程用户一个连接（网状）
+    private final boolean sfuMode = NetworkConfig.isSfuMode();
+    // 测量上行带宽和CPU，用于对比网状和SFU两种模式
+    private MediaCostMeter mediaCostMeter;
+    // 每秒采集各连接的getStats，退出通话时导出到应用的stats目录
+    private CallStatsCollector callStatsCollector;
     private EglBase eglBase;
     private EglBase rootEglBase; // 添加rootEglBase变量
     private String currentUserId = "android_" + System.currentTimeMillis() + "_" + (int)(Math.random() * 10000); // 唯一用户 ID
@@ -54,7 +74,7 @@ public class WebRtcActivity extends AppCompatActivity implements WebRtcSignaling
     
     // 音视频相关
     private CameraVideoCapturer videoCapturer;
-    private org.webrtc.VideoSource videoSource;
+    private org.webrtc.SurfaceTextureHelper surfaceTextureHelper;
     private org.webrtc.VideoTrack localVideoTrack;
     private AudioTrack localAudioTrack;
     private boolean isAudioMuted = false;
@@ -62,13 +82,27 @@ public class WebRtcActivity extends AppCompatActivity implements WebRtcSignaling
     private boolean isFrontCamera = true;
     private boolean isVideoInitialized = false; // 标记视频是否已初始化
     
-    // 多人连接管理
-    private Map<String, PeerConnection> peerConnections = new HashMap<>();
-    private PeerConnection peerConnection; // 添加全局PeerConnection变量
-    private Map<String, SurfaceViewRenderer> remoteRenderers = new HashMap<>(); // 为每个远程用户创建独立的渲染器
-    private List<String> remoteUserIds = new ArrayList<>();
+    // 多人连接管理（PeerConnection由peerManager按用户ID管理，只在工作线程上操作）
+    private Map<String, SurfaceViewRenderer> remoteRenderers = new LinkedHashMap<>(); // 为每个远程用户分配独立的渲染器，按加入顺序排列在网格中，只在UI线程访问
+    // 远程视频轨道的sink，渲染器回收时断开，不需要访问可能已经在工作线程上释放的轨道；只在UI线程访问
+    private final Map<String, ProxyVideoSink> remoteSinks = new HashMap<>();
+    private RemoteRendererPool rendererPool;
+    // 格子大小只在onCreate时按屏幕密度换算一次
+    private int remoteTileWidthPx;
+    private int remoteTileHeightPx;
+    private List<String> remoteUserIds = new ArrayList<>(); // 只在UI线程访问
+    private final Map<String, VideoLayer> selectedLayers = new HashMap<>(); // 按画面格子大小为每个远程用户选择的视频层，只在UI线程访问
+    // 所有远程格子共用，通过view的tag找到用户；复用的渲染器大小可能不变，还没选过层时也要选择
+    private final View.OnLayoutChangeListener remoteTileLayoutListener =
+            (v, left, top, right, bottom, oldLeft, oldTop, oldRight, oldBottom) -> {
+                String userId = (String) v.getTag();
+                if (userId != null && (right - left != oldRight - oldLeft || bottom - top != oldBottom - oldTop
+                        || !selectedLayers.containsKey(userId))) {
+                    onRemoteTileResized(userId, right - left, bottom - top);
+                }
+            };
     
-    // 连接状态管理
+    // 连接状态管理（只在UI线程访问）
     private boolean isWebSocketConnected = false; // WebSocket连接状态
     private boolean isInRoom = false; // 是否成功加入房间
     
@@ -132,6 +166,10 @@ public class WebRtcActivity extends AppCompatActivity implements WebRtcSignaling
         switchCameraButton = findViewById(R.id.btn_switch_camera);
         meetingTitle = findViewById(R.id.meeting_title);
         participantCount = findViewById(R.id.participant_count);
+        remoteTileWidthPx = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, REMOTE_TILE_WIDTH_DP,
+                getResources().getDisplayMetrics());
+        remoteTileHeightPx = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, REMOTE_TILE_HEIGHT_DP,
+                getResources().getDisplayMetrics());
     }
     
     private void initWebRTC() {
@@ -141,17 +179,22 @@ public class WebRtcActivity extends AppCompatActivity implements WebRtcSignaling
             
             // 初始化本地视频渲染器
             localVideoView.init(eglBase.getEglBaseContext(), null);
+            rendererPool = new RemoteRendererPool(this, eglBase.getEglBaseContext(), MAX_POOLED_RENDERERS);
             
-            // 初始化 PeerConnectionFactory
-            PeerConnectionFactory.InitializationOptions initOptions = PeerConnectionFactory.InitializationOptions.builder(this)
-                    .createInitializationOptions();
-            PeerConnectionFactory.initialize(initOptions);
-            
-            peerConnectionFactory = PeerConnectionFactory.builder()
-                    .setVideoEncoderFactory(new DefaultVideoEncoderFactory(eglBase.getEglBaseContext(), true, true))
-                    .setVideoDecoderFactory(new DefaultVideoDecoderFactory(eglBase.getEglBaseContext()))
-                    .setAudioDeviceModule(JavaAudioDeviceModule.builder(this).createAudioDeviceModule())
-                    .createPeerConnectionFactory();
+            // 初始化 PeerConnectionFactory，整个通话只创建一次，所有连接共用
+            peerManager = new PeerConnectionManager(this, eglBase.getEglBaseContext());
+            mediaCostMeter = new MediaCostMeter(peerManager, sfuMode ? "SFU" : "mesh");
+            callStatsCollector = new CallStatsCollector(peerManager, sfuMode ? "SFU" : "mesh",
+                    getExternalFilesDir("stats"));
+            // 网状模式下按每个连接的带宽估计调整发给对方的视频，在工作线程上设置sender参数
+            if (!sfuMode) {
+                PeerConnectionManager manager = peerManager;
+                callStatsCollector.setPeerStatsListener((peerId, availableOutgoingBps, remoteLossFraction) ->
+                        worker.post("bandwidthEstimate",
+                                () -> manager.onSendBandwidthEstimate(peerId, availableOutgoingBps, remoteLossFraction)));
+            }
+            // SFU模式下视频按三层simulcast发布，由SFU按订阅方的选择转发；网状模式下每个连接按对方选择的层编码一路
+            peerManager.setSimulcastEnabled(sfuMode);
             
             // 初始化本地音视频轨道
             createLocalAudioTrack();
@@ -167,22 +210,21 @@ public class WebRtcActivity extends AppCompatActivity implements WebRtcSignaling
     }
     
     private void createLocalAudioTrack() {
-        localAudioTrack = peerConnectionFactory.createAudioTrack("local_audio_track", 
-            peerConnectionFactory.createAudioSource(new MediaConstraints()));
+        localAudioTrack = peerManager.createLocalAudioTrack();
         localAudioTrack.setEnabled(!isAudioMuted);
     }
     
     private void createLocalVideoTrack() {
         try {
             // 初始化视频源
-            videoSource = peerConnectionFactory.createVideoSource(false);
+            org.webrtc.VideoSource videoSource = peerManager.createLocalVideoSource();
             
             videoCapturer = createVideoCapturer();
             if (videoCapturer != null) {
-                org.webrtc.SurfaceTextureHelper surfaceTextureHelper = org.webrtc.SurfaceTextureHelper.create("CaptureThread", eglBase.getEglBaseContext());
+                surfaceTextureHelper = org.webrtc.SurfaceTextureHelper.create("CaptureThread", eglBase.getEglBaseContext());
                 videoCapturer.initialize(surfaceTextureHelper, getApplicationContext(), videoSource.getCapturerObserver());
-                videoCapturer.startCapture(640, 480, 30);
-                localVideoTrack = peerConnectionFactory.createVideoTrack("local_video_track", videoSource);
+                videoCapturer.startCapture(CAPTURE_WIDTH, CAPTURE_HEIGHT, CAPTURE_FPS);
+                localVideoTrack = peerManager.createLocalVideoTrack();
                 localVideoTrack.addSink(localVideoView);
                 isVideoInitialized = true;
             }
@@ -229,7 +271,7 @@ public class WebRtcActivity extends AppCompatActivity implements WebRtcSignaling
         
         // 挂断
         hangupButton.setOnClickListener(v -> {
-            hangup();
+            leaveRoom();
         });
         
         // 退出房间
@@ -341,7 +383,7 @@ public class WebRtcActivity extends AppCompatActivity implements WebRtcSignaling
                 Toast.makeText(this, "已退出房间: " + roomId, Toast.LENGTH_SHORT).show();
                 // 清理所有连接
                 hangup();
-                // 关闭当前Activity
+                // 关闭当前Activity，本地音视频和PeerConnectionFactory在onDestroy中释放
                 finish();
             }
         } catch (Exception e) {
@@ -350,30 +392,17 @@ public class WebRtcActivity extends AppCompatActivity implements WebRtcSignaling
         }
     }
     
+    // 在UI线程调用
     private void hangup() {
-        // 清理所有连接和资源
-        leaveRoom();
-        if (peerConnectionFactory != null) {
-            peerConnectionFactory.dispose();
-            peerConnectionFactory = null;
-        }
-        if (localAudioTrack != null) {
-            localAudioTrack.dispose();
-            localAudioTrack = null;
-        }
-        if (localVideoTrack != null) {
-            localVideoTrack.dispose();
-            localVideoTrack = null;
+        // 关闭所有PeerConnection并移除远程画面，本地轨道和工厂保留，可以重新加入房间
+        worker.post("hangup", () -> peerManager.closeAllPeerConnections());
+        // 渲染器放回池中，重新加入房间时复用；从最后一格开始移除，其他格子不需要移动
+        List<String> renderedUserIds = new ArrayList<>(remoteRenderers.keySet());
+        for (int i = renderedUserIds.size() - 1; i >= 0; i--) {
+            removeRemoteRenderer(renderedUserIds.get(i));
         }
-        if (videoSource != null) {
-            videoSource.dispose();
-            videoSource = null;
-        }
-        if (videoCapturer != null) {
-            videoCapturer.dispose();
-            videoCapturer = null;
-        }
-        isVideoInitialized = false;
+        remoteUserIds.clear();
+        selectedLayers.clear();
     }
 
     private void updateParticipantCount() {
@@ -444,7 +473,7 @@ public class WebRtcActivity extends AppCompatActivity implements WebRtcSignaling
     // 接收对方的 SDP Offer → 生成 Answer 并回复
     @Override
     public void onReceiveOffer(String sdp, String fromUserId) {
-        runOnUiThread(() -> {
+        worker.post("onReceiveOffer", () -> {
             try {
                 Log.d(TAG, "收到来自用户 " + fromUserId + " 的Offer");
                 
@@ -457,9 +486,14 @@ public class WebRtcActivity extends AppCompatActivity implements WebRtcSignaling
                     @Override
                     public void onSetSuccess() {
                         Log.d(TAG, "成功设置远程描述，开始创建Answer");
-                        // 2. 生成 SDP Answer（WebRTC 核心逻辑）
-                        // 在设置远程描述成功后再创建Answer
-                        createAnswerAfterRemoteSet(peerConnection, fromUserId);
+                        // 回调在WebRTC内部线程，切回工作线程继续
+                        worker.post("createAnswer", () -> {
+                            // 添加在远程描述之前到达的ICE候选
+                            peerManager.onRemoteDescriptionSet(fromUserId);
+                            // 2. 生成 SDP Answer（WebRTC 核心逻辑）
+                            // 在设置远程描述成功后再创建Answer
+                            createAnswerAfterRemoteSet(peerConnection, fromUserId);
+                        });
                     }
                     
                     @Override
@@ -486,27 +520,38 @@ public class WebRtcActivity extends AppCompatActivity implements WebRtcSignaling
         peerConnection.createAnswer(new SdpObserver() {
             @Override
             public void onCreateSuccess(SessionDescription answerSdp) {
-                Log.d(TAG, "成功创建Answer，开始设置本地描述");
-                try {
-                    // 3. 设置本地 Answer 为 LocalSDP
-                    peerConnection.setLocalDescription(new SimpleSdpObserver() {
-                        @Override
-                        public void onSetSuccess() {
-                            Log.d(TAG, "成功设置本地描述，发送Answer");
-                            // 4. 通过 WebSocket 发送 Answer 给对方
-                            signalingClient.sendAnswer(answerSdp.description, fromUserId);
-                        }
-                        
-                        @Override
-                        public void onSetFailure(String error) {
-                            Log.e(TAG, "设置本地描述失败: " + error);
-                            onConnectFailure("设置本地描述失败: " + error);
-                        }
-                    }, answerSdp);
-                } catch (Exception e) {
-                    Log.e(TAG, "设置本地描述或发送Answer失败", e);
-                    onConnectFailure("设置本地描述或发送Answer失败: " + e.getMessage());
-                }
+                // 回调在WebRTC内部线程，切回工作线程；期间连接可能已被关闭
+                worker.post("answerCreated", () -> {
+                    if (!isCurrentPeerConnection(fromUserId, peerConnection)) {
+                        return;
+                    }
+                    Log.d(TAG, "成功创建Answer，开始设置本地描述");
+                    try {
+                        // 3. 设置本地 Answer 为 LocalSDP
+                        peerConnection.setLocalDescription(new SimpleSdpObserver() {
+                            @Override
+                            public void onSetSuccess() {
+                                worker.post("sendAnswer", () -> {
+                                    if (!isCurrentPeerConnection(fromUserId, peerConnection)) {
+                                        return;
+                                    }
+                                    Log.d(TAG, "成功设置本地描述，发送Answer");
+                                    // 4. 通过 WebSocket 发送 Answer 给对方
+                                    signalingClient.sendAnswer(answerSdp.description, fromUserId);
+                                });
+                            }
+
+                            @Override
+                            public void onSetFailure(String error) {
+                                Log.e(TAG, "设置本地描述失败: " + error);
+                                onConnectFailure("设置本地描述失败: " + error);
+                            }
+                        }, answerSdp);
+                    } catch (Exception e) {
+                        Log.e(TAG, "设置本地描述或发送Answer失败", e);
+                        onConnectFailure("设置本地描述或发送Answer失败: " + e.getMessage());
+                    }
+                });
             }
 
             @Override 
@@ -529,12 +574,18 @@ public class WebRtcActivity extends AppCompatActivity implements WebRtcSignaling
     // 接收对方的 SDP Answer → 设置为 RemoteSDP
     @Override
     public void onReceiveAnswer(String sdp, String fromUserId) {
-        runOnUiThread(() -> {
+        worker.post("onReceiveAnswer", () -> {
             try {
-                PeerConnection peerConnection = peerConnections.get(fromUserId);
+                PeerConnection peerConnection = peerManager.getPeerConnection(fromUserId);
                 if (peerConnection != null) {
                     SessionDescription answerSdp = new SessionDescription(SessionDescription.Type.ANSWER, sdp);
-                    peerConnection.setRemoteDescription(new SimpleSdpObserver(), answerSdp);
+                    peerConnection.setRemoteDescription(new SimpleSdpObserver() {
+                        @Override
+                        public void onSetSuccess() {
+                            // 添加在Answer之前到达的ICE候选
+                            worker.post("answerApplied", () -> peerManager.onRemoteDescriptionSet(fromUserId));
+                        }
+                    }, answerSdp);
                 }
             } catch (Exception e) {
                 onConnectFailure("处理Answer失败: " + e.getMessage());
@@ -545,17 +596,12 @@ public class WebRtcActivity extends AppCompatActivity implements WebRtcSignaling
     // 接收对方的 ICE 候选 → 添加到 PeerConnection
     @Override
     public void onReceiveIceCandidate(String candidate, String sdpMid, int sdpMLineIndex, String fromUserId) {
-        runOnUiThread(() -> {
+        worker.post("onReceiveIceCandidate", () -> {
             try {
                 Log.d(TAG, "收到ICE候选 from user: " + fromUserId + " sdpMid: " + sdpMid + " mLineIndex: " + sdpMLineIndex);
-                PeerConnection peerConnection = peerConnections.get(fromUserId);
-                if (peerConnection != null) {
-                    IceCandidate iceCandidate = new IceCandidate(sdpMid, sdpMLineIndex, candidate);
-                    peerConnection.addIceCandidate(iceCandidate);
-                    Log.d(TAG, "已添加ICE候选 to PeerConnection for user: " + fromUserId);
-                } else {
-                    Log.e(TAG, "未找到用户 " + fromUserId + " 的PeerConnection，无法添加ICE候选");
-                }
+                // 连接未创建或远程描述未设置时先缓存，设置远程描述后再添加
+                IceCandidate iceCandidate = new IceCandidate(sdpMid, sdpMLineIndex, candidate);
+                peerManager.addRemoteIceCandidate(fromUserId, iceCandidate);
             } catch (Exception e) {
                 onConnectFailure("处理ICE候选失败: " + e.getMessage());
             }
@@ -565,149 +611,121 @@ public class WebRtcActivity extends AppCompatActivity implements WebRtcSignaling
     // 房间事件（如其他用户加入，触发 WebRTC 连接建立）
     @Override
     public void onRoomEvent(String eventType, String roomId, String userId) {
-        runOnUiThread(() -> {
-            try {
-                if ("userJoined".equals(eventType) && !userId.equals(currentUserId)) {
-                    // 有其他用户加入房间
-                    if (!remoteUserIds.contains(userId)) {
-                        remoteUserIds.add(userId);
-                        updateParticipantCount();
-                        Toast.makeText(this, "用户 " + userId + " 加入房间", Toast.LENGTH_SHORT).show();
-                        // 创建该用户的远程视频渲染器
-                        createRemoteRenderer(userId);
-                    }
-                    
-                    // 作为发起方发送 Offer
-                    createAndSendOffer(userId);
-                } else if ("userLeft".equals(eventType) && !userId.equals(currentUserId)) {
-                    // 有用户离开房间
-                    if (remoteUserIds.contains(userId)) {
-                        remoteUserIds.remove(userId);
-                        updateParticipantCount();
-                        Toast.makeText(this, "用户 " + userId + " 离开房间", Toast.LENGTH_SHORT).show();
-                        
-                        // 移除该用户的远程渲染器
-                        SurfaceViewRenderer renderer = remoteRenderers.remove(userId);
-                        if (renderer != null) {
-                            remoteVideoContainer.removeView(renderer);
-                            renderer.release();
-                            
-                            // 重新排列剩余的远程视频视图
-                            rearrangeRemoteRenderers();
-                        }
-                    }
+        if ("userJoined".equals(eventType) && !userId.equals(currentUserId)) {
+            // 有其他用户加入房间
+            runOnUiThread(() -> {
+                if (!remoteUserIds.contains(userId)) {
+                    remoteUserIds.add(userId);
+                    updateParticipantCount();
+                    Toast.makeText(this, "用户 " + userId + " 加入房间", Toast.LENGTH_SHORT).show();
+                    // 创建该用户的远程视频渲染器
+                    createRemoteRenderer(userId);
+                }
+            });
+            
+            // 作为发起方发送 Offer；SFU模式下由服务器重新协商，把新用户的流转发过来
+            if (!sfuMode) {
+                worker.post("userJoined", () -> createAndSendOffer(userId));
+            }
+        } else if ("userLeft".equals(eventType) && !userId.equals(currentUserId)) {
+            // 有用户离开房间
+            runOnUiThread(() -> {
+                if (remoteUserIds.contains(userId)) {
+                    remoteUserIds.remove(userId);
+                    updateParticipantCount();
+                    Toast.makeText(this, "用户 " + userId + " 离开房间", Toast.LENGTH_SHORT).show();
                     
-                    // 清理该用户的连接
-                    PeerConnection peerConnection = peerConnections.remove(userId);
-                    if (peerConnection != null) {
-                        peerConnection.close();
-                        peerConnection.dispose();
+                    // 移除该用户的远程渲染器，后面的格子依次前移
+                    selectedLayers.remove(userId);
+                    removeRemoteRenderer(userId);
+                }
+            });
+            
+            // 清理该用户的连接
+            worker.post("userLeft", () -> peerManager.closePeerConnection(userId));
+        } else if ("joined".equals(eventType)) {
+            runOnUiThread(() -> {
+                // 自己成功加入房间 - 只有状态真正变化时才显示Toast
+                if (!isInRoom) {
+                    isInRoom = true;
+                    Log.d(TAG, "成功加入房间，设置房间状态");
+                    Toast.makeText(this, "成功加入房间: " + roomId, Toast.LENGTH_SHORT).show();
+                    updateParticipantCount(); // 更新参会人数
+                    if (mediaCostMeter != null) {
+                        mediaCostMeter.start();
                     }
-                } else if ("joined".equals(eventType)) {
-                    // 自己成功加入房间 - 只有状态真正变化时才显示Toast
-                    if (!isInRoom) {
-                        isInRoom = true;
-                        Log.d(TAG, "成功加入房间，设置房间状态");
-                        Toast.makeText(this, "成功加入房间: " + roomId, Toast.LENGTH_SHORT).show();
-                        updateParticipantCount(); // 更新参会人数
+                    if (callStatsCollector != null) {
+                        callStatsCollector.start();
                     }
                 }
-            } catch (Exception e) {
-                onConnectFailure("处理房间事件失败: " + e.getMessage());
+            });
+            
+            // SFU模式下加入房间后向服务器发布本地流，只发布这一次
+            if (sfuMode) {
+                worker.post("publish", () -> createAndSendOffer(NetworkConfig.SFU_PEER_ID));
             }
-        });
+        }
     }
     
     // 接收房间内现有用户列表
     @Override
     public void onExistingUsers(String roomId, String[] userIds) {
+        Log.d(TAG, "收到现有用户列表，房间: " + roomId + " 用户数: " + userIds.length);
+        Log.d(TAG, "现有用户: " + java.util.Arrays.toString(userIds));
+        
         runOnUiThread(() -> {
-            try {
-                Log.d(TAG, "收到现有用户列表，房间: " + roomId + " 用户数: " + userIds.length);
-                Log.d(TAG, "现有用户: " + java.util.Arrays.toString(userIds));
-                
-                for (String userId : userIds) {
-                    if (!userId.equals(currentUserId) && !remoteUserIds.contains(userId)) {
-                        Log.d(TAG, "添加远程用户: " + userId);
-                        remoteUserIds.add(userId);
-                        updateParticipantCount();
-                        // 只有真正发现新用户时才显示Toast
-                        Toast.makeText(this, "发现房间内用户: " + userId, Toast.LENGTH_SHORT).show();
-                        
-                        // 创建该用户的远程视频渲染器
-                        createRemoteRenderer(userId);
-                    }
-                }
-                
-                // 向现有用户发送 Offer
-                for (String userId : userIds) {
-                    if (!userId.equals(currentUserId)) {
-                        Log.d(TAG, "向用户发送Offer: " + userId);
-                        createAndSendOffer(userId);
-                    }
+            for (String userId : userIds) {
+                if (!userId.equals(currentUserId) && !remoteUserIds.contains(userId)) {
+                    Log.d(TAG, "添加远程用户: " + userId);
+                    remoteUserIds.add(userId);
+                    updateParticipantCount();
+                    // 只有真正发现新用户时才显示Toast
+                    Toast.makeText(this, "发现房间内用户: " + userId, Toast.LENGTH_SHORT).show();
+                    
+                    // 创建该用户的远程视频渲染器
+                    createRemoteRenderer(userId);
                 }
-            } catch (Exception e) {
-                onConnectFailure("处理现有用户失败: " + e.getMessage());
             }
         });
+        
+        // SFU模式下现有用户的流由服务器在发布后转发过来，不需要逐个建立连接
+        if (sfuMode) {
+            return;
+        }
+        
+        // 向现有用户发送 Offer，每个用户一个任务，期间到达的其他信令可以穿插处理
+        for (String userId : userIds) {
+            if (!userId.equals(currentUserId)) {
+                worker.post("existingUserOffer", () -> {
+                    Log.d(TAG, "向用户发送Offer: " + userId);
+                    createAndSendOffer(userId);
+                });
+            }
+        }
     }
 
-    // 获取或创建 PeerConnection
-    private PeerConnection getOrCreatePeerConnection(String userId) {
-        if (peerConnection == null) {
-            Log.d(TAG, "创建新的PeerConnection，用户ID: " + userId);
-            peerConnection = createPeerConnection();
-        } else {
-            Log.d(TAG, "使用现有PeerConnection，用户ID: " + userId);
+    // 对方按画面格子大小选择了要接收的层，调整发给它的视频（只有网状模式会收到）
+    @Override
+    public void onSelectLayer(String fromUserId, String rid) {
+        VideoLayer layer = VideoLayer.fromRid(rid);
+        if (layer == null) {
+            Log.w(TAG, "未知的视频层: " + rid + "，来自用户: " + fromUserId);
+            return;
         }
-        return peerConnection;
+        worker.post("selectLayer", () -> peerManager.applyVideoLayer(fromUserId, layer));
     }
-    
-    // 创建 PeerConnection
-    private PeerConnection createPeerConnection() {
-        Log.d(TAG, "开始创建PeerConnection");
-        
-        // 1. 创建 PeerConnectionFactory
-        PeerConnectionFactory.InitializationOptions initializationOptions =
-                PeerConnectionFactory.InitializationOptions.builder(this).createInitializationOptions();
-        PeerConnectionFactory.initialize(initializationOptions);
-        PeerConnectionFactory.Builder factoryBuilder = PeerConnectionFactory.builder()
-                .setVideoEncoderFactory(new DefaultVideoEncoderFactory(
-                        rootEglBase.getEglBaseContext(), true, true))
-                .setVideoDecoderFactory(new DefaultVideoDecoderFactory(rootEglBase.getEglBaseContext()));
-        PeerConnectionFactory factory = factoryBuilder.createPeerConnectionFactory();
-
-        // 2. 配置 STUN/TURN 服务器
-        List<PeerConnection.IceServer> iceServers = new ArrayList<>();
-        iceServers.add(PeerConnection.IceServer.builder("stun:stun.l.google.com:19302").createIceServer());
-        
-        // 3. 创建 PeerConnection
-        PeerConnection.RTCConfiguration rtcConfig = new PeerConnection.RTCConfiguration(iceServers);
-        rtcConfig.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.ENABLED;
-        rtcConfig.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
-        rtcConfig.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
-        rtcConfig.continualGatheringPolicy = PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
-        rtcConfig.iceTransportsType = PeerConnection.IceTransportsType.ALL;
-
-        // 使用现有的PeerConnectionObserver类
-        PeerConnection peerConnection = factory.createPeerConnection(rtcConfig, new PeerConnectionObserver(""));
 
-        // 4. 添加本地媒体流
-        if (localVideoTrack != null) {
-            Log.d(TAG, "添加本地视频轨道到PeerConnection");
-            MediaStream mediaStream = factory.createLocalMediaStream("ARDAMS");
-            mediaStream.addTrack(localVideoTrack);
-            if (localAudioTrack != null) {
-                Log.d(TAG, "添加本地音频轨道到PeerConnection");
-                mediaStream.addTrack(localAudioTrack);
-            }
-            peerConnection.addStream(mediaStream);
-        } else {
-            Log.w(TAG, "本地视频轨道为空，未添加到PeerConnection");
+    // 获取或创建与指定用户的 PeerConnection，网状模式下每个远程用户一个连接，SFU模式下只有与服务器的一个连接
+    private PeerConnection getOrCreatePeerConnection(String userId) {
+        return peerManager.getOrCreatePeerConnection(userId, new PeerConnectionObserver(userId));
+    }
+    
+    // 远程轨道属于哪个用户：网状模式下就是连接对应的用户，SFU模式下服务器用发布者的用户ID作为流ID
+    private static String resolveRemoteUserId(String connectionUserId, MediaStream[] mediaStreams) {
+        if (NetworkConfig.SFU_PEER_ID.equals(connectionUserId) && mediaStreams.length > 0) {
+            return mediaStreams[0].getId();
         }
-        
-        Log.d(TAG, "PeerConnection创建完成");
-        return peerConnection;
+        return connectionUserId;
     }
 
     // 发起方创建并发送 SDP Offer
@@ -728,25 +746,36 @@ public class WebRtcActivity extends AppCompatActivity implements WebRtcSignaling
             peerConnection.createOffer(new SdpObserver() {
                 @Override
                 public void onCreateSuccess(SessionDescription offerSdp) {
-                    Log.d(TAG, "成功创建Offer，开始设置本地描述");
-                    try {
-                        peerConnection.setLocalDescription(new SimpleSdpObserver() {
-                            @Override
-                            public void onSetSuccess() {
-                                Log.d(TAG, "成功设置本地描述，发送Offer");
-                                signalingClient.sendOffer(offerSdp.description, targetUserId);
-                            }
-                            
-                            @Override
-                            public void onSetFailure(String error) {
-                                Log.e(TAG, "设置本地描述失败: " + error);
-                                onConnectFailure("设置本地描述失败: " + error);
-                            }
-                        }, offerSdp);
-                    } catch (Exception e) {
-                        Log.e(TAG, "设置本地描述或发送Offer失败", e);
-                        onConnectFailure("设置本地描述或发送Offer失败: " + e.getMessage());
-                    }
+                    // 回调在WebRTC内部线程，切回工作线程；期间连接可能已被关闭
+                    worker.post("offerCreated", () -> {
+                        if (!isCurrentPeerConnection(targetUserId, peerConnection)) {
+                            return;
+                        }
+                        Log.d(TAG, "成功创建Offer，开始设置本地描述");
+                        try {
+                            peerConnection.setLocalDescription(new SimpleSdpObserver() {
+                                @Override
+                                public void onSetSuccess() {
+                                    worker.post("sendOffer", () -> {
+                                        if (!isCurrentPeerConnection(targetUserId, peerConnection)) {
+                                            return;
+                                        }
+                                        Log.d(TAG, "成功设置本地描述，发送Offer");
+                                        signalingClient.sendOffer(offerSdp.description, targetUserId);
+                                    });
+                                }
+
+                                @Override
+                                public void onSetFailure(String error) {
+                                    Log.e(TAG, "设置本地描述失败: " + error);
+                                    onConnectFailure("设置本地描述失败: " + error);
+                                }
+                            }, offerSdp);
+                        } catch (Exception e) {
+                            Log.e(TAG, "设置本地描述或发送Offer失败", e);
+                            onConnectFailure("设置本地描述或发送Offer失败: " + e.getMessage());
+                        }
+                    });
                 }
 
                 @Override 
@@ -770,6 +799,15 @@ public class WebRtcActivity extends AppCompatActivity implements WebRtcSignaling
         }
     }
 
+    // 在工作线程上调用：连接在异步回调期间被关闭或重建时，不再使用旧连接
+    private boolean isCurrentPeerConnection(String userId, PeerConnection peerConnection) {
+        if (peerManager.getPeerConnection(userId) != peerConnection) {
+            Log.w(TAG, "用户 " + userId + " 的连接已关闭，忽略过期的SDP回调");
+            return false;
+        }
+        return true;
+    }
+
     // 简化的 SdpObserver 实现（WebRTC 要求必须实现，空实现即可）
     private static class SimpleSdpObserver implements SdpObserver {
         @Override 
@@ -793,76 +831,110 @@ public class WebRtcActivity extends AppCompatActivity implements WebRtcSignaling
         }
     }
     
-    // 为远程用户创建视频渲染器
+    // 为远程用户分配视频渲染器，优先复用池中已经init的渲染器
     private void createRemoteRenderer(String userId) {
-        SurfaceViewRenderer remoteView = new SurfaceViewRenderer(this);
-        remoteView.init(eglBase.getEglBaseContext(), null);
+        SurfaceViewRenderer remoteView = rendererPool.acquire();
+        remoteView.setTag(userId);
         
-        // 计算当前用户在网格中的位置
+        // 新用户排在网格末尾，已有的格子不动
         int position = remoteRenderers.size();
-        int row = position / 2; // 2列布局
-        int col = position % 2;
-        
-        // 设置渲染器大小和布局参数
-        int width = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 160, getResources().getDisplayMetrics());
-        int height = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 120, getResources().getDisplayMetrics());
+        remoteView.setLayoutParams(createTileLayoutParams(position));
         
-        // 创建GridLayout.LayoutParams并设置行列
-        GridLayout.LayoutParams params = new GridLayout.LayoutParams();
-        params.width = width;
-        params.height = height;
-        params.setMargins(10, 10, 10, 10);
-        params.rowSpec = GridLayout.spec(row);
-        params.columnSpec = GridLayout.spec(col);
+        // 格子大小确定或变化后重新选择要接收的视频层
+        remoteView.addOnLayoutChangeListener(remoteTileLayoutListener);
         
-        remoteView.setLayoutParams(params);
-        
-        // 添加到远程视频容器中的指定位置
         remoteVideoContainer.addView(remoteView);
         
-        // 保存引用
+        // 保存引用，视频轨道通过代理sink绑定到渲染器
         remoteRenderers.put(userId, remoteView);
+        ProxyVideoSink sink = new ProxyVideoSink();
+        sink.setTarget(remoteView);
+        remoteSinks.put(userId, sink);
         
-        Log.d(TAG, "为用户 " + userId + " 创建远程视频渲染器，位置: 行=" + row + ", 列=" + col);
+        Log.d(TAG, "为用户 " + userId + " 分配远程视频渲染器，位置: 行=" + position / REMOTE_GRID_COLUMNS
+                + ", 列=" + position % REMOTE_GRID_COLUMNS);
     }
     
-    // 重新排列远程视频视图
-    private void rearrangeRemoteRenderers() {
-        // 清空当前所有视图
-        remoteVideoContainer.removeAllViews();
+    // 第position个格子的布局参数（按列数换行）
+    private GridLayout.LayoutParams createTileLayoutParams(int position) {
+        GridLayout.LayoutParams params = new GridLayout.LayoutParams();
+        params.width = remoteTileWidthPx;
+        params.height = remoteTileHeightPx;
+        params.setMargins(REMOTE_TILE_MARGIN_PX, REMOTE_TILE_MARGIN_PX, REMOTE_TILE_MARGIN_PX, REMOTE_TILE_MARGIN_PX);
+        params.rowSpec = GridLayout.spec(position / REMOTE_GRID_COLUMNS);
+        params.columnSpec = GridLayout.spec(position % REMOTE_GRID_COLUMNS);
+        return params;
+    }
+    
+    // 在UI线程调用：按格子的像素大小选择层，层变化时通知发布方（网状模式）或SFU
+    private void onRemoteTileResized(String userId, int width, int height) {
+        if (!remoteRenderers.containsKey(userId) || signalingClient == null) {
+            return;
+        }
+        VideoLayer layer = VideoLayer.select(width, height, CAPTURE_WIDTH, CAPTURE_HEIGHT);
+        if (layer == selectedLayers.get(userId)) {
+            return;
+        }
+        selectedLayers.put(userId, layer);
+        Log.d(TAG, "用户 " + userId + " 的画面大小: " + width + "x" + height + "，选择视频层: " + layer.rid);
+        signalingClient.sendSelectLayer(userId, layer.rid, sfuMode ? NetworkConfig.SFU_PEER_ID : userId);
+    }
+    
+    // 移除远程用户的渲染器并放回池中，后面的格子各前移一格；其余视图不离开窗口，surface保持不变
+    private void removeRemoteRenderer(String userId) {
+        SurfaceViewRenderer renderer = remoteRenderers.get(userId);
+        if (renderer == null) {
+            return;
+        }
+        int removedPosition = 0;
+        for (String id : remoteRenderers.keySet()) {
+            if (id.equals(userId)) {
+                break;
+            }
+            removedPosition++;
+        }
+        remoteRenderers.remove(userId);
+        ProxyVideoSink sink = remoteSinks.remove(userId);
+        if (sink != null) {
+            sink.setTarget(null);
+        }
+        renderer.removeOnLayoutChangeListener(remoteTileLayoutListener);
+        renderer.setTag(null);
+        rendererPool.recycle(renderer);
+        remoteVideoContainer.removeView(renderer);
         
-        // 重新添加所有远程视频视图，确保按顺序排列
         int position = 0;
         for (Map.Entry<String, SurfaceViewRenderer> entry : remoteRenderers.entrySet()) {
-            String userId = entry.getKey();
-            SurfaceViewRenderer renderer = entry.getValue();
-            
-            // 计算新的位置
-            int row = position / 2; // 2列布局
-            int col = position % 2;
-            
-            // 创建新的布局参数
-            int width = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 160, getResources().getDisplayMetrics());
-            int height = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 120, getResources().getDisplayMetrics());
-            
-            GridLayout.LayoutParams params = new GridLayout.LayoutParams();
-            params.width = width;
-            params.height = height;
-            params.setMargins(10, 10, 10, 10);
-            params.rowSpec = GridLayout.spec(row);
-            params.columnSpec = GridLayout.spec(col);
-            
-            renderer.setLayoutParams(params);
-            
-            // 添加到容器中
-            remoteVideoContainer.addView(renderer);
-            
-            Log.d(TAG, "重新排列用户 " + userId + " 的视频渲染器，新位置: 行=" + row + ", 列=" + col);
-            
+            if (position >= removedPosition) {
+                // 原地修改行列，只触发重新布局
+                GridLayout.LayoutParams params = (GridLayout.LayoutParams) entry.getValue().getLayoutParams();
+                params.rowSpec = GridLayout.spec(position / REMOTE_GRID_COLUMNS);
+                params.columnSpec = GridLayout.spec(position % REMOTE_GRID_COLUMNS);
+                entry.getValue().setLayoutParams(params);
+                Log.d(TAG, "移动用户 " + entry.getKey() + " 的视频渲染器，新位置: 行="
+                        + position / REMOTE_GRID_COLUMNS + ", 列=" + position % REMOTE_GRID_COLUMNS);
+            }
             position++;
         }
     }
     
+    // 远程轨道的sink，目标可以在UI线程切换或清空；onFrame在解码线程上调用
+    private static class ProxyVideoSink implements VideoSink {
+        private volatile VideoSink target;
+        
+        void setTarget(VideoSink target) {
+            this.target = target;
+        }
+        
+        @Override
+        public void onFrame(VideoFrame frame) {
+            VideoSink sink = target;
+            if (sink != null) {
+                sink.onFrame(frame);
+            }
+        }
+    }
+    
     // PeerConnection 回调观察者
     private class PeerConnectionObserver implements PeerConnection.Observer {
         private String userId;
@@ -881,17 +953,24 @@ public class WebRtcActivity extends AppCompatActivity implements WebRtcSignaling
         
         @Override
         public void onAddStream(MediaStream mediaStream) {
-            // 添加远程媒体流
+            // Unified Plan下远程轨道通过onAddTrack回调
             Log.d(TAG, "收到远程媒体流 from user: " + userId);
+        }
+        
+        @Override
+        public void onAddTrack(RtpReceiver receiver, MediaStream[] mediaStreams) {
+            // 添加远程视频轨道
+            String remoteUserId = resolveRemoteUserId(userId, mediaStreams);
+            Log.d(TAG, "收到远程轨道 from user: " + remoteUserId);
             runOnUiThread(() -> {
-                if (!mediaStream.videoTracks.isEmpty()) {
-                    VideoTrack remoteVideoTrack = mediaStream.videoTracks.get(0);
-                    SurfaceViewRenderer remoteRenderer = remoteRenderers.get(userId);
-                    if (remoteRenderer != null) {
-                        Log.d(TAG, "将视频流绑定到渲染器 for user: " + userId);
-                        remoteVideoTrack.addSink(remoteRenderer);
+                if (receiver.track() instanceof VideoTrack) {
+                    VideoTrack remoteVideoTrack = (VideoTrack) receiver.track();
+                    ProxyVideoSink remoteSink = remoteSinks.get(remoteUserId);
+                    if (remoteSink != null) {
+                        Log.d(TAG, "将视频流绑定到渲染器 for user: " + remoteUserId);
+                        remoteVideoTrack.addSink(remoteSink);
                     } else {
-                        Log.e(TAG, "未找到用户 " + userId + " 的渲染器");
+                        Log.e(TAG, "未找到用户 " + remoteUserId + " 的渲染器");
                         // 使用类成员变量localVideoView而不是remoteVideoView
                         remoteVideoTrack.addSink(localVideoView);
                     }
@@ -906,13 +985,15 @@ public class WebRtcActivity extends AppCompatActivity implements WebRtcSignaling
         
         @Override public void onIceConnectionChange(PeerConnection.IceConnectionState iceConnectionState) {
             Log.d(TAG, "ICE连接状态变化 for user " + userId + ": " + iceConnectionState);
+            peerManager.onIceConnectionChange(userId, iceConnectionState);
             
             if (iceConnectionState == PeerConnection.IceConnectionState.CONNECTED) {
                 Log.d(TAG, "与用户 " + userId + " 的ICE连接已建立");
             } else if (iceConnectionState == PeerConnection.IceConnectionState.COMPLETED) {
                 Log.d(TAG, "与用户 " + userId + " 的ICE连接已完成");
             } else if (iceConnectionState == PeerConnection.IceConnectionState.FAILED) {
-                Log.e(TAG, "与用户 " + userId + " 的ICE连接失败");
+                Log.e(TAG, "与用户 " + userId + " 的ICE连接失败，远程候选统计: "
+                        + peerManager.getIceCandidateCounters());
                 runOnUiThread(() -> onConnectFailure("ICE连接失败: " + iceConnectionState));
             } else if (iceConnectionState == PeerConnection.IceConnectionState.DISCONNECTED) {
                 Log.w(TAG, "与用户 " + userId + " 的ICE连接已断开");
@@ -950,31 +1031,64 @@ public class WebRtcActivity extends AppCompatActivity implements WebRtcSignaling
     protected void onDestroy() {
         super.onDestroy();
         try {
-            // 清理所有PeerConnection
-            for (PeerConnection peerConnection : peerConnections.values()) {
-                peerConnection.close();
-                peerConnection.dispose();
+            // 断开信令连接，之后不再有新的信令任务
+            if (signalingClient != null) {
+                signalingClient.disconnectAsync();
             }
-            peerConnections.clear();
             
-            // 清理远程渲染器
+            // 停止采集
+            if (videoCapturer != null) {
+                try {
+                    videoCapturer.stopCapture();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                videoCapturer.dispose();
+                videoCapturer = null;
+            }
+            if (surfaceTextureHelper != null) {
+                surfaceTextureHelper.dispose();
+                surfaceTextureHelper = null;
+            }
+            isVideoInitialized = false;
+            
+            if (mediaCostMeter != null) {
+                mediaCostMeter.stop();
+            }
+            if (callStatsCollector != null) {
+                callStatsCollector.stop();
+            }
+            
+            // 清理远程渲染器和渲染器池
+            for (ProxyVideoSink sink : remoteSinks.values()) {
+                sink.setTarget(null);
+            }
+            remoteSinks.clear();
             for (SurfaceViewRenderer renderer : remoteRenderers.values()) {
                 renderer.release();
             }
             remoteRenderers.clear();
+            if (rendererPool != null) {
+                rendererPool.releaseAll();
+            }
             
             // 清理本地视频渲染器
             localVideoView.release();
             
-            // 清理EGL上下文
-            if (eglBase != null) {
-                eglBase.release();
-            }
-            
-            // 断开信令连接
-            if (signalingClient != null) {
-                signalingClient.disconnectAsync();
-            }
+            // 在工作线程上排在已提交的任务之后，释放所有PeerConnection、本地轨道、PeerConnectionFactory和EGL上下文
+            PeerConnectionManager manager = peerManager;
+            EglBase egl = eglBase;
+            worker.post("release", () -> {
+                if (manager != null) {
+                    manager.release();
+                }
+                if (egl != null) {
+                    egl.release();
+                }
+            });
+            worker.shutdown();
+            localAudioTrack = null;
+            localVideoTrack = null;
         } catch (Exception e) {
             Log.e(TAG, "销毁资源失败", e);
             Toast.makeText(this, "销毁资源失败: " + e.getMessage(), Toast.LENGTH_SHORT).show();
@@ -9,29 +9,33 @@ import java.net.URISyntaxException;
 
 /**
  * WebRTC信令客户端
- * 负责管理WebSocket连接和处理WebRTC信令消息
+ * 负责管理WebSocket连接和处理WebRTC信令消息。发送的消息都交给WebSocketClientWrapper的发送队列，
+ * 连接建立前或会话恢复期间调用也不会丢，连上后按调用顺序发出
  */
-public class WebRtcSignalingClient implements WebSocketClientWrapper.WebSocketListener {
+public class WebRtcSignalingClient implements WebSocketClientWrapper.WebSocketListener,
+        WebSocketClientWrapper.SendQueueListener {
     private static final String TAG = "WebRtcSignalingClient";
     
     private WebSocketClientWrapper webSocketClient;
     private String userId;
     private SignalingCallback callback;
     private String currentRoomId;
-    private boolean isConnected = false;
+    // 在WebSocket的回调线程上写，调用方线程上读
+    private volatile boolean connected = false;
     
     public WebRtcSignalingClient(String serverUrl, String userId, SignalingCallback callback) throws URISyntaxException {
         this.userId = userId;
         this.callback = callback;
         this.webSocketClient = new WebSocketClientWrapper(serverUrl);
         this.webSocketClient.setWebSocketListener(this);
+        this.webSocketClient.setSendQueueListener(this);
     }
     
     /**
      * 异步建立WebSocket连接
      */
     public void connectAsync() {
-        if (!isConnected) {
+        if (!connected) {
             Log.d(TAG, "开始连接WebSocket服务器...");
             webSocketClient.connect();
         } else {
@@ -46,7 +50,7 @@ public class WebRtcSignalingClient implements WebSocketClientWrapper.WebSocketLi
         if (webSocketClient != null) {
             Log.d(TAG, "主动断开WebSocket连接");
             webSocketClient.disconnect();
-            isConnected = false;
+            connected = false;
         }
     }
     
@@ -55,39 +59,18 @@ public class WebRtcSignalingClient implements WebSocketClientWrapper.WebSocketLi
     }
     
     /**
-     * 创建房间
+     * 创建房间，未连接时排队，连上后发送
      */
     public void createRoom(String roomId) {
-        if (!isConnected) {
-            Log.e(TAG, "无法创建房间: WebSocket未连接");
-            if (callback != null) {
-                callback.onConnectFailure("无法创建房间: WebSocket未连接");
-            }
-            return;
-        }
-        
         this.currentRoomId = roomId;
         Log.d(TAG, "创建房间: " + roomId);
         webSocketClient.createRoom(roomId);
     }
     
     /**
-     * 加入房间
+     * 加入房间，未连接时排队，连上后发送
      */
     public void joinRoom(String roomId) {
-        if (!isConnected) {
-            Log.e(TAG, "无法加入房间: WebSocket未连接");
-            Log.d(TAG, "当前连接状态: isConnected=" + isConnected);
-            Log.d(TAG, "WebSocket客户端状态: " + (webSocketClient != null ? "已创建" : "未创建"));
-            if (webSocketClient != null) {
-                Log.d(TAG, "WebSocket是否打开: " + webSocketClient.isOpen());
-            }
-            if (callback != null) {
-                callback.onConnectFailure("无法加入房间: WebSocket未连接");
-            }
-            return;
-        }
-        
         this.currentRoomId = roomId;
         Log.d(TAG, "加入房间: " + roomId + ", 用户ID: " + userId);
         webSocketClient.joinRoom(roomId, userId);
@@ -97,7 +80,7 @@ public class WebRtcSignalingClient implements WebSocketClientWrapper.WebSocketLi
      * 离开房间
      */
     public void leaveRoom() {
-        if (currentRoomId != null && isConnected) {
+        if (currentRoomId != null && connected) {
             Log.d(TAG, "离开房间: " + currentRoomId);
             // 这里可以发送离开房间的消息，但当前WebSocketClientWrapper没有实现这个方法
             // 在实际场景中应该添加此功能
@@ -109,11 +92,6 @@ public class WebRtcSignalingClient implements WebSocketClientWrapper.WebSocketLi
      * 发送Offer消息
      */
     public void sendOffer(String sdp, String targetUserId) {
-        if (!isConnected) {
-            Log.e(TAG, "无法发送Offer: WebSocket未连接");
-            return;
-        }
-        
         try {
             JSONObject message = new JSONObject();
             message.put("type", "offer");
@@ -130,11 +108,6 @@ public class WebRtcSignalingClient implements WebSocketClientWrapper.WebSocketLi
      * 发送Answer消息
      */
     public void sendAnswer(String sdp, String targetUserId) {
-        if (!isConnected) {
-            Log.e(TAG, "无法发送Answer: WebSocket未连接");
-            return;
-        }
-        
         try {
             JSONObject message = new JSONObject();
             message.put("type", "answer");
@@ -147,15 +120,28 @@ public class WebRtcSignalingClient implements WebSocketClientWrapper.WebSocketLi
         }
     }
     
+    /**
+     * 告诉发布方要接收它的哪一层视频：网状模式发给发布者本人，SFU模式发给SFU
+     */
+    public void sendSelectLayer(String publisherId, String rid, String targetUserId) {
+        try {
+            JSONObject message = new JSONObject();
+            message.put("type", "selectLayer");
+            message.put("targetUserId", targetUserId);
+            message.put("publisherId", publisherId);
+            message.put("layer", rid);
+            webSocketClient.send(message.toString());
+            Log.d(TAG, "已选择用户 " + publisherId + " 的视频层: " + rid);
+        } catch (JSONException e) {
+            Log.e(TAG, "构建层选择消息失败", e);
+        }
+    }
+    
     /**
      * 发送ICE候选
+     * 候选在WebSocketClientWrapper的发送队列里最多等待一个短窗口（30ms），同一目标的候选合并成一条iceCandidates消息
      */
     public void sendIceCandidate(String candidate, String sdpMid, int sdpMLineIndex, String targetUserId) {
-        if (!isConnected) {
-            Log.e(TAG, "无法发送ICE候选: WebSocket未连接");
-            return;
-        }
-        
         try {
             JSONObject message = new JSONObject();
             message.put("type", "iceCandidate");
@@ -174,18 +160,13 @@ public class WebRtcSignalingClient implements WebSocketClientWrapper.WebSocketLi
      * 获取房间信息
      */
     public void getRoomInfo() {
-        if (!isConnected) {
-            Log.e(TAG, "无法获取房间信息: WebSocket未连接");
-            return;
-        }
-        
         webSocketClient.getRoomInfo();
     }
     
     @Override
     public void onConnected() {
         Log.d(TAG, "WebSocket连接成功");
-        isConnected = true;
+        connected = true;
         if (callback != null) {
             callback.onConnectSuccess();
         }
@@ -193,10 +174,14 @@ public class WebRtcSignalingClient implements WebSocketClientWrapper.WebSocketLi
     
     @Override
     public void onMessageReceived(String message) {
-        Log.d(TAG, "收到信令消息: " + message);
         try {
-            JSONObject json = new JSONObject(message);
-            String type = json.getString("type");
+            // 先取type分发，各分支只解码自己用到的字段；日志不输出SDP等大字段的内容
+            SignalingMessage msg = SignalingMessage.decode(message);
+            String type = msg.type();
+            if (type == null) {
+                Log.w(TAG, "信令消息缺少type字段: " + msg);
+                return;
+            }
             
             switch (type) {
                 case "joined":
@@ -208,61 +193,95 @@ public class WebRtcSignalingClient implements WebSocketClientWrapper.WebSocketLi
                     break;
                 case "existingUsers":
                     // 收到房间内现有用户列表
-                    if (json.has("users")) {
-                        org.json.JSONArray usersArray = json.getJSONArray("users");
-                        String[] userIds = new String[usersArray.length()];
-                        for (int i = 0; i < usersArray.length(); i++) {
-                            userIds[i] = usersArray.getString(i);
-                        }
+                    if (msg.has("users")) {
+                        java.util.List<String> users = msg.getStringArray("users");
+                        String[] userIds = users.toArray(new String[0]);
                         Log.d(TAG, "收到现有用户列表，共" + userIds.length + "个用户");
                         if (callback != null) {
-                            callback.onExistingUsers(json.getString("roomId"), userIds);
+                            callback.onExistingUsers(msg.getString("roomId"), userIds);
                         }
                     }
                     break;
-                case "userJoined":
+                case "userJoined": {
                     // 有新用户加入房间
-                    Log.d(TAG, "用户加入房间: " + json.getString("userId"));
+                    String joinedUserId = msg.getString("userId");
+                    Log.d(TAG, "用户加入房间: " + joinedUserId);
                     if (callback != null) {
-                        callback.onRoomEvent("userJoined", json.getString("roomId"), json.getString("userId"));
+                        callback.onRoomEvent("userJoined", msg.getString("roomId"), joinedUserId);
                     }
                     break;
-                case "userLeft":
+                }
+                case "userLeft": {
                     // 有用户离开房间
-                    Log.d(TAG, "用户离开房间: " + json.getString("userId"));
+                    String leftUserId = msg.getString("userId");
+                    Log.d(TAG, "用户离开房间: " + leftUserId);
                     if (callback != null) {
-                        callback.onRoomEvent("userLeft", json.getString("roomId"), json.getString("userId"));
+                        callback.onRoomEvent("userLeft", msg.getString("roomId"), leftUserId);
                     }
                     break;
-                case "offer":
+                }
+                case "offer": {
                     // 收到Offer
-                    Log.d(TAG, "收到Offer，来自用户: " + json.getString("from"));
+                    String from = msg.getString("from");
+                    Log.d(TAG, "收到Offer，来自用户: " + from + "，SDP长度: " + msg.rawLength("sdp"));
                     if (callback != null) {
-                        callback.onReceiveOffer(json.getString("sdp"), json.getString("from"));
+                        callback.onReceiveOffer(msg.getString("sdp"), from);
                     }
                     break;
-                case "answer":
+                }
+                case "answer": {
                     // 收到Answer
-                    Log.d(TAG, "收到Answer，来自用户: " + json.getString("from"));
+                    String from = msg.getString("from");
+                    Log.d(TAG, "收到Answer，来自用户: " + from + "，SDP长度: " + msg.rawLength("sdp"));
                     if (callback != null) {
-                        callback.onReceiveAnswer(json.getString("sdp"), json.getString("from"));
+                        callback.onReceiveAnswer(msg.getString("sdp"), from);
                     }
                     break;
-                case "iceCandidate":
+                }
+                case "iceCandidate": {
                     // 收到ICE候选
-                    Log.d(TAG, "收到ICE候选，来自用户: " + json.getString("from"));
+                    String from = msg.getString("from");
+                    Log.d(TAG, "收到ICE候选，来自用户: " + from);
                     if (callback != null) {
                         callback.onReceiveIceCandidate(
-                                json.getString("candidate"),
-                                json.getString("sdpMid"),
-                                json.getInt("sdpMLineIndex"),
-                                json.getString("from")
+                                msg.getString("candidate"),
+                                msg.getString("sdpMid"),
+                                msg.getInt("sdpMLineIndex"),
+                                from
                         );
                     }
                     break;
+                }
+                case "iceCandidates": {
+                    // 收到合并发送的一组ICE候选
+                    String from = msg.getString("from");
+                    java.util.List<SignalingMessage> candidates = msg.getObjectArray("candidates");
+                    Log.d(TAG, "收到" + candidates.size() + "个ICE候选，来自用户: " + from);
+                    if (callback != null) {
+                        for (SignalingMessage item : candidates) {
+                            callback.onReceiveIceCandidate(
+                                    item.getString("candidate"),
+                                    item.getString("sdpMid"),
+                                    item.getInt("sdpMLineIndex"),
+                                    from
+                            );
+                        }
+                    }
+                    break;
+                }
+                case "selectLayer": {
+                    // 订阅方选择了要接收的视频层
+                    String from = msg.getString("from");
+                    String layer = msg.getString("layer");
+                    Log.d(TAG, "用户 " + from + " 选择视频层: " + layer);
+                    if (callback != null) {
+                        callback.onSelectLayer(from, layer);
+                    }
+                    break;
+                }
                 case "error":
                     // 错误消息
-                    String errorMsg = json.optString("message", "未知错误");
+                    String errorMsg = msg.optString("message", "未知错误");
                     Log.e(TAG, "服务器错误: " + errorMsg);
                     if (callback != null) {
                         callback.onConnectFailure(errorMsg);
@@ -271,8 +290,8 @@ public class WebRtcSignalingClient implements WebSocketClientWrapper.WebSocketLi
                 default:
                     Log.d(TAG, "未知消息类型: " + type);
             }
-        } catch (JSONException e) {
-            Log.e(TAG, "解析信令消息失败: " + message, e);
+        } catch (SignalingMessage.DecodeException e) {
+            Log.e(TAG, "解析信令消息失败，消息长度: " + message.length(), e);
             if (callback != null) {
                 callback.onConnectFailure("解析信令消息失败: " + e.getMessage());
             }
@@ -282,7 +301,7 @@ public class WebRtcSignalingClient implements WebSocketClientWrapper.WebSocketLi
     @Override
     public void onDisconnected(String reason, boolean remote) {
         Log.d(TAG, "WebSocket连接断开. 原因: " + reason + ", 远程断开: " + remote);
-        isConnected = false;
+        connected = false;
         if (callback != null) {
             callback.onDisconnect();
         }
@@ -291,17 +310,27 @@ public class WebRtcSignalingClient implements WebSocketClientWrapper.WebSocketLi
     @Override
     public void onError(Exception error) {
         Log.e(TAG, "WebSocket错误: " + error.getMessage(), error);
-        isConnected = false;
+        connected = false;
         if (callback != null) {
             callback.onConnectFailure("WebSocket错误: " + error.getMessage());
         }
     }
     
+    @Override
+    public void onSendQueueCongested(int queuedMessages) {
+        Log.w(TAG, "信令发送队列积压: " + queuedMessages + "条");
+    }
+    
+    @Override
+    public void onSendQueueDrained() {
+        Log.d(TAG, "信令发送队列积压已消除");
+    }
+    
     /**
-     * 检查连接状态
+     * 检查连接状态，会话挂起等待恢复期间也算已连接
      */
     public boolean isConnected() {
-        return isConnected && webSocketClient != null && webSocketClient.isOpen();
+        return connected && webSocketClient != null && webSocketClient.isSessionAlive();
     }
     
     /**
@@ -316,5 +345,6 @@ public class WebRtcSignalingClient implements WebSocketClientWrapper.WebSocketLi
         void onReceiveIceCandidate(String candidate, String sdpMid, int sdpMLineIndex, String fromUserId);
         void onRoomEvent(String eventType, String roomId, String userId);
         void onExistingUsers(String roomId, String[] userIds);
+        void onSelectLayer(String fromUserId, String rid);
     }
 }
\ No newline at end of file
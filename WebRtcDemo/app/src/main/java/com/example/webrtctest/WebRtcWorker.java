@@ -0,0 +1,135 @@
+package com.example.webrtctest;
+
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WebRTC工作线程
+ * 信令处理和PeerConnection操作都在这一个线程上串行执行，UI线程只负责界面更新；
+ * 每个任务记录排队等待时间和执行时间，等待或执行过长时输出警告，便于发现阻塞队列的任务
+ */
+public class WebRtcWorker {
+    private static final String TAG = "WebRtcWorker";
+    // 排队或执行超过这个时间就输出警告
+    private static final long SLOW_TASK_THRESHOLD_MS = 50;
+
+    /**
+     * 队列统计快照
+     */
+    public static class Stats {
+        public final long taskCount;
+        public final long avgQueueMs;
+        public final long maxQueueMs;
+        public final long avgRunMs;
+        public final long maxRunMs;
+        public final int pending;
+
+        Stats(long taskCount, long avgQueueMs, long maxQueueMs, long avgRunMs, long maxRunMs, int pending) {
+            this.taskCount = taskCount;
+            this.avgQueueMs = avgQueueMs;
+            this.maxQueueMs = maxQueueMs;
+            this.avgRunMs = avgRunMs;
+            this.maxRunMs = maxRunMs;
+            this.pending = pending;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{tasks=" + taskCount + ", pending=" + pending
+                    + ", queue avg/max=" + avgQueueMs + "/" + maxQueueMs + "ms"
+                    + ", run avg/max=" + avgRunMs + "/" + maxRunMs + "ms}";
+        }
+    }
+
+    private final ExecutorService executor;
+    private volatile Thread workerThread;
+
+    // 以下统计由this锁保护
+    private long taskCount = 0;
+    private long totalQueueNs = 0;
+    private long maxQueueNs = 0;
+    private long totalRunNs = 0;
+    private long maxRunNs = 0;
+    private int pending = 0;
+
+    public WebRtcWorker() {
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "webrtc-worker");
+            thread.setDaemon(true);
+            workerThread = thread;
+            return thread;
+        });
+    }
+
+    /**
+     * 提交任务，name用于慢任务日志；关闭后提交的任务会被忽略
+     */
+    public void post(String name, Runnable task) {
+        long enqueuedAt = System.nanoTime();
+        synchronized (this) {
+            pending++;
+        }
+        try {
+            executor.execute(() -> run(name, task, enqueuedAt));
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                pending--;
+            }
+            Log.w(TAG, "工作线程已关闭，忽略任务: " + name);
+        }
+    }
+
+    public boolean isWorkerThread() {
+        return Thread.currentThread() == workerThread;
+    }
+
+    public synchronized Stats getStats() {
+        long count = Math.max(taskCount, 1);
+        return new Stats(taskCount,
+                TimeUnit.NANOSECONDS.toMillis(totalQueueNs / count),
+                TimeUnit.NANOSECONDS.toMillis(maxQueueNs),
+                TimeUnit.NANOSECONDS.toMillis(totalRunNs / count),
+                TimeUnit.NANOSECONDS.toMillis(maxRunNs),
+                pending);
+    }
+
+    /**
+     * 执行完已提交的任务后结束线程
+     */
+    public void shutdown() {
+        executor.shutdown();
+        Log.d(TAG, "工作线程关闭，" + getStats());
+    }
+
+    private void run(String name, Runnable task, long enqueuedAt) {
+        long startedAt = System.nanoTime();
+        try {
+            task.run();
+        } catch (Exception e) {
+            Log.e(TAG, "任务执行失败: " + name, e);
+        }
+        long finishedAt = System.nanoTime();
+        long queueNs = startedAt - enqueuedAt;
+        long runNs = finishedAt - startedAt;
+        int remaining;
+        synchronized (this) {
+            pending--;
+            taskCount++;
+            totalQueueNs += queueNs;
+            totalRunNs += runNs;
+            maxQueueNs = Math.max(maxQueueNs, queueNs);
+            maxRunNs = Math.max(maxRunNs, runNs);
+            remaining = pending;
+        }
+        long queueMs = TimeUnit.NANOSECONDS.toMillis(queueNs);
+        long runMs = TimeUnit.NANOSECONDS.toMillis(runNs);
+        if (queueMs >= SLOW_TASK_THRESHOLD_MS || runMs >= SLOW_TASK_THRESHOLD_MS) {
+            Log.w(TAG, "慢任务: " + name + "，排队: " + queueMs + "ms，执行: " + runMs
+                    + "ms，剩余任务: " + remaining);
+        }
+    }
+}
@@ -1,77 +1,477 @@
 package com.example.webrtctest;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.framing.CloseFrame;
 import org.java_websocket.handshake.ServerHandshake;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * 信令WebSocket连接，带自动重连、会话恢复和发送队列
+ * 服务器在connected消息里下发sessionToken时启用会话：双方给发出的消息编号（seq作为第一个字段）
+ * 并缓存最近的消息，连接意外断开后在恢复时间内重连并发送resume，服务器补发断开期间的消息，
+ * 本端补发服务器没收到的消息，房间状态不变，不需要重新加入和重新协商；这期间上层不会收到断开通知。
+ * 服务器不支持会话（SFU服务器）时按原来的方式工作，断开后重连得到的是新会话。
+ *
+ * 所有消息先进OutboundQueue，由发送线程在连接可用（收到connected或resumed）后按优先级取出、合并后写出，
+ * 连接建立前和重连期间发送的消息不会丢失；队列积压时通过SendQueueListener通知上层
+ *
+ * 连接可用后定时发送ping，服务器回复带同一id的pong。移动网络上半开的连接要等TCP超时才会触发onClose，
+ * 连续几次收不到pong就主动关闭连接，按意外断开挂起会话并重连。测得的RTT记录在RttHistogram里，
+ * 用于重连退避，并和连接失败一起报告给NetworkConfig，下一次新建连接时据此选择服务器
+ */
 public class WebSocketClientWrapper extends WebSocketClient {
-    // 允许直接调用父类的send方法
-    @Override
-    public void send(String text) {
-        super.send(text);
-    }
     private static final String TAG = "WebSocketClient";
-    private WebSocketListener mListener;
-    private ScheduledExecutorService reconnectExecutor;
-    private boolean isReconnecting = false;
-    private int reconnectAttempts = 0;
     private static final int MAX_RECONNECT_ATTEMPTS = 10;
+    // 缓存的已发送消息条数，和服务器的重放缓冲区一样大
+    private static final int REPLAY_BUFFER_SIZE = 256;
+    private static final String SEQ_PREFIX = "{\"seq\":";
+    // 服务器的控制消息不编号且很短，不编号的短消息才解码检查type；
+    // SFU服务器用JSONObject生成消息，字段顺序不固定，不能按前缀判断
+    private static final int MAX_CONTROL_MESSAGE_LENGTH = 512;
+    // 发送队列的容量和开始通知积压的条数
+    private static final int MAX_QUEUED_MESSAGES = 128;
+    private static final int CONGESTION_THRESHOLD = 32;
+    // 队列里只有ICE时最多等这么久再发，同一轮收集到的候选合并成一条；攒够条数时不再等
+    private static final long ICE_FLUSH_WINDOW_MS = 30;
+    private static final int ICE_FLUSH_MAX_MESSAGES = 16;
+    // 默认心跳间隔和判定连接失效的连续丢失pong数
+    private static final long DEFAULT_HEARTBEAT_INTERVAL_MS = 10000;
+    private static final int DEFAULT_MAX_MISSED_PONGS = 2;
+    // 记录发送时间的最近ping数，迟到的pong也能算出RTT
+    private static final int PING_HISTORY = 8;
+    // 重连延迟：没有RTT数据时从1秒开始，有数据时从RTO估计的2倍开始（限制在250毫秒到2秒），最大30秒
+    private static final long DEFAULT_RECONNECT_DELAY_MS = 1000;
+    private static final long MIN_RECONNECT_DELAY_MS = 250;
+    private static final long MAX_RECONNECT_DELAY_MS = 30000;
+
+    private final String serverUrl;
+    private final RttHistogram rttHistogram = new RttHistogram();
+    private volatile WebSocketListener mListener;
+    private volatile SendQueueListener sendQueueListener;
+    private final ScheduledExecutorService reconnectExecutor;
+    private final ExecutorService sendExecutor;
+    // 连接回调在库的读线程上，重连任务在reconnectExecutor上，这几个状态两边都会访问
+    private final AtomicBoolean reconnectScheduled = new AtomicBoolean(false);
+    private final AtomicInteger reconnectAttempts = new AtomicInteger(0);
+    private volatile boolean closedByUser = false;
+
+    // 会话状态由sessionLock保护；不用this，避免和库内部的同步互相影响
+    private final Object sessionLock = new Object();
+    private String sessionToken;
+    private long resumeWindowMs;
+    private long nextOutSeq = 1;
+    // 收到的最大编号，编号不大于它的消息是服务器补发的重复消息
+    private long lastInSeq = 0;
+    // 已发送的消息，编号为 nextOutSeq - replay.size() 到 nextOutSeq - 1
+    private final ArrayDeque<String> replay = new ArrayDeque<>();
+    // 连接意外断开，会话挂起等待恢复
+    private boolean suspended = false;
+    private long suspendedAt;
+    // 已发出resume，等待服务器回复
+    private boolean resuming = false;
+    // 恢复期间新连接自己的会话，恢复失败时改用它
+    private String fallbackToken;
+    private long fallbackWindowMs;
+
+    // 发送队列状态，同样由sessionLock保护
+    private final OutboundQueue outbound = new OutboundQueue(MAX_QUEUED_MESSAGES);
+    // 当前连接已收到connected（或resumed），队列里的消息可以发出
+    private boolean ready = false;
+    private boolean flushScheduled = false;
+    // 等待ICE合并窗口结束的发送任务
+    private ScheduledFuture<?> iceFlushTask;
+    private boolean congested = false;
+    private long droppedMessages = 0;
+
+    // 心跳状态，同样由sessionLock保护
+    private long heartbeatIntervalMs = DEFAULT_HEARTBEAT_INTERVAL_MS;
+    private int maxMissedPongs = DEFAULT_MAX_MISSED_PONGS;
+    private ScheduledFuture<?> heartbeatTask;
+    private long lastPingId = 0;
+    // 下标为id % PING_HISTORY，0表示没有等待回复
+    private final long[] pingSentAtNanos = new long[PING_HISTORY];
+    private boolean pongPending = false;
+    private int missedPongs = 0;
+    // 当前连接上收到过pong；不回复ping的旧服务器不做超时判断
+    private boolean pongSupported = false;
 
     public WebSocketClientWrapper(String serverUri) throws URISyntaxException {
         super(new URI(serverUri));
-        reconnectExecutor = Executors.newSingleThreadScheduledExecutor();
+        serverUrl = serverUri;
+        reconnectExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "websocket-reconnect");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sendExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "websocket-send");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 发送一条JSON对象消息：放进发送队列，连接可用时由发送线程写出
+     * 队列已满时丢弃并记录，不抛异常
+     */
+    @Override
+    public void send(String text) {
+        int queued;
+        boolean becameCongested = false;
+        synchronized (sessionLock) {
+            if (!outbound.offer(text)) {
+                droppedMessages++;
+                Log.w(TAG, "Send queue full, dropping message, total dropped: " + droppedMessages);
+                return;
+            }
+            queued = outbound.size();
+            if (!congested && queued >= CONGESTION_THRESHOLD) {
+                congested = true;
+                becameCongested = true;
+            }
+            scheduleFlushLocked();
+        }
+        SendQueueListener listener = sendQueueListener;
+        if (becameCongested && listener != null) {
+            listener.onSendQueueCongested(queued);
+        }
+    }
+
+    // 调用方持有sessionLock；队列里只有ICE时等一个合并窗口，窗口从第一条开始计时，不会因后续候选延长。
+    // 其他消息入队时立即发送，已经排队的候选随它一起发出
+    private void scheduleFlushLocked() {
+        if (!ready || flushScheduled || outbound.size() == 0) {
+            return;
+        }
+        int iceMessages = outbound.iceCount();
+        if (iceMessages == outbound.size() && iceMessages < ICE_FLUSH_MAX_MESSAGES) {
+            if (iceFlushTask == null) {
+                iceFlushTask = reconnectExecutor.schedule(() -> {
+                    synchronized (sessionLock) {
+                        if (iceFlushTask != null) {
+                            iceFlushTask = null;
+                            flushNowLocked();
+                        }
+                    }
+                }, ICE_FLUSH_WINDOW_MS, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+        flushNowLocked();
+    }
+
+    // 调用方持有sessionLock
+    private void flushNowLocked() {
+        if (iceFlushTask != null) {
+            iceFlushTask.cancel(false);
+            iceFlushTask = null;
+        }
+        if (ready && !flushScheduled && outbound.size() > 0) {
+            flushScheduled = true;
+            sendExecutor.execute(this::flushQueue);
+        }
+    }
+
+    // 在发送线程上一次取出队列里的全部消息写出，突发的ICE在这里合并成一条
+    private void flushQueue() {
+        boolean drained = false;
+        synchronized (sessionLock) {
+            flushScheduled = false;
+            if (!ready || !isOpen()) {
+                return;
+            }
+            List<String> messages = outbound.drain();
+            try {
+                for (String text : messages) {
+                    transmitLocked(text);
+                }
+            } catch (RuntimeException e) {
+                // 连接刚好断开；有会话时消息已在重放缓冲区里，恢复后补发
+                Log.w(TAG, "Send failed: " + e.getMessage());
+            }
+            if (congested) {
+                congested = false;
+                drained = true;
+            }
+        }
+        SendQueueListener listener = sendQueueListener;
+        if (drained && listener != null) {
+            listener.onSendQueueDrained();
+        }
+    }
+
+    // 有会话时加上编号放进重放缓冲区再发送；调用方持有sessionLock，保证编号和写出的顺序一致
+    private void transmitLocked(String text) {
+        if (sessionToken == null || !text.startsWith("{") || text.length() < 3) {
+            super.send(text);
+            return;
+        }
+        String numbered = SEQ_PREFIX + nextOutSeq++ + "," + text.substring(1);
+        replay.addLast(numbered);
+        if (replay.size() > REPLAY_BUFFER_SIZE) {
+            replay.removeFirst();
+        }
+        super.send(numbered);
+    }
+
+    // 会话已经失效，队列里的消息属于原来的房间状态，不再发送；调用方持有sessionLock
+    private boolean dropQueuedLocked(String reason) {
+        int dropped = outbound.clear();
+        if (dropped > 0) {
+            droppedMessages += dropped;
+            Log.w(TAG, "Dropped " + dropped + " queued messages: " + reason);
+        }
+        boolean wasCongested = congested;
+        congested = false;
+        return wasCongested;
+    }
+
+    private void notifyDrained(boolean wasCongested) {
+        SendQueueListener listener = sendQueueListener;
+        if (wasCongested && listener != null) {
+            listener.onSendQueueDrained();
+        }
+    }
+
+    /**
+     * 队列满而丢弃、或会话失效时清掉的消息总数
+     */
+    public long getDroppedMessageCount() {
+        synchronized (sessionLock) {
+            return droppedMessages;
+        }
+    }
+
+    /**
+     * 连接已打开，或者会话挂起等待恢复（此时发送的消息会在恢复后补发）
+     */
+    public boolean isSessionAlive() {
+        if (isOpen()) {
+            return true;
+        }
+        synchronized (sessionLock) {
+            return suspended;
+        }
     }
 
     @Override
     public void onOpen(ServerHandshake handshakedata) {
         Log.d(TAG, "WebSocket connection opened");
-        reconnectAttempts = 0; // 重置重连计数器
-        isReconnecting = false; // 重置重连标志
-        if (mListener != null) {
-            mListener.onConnected();
+        reconnectAttempts.set(0);
+        synchronized (sessionLock) {
+            ready = false;
+            if (suspended) {
+                // 挂起的会话由服务器判断能否恢复，超时的会话服务器会回复resumeFailed
+                resuming = true;
+                fallbackToken = null;
+                long firstSeq = nextOutSeq - replay.size();
+                Log.d(TAG, "Resuming session, lastSeq: " + lastInSeq + ", firstSeq: " + firstSeq);
+                super.send("{\"type\":\"resume\",\"sessionToken\":\"" + sessionToken + "\",\"lastSeq\":"
+                        + lastInSeq + ",\"firstSeq\":" + firstSeq + "}");
+                return;
+            }
+        }
+        WebSocketListener listener = mListener;
+        if (listener != null) {
+            listener.onConnected();
         }
     }
 
     @Override
     public void onMessage(String message) {
-        Log.d(TAG, "Received message: " + message);
-        if (mListener != null) {
-            mListener.onMessageReceived(message);
+        // 消息可能带有几KB的SDP，只记录长度
+        Log.d(TAG, "Received message, length: " + message.length());
+        if (message.startsWith(SEQ_PREFIX)) {
+            long seq = parseSeq(message);
+            synchronized (sessionLock) {
+                if (seq <= lastInSeq) {
+                    Log.d(TAG, "Dropping duplicate message, seq: " + seq);
+                    return;
+                }
+                lastInSeq = seq;
+            }
+        } else if (message.length() <= MAX_CONTROL_MESSAGE_LENGTH && handleControlMessage(message)) {
+            return;
+        }
+        WebSocketListener listener = mListener;
+        if (listener != null) {
+            listener.onMessageReceived(message);
+        }
+    }
+
+    // 处理会话相关的控制消息，返回true表示消息不再交给上层
+    private boolean handleControlMessage(String message) {
+        try {
+            SignalingMessage msg = SignalingMessage.decode(message);
+            String type = msg.type();
+            if ("connected".equals(type)) {
+                return onSessionConnected(msg.optString("sessionToken", null), parseLong(msg, "resumeWindowMs"));
+            } else if ("resumed".equals(type)) {
+                onSessionResumed(parseLong(msg, "lastSeq"));
+                return true;
+            } else if ("resumeFailed".equals(type)) {
+                onResumeFailed(msg.optString("message", ""));
+                return true;
+            } else if ("pong".equals(type)) {
+                onPong(parseLong(msg, "id"));
+                return true;
+            }
+        } catch (SignalingMessage.DecodeException e) {
+            // 交给上层按普通消息处理和报错
+            Log.w(TAG, "Failed to decode control message: " + e.getMessage());
+        }
+        return false;
+    }
+
+    private boolean onSessionConnected(String token, long windowMs) {
+        synchronized (sessionLock) {
+            if (resuming) {
+                // 新连接先收到自己的会话，等resume的结果再决定用哪个
+                fallbackToken = token;
+                fallbackWindowMs = windowMs;
+                return true;
+            }
+            resetSession(token, windowMs);
+            // 连接建立前排队的消息现在发出
+            ready = true;
+            flushNowLocked();
+            startHeartbeatLocked();
+            return false;
         }
     }
 
+    private void onSessionResumed(long serverLastSeq) {
+        int resent = 0;
+        synchronized (sessionLock) {
+            resuming = false;
+            suspended = false;
+            // 补发服务器没有收到的消息
+            long seq = nextOutSeq - replay.size();
+            for (Iterator<String> it = replay.iterator(); it.hasNext(); seq++) {
+                String numbered = it.next();
+                if (seq > serverLastSeq) {
+                    super.send(numbered);
+                    resent++;
+                }
+            }
+            // 挂起期间排队的消息排在补发的消息之后
+            ready = true;
+            flushNowLocked();
+            startHeartbeatLocked();
+        }
+        Log.d(TAG, "Session resumed, resent " + resent + " messages");
+    }
+
+    private void onResumeFailed(String reason) {
+        Log.w(TAG, "Session resume failed: " + reason);
+        boolean wasCongested;
+        synchronized (sessionLock) {
+            resetSession(fallbackToken, fallbackWindowMs);
+            wasCongested = dropQueuedLocked("会话恢复失败");
+            ready = true;
+            startHeartbeatLocked();
+        }
+        notifyDrained(wasCongested);
+        // 原会话的房间状态已经没有了，按断开后重新连接通知上层
+        WebSocketListener listener = mListener;
+        if (listener != null) {
+            listener.onDisconnected("会话恢复失败: " + reason, true);
+            listener.onConnected();
+        }
+    }
+
+    // 调用方持有sessionLock
+    private void resetSession(String token, long windowMs) {
+        sessionToken = token;
+        resumeWindowMs = windowMs;
+        nextOutSeq = 1;
+        lastInSeq = 0;
+        replay.clear();
+        suspended = false;
+        resuming = false;
+        fallbackToken = null;
+    }
+
     @Override
     public void onClose(int code, String reason, boolean remote) {
         Log.d(TAG, "WebSocket connection closed. Code: " + code + ", Reason: " + reason + ", Remote: " + remote);
-        if (mListener != null) {
-            mListener.onDisconnected(reason, remote);
+        boolean unexpected = code != 1000 && !closedByUser;
+        boolean keepSession = false;
+        boolean wasCongested = false;
+        synchronized (sessionLock) {
+            // 连接建立前就失败的，排队的消息留到下次连上时发送
+            boolean wasReady = ready;
+            ready = false;
+            stopHeartbeatLocked();
+            if (unexpected && sessionToken != null) {
+                resuming = false;
+                long now = SystemClock.elapsedRealtime();
+                if (!suspended) {
+                    suspended = true;
+                    suspendedAt = now;
+                    long windowMs = resumeWindowMs;
+                    reconnectExecutor.schedule(this::expireSuspendedSession, windowMs, TimeUnit.MILLISECONDS);
+                    Log.d(TAG, "Session suspended, resume window: " + windowMs + "ms");
+                    keepSession = true;
+                } else if (now - suspendedAt < resumeWindowMs) {
+                    // 恢复过程中连接又断开，继续等待重连
+                    keepSession = true;
+                } else {
+                    resetSession(null, 0);
+                    wasCongested = dropQueuedLocked("会话恢复超时");
+                }
+            } else {
+                resetSession(null, 0);
+                if (wasReady) {
+                    wasCongested = dropQueuedLocked("连接断开");
+                }
+            }
+        }
+        notifyDrained(wasCongested);
+        if (rttHistogram.getCount() > 0) {
+            Log.d(TAG, rttHistogram.toString());
+        }
+        if (!keepSession) {
+            WebSocketListener listener = mListener;
+            if (listener != null) {
+                listener.onDisconnected(reason, remote);
+            }
         }
-        
-        // 如果不是主动关闭且未达到最大重连次数，尝试重连
-        if (code != 1000 && reconnectAttempts < MAX_RECONNECT_ATTEMPTS && !isReconnecting) {
-            startReconnect();
+
+        // 如果不是主动关闭，尝试重连
+        if (unexpected) {
+            scheduleReconnect();
         }
     }
 
     @Override
     public void onError(Exception ex) {
         Log.e(TAG, "WebSocket error: " + ex.getMessage(), ex);
-        if (mListener != null) {
-            mListener.onError(ex);
+        WebSocketListener listener = mListener;
+        if (listener != null && !isSessionSuspended()) {
+            listener.onError(ex);
         }
-        
+
         // 发生错误时也尝试重连
-        if (reconnectAttempts < MAX_RECONNECT_ATTEMPTS && !isReconnecting) {
-            startReconnect();
+        if (!closedByUser && !isOpen()) {
+            NetworkConfig.reportServerFailure(serverUrl);
+            scheduleReconnect();
         }
     }
 
@@ -79,79 +479,251 @@ public class WebSocketClientWrapper extends WebSocketClient {
         mListener = listener;
     }
 
-    // 添加创建房间的方法
-    public void createRoom(String roomId) {
-        if (isOpen()) {
-            String message = "{\"type\":\"createRoom\",\"roomId\":\"" + roomId + "\"}";
-            send(message);
-        } else {
-            Log.e(TAG, "Cannot create room: WebSocket is not connected");
+    public void setSendQueueListener(SendQueueListener listener) {
+        sendQueueListener = listener;
+    }
+
+    /**
+     * 设置心跳间隔和判定连接失效的连续丢失pong数，intervalMs不大于0时关闭心跳
+     * 连接失效最迟在 intervalMs × maxMissedPongs 后发现；已连接时立即按新间隔重新开始
+     */
+    public void setHeartbeat(long intervalMs, int maxMissedPongs) {
+        synchronized (sessionLock) {
+            heartbeatIntervalMs = intervalMs;
+            this.maxMissedPongs = Math.max(1, maxMissedPongs);
+            if (ready) {
+                startHeartbeatLocked();
+            }
+        }
+    }
+
+    /**
+     * 心跳测得的往返时间
+     */
+    public RttHistogram getRttHistogram() {
+        return rttHistogram;
+    }
+
+    // 连接可用时开始心跳，立即发出第一个ping以尽快得到RTT；调用方持有sessionLock
+    private void startHeartbeatLocked() {
+        stopHeartbeatLocked();
+        pongPending = false;
+        missedPongs = 0;
+        pongSupported = false;
+        if (heartbeatIntervalMs > 0) {
+            heartbeatTask = reconnectExecutor.scheduleAtFixedRate(this::sendHeartbeat, 0,
+                    heartbeatIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // 调用方持有sessionLock
+    private void stopHeartbeatLocked() {
+        if (heartbeatTask != null) {
+            heartbeatTask.cancel(false);
+            heartbeatTask = null;
+        }
+    }
+
+    // 在reconnectExecutor上定时执行：上一个ping到下一次心跳时还没有回复记一次丢失
+    private void sendHeartbeat() {
+        boolean stale = false;
+        synchronized (sessionLock) {
+            if (!ready || !isOpen()) {
+                return;
+            }
+            if (pongPending && ++missedPongs >= maxMissedPongs) {
+                stopHeartbeatLocked();
+                if (!pongSupported) {
+                    Log.w(TAG, "Server does not answer ping, heartbeat disabled for this connection");
+                    return;
+                }
+                stale = true;
+            } else {
+                long id = ++lastPingId;
+                pingSentAtNanos[(int) (id % PING_HISTORY)] = System.nanoTime();
+                pongPending = true;
+                try {
+                    // ping不编号，不进入发送队列和重放缓冲区
+                    super.send("{\"type\":\"ping\",\"id\":" + id + "}");
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Ping failed: " + e.getMessage());
+                }
+            }
         }
+        if (stale) {
+            Log.w(TAG, "Missed " + maxMissedPongs + " pongs, closing stale connection");
+            NetworkConfig.reportServerFailure(serverUrl);
+            // 按意外断开处理：有会话时挂起等待恢复，然后重连
+            closeConnection(CloseFrame.ABNORMAL_CLOSE, "Heartbeat timeout");
+        }
+    }
+
+    private void onPong(long id) {
+        long rttMs;
+        synchronized (sessionLock) {
+            int slot = (int) (id % PING_HISTORY);
+            if (id <= 0 || id > lastPingId || lastPingId - id >= PING_HISTORY || pingSentAtNanos[slot] == 0) {
+                return;
+            }
+            rttMs = (System.nanoTime() - pingSentAtNanos[slot]) / 1_000_000;
+            pingSentAtNanos[slot] = 0;
+            missedPongs = 0;
+            pongSupported = true;
+            if (id == lastPingId) {
+                pongPending = false;
+            }
+        }
+        rttHistogram.record(rttMs);
+        NetworkConfig.reportServerRtt(serverUrl, rttHistogram.getSmoothedRttMs());
+    }
+
+    // 添加创建房间的方法；未连接时排队，连上后发送
+    public void createRoom(String roomId) {
+        send("{\"type\":\"createRoom\",\"roomId\":\"" + roomId + "\"}");
     }
 
     // 添加加入房间的方法（不自动生成userId）
     public void joinRoom(String roomId, String userId) {
-        if (isOpen()) {
-            String message = "{\"type\":\"joinRoom\",\"roomId\":\"" + roomId + "\",\"userId\":\"" + userId + "\"}";
-            send(message);
-        } else {
-            Log.e(TAG, "Cannot join room: WebSocket is not connected");
-        }
+        send("{\"type\":\"joinRoom\",\"roomId\":\"" + roomId + "\",\"userId\":\"" + userId + "\"}");
     }
 
-    // 添加获取房间信息的方法
+    // 添加获取房间信息的方法；队列里已有未发出的查询时合并
     public void getRoomInfo() {
-        if (isOpen()) {
-            String message = "{\"type\":\"getRoomInfo\"}";
-            send(message);
-        } else {
-            Log.e(TAG, "Cannot get room info: WebSocket is not connected");
-        }
-    }
-
-    private void startReconnect() {
-        if (isReconnecting || isOpen()) return;
-        isReconnecting = true;
-        reconnectAttempts++;
-        
-        Log.d(TAG, "Starting reconnect attempt " + reconnectAttempts + "/" + MAX_RECONNECT_ATTEMPTS);
-        
-        // 指数退避策略：初始延迟1秒，每次重试延迟翻倍，最大30秒
-        long delayMs = Math.min(1000 * (1L << (reconnectAttempts - 1)), 30000);
-        
+        send("{\"type\":\"getRoomInfo\"}");
+    }
+
+    private boolean isSessionSuspended() {
+        synchronized (sessionLock) {
+            return suspended;
+        }
+    }
+
+    /**
+     * 安排一次重连，已经安排了的话不重复安排
+     * 重连任务执行时先清除标记：reconnect()只是发起连接，失败要等之后的onError/onClose回调，
+     * 回调里才能安排下一次
+     */
+    private void scheduleReconnect() {
+        if (closedByUser || !reconnectScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        int attempt = reconnectAttempts.incrementAndGet();
+        if (attempt > MAX_RECONNECT_ATTEMPTS) {
+            reconnectScheduled.set(false);
+            Log.e(TAG, "Max reconnect attempts reached");
+            endSuspendedSession("重连失败");
+            return;
+        }
+        Log.d(TAG, "Starting reconnect attempt " + attempt + "/" + MAX_RECONNECT_ATTEMPTS);
+
+        long delayMs = reconnectDelayMs(attempt);
         reconnectExecutor.schedule(() -> {
-            if (!isOpen() && isReconnecting) {
-                try {
-                    Log.d(TAG, "Attempting to reconnect...");
-                    reconnect();
-                } catch (Exception e) {
-                    Log.e(TAG, "Reconnect failed: " + e.getMessage(), e);
-                    // 如果重连失败，继续尝试
-                    if (reconnectAttempts < MAX_RECONNECT_ATTEMPTS) {
-                        startReconnect();
-                    } else {
-                        Log.e(TAG, "Max reconnect attempts reached");
-                        isReconnecting = false;
-                    }
-                }
-            } else {
-                // 连接成功或其他原因停止重连
-                isReconnecting = false;
+            reconnectScheduled.set(false);
+            if (closedByUser || isOpen()) {
+                return;
+            }
+            try {
+                Log.d(TAG, "Attempting to reconnect...");
+                reconnect();
+            } catch (Exception e) {
+                Log.e(TAG, "Reconnect failed: " + e.getMessage(), e);
+                scheduleReconnect();
             }
         }, delayMs, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * 指数退避：起点按心跳测得的RTO估计（SRTT + 4 × RTTVAR）调整，网络快时能在恢复时间内多试几次，
+     * 每次重试翻倍，最大30秒；再加±20%的抖动，避免服务器重启后大量客户端同时重连
+     */
+    private long reconnectDelayMs(int attempt) {
+        long rtoMs = rttHistogram.getTimeoutEstimateMs();
+        long baseMs = rtoMs < 0 ? DEFAULT_RECONNECT_DELAY_MS
+                : Math.max(MIN_RECONNECT_DELAY_MS, Math.min(2 * DEFAULT_RECONNECT_DELAY_MS, 2 * rtoMs));
+        long delayMs = Math.min(baseMs << Math.min(attempt - 1, 16), MAX_RECONNECT_DELAY_MS);
+        return (long) (delayMs * (0.8 + 0.4 * ThreadLocalRandom.current().nextDouble()));
+    }
+
+    // 恢复时间到了还没有重新连上；已经连上在等resume结果的由服务器判断
+    private void expireSuspendedSession() {
+        synchronized (sessionLock) {
+            if (!suspended || resuming
+                    || SystemClock.elapsedRealtime() - suspendedAt < resumeWindowMs) {
+                return;
+            }
+        }
+        endSuspendedSession("会话恢复超时");
+    }
+
+    // 放弃挂起的会话，通知上层连接已断开
+    private void endSuspendedSession(String reason) {
+        boolean wasCongested;
+        synchronized (sessionLock) {
+            if (!suspended) {
+                return;
+            }
+            resetSession(null, 0);
+            wasCongested = dropQueuedLocked(reason);
+        }
+        notifyDrained(wasCongested);
+        Log.w(TAG, "Session ended: " + reason);
+        WebSocketListener listener = mListener;
+        if (listener != null) {
+            listener.onDisconnected(reason, true);
+        }
+    }
+
     // 添加主动断开连接的方法，避免触发重连
     public void disconnect() {
-        isReconnecting = false;
-        reconnectAttempts = MAX_RECONNECT_ATTEMPTS; // 防止自动重连
+        closedByUser = true;
+        boolean wasCongested;
+        synchronized (sessionLock) {
+            stopHeartbeatLocked();
+            resetSession(null, 0);
+            wasCongested = dropQueuedLocked("主动断开");
+        }
+        notifyDrained(wasCongested);
         close();
     }
 
+    // 编号紧跟在{"seq":之后
+    private static long parseSeq(String message) {
+        long seq = 0;
+        for (int i = SEQ_PREFIX.length(); i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            seq = seq * 10 + (c - '0');
+        }
+        return seq;
+    }
+
+    private static long parseLong(SignalingMessage msg, String key) throws SignalingMessage.DecodeException {
+        if (!msg.has(key)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(msg.rawValue(key).toString());
+        } catch (NumberFormatException e) {
+            throw new SignalingMessage.DecodeException(key + "不是整数");
+        }
+    }
+
     public interface WebSocketListener {
         void onConnected();
         void onMessageReceived(String message);
         void onDisconnected(String reason, boolean remote);
         void onError(Exception error);
     }
-}
\ No newline at end of file
+
+    /**
+     * 发送队列积压通知，在调用send的线程或发送线程上回调
+     */
+    public interface SendQueueListener {
+        // 排队的消息达到CONGESTION_THRESHOLD条（连接不可用或写出跟不上）
+        void onSendQueueCongested(int queuedMessages);
+        // 积压的消息已经发出或被丢弃
+        void onSendQueueDrained();
+    }
+}
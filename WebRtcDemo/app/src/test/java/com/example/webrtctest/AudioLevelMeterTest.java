@@ -0,0 +1,123 @@
+package com.example.webrtctest;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * AudioLevelMeter的电平和动态特性测试，按DeviceActivity的方式以44.1kHz、每块10ms送入合成信号
+ */
+public class AudioLevelMeterTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BLOCK = SAMPLE_RATE / 100;
+
+    private final short[] buffer = new short[BLOCK];
+    private long sineIndex = 0;
+
+    @Test
+    public void silence_staysAtFloor() {
+        AudioLevelMeter meter = new AudioLevelMeter(SAMPLE_RATE);
+        feedSilence(meter, 50);
+        long levels = meter.getLevels();
+        assertEquals(AudioLevelMeter.MIN_DBFS, AudioLevelMeter.rmsDbfs(levels), 0f);
+        assertEquals(AudioLevelMeter.MIN_DBFS, AudioLevelMeter.peakDbfs(levels), 0f);
+    }
+
+    @Test
+    public void fullScaleSine_measuresMinus3RmsAnd0Peak() {
+        AudioLevelMeter meter = new AudioLevelMeter(SAMPLE_RATE);
+        feedSine(meter, 32767, 100);
+        long levels = meter.getLevels();
+        assertEquals(-3.01f, AudioLevelMeter.rmsDbfs(levels), 0.1f);
+        assertEquals(0f, AudioLevelMeter.peakDbfs(levels), 0.01f);
+    }
+
+    @Test
+    public void halfScaleSine_isSixDbLower() {
+        AudioLevelMeter meter = new AudioLevelMeter(SAMPLE_RATE);
+        feedSine(meter, 16384, 100);
+        long levels = meter.getLevels();
+        assertEquals(-9.03f, AudioLevelMeter.rmsDbfs(levels), 0.1f);
+        assertEquals(-6.02f, AudioLevelMeter.peakDbfs(levels), 0.01f);
+    }
+
+    @Test
+    public void rms_attacksFasterThanItReleases() {
+        AudioLevelMeter meter = new AudioLevelMeter(SAMPLE_RATE);
+        // 50ms（一个上升时间常数）后接近稳态
+        feedSine(meter, 32767, 5);
+        float afterAttack = AudioLevelMeter.rmsDbfs(meter.getLevels());
+        assertTrue("上升太慢: " + afterAttack, afterAttack > -6f);
+
+        feedSine(meter, 32767, 100);
+        feedSilence(meter, 5);
+        float afterRelease = AudioLevelMeter.rmsDbfs(meter.getLevels());
+        // 下降时间常数300ms，50ms后功率只衰减约15%
+        assertTrue("下降太快: " + afterRelease, afterRelease > -4f);
+    }
+
+    @Test
+    public void peak_holdsThenFallsAtFixedRate() {
+        AudioLevelMeter meter = new AudioLevelMeter(SAMPLE_RATE);
+        feedSine(meter, 32767, 10);
+
+        // 保持时间内峰值不变
+        feedSilence(meter, 45);
+        assertEquals(0f, AudioLevelMeter.peakDbfs(meter.getLevels()), 0.01f);
+
+        // 保持结束后每秒回落20dB
+        feedSilence(meter, 6 + 50);
+        assertEquals(-10f, AudioLevelMeter.peakDbfs(meter.getLevels()), 0.5f);
+
+        feedSilence(meter, 500);
+        assertEquals(AudioLevelMeter.MIN_DBFS, AudioLevelMeter.peakDbfs(meter.getLevels()), 0f);
+    }
+
+    @Test
+    public void louderPeak_restartsHold() {
+        AudioLevelMeter meter = new AudioLevelMeter(SAMPLE_RATE);
+        feedSine(meter, 8192, 10);
+        feedSilence(meter, 30);
+        feedSine(meter, 32767, 1);
+        feedSilence(meter, 45);
+        assertEquals(0f, AudioLevelMeter.peakDbfs(meter.getLevels()), 0.01f);
+    }
+
+    @Test
+    public void reset_returnsToFloor() {
+        AudioLevelMeter meter = new AudioLevelMeter(SAMPLE_RATE);
+        feedSine(meter, 32767, 20);
+        meter.reset();
+        long levels = meter.getLevels();
+        assertEquals(AudioLevelMeter.MIN_DBFS, AudioLevelMeter.rmsDbfs(levels), 0f);
+        assertEquals(AudioLevelMeter.MIN_DBFS, AudioLevelMeter.peakDbfs(levels), 0f);
+    }
+
+    @Test
+    public void process_readsOnlyCountSamples() {
+        AudioLevelMeter meter = new AudioLevelMeter(SAMPLE_RATE);
+        short[] block = new short[BLOCK];
+        block[BLOCK - 1] = Short.MAX_VALUE;
+        meter.process(block, BLOCK - 1);
+        assertEquals(AudioLevelMeter.MIN_DBFS, AudioLevelMeter.peakDbfs(meter.getLevels()), 0f);
+    }
+
+    // 1kHz正弦波
+    private void feedSine(AudioLevelMeter meter, int amplitude, int blocks) {
+        for (int b = 0; b < blocks; b++) {
+            for (int i = 0; i < BLOCK; i++) {
+                buffer[i] = (short) Math.round(amplitude * Math.sin(2 * Math.PI * 1000 * sineIndex++ / SAMPLE_RATE));
+            }
+            meter.process(buffer, BLOCK);
+        }
+    }
+
+    private void feedSilence(AudioLevelMeter meter, int blocks) {
+        Arrays.fill(buffer, (short) 0);
+        for (int b = 0; b < blocks; b++) {
+            meter.process(buffer, BLOCK);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.webrtctest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * NetworkConfig在主服务器和备用服务器之间按RTT和连续失败选择的测试
+ */
+public class NetworkConfigTest {
+    private static final String BACKUP = "ws://192.168.1.20:8080";
+    private static final String BACKUP_2 = "ws://192.168.1.21:8080";
+
+    private String primary;
+    private String originalHost;
+
+    @Before
+    public void setUp() {
+        originalHost = NetworkConfig.getSignalingServerHost();
+        NetworkConfig.clearSignalingServerCandidates();
+        primary = NetworkConfig.getPrimaryServerUrl();
+    }
+
+    @After
+    public void tearDown() {
+        NetworkConfig.setSignalingServerHost(originalHost);
+        NetworkConfig.clearSignalingServerCandidates();
+    }
+
+    @Test
+    public void noCandidates_usesPrimary() {
+        NetworkConfig.reportServerFailure(primary, 0);
+        NetworkConfig.reportServerFailure(primary, 0);
+        assertEquals(primary, NetworkConfig.getSuitableServerUrl(1000));
+    }
+
+    @Test
+    public void unmeasured_prefersPrimary() {
+        NetworkConfig.addSignalingServerCandidate(BACKUP);
+        assertEquals(primary, NetworkConfig.getSuitableServerUrl(1000));
+    }
+
+    @Test
+    public void lowestRecentRtt_wins() {
+        NetworkConfig.addSignalingServerCandidate(BACKUP);
+        NetworkConfig.addSignalingServerCandidate(BACKUP_2);
+        NetworkConfig.reportServerRtt(primary, 120, 1000);
+        NetworkConfig.reportServerRtt(BACKUP, 40, 1000);
+        NetworkConfig.reportServerRtt(BACKUP_2, 80, 1000);
+        assertEquals(BACKUP, NetworkConfig.getSuitableServerUrl(2000));
+    }
+
+    @Test
+    public void staleRtt_isIgnored() {
+        NetworkConfig.addSignalingServerCandidate(BACKUP);
+        NetworkConfig.reportServerRtt(BACKUP, 40, 0);
+        NetworkConfig.reportServerRtt(primary, 120, 10 * 60_000);
+        assertEquals(primary, NetworkConfig.getSuitableServerUrl(10 * 60_000));
+    }
+
+    @Test
+    public void failingServer_isSkippedUntilCooldownEnds() {
+        NetworkConfig.addSignalingServerCandidate(BACKUP);
+        NetworkConfig.reportServerRtt(primary, 20, 0);
+        NetworkConfig.reportServerRtt(BACKUP, 90, 0);
+        NetworkConfig.reportServerFailure(primary, 1000);
+        assertEquals("一次失败不切换", primary, NetworkConfig.getSuitableServerUrl(1000));
+        NetworkConfig.reportServerFailure(primary, 2000);
+        assertEquals(BACKUP, NetworkConfig.getSuitableServerUrl(2000));
+        assertEquals(primary, NetworkConfig.getSuitableServerUrl(2000 + 60_000));
+    }
+
+    @Test
+    public void rttAfterFailure_clearsFailures() {
+        NetworkConfig.addSignalingServerCandidate(BACKUP);
+        NetworkConfig.reportServerFailure(primary, 1000);
+        NetworkConfig.reportServerFailure(primary, 1000);
+        NetworkConfig.reportServerRtt(primary, 30, 1500);
+        assertEquals(primary, NetworkConfig.getSuitableServerUrl(2000));
+    }
+
+    @Test
+    public void allFailing_picksEarliestFailure() {
+        NetworkConfig.addSignalingServerCandidate(BACKUP);
+        NetworkConfig.reportServerFailure(BACKUP, 1000);
+        NetworkConfig.reportServerFailure(BACKUP, 1000);
+        NetworkConfig.reportServerFailure(primary, 3000);
+        NetworkConfig.reportServerFailure(primary, 3000);
+        assertEquals(BACKUP, NetworkConfig.getSuitableServerUrl(4000));
+    }
+
+    @Test
+    public void unknownUrl_isNotTracked() {
+        NetworkConfig.addSignalingServerCandidate(BACKUP);
+        NetworkConfig.reportServerRtt("ws://10.0.0.9:8080", 1, 1000);
+        assertEquals(primary, NetworkConfig.getSuitableServerUrl(2000));
+    }
+
+    @Test
+    public void changedPrimary_dropsOldPrimaryHealth() {
+        NetworkConfig.addSignalingServerCandidate(BACKUP);
+        NetworkConfig.reportServerRtt(BACKUP, 50, 1000);
+        NetworkConfig.reportServerRtt(primary, 10, 1000);
+        assertEquals(primary, NetworkConfig.getSuitableServerUrl(2000));
+
+        NetworkConfig.setSignalingServerHost("10.1.2.3");
+        // 旧主服务器地址已不在配置中，结果不再记录
+        NetworkConfig.reportServerRtt(primary, 5, 1500);
+        assertEquals(BACKUP, NetworkConfig.getSuitableServerUrl(2000));
+    }
+}
@@ -0,0 +1,194 @@
+package com.example.webrtctest;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * OutboundQueue的发送顺序、getRoomInfo合并、ICE合并和容量测试
+ */
+public class OutboundQueueTest {
+    private static final String CREATE = "{\"type\":\"createRoom\",\"roomId\":\"r1\"}";
+    private static final String JOIN = "{\"type\":\"joinRoom\",\"roomId\":\"r1\",\"userId\":\"u1\"}";
+    private static final String LEAVE = "{\"type\":\"leaveRoom\"}";
+    private static final String ROOM_INFO = "{\"type\":\"getRoomInfo\"}";
+
+    private final OutboundQueue queue = new OutboundQueue(8);
+
+    @Test
+    public void drain_sendsRoomInfoLast() {
+        queue.offer(ROOM_INFO);
+        queue.offer(JOIN);
+        String offer = offer("b");
+        queue.offer(offer);
+        assertEquals(Arrays.asList(JOIN, offer, ROOM_INFO), queue.drain());
+    }
+
+    @Test
+    public void drain_keepsRoomOperationsAndSdpInCallOrder() {
+        String offerB = offer("b");
+        String answerC = answer("c");
+        String offerD = offer("d");
+        queue.offer(CREATE);
+        queue.offer(offerB);
+        queue.offer(JOIN);
+        queue.offer(answerC);
+        queue.offer(LEAVE);
+        queue.offer(offerD);
+        assertEquals(Arrays.asList(CREATE, offerB, JOIN, answerC, LEAVE, offerD), queue.drain());
+    }
+
+    @Test
+    public void malformedMessage_isSentInOrder() {
+        String broken = "{\"type\":";
+        queue.offer(ROOM_INFO);
+        queue.offer(broken);
+        queue.offer(CREATE);
+        assertEquals(Arrays.asList(broken, CREATE, ROOM_INFO), queue.drain());
+    }
+
+    @Test
+    public void roomInfo_keepsOnlyLatestRequest() {
+        String older = "{\"type\":\"getRoomInfo\",\"requestId\":1}";
+        String newer = "{\"type\":\"getRoomInfo\",\"requestId\":2}";
+        assertTrue(queue.offer(older));
+        assertTrue(queue.offer(JOIN));
+        assertTrue(queue.offer(newer));
+        assertEquals(2, queue.size());
+        assertEquals(Arrays.asList(JOIN, newer), queue.drain());
+    }
+
+    @Test
+    public void roomInfo_canBeQueuedAgainAfterDrain() {
+        queue.offer(ROOM_INFO);
+        assertEquals(Collections.singletonList(ROOM_INFO), queue.drain());
+        queue.offer(ROOM_INFO);
+        assertEquals(1, queue.size());
+        assertEquals(Collections.singletonList(ROOM_INFO), queue.drain());
+    }
+
+    @Test
+    public void singleIceCandidate_isSentUnchanged() {
+        String candidate = ice("b", "c1");
+        queue.offer(candidate);
+        assertEquals(Collections.singletonList(candidate), queue.drain());
+    }
+
+    @Test
+    public void iceCandidatesForSameTarget_areMerged() throws Exception {
+        queue.offer(ice("b", "c1"));
+        queue.offer(ice("c", "c2"));
+        queue.offer(ice("b", "c3"));
+        List<String> out = queue.drain();
+        assertEquals(2, out.size());
+        assertCandidates(out.get(0), "b", "c1", "c3");
+        assertEquals(ice("c", "c2"), out.get(1));
+    }
+
+    @Test
+    public void iceCandidates_doNotMoveAheadOfSdpForSameTarget() throws Exception {
+        String offerB = offer("b");
+        queue.offer(ice("b", "c1"));
+        queue.offer(offerB);
+        queue.offer(ice("b", "c2"));
+        queue.offer(ice("b", "c3"));
+        List<String> out = queue.drain();
+        assertEquals(3, out.size());
+        assertEquals(ice("b", "c1"), out.get(0));
+        assertEquals(offerB, out.get(1));
+        assertCandidates(out.get(2), "b", "c2", "c3");
+    }
+
+    @Test
+    public void iceCandidates_doNotMoveAcrossRoomOperations() throws Exception {
+        queue.offer(ice("b", "c1"));
+        queue.offer(LEAVE);
+        queue.offer(ice("b", "c2"));
+        queue.offer(ice("b", "c3"));
+        List<String> out = queue.drain();
+        assertEquals(3, out.size());
+        assertEquals(ice("b", "c1"), out.get(0));
+        assertEquals(LEAVE, out.get(1));
+        assertCandidates(out.get(2), "b", "c2", "c3");
+    }
+
+    @Test
+    public void batchedIceMessages_areMergedWithSingleCandidates() throws Exception {
+        queue.offer("{\"type\":\"iceCandidates\",\"targetUserId\":\"b\",\"candidates\":["
+                + candidateJson("c1") + "," + candidateJson("c2") + "]}");
+        queue.offer(ice("b", "c3"));
+        List<String> out = queue.drain();
+        assertEquals(1, out.size());
+        assertCandidates(out.get(0), "b", "c1", "c2", "c3");
+    }
+
+    @Test
+    public void iceCount_tracksQueuedIceMessages() {
+        queue.offer(ice("b", "c1"));
+        queue.offer(ice("c", "c2"));
+        assertEquals(2, queue.iceCount());
+        queue.offer(JOIN);
+        assertEquals(2, queue.iceCount());
+        assertEquals(3, queue.size());
+        queue.drain();
+        assertEquals(0, queue.iceCount());
+        queue.offer(ice("b", "c3"));
+        queue.clear();
+        assertEquals(0, queue.iceCount());
+    }
+
+    @Test
+    public void full_evictsRoomInfoBeforeRefusing() {
+        OutboundQueue small = new OutboundQueue(2);
+        assertTrue(small.offer(ROOM_INFO));
+        assertTrue(small.offer(CREATE));
+        assertTrue(small.offer(JOIN));
+        assertEquals(2, small.size());
+        assertFalse(small.offer(LEAVE));
+        assertEquals(Arrays.asList(CREATE, JOIN), small.drain());
+    }
+
+    @Test
+    public void clear_dropsEverything() {
+        queue.offer(CREATE);
+        queue.offer(ROOM_INFO);
+        queue.offer(ice("b", "c1"));
+        assertEquals(3, queue.clear());
+        assertEquals(0, queue.size());
+        assertEquals(Collections.emptyList(), queue.drain());
+    }
+
+    private static String offer(String target) {
+        return "{\"type\":\"offer\",\"targetUserId\":\"" + target + "\",\"sdp\":\"v=0\"}";
+    }
+
+    private static String answer(String target) {
+        return "{\"type\":\"answer\",\"targetUserId\":\"" + target + "\",\"sdp\":\"v=0\"}";
+    }
+
+    private static String ice(String target, String candidate) {
+        return "{\"type\":\"iceCandidate\",\"targetUserId\":\"" + target + "\",\"candidate\":\"" + candidate
+                + "\",\"sdpMid\":\"0\",\"sdpMLineIndex\":0}";
+    }
+
+    private static String candidateJson(String candidate) {
+        return "{\"candidate\":\"" + candidate + "\",\"sdpMid\":\"0\",\"sdpMLineIndex\":0}";
+    }
+
+    private static void assertCandidates(String text, String target, String... candidates) throws Exception {
+        SignalingMessage message = SignalingMessage.decode(text);
+        assertEquals("iceCandidates", message.type());
+        assertEquals(target, message.getString("targetUserId"));
+        List<SignalingMessage> items = message.getObjectArray("candidates");
+        assertEquals(candidates.length, items.size());
+        for (int i = 0; i < candidates.length; i++) {
+            assertEquals(candidates[i], items.get(i).getString("candidate"));
+            assertEquals("0", items.get(i).getString("sdpMid"));
+            assertEquals(0, items.get(i).getInt("sdpMLineIndex"));
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.webrtctest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * SenderBitrateController的平滑、上下限、单次调整幅度和层上限变化测试
+ */
+public class SenderBitrateControllerTest {
+    private static final String PEER = "peer";
+
+    private final SenderBitrateController controller = new SenderBitrateController();
+
+    @Test
+    public void newPeer_startsAtCeiling() {
+        SenderBitrateController.Target target = controller.onLayerChanged(PEER, VideoLayer.MEDIUM);
+        assertEquals(VideoLayer.MEDIUM.maxBitrateBps, target.maxBitrateBps);
+        assertEquals(VideoLayer.MEDIUM.scaleResolutionDownBy, target.scaleResolutionDownBy, 0);
+        assertFalse(target.maintainResolution);
+    }
+
+    @Test
+    public void estimate_isSmoothedBeforeUse() {
+        controller.onLayerChanged(PEER, VideoLayer.MEDIUM);
+        // 第一次估计直接采用，码率用到估计的85%
+        assertBitrate(425_000, controller.onEstimate(PEER, VideoLayer.MEDIUM, 500_000, 0));
+        // 之后按0.3的系数平滑：500k + 0.3 * (300k - 500k) = 440k
+        assertBitrate(374_000, controller.onEstimate(PEER, VideoLayer.MEDIUM, 300_000, 0));
+        // 440k + 0.3 * (440k - 440k)不变，码率也不变
+        assertNull(controller.onEstimate(PEER, VideoLayer.MEDIUM, 440_000, 0));
+    }
+
+    @Test
+    public void unknownEstimate_keepsPreviousSmoothedValue() {
+        controller.onLayerChanged(PEER, VideoLayer.MEDIUM);
+        controller.onEstimate(PEER, VideoLayer.MEDIUM, 400_000, 0);
+        assertNull(controller.onEstimate(PEER, VideoLayer.MEDIUM, 0, -1));
+        assertNull(controller.onEstimate(PEER, VideoLayer.MEDIUM, -1, 0));
+    }
+
+    @Test
+    public void decrease_isLimitedTo30PercentPerStep() {
+        controller.onLayerChanged(PEER, VideoLayer.HIGH);
+        assertBitrate(1_050_000, controller.onEstimate(PEER, VideoLayer.HIGH, 100_000, 0));
+        assertBitrate(735_000, controller.onEstimate(PEER, VideoLayer.HIGH, 100_000, 0));
+        assertBitrate(514_500, controller.onEstimate(PEER, VideoLayer.HIGH, 100_000, 0));
+    }
+
+    @Test
+    public void increase_isLimitedTo15PercentPerStep() {
+        controller.onLayerChanged(PEER, VideoLayer.HIGH);
+        driveTo(VideoLayer.HIGH, 200_000);
+        double bps = controller.onLayerChanged(PEER, VideoLayer.HIGH).maxBitrateBps;
+        assertEquals(170_000, bps, 1.0);
+        for (int i = 0; i < 3; i++) {
+            // 估计很快平滑到10Mbps以上，码率仍然每次最多提高15%
+            SenderBitrateController.Target target = controller.onEstimate(PEER, VideoLayer.HIGH, 10_000_000, 0);
+            bps *= 1.15;
+            assertBitrate(bps, target);
+        }
+    }
+
+    @Test
+    public void bitrate_staysWithinMinimumAndCeiling() {
+        controller.onLayerChanged(PEER, VideoLayer.HIGH);
+        for (int i = 0; i < 30; i++) {
+            controller.onEstimate(PEER, VideoLayer.HIGH, 10_000, 0);
+        }
+        SenderBitrateController.Target floor = controller.onLayerChanged(PEER, VideoLayer.HIGH);
+        assertEquals(100_000, floor.maxBitrateBps);
+        assertEquals(VideoLayer.LOW.scaleResolutionDownBy, floor.scaleResolutionDownBy, 0);
+        assertTrue(floor.maintainResolution);
+
+        for (int i = 0; i < 60; i++) {
+            controller.onEstimate(PEER, VideoLayer.HIGH, 100_000_000, 0);
+        }
+        SenderBitrateController.Target ceiling = controller.onLayerChanged(PEER, VideoLayer.HIGH);
+        assertEquals(VideoLayer.HIGH.maxBitrateBps, ceiling.maxBitrateBps);
+        assertEquals(VideoLayer.HIGH.scaleResolutionDownBy, ceiling.scaleResolutionDownBy, 0);
+        assertFalse(ceiling.maintainResolution);
+    }
+
+    @Test
+    public void highLoss_lowersBitrateDespiteGoodEstimate() {
+        controller.onLayerChanged(PEER, VideoLayer.MEDIUM);
+        controller.onEstimate(PEER, VideoLayer.MEDIUM, 10_000_000, 0);
+        SenderBitrateController.Target target = null;
+        for (int i = 0; i < 5; i++) {
+            SenderBitrateController.Target next = controller.onEstimate(PEER, VideoLayer.MEDIUM, 10_000_000, 0.5);
+            target = next != null ? next : target;
+        }
+        assertNotNull(target);
+        assertTrue("丢包时码率应降低: " + target, target.maxBitrateBps < VideoLayer.MEDIUM.maxBitrateBps);
+    }
+
+    @Test
+    public void lowerCeiling_capsBitrateAndResolutionImmediately() {
+        controller.onLayerChanged(PEER, VideoLayer.HIGH);
+        SenderBitrateController.Target target = controller.onLayerChanged(PEER, VideoLayer.LOW);
+        assertEquals(VideoLayer.LOW.maxBitrateBps, target.maxBitrateBps);
+        assertEquals(VideoLayer.LOW.scaleResolutionDownBy, target.scaleResolutionDownBy, 0);
+        assertFalse(target.maintainResolution);
+        // 之后的估计也不会超过新上限
+        assertNull(controller.onEstimate(PEER, VideoLayer.LOW, 10_000_000, 0));
+    }
+
+    @Test
+    public void raisedCeiling_jumpsToEstimateInsteadOfClimbing() {
+        controller.onLayerChanged(PEER, VideoLayer.LOW);
+        for (int i = 0; i < 5; i++) {
+            controller.onEstimate(PEER, VideoLayer.LOW, 2_000_000, 0);
+        }
+        SenderBitrateController.Target target = controller.onLayerChanged(PEER, VideoLayer.HIGH);
+        assertEquals(VideoLayer.HIGH.maxBitrateBps, target.maxBitrateBps);
+        assertEquals(VideoLayer.HIGH.scaleResolutionDownBy, target.scaleResolutionDownBy, 0);
+        assertFalse(target.maintainResolution);
+    }
+
+    @Test
+    public void raisedCeiling_usesEstimateAndMatchingResolution() {
+        controller.onLayerChanged(PEER, VideoLayer.LOW);
+        for (int i = 0; i < 5; i++) {
+            controller.onEstimate(PEER, VideoLayer.LOW, 600_000, 0);
+        }
+        SenderBitrateController.Target target = controller.onLayerChanged(PEER, VideoLayer.HIGH);
+        // 600k的85%够中层分辨率，不够高层
+        assertBitrate(510_000, target);
+        assertEquals(VideoLayer.MEDIUM.scaleResolutionDownBy, target.scaleResolutionDownBy, 0);
+        assertTrue(target.maintainResolution);
+    }
+
+    @Test
+    public void raisedCeiling_keepsBitrateWhileLosing() {
+        controller.onLayerChanged(PEER, VideoLayer.LOW);
+        for (int i = 0; i < 5; i++) {
+            controller.onEstimate(PEER, VideoLayer.LOW, 2_000_000, 0.2);
+        }
+        SenderBitrateController.Target target = controller.onLayerChanged(PEER, VideoLayer.HIGH);
+        assertTrue("丢包时不应提高码率: " + target, target.maxBitrateBps <= VideoLayer.LOW.maxBitrateBps);
+    }
+
+    @Test
+    public void remove_forgetsPeerState() {
+        controller.onLayerChanged(PEER, VideoLayer.HIGH);
+        controller.onEstimate(PEER, VideoLayer.HIGH, 100_000, 0);
+        controller.remove(PEER);
+        assertEquals(VideoLayer.HIGH.maxBitrateBps, controller.onLayerChanged(PEER, VideoLayer.HIGH).maxBitrateBps);
+    }
+
+    // 反复送入同一个估计直到码率稳定
+    private void driveTo(VideoLayer ceiling, long availableBps) {
+        for (int i = 0; i < 30; i++) {
+            controller.onEstimate(PEER, ceiling, availableBps, 0);
+        }
+    }
+
+    private static void assertBitrate(double expectedBps, SenderBitrateController.Target target) {
+        assertNotNull(target);
+        assertEquals(expectedBps, target.maxBitrateBps, 1.0);
+    }
+}
@@ -0,0 +1,253 @@
+package com.example.webrtctest;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 信令解码基准测试：SignalingMessage对比原来的 new JSONObject(message) 全量解析
+ * 负载是libwebrtc生成的真实结构的offer/answer（约5KB SDP）和合并后的ICE候选消息，
+ * 每个方法都按WebRtcSignalingClient.onMessageReceived的方式取type再取处理需要的字段
+ *
+ * 运行：./gradlew :app:compileDebugUnitTestJavaWithJavac 生成JMH代码后，执行本类的main方法
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignalingMessageBenchmark {
+
+    private String offerMessage;
+    private String answerMessage;
+    private String iceCandidatesMessage;
+
+    @Setup
+    public void setUp() throws Exception {
+        offerMessage = new JSONObject()
+                .put("type", "offer")
+                .put("sdp", buildSdp("actpass"))
+                .put("from", "android_1718000000000_1234")
+                .toString();
+        answerMessage = new JSONObject()
+                .put("type", "answer")
+                .put("sdp", buildSdp("active"))
+                .put("from", "android_1718000000000_5678")
+                .toString();
+        JSONArray candidates = new JSONArray();
+        for (int i = 0; i < 8; i++) {
+            candidates.put(new JSONObject()
+                    .put("candidate", "candidate:" + (842163049 + i) + " 1 udp 1677729535 203.0.113." + i
+                            + " " + (50000 + i) + " typ srflx raddr 192.168.1." + i + " rport " + (40000 + i)
+                            + " generation 0 ufrag WqzH network-cost 10")
+                    .put("sdpMid", String.valueOf(i % 2))
+                    .put("sdpMLineIndex", i % 2));
+        }
+        iceCandidatesMessage = new JSONObject()
+                .put("type", "iceCandidates")
+                .put("candidates", candidates)
+                .put("from", "android_1718000000000_1234")
+                .toString();
+
+        // 两种解码方式的结果必须一致
+        if (!new JSONObject(offerMessage).getString("sdp")
+                .equals(SignalingMessage.decode(offerMessage).getString("sdp"))) {
+            throw new IllegalStateException("SignalingMessage解码结果与org.json不一致");
+        }
+    }
+
+    @Benchmark
+    public void offerJsonObject(Blackhole blackhole) throws Exception {
+        JSONObject json = new JSONObject(offerMessage);
+        blackhole.consume(json.getString("type"));
+        blackhole.consume(json.getString("from"));
+        blackhole.consume(json.getString("sdp"));
+    }
+
+    @Benchmark
+    public void offerSignalingMessage(Blackhole blackhole) throws Exception {
+        SignalingMessage msg = SignalingMessage.decode(offerMessage);
+        blackhole.consume(msg.type());
+        blackhole.consume(msg.getString("from"));
+        blackhole.consume(msg.getString("sdp"));
+    }
+
+    @Benchmark
+    public void answerJsonObject(Blackhole blackhole) throws Exception {
+        JSONObject json = new JSONObject(answerMessage);
+        blackhole.consume(json.getString("type"));
+        blackhole.consume(json.getString("from"));
+        blackhole.consume(json.getString("sdp"));
+    }
+
+    @Benchmark
+    public void answerSignalingMessage(Blackhole blackhole) throws Exception {
+        SignalingMessage msg = SignalingMessage.decode(answerMessage);
+        blackhole.consume(msg.type());
+        blackhole.consume(msg.getString("from"));
+        blackhole.consume(msg.getString("sdp"));
+    }
+
+    // 只看type就丢弃的消息（例如MainActivity不处理的offer），体现按需解码的收益
+    @Benchmark
+    public void offerTypeOnlyJsonObject(Blackhole blackhole) throws Exception {
+        blackhole.consume(new JSONObject(offerMessage).getString("type"));
+    }
+
+    @Benchmark
+    public void offerTypeOnlySignalingMessage(Blackhole blackhole) throws Exception {
+        blackhole.consume(SignalingMessage.decode(offerMessage).type());
+    }
+
+    @Benchmark
+    public void iceCandidatesJsonObject(Blackhole blackhole) throws Exception {
+        JSONObject json = new JSONObject(iceCandidatesMessage);
+        blackhole.consume(json.getString("type"));
+        String from = json.getString("from");
+        JSONArray candidates = json.getJSONArray("candidates");
+        for (int i = 0; i < candidates.length(); i++) {
+            JSONObject item = candidates.getJSONObject(i);
+            blackhole.consume(item.getString("candidate"));
+            blackhole.consume(item.getString("sdpMid"));
+            blackhole.consume(item.getInt("sdpMLineIndex"));
+        }
+        blackhole.consume(from);
+    }
+
+    @Benchmark
+    public void iceCandidatesSignalingMessage(Blackhole blackhole) throws Exception {
+        SignalingMessage msg = SignalingMessage.decode(iceCandidatesMessage);
+        blackhole.consume(msg.type());
+        String from = msg.getString("from");
+        for (SignalingMessage item : msg.getObjectArray("candidates")) {
+            blackhole.consume(item.getString("candidate"));
+            blackhole.consume(item.getString("sdpMid"));
+            blackhole.consume(item.getInt("sdpMLineIndex"));
+        }
+        blackhole.consume(from);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SignalingMessageBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    // 按libwebrtc（Unified Plan，音频+视频，BUNDLE）生成的SDP结构构造，长度约5KB
+    private static String buildSdp(String setup) {
+        StringBuilder sdp = new StringBuilder();
+        line(sdp, "v=0");
+        line(sdp, "o=- 4611731400430051336 2 IN IP4 127.0.0.1");
+        line(sdp, "s=-");
+        line(sdp, "t=0 0");
+        line(sdp, "a=group:BUNDLE 0 1");
+        line(sdp, "a=extmap-allow-mixed");
+        line(sdp, "a=msid-semantic: WMS ARDAMS");
+
+        line(sdp, "m=audio 9 UDP/TLS/RTP/SAVPF 111 63 9 102 0 8 13 110 126");
+        mediaCommon(sdp, setup, "0");
+        line(sdp, "a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level");
+        line(sdp, "a=extmap:2 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time");
+        line(sdp, "a=extmap:3 http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01");
+        line(sdp, "a=extmap:4 urn:ietf:params:rtp-hdrext:sdes:mid");
+        line(sdp, "a=sendrecv");
+        line(sdp, "a=msid:ARDAMS local_audio_track");
+        line(sdp, "a=rtcp-mux");
+        line(sdp, "a=rtpmap:111 opus/48000/2");
+        line(sdp, "a=rtcp-fb:111 transport-cc");
+        line(sdp, "a=fmtp:111 minptime=10;useinbandfec=1");
+        line(sdp, "a=rtpmap:63 red/48000/2");
+        line(sdp, "a=fmtp:63 111/111");
+        line(sdp, "a=rtpmap:9 G722/8000");
+        line(sdp, "a=rtpmap:102 ILBC/8000");
+        line(sdp, "a=rtpmap:0 PCMU/8000");
+        line(sdp, "a=rtpmap:8 PCMA/8000");
+        line(sdp, "a=rtpmap:13 CN/8000");
+        line(sdp, "a=rtpmap:110 telephone-event/48000");
+        line(sdp, "a=rtpmap:126 telephone-event/8000");
+        line(sdp, "a=ssrc:1001 cname:7Jc3pYtn2Pp8c1dQ");
+        line(sdp, "a=ssrc:1001 msid:ARDAMS local_audio_track");
+
+        line(sdp, "m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100 101 127 121 125 107 108 109 35 36 124 119 123");
+        mediaCommon(sdp, setup, "1");
+        line(sdp, "a=extmap:14 urn:ietf:params:rtp-hdrext:toffset");
+        line(sdp, "a=extmap:2 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time");
+        line(sdp, "a=extmap:13 urn:3gpp:video-orientation");
+        line(sdp, "a=extmap:3 http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01");
+        line(sdp, "a=extmap:5 http://www.webrtc.org/experiments/rtp-hdrext/playout-delay");
+        line(sdp, "a=extmap:6 http://www.webrtc.org/experiments/rtp-hdrext/video-content-type");
+        line(sdp, "a=extmap:7 http://www.webrtc.org/experiments/rtp-hdrext/video-timing");
+        line(sdp, "a=extmap:8 http://www.webrtc.org/experiments/rtp-hdrext/color-space");
+        line(sdp, "a=extmap:4 urn:ietf:params:rtp-hdrext:sdes:mid");
+        line(sdp, "a=extmap:10 urn:ietf:params:rtp-hdrext:sdes:rtp-stream-id");
+        line(sdp, "a=extmap:11 urn:ietf:params:rtp-hdrext:sdes:repaired-rtp-stream-id");
+        line(sdp, "a=sendrecv");
+        line(sdp, "a=msid:ARDAMS local_video_track");
+        line(sdp, "a=rtcp-mux");
+        line(sdp, "a=rtcp-rsize");
+        String[][] codecs = {
+                {"96", "VP8/90000", null},
+                {"98", "VP9/90000", "profile-id=0"},
+                {"100", "VP9/90000", "profile-id=2"},
+                {"127", "H264/90000", "level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42001f"},
+                {"125", "H264/90000", "level-asymmetry-allowed=1;packetization-mode=0;profile-level-id=42001f"},
+                {"108", "H264/90000", "level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f"},
+                {"35", "AV1/90000", null},
+        };
+        int rtx = 97;
+        for (String[] codec : codecs) {
+            line(sdp, "a=rtpmap:" + codec[0] + " " + codec[1]);
+            line(sdp, "a=rtcp-fb:" + codec[0] + " goog-remb");
+            line(sdp, "a=rtcp-fb:" + codec[0] + " transport-cc");
+            line(sdp, "a=rtcp-fb:" + codec[0] + " ccm fir");
+            line(sdp, "a=rtcp-fb:" + codec[0] + " nack");
+            line(sdp, "a=rtcp-fb:" + codec[0] + " nack pli");
+            if (codec[2] != null) {
+                line(sdp, "a=fmtp:" + codec[0] + " " + codec[2]);
+            }
+            line(sdp, "a=rtpmap:" + rtx + " rtx/90000");
+            line(sdp, "a=fmtp:" + rtx + " apt=" + codec[0]);
+            rtx += 2;
+        }
+        line(sdp, "a=rtpmap:123 red/90000");
+        line(sdp, "a=rtpmap:119 ulpfec/90000");
+        line(sdp, "a=ssrc-group:FID 2001 2002");
+        line(sdp, "a=ssrc:2001 cname:7Jc3pYtn2Pp8c1dQ");
+        line(sdp, "a=ssrc:2001 msid:ARDAMS local_video_track");
+        line(sdp, "a=ssrc:2002 cname:7Jc3pYtn2Pp8c1dQ");
+        line(sdp, "a=ssrc:2002 msid:ARDAMS local_video_track");
+        return sdp.toString();
+    }
+
+    private static void mediaCommon(StringBuilder sdp, String setup, String mid) {
+        line(sdp, "c=IN IP4 0.0.0.0");
+        line(sdp, "a=rtcp:9 IN IP4 0.0.0.0");
+        line(sdp, "a=ice-ufrag:WqzH");
+        line(sdp, "a=ice-pwd:Jt0Gs2yHqS7Ju0lWrGNm4kqx");
+        line(sdp, "a=ice-options:trickle renomination");
+        line(sdp, "a=fingerprint:sha-256 5B:D3:8E:66:0E:7D:D3:F3:8E:E6:80:28:19:FC:55:AD:58:5D:B9:3D:"
+                + "A8:DE:45:4A:E7:87:02:F8:3C:0B:3B:B3");
+        line(sdp, "a=setup:" + setup);
+        line(sdp, "a=mid:" + mid);
+    }
+
+    private static void line(StringBuilder sdp, String line) {
+        sdp.append(line).append("\r\n");
+    }
+}
@@ -0,0 +1,295 @@
+package com.example.webrtctest;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * SignalingMessage的解码测试：字符串转义、嵌套结构、字段缺失和重复、整数范围、格式错误和截断的消息
+ */
+public class SignalingMessageTest {
+
+    @Test
+    public void decode_readsTypeAndTopLevelFields() throws Exception {
+        SignalingMessage message = SignalingMessage.decode(
+                " {\"type\":\"offer\", \"sdp\" : \"v=0\", \"from\":\"u1\", \"seq\": 7}\n");
+        assertEquals("offer", message.type());
+        assertEquals("v=0", message.getString("sdp"));
+        assertEquals("u1", message.getString("from"));
+        assertEquals(7, message.getInt("seq"));
+        assertTrue(message.has("seq"));
+        assertFalse(message.has("to"));
+    }
+
+    @Test
+    public void decode_emptyObjectHasNoType() throws Exception {
+        SignalingMessage message = SignalingMessage.decode("{}");
+        assertNull(message.type());
+        assertFalse(message.has("type"));
+    }
+
+    @Test
+    public void getString_decodesEscapes() throws Exception {
+        SignalingMessage message = SignalingMessage.decode(
+                "{\"s\":\"a\\\"b\\\\c\\/d\\n\\r\\t\\b\\f\"}");
+        assertEquals("a\"b\\c/d\n\r\t\b\f", message.getString("s"));
+    }
+
+    @Test
+    public void getString_decodesUnicodeEscapes() throws Exception {
+        SignalingMessage message = SignalingMessage.decode(
+                "{\"s\":\"\\u0041\\u00e9\\u4F60\",\"pair\":\"\\ud83d\\ude00\"}");
+        assertEquals("A\u00e9\u4f60", message.getString("s"));
+        assertEquals("\ud83d\ude00", message.getString("pair"));
+    }
+
+    @Test
+    public void getString_keepsRawNonAsciiText() throws Exception {
+        SignalingMessage message = SignalingMessage.decode("{\"name\":\"张三\"}");
+        assertEquals("张三", message.getString("name"));
+    }
+
+    @Test
+    public void getString_rejectsBadEscapes() throws Exception {
+        assertReadFails("{\"s\":\"\\u12\"}", "s");
+        assertReadFails("{\"s\":\"\\u12G4\"}", "s");
+        assertReadFails("{\"s\":\"\\u+041\"}", "s");
+        assertReadFails("{\"s\":\"\\x\"}", "s");
+    }
+
+    @Test
+    public void getString_rejectsNonString() throws Exception {
+        assertReadFails("{\"s\":12}", "s");
+        assertReadFails("{\"s\":null}", "s");
+    }
+
+    @Test
+    public void optString_fallsBackWhenMissingOrNotString() throws Exception {
+        SignalingMessage message = SignalingMessage.decode("{\"n\":1,\"s\":\"x\"}");
+        assertEquals("x", message.optString("s", "d"));
+        assertEquals("d", message.optString("n", "d"));
+        assertEquals("d", message.optString("missing", "d"));
+        assertNull(message.optString("missing", null));
+    }
+
+    @Test
+    public void nestedObjects_areSkippedWithoutConfusingFields() throws Exception {
+        SignalingMessage message = SignalingMessage.decode("{\"meta\":{\"type\":\"inner\",\"deep\":{\"a\":[1,{\"b\":\"}\"}]}},"
+                + "\"text\":\"{[\\\"]}\",\"type\":\"outer\"}");
+        assertEquals("outer", message.type());
+        assertEquals("{[\"]}", message.getString("text"));
+        assertEquals("{\"type\":\"inner\",\"deep\":{\"a\":[1,{\"b\":\"}\"}]}}", message.rawValue("meta").toString());
+        assertEquals(message.rawValue("meta").length(), message.rawLength("meta"));
+        assertEquals(-1, message.rawLength("missing"));
+    }
+
+    @Test
+    public void getStringArray_readsElements() throws Exception {
+        SignalingMessage message = SignalingMessage.decode("{\"users\":[ \"a\" , \"b\\n\",\"\"],\"empty\":[ ]}");
+        assertEquals(Arrays.asList("a", "b\n", ""), message.getStringArray("users"));
+        assertEquals(Collections.emptyList(), message.getStringArray("empty"));
+    }
+
+    @Test
+    public void getStringArray_rejectsMalformedArrays() throws Exception {
+        assertStringArrayFails("{\"a\":[\"x\",]}");
+        assertStringArrayFails("{\"a\":[\"x\" \"y\"]}");
+        assertStringArrayFails("{\"a\":[1]}");
+        assertStringArrayFails("{\"a\":\"x\"}");
+    }
+
+    @Test
+    public void getObjectArray_readsNestedObjects() throws Exception {
+        SignalingMessage message = SignalingMessage.decode("{\"type\":\"ice_candidates\",\"candidates\":["
+                + "{\"candidate\":\"candidate:1 1 udp\",\"sdpMid\":\"0\",\"sdpMLineIndex\":0},"
+                + "{\"candidate\":\"candidate:2 1 udp\",\"sdpMid\":\"1\",\"sdpMLineIndex\":1}]}");
+        List<SignalingMessage> candidates = message.getObjectArray("candidates");
+        assertEquals(2, candidates.size());
+        assertEquals("candidate:1 1 udp", candidates.get(0).getString("candidate"));
+        assertEquals("1", candidates.get(1).getString("sdpMid"));
+        assertEquals(1, candidates.get(1).getInt("sdpMLineIndex"));
+        assertEquals(0, SignalingMessage.decode("{\"c\":[]}").getObjectArray("c").size());
+    }
+
+    @Test
+    public void getObjectArray_rejectsMalformedElements() throws Exception {
+        assertObjectArrayFails("{\"c\":[{\"a\":1},]}");
+        assertObjectArrayFails("{\"c\":[\"a\"]}");
+        assertObjectArrayFails("{\"c\":[{\"a\":1,\"a\":2}]}");
+    }
+
+    @Test
+    public void missingField_failsOnlyWhenRequired() throws Exception {
+        SignalingMessage message = SignalingMessage.decode("{\"type\":\"answer\"}");
+        assertReadFails(message, "sdp");
+        try {
+            message.getInt("seq");
+            fail("缺少字段应该抛出异常");
+        } catch (SignalingMessage.DecodeException expected) {
+            // 预期
+        }
+        try {
+            message.rawValue("sdp");
+            fail("缺少字段应该抛出异常");
+        } catch (SignalingMessage.DecodeException expected) {
+            // 预期
+        }
+    }
+
+    @Test
+    public void duplicateField_isRejected() {
+        assertDecodeFails("{\"type\":\"offer\",\"type\":\"answer\"}");
+        assertDecodeFails("{\"a\":1,\"b\":2,\"a\":3}");
+    }
+
+    @Test
+    public void getInt_acceptsFullIntRange() throws Exception {
+        SignalingMessage message = SignalingMessage.decode(
+                "{\"max\":2147483647,\"min\":-2147483648,\"zero\":0,\"neg\":-15}");
+        assertEquals(Integer.MAX_VALUE, message.getInt("max"));
+        assertEquals(Integer.MIN_VALUE, message.getInt("min"));
+        assertEquals(0, message.getInt("zero"));
+        assertEquals(-15, message.getInt("neg"));
+    }
+
+    @Test
+    public void getInt_rejectsOverflow() throws Exception {
+        SignalingMessage message = SignalingMessage.decode("{\"over\":2147483648,\"under\":-2147483649,"
+                + "\"huge\":99999999999999999999999999}");
+        assertIntFails(message, "over");
+        assertIntFails(message, "under");
+        assertIntFails(message, "huge");
+    }
+
+    @Test
+    public void getLong_acceptsFullLongRange() throws Exception {
+        SignalingMessage message = SignalingMessage.decode("{\"sentAt\":183462938475123,"
+                + "\"max\":9223372036854775807,\"min\":-9223372036854775808}");
+        assertEquals(183462938475123L, message.getLong("sentAt"));
+        assertEquals(Long.MAX_VALUE, message.getLong("max"));
+        assertEquals(Long.MIN_VALUE, message.getLong("min"));
+        assertIntFails(message, "sentAt");
+    }
+
+    @Test
+    public void getLong_rejectsOverflow() throws Exception {
+        SignalingMessage message = SignalingMessage.decode(
+                "{\"over\":9223372036854775808,\"under\":-9223372036854775809,\"s\":\"1\"}");
+        assertLongFails(message, "over");
+        assertLongFails(message, "under");
+        assertLongFails(message, "s");
+        assertLongFails(message, "missing");
+    }
+
+    @Test
+    public void getInt_rejectsNonIntegers() throws Exception {
+        SignalingMessage message = SignalingMessage.decode(
+                "{\"f\":1.5,\"e\":1e3,\"s\":\"5\",\"minus\":-,\"plus\":+5,\"b\":true}");
+        assertIntFails(message, "f");
+        assertIntFails(message, "e");
+        assertIntFails(message, "s");
+        assertIntFails(message, "minus");
+        assertIntFails(message, "plus");
+        assertIntFails(message, "b");
+    }
+
+    @Test
+    public void malformedInput_isRejected() {
+        assertDecodeFails(null);
+        assertDecodeFails("");
+        assertDecodeFails("   ");
+        assertDecodeFails("[]");
+        assertDecodeFails("\"type\"");
+        assertDecodeFails("{type:\"offer\"}");
+        assertDecodeFails("{\"type\" \"offer\"}");
+        assertDecodeFails("{\"type\":}");
+        assertDecodeFails("{\"a\":1 \"b\":2}");
+        assertDecodeFails("{\"a\":1,}");
+        assertDecodeFails("{\"a\":[1}");
+        assertDecodeFails("{\"a\":{\"b\":1]}");
+        assertDecodeFails("{\"a\":1}}");
+        assertDecodeFails("{\"a\":1} x");
+    }
+
+    @Test
+    public void truncatedInput_isRejected() {
+        String full = "{\"type\":\"offer\",\"sdp\":\"v=0\\r\\n\",\"meta\":{\"list\":[1,2]},\"seq\":3}";
+        for (int length = 0; length < full.length(); length++) {
+            assertDecodeFails(full.substring(0, length));
+        }
+    }
+
+    @Test
+    public void toString_hidesLongValues() throws Exception {
+        StringBuilder sdp = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sdp.append('x');
+        }
+        SignalingMessage message = SignalingMessage.decode("{\"type\":\"offer\",\"sdp\":\"" + sdp + "\"}");
+        assertEquals("SignalingMessage{type=\"offer\", sdp=<102 chars>}", message.toString());
+    }
+
+    private static void assertDecodeFails(String text) {
+        try {
+            SignalingMessage.decode(text);
+            fail("应该解码失败: " + text);
+        } catch (SignalingMessage.DecodeException expected) {
+            // 预期
+        }
+    }
+
+    private static void assertReadFails(String text, String key) throws Exception {
+        assertReadFails(SignalingMessage.decode(text), key);
+    }
+
+    private static void assertReadFails(SignalingMessage message, String key) {
+        try {
+            message.getString(key);
+            fail("读取字段应该失败: " + key);
+        } catch (SignalingMessage.DecodeException expected) {
+            // 预期
+        }
+    }
+
+    private static void assertIntFails(SignalingMessage message, String key) {
+        try {
+            message.getInt(key);
+            fail("字段不应该解析为int: " + key);
+        } catch (SignalingMessage.DecodeException expected) {
+            // 预期
+        }
+    }
+
+    private static void assertLongFails(SignalingMessage message, String key) {
+        try {
+            message.getLong(key);
+            fail("字段不应该解析为long: " + key);
+        } catch (SignalingMessage.DecodeException expected) {
+            // 预期
+        }
+    }
+
+    private static void assertStringArrayFails(String text) throws Exception {
+        SignalingMessage message = SignalingMessage.decode(text);
+        try {
+            message.getStringArray("a");
+            fail("应该读取失败: " + text);
+        } catch (SignalingMessage.DecodeException expected) {
+            // 预期
+        }
+    }
+
+    private static void assertObjectArrayFails(String text) throws Exception {
+        SignalingMessage message = SignalingMessage.decode(text);
+        try {
+            message.getObjectArray("c");
+            fail("应该读取失败: " + text);
+        } catch (SignalingMessage.DecodeException expected) {
+            // 预期
+        }
+    }
+}
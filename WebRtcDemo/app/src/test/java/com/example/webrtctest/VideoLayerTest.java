@@ -0,0 +1,82 @@
+package com.example.webrtctest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * VideoLayer的层选择和缩放测试，采集分辨率按1280×720
+ */
+public class VideoLayerTest {
+    private static final int CAPTURE_WIDTH = 1280;
+    private static final int CAPTURE_HEIGHT = 720;
+
+    @Test
+    public void layers_growInResolutionAndBitrate() {
+        VideoLayer[] layers = VideoLayer.values();
+        for (int i = 1; i < layers.length; i++) {
+            assertTrue(layers[i] + "的缩放应小于" + layers[i - 1],
+                    layers[i].scaleResolutionDownBy < layers[i - 1].scaleResolutionDownBy);
+            assertTrue(layers[i] + "的码率应大于" + layers[i - 1],
+                    layers[i].maxBitrateBps > layers[i - 1].maxBitrateBps);
+        }
+        assertEquals(1.0, VideoLayer.HIGH.scaleResolutionDownBy, 0);
+    }
+
+    @Test
+    public void fromRid_findsEachLayer() {
+        for (VideoLayer layer : VideoLayer.values()) {
+            assertSame(layer, VideoLayer.fromRid(layer.rid));
+        }
+        assertNull(VideoLayer.fromRid("x"));
+        assertNull(VideoLayer.fromRid(""));
+    }
+
+    @Test
+    public void select_smallTileUsesLowLayer() {
+        // 低层320×180，最多放大1.25倍到400×225
+        assertSame(VideoLayer.LOW, select(160, 90));
+        assertSame(VideoLayer.LOW, select(320, 180));
+        assertSame(VideoLayer.LOW, select(400, 225));
+    }
+
+    @Test
+    public void select_movesUpOnceUpscaleLimitIsExceeded() {
+        assertSame(VideoLayer.MEDIUM, select(401, 225));
+        assertSame(VideoLayer.MEDIUM, select(400, 226));
+        // 中层640×360，最多放大到800×450
+        assertSame(VideoLayer.MEDIUM, select(800, 450));
+        assertSame(VideoLayer.HIGH, select(801, 450));
+    }
+
+    @Test
+    public void select_usesTheTighterDimension() {
+        // 竖屏格子：宽度低层够用，高度需要中层
+        assertSame(VideoLayer.MEDIUM, select(180, 320));
+        assertSame(VideoLayer.HIGH, select(360, 640));
+    }
+
+    @Test
+    public void select_fullScreenAndLargerTilesUseHighLayer() {
+        assertSame(VideoLayer.HIGH, select(CAPTURE_WIDTH, CAPTURE_HEIGHT));
+        assertSame(VideoLayer.HIGH, select(2560, 1440));
+    }
+
+    @Test
+    public void select_unknownTileSizeUsesHighLayer() {
+        assertSame(VideoLayer.HIGH, select(0, 0));
+        assertSame(VideoLayer.HIGH, select(320, 0));
+        assertSame(VideoLayer.HIGH, select(-1, 180));
+    }
+
+    @Test
+    public void select_scalesWithCaptureResolution() {
+        // 采集分辨率减半后，同样的格子需要高一层
+        assertSame(VideoLayer.LOW, select(400, 225));
+        assertSame(VideoLayer.MEDIUM, VideoLayer.select(400, 225, CAPTURE_WIDTH / 2, CAPTURE_HEIGHT / 2));
+    }
+
+    private static VideoLayer select(int tileWidth, int tileHeight) {
+        return VideoLayer.select(tileWidth, tileHeight, CAPTURE_WIDTH, CAPTURE_HEIGHT);
+    }
+}
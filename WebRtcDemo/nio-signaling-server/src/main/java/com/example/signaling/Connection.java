@@ -0,0 +1,378 @@
+package com.example.signaling;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一个客户端连接
+ * 读取只在所属的IO线程进行：先读帧头（最多14字节），知道长度后为负载分配一块正好大小的缓冲区，
+ * 直接从socket读进去并原地去掉掩码，之后这块缓冲区就是转发时写出的内容，不再复制；
+ * 空闲连接只占一个14字节的帧头缓冲区。任何线程都可以发送，消息进入队列后由所属IO线程写出
+ */
+final class Connection {
+    private static final int INITIAL_HANDSHAKE_BYTES = 1024;
+    private static final int MAX_HANDSHAKE_BYTES = 8192;
+    private static final int MAX_MESSAGE_BYTES = 1 << 20;
+    // 发送队列超过这个大小说明对方读得太慢，直接断开
+    private static final long MAX_QUEUED_BYTES = 4L << 20;
+    // 一次可读事件最多处理的帧数，避免一个连接占住IO线程
+    private static final int MAX_FRAMES_PER_READ = 32;
+
+    final long id;
+    private final SocketChannel channel;
+    private final IoLoop loop;
+    private final SignalingRouter router;
+    private final Metrics metrics;
+    private SelectionKey key;
+
+    // 读状态，只在IO线程访问
+    private ByteBuffer handshake = ByteBuffer.allocate(INITIAL_HANDSHAKE_BYTES);
+    private final ByteBuffer header = ByteBuffer.allocate(14);
+    private final byte[] mask = new byte[4];
+    private int headerNeeded = 2;
+    private int opcode;
+    private boolean fin;
+    private ByteBuffer payload;
+    // 分片消息已收到的部分
+    private ByteBuffer fragments;
+
+    // 写状态：队列和计数可以被任何线程修改，实际写出只在IO线程
+    private final Queue<ByteBuffer[]> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile boolean closeRequested = false;
+    private volatile boolean closeAfterFlush = false;
+
+    // 连接所属的会话，握手完成时创建，恢复会话时换成原来的会话
+    volatile Session session;
+    // 客户端关闭帧里的状态码，没有收到关闭帧就断开时为1006
+    private volatile int closeCode = WebSocketCodec.CLOSE_ABNORMAL;
+
+    Connection(long id, SocketChannel channel, IoLoop loop, SignalingRouter router, Metrics metrics) {
+        this.id = id;
+        this.channel = channel;
+        this.loop = loop;
+        this.router = router;
+        this.metrics = metrics;
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    boolean isHandshakeDone() {
+        return handshake == null;
+    }
+
+    // ---------------------------------------------------------------- 读取（IO线程）
+
+    void onReadable() throws IOException {
+        if (handshake != null) {
+            readHandshake();
+        } else {
+            readFrames();
+        }
+    }
+
+    private void readHandshake() throws IOException {
+        int read = channel.read(handshake);
+        if (read < 0) {
+            close();
+            return;
+        }
+        metrics.bytesIn.add(read);
+        int headerEnd = WebSocketCodec.findHeaderEnd(handshake);
+        if (headerEnd < 0) {
+            if (!handshake.hasRemaining()) {
+                if (handshake.capacity() >= MAX_HANDSHAKE_BYTES) {
+                    failHandshake(431, "Request Header Fields Too Large");
+                    return;
+                }
+                ByteBuffer larger = ByteBuffer.allocate(handshake.capacity() * 2);
+                handshake.flip();
+                handshake = larger.put(handshake);
+            }
+            return;
+        }
+        WebSocketCodec.HttpRequest request = WebSocketCodec.parseRequest(handshake, headerEnd);
+        if (request == null) {
+            failHandshake(400, "Bad Request");
+            return;
+        }
+        if (request.isWebSocketUpgrade()) {
+            handshake = null;
+            enqueue(new ByteBuffer[]{WebSocketCodec.handshakeResponse(request.header("sec-websocket-key"))});
+            router.onOpen(this);
+            return;
+        }
+        // 普通HTTP请求只支持指标接口
+        if ("GET".equals(request.method) && "/metrics".equals(request.path)) {
+            handshake = null;
+            enqueue(new ByteBuffer[]{WebSocketCodec.httpResponse(200, "OK",
+                    "text/plain; version=0.0.4; charset=utf-8", router.renderMetrics())});
+            closeAfterFlush = true;
+            return;
+        }
+        failHandshake(404, "Not Found");
+    }
+
+    private void failHandshake(int status, String reason) {
+        metrics.handshakeFailures.increment();
+        handshake = null;
+        enqueue(new ByteBuffer[]{WebSocketCodec.httpResponse(status, reason, "text/plain; charset=utf-8", reason)});
+        closeAfterFlush = true;
+    }
+
+    private void readFrames() throws IOException {
+        int frames = 0;
+        while (frames < MAX_FRAMES_PER_READ && !closed.get()) {
+            if (payload == null) {
+                header.limit(headerNeeded);
+                int read = channel.read(header);
+                if (read < 0) {
+                    close();
+                    return;
+                }
+                metrics.bytesIn.add(read);
+                if (header.hasRemaining()) {
+                    return;
+                }
+                if (headerNeeded == 2) {
+                    // 前两个字节决定扩展长度占几个字节，再加4字节掩码
+                    int lengthCode = header.get(1) & 0x7F;
+                    if ((header.get(1) & 0x80) == 0) {
+                        closeWithError(WebSocketCodec.CLOSE_PROTOCOL_ERROR, "客户端帧必须带掩码");
+                        return;
+                    }
+                    headerNeeded = 2 + (lengthCode == 126 ? 2 : lengthCode == 127 ? 8 : 0) + 4;
+                    continue;
+                }
+                if (!startPayload()) {
+                    return;
+                }
+                if (payload.hasRemaining()) {
+                    continue;
+                }
+            } else {
+                int read = channel.read(payload);
+                if (read < 0) {
+                    close();
+                    return;
+                }
+                metrics.bytesIn.add(read);
+                if (payload.hasRemaining()) {
+                    return;
+                }
+            }
+            ByteBuffer complete = payload;
+            payload = null;
+            complete.flip();
+            WebSocketCodec.unmask(complete, mask);
+            onFrame(complete);
+            frames++;
+        }
+    }
+
+    // 帧头读完：解析长度和掩码，为负载分配缓冲区
+    private boolean startPayload() {
+        byte first = header.get(0);
+        fin = (first & 0x80) != 0;
+        opcode = first & 0x0F;
+        int lengthCode = header.get(1) & 0x7F;
+        long length;
+        int maskOffset;
+        if (lengthCode == 126) {
+            length = header.getShort(2) & 0xFFFF;
+            maskOffset = 4;
+        } else if (lengthCode == 127) {
+            length = header.getLong(2);
+            maskOffset = 10;
+        } else {
+            length = lengthCode;
+            maskOffset = 2;
+        }
+        for (int i = 0; i < 4; i++) {
+            mask[i] = header.get(maskOffset + i);
+        }
+        header.clear();
+        headerNeeded = 2;
+
+        long buffered = fragments != null ? fragments.position() : 0;
+        if (length < 0 || length + buffered > MAX_MESSAGE_BYTES) {
+            closeWithError(WebSocketCodec.CLOSE_TOO_BIG, "消息过大");
+            return false;
+        }
+        if (opcode >= WebSocketCodec.OP_CLOSE && (length > 125 || !fin)) {
+            closeWithError(WebSocketCodec.CLOSE_PROTOCOL_ERROR, "控制帧格式错误");
+            return false;
+        }
+        payload = ByteBuffer.allocate((int) length);
+        return true;
+    }
+
+    private void onFrame(ByteBuffer frame) {
+        switch (opcode) {
+            case WebSocketCodec.OP_TEXT:
+                if (fragments != null) {
+                    closeWithError(WebSocketCodec.CLOSE_PROTOCOL_ERROR, "上一条分片消息未结束");
+                } else if (fin) {
+                    router.onMessage(this, frame);
+                } else {
+                    fragments = ByteBuffer.allocate(Math.max(frame.remaining() * 2, 1024)).put(frame);
+                }
+                break;
+            case WebSocketCodec.OP_CONTINUATION:
+                if (fragments == null) {
+                    closeWithError(WebSocketCodec.CLOSE_PROTOCOL_ERROR, "没有开始的分片消息");
+                    break;
+                }
+                if (fragments.remaining() < frame.remaining()) {
+                    ByteBuffer larger = ByteBuffer.allocate(Math.max(fragments.capacity() * 2, fragments.position() + frame.remaining()));
+                    fragments.flip();
+                    fragments = larger.put(fragments);
+                }
+                fragments.put(frame);
+                if (fin) {
+                    ByteBuffer message = fragments;
+                    fragments = null;
+                    message.flip();
+                    router.onMessage(this, message.slice());
+                }
+                break;
+            case WebSocketCodec.OP_PING:
+                enqueue(new ByteBuffer[]{WebSocketCodec.frameHeader(WebSocketCodec.OP_PONG, frame.remaining()), frame});
+                break;
+            case WebSocketCodec.OP_PONG:
+                break;
+            case WebSocketCodec.OP_CLOSE:
+                closeCode = frame.remaining() >= 2 ? frame.getShort(0) & 0xFFFF : WebSocketCodec.CLOSE_NO_STATUS;
+                // 回一个关闭帧，发送完后断开
+                if (frame.remaining() > 2) {
+                    frame.limit(2);
+                }
+                enqueue(new ByteBuffer[]{WebSocketCodec.frameHeader(WebSocketCodec.OP_CLOSE, frame.remaining()), frame});
+                closeAfterFlush = true;
+                break;
+            case WebSocketCodec.OP_BINARY:
+                closeWithError(WebSocketCodec.CLOSE_UNSUPPORTED, "不支持二进制消息");
+                break;
+            default:
+                closeWithError(WebSocketCodec.CLOSE_PROTOCOL_ERROR, "未知的帧类型: " + opcode);
+                break;
+        }
+    }
+
+    // ---------------------------------------------------------------- 发送（任意线程）
+
+    /**
+     * 发送一条由几段内容拼成的文本消息，帧头和各段用一次gathering write写出
+     * 各段由调用方保证之后不再修改（可以是多个连接共享的同一块内容的duplicate）
+     */
+    void sendText(ByteBuffer... parts) {
+        int length = 0;
+        for (ByteBuffer part : parts) {
+            length += part.remaining();
+        }
+        ByteBuffer[] frame = new ByteBuffer[parts.length + 1];
+        frame[0] = WebSocketCodec.frameHeader(WebSocketCodec.OP_TEXT, length);
+        System.arraycopy(parts, 0, frame, 1, parts.length);
+        enqueue(frame);
+    }
+
+    int closeCode() {
+        return closeCode;
+    }
+
+    /**
+     * 发送关闭帧，发送完后断开
+     */
+    void closeGracefully(int code, String reason) {
+        ByteBuffer closePayload = WebSocketCodec.closePayload(code, reason);
+        enqueue(new ByteBuffer[]{WebSocketCodec.frameHeader(WebSocketCodec.OP_CLOSE, closePayload.remaining()), closePayload});
+        closeAfterFlush = true;
+        scheduleWrite();
+    }
+
+    private void closeWithError(int code, String reason) {
+        SignalingServer.log("连接 " + id + " 协议错误: " + reason);
+        closeGracefully(code, reason);
+    }
+
+    private void enqueue(ByteBuffer[] parts) {
+        if (closed.get() || closeAfterFlush) {
+            return;
+        }
+        long size = 0;
+        for (ByteBuffer part : parts) {
+            size += part.remaining();
+        }
+        if (queuedBytes.addAndGet(size) > MAX_QUEUED_BYTES) {
+            metrics.slowConsumerCloses.increment();
+            closeRequested = true;
+            scheduleWrite();
+            return;
+        }
+        outbound.add(parts);
+        scheduleWrite();
+    }
+
+    private void scheduleWrite() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            loop.requestWrite(this);
+        }
+    }
+
+    // ---------------------------------------------------------------- 写出（IO线程）
+
+    void flush() throws IOException {
+        writeScheduled.set(false);
+        if (closed.get()) {
+            return;
+        }
+        if (closeRequested) {
+            SignalingServer.log("连接 " + id + " 发送队列超过 " + MAX_QUEUED_BYTES + " 字节，断开");
+            close();
+            return;
+        }
+        ByteBuffer[] parts;
+        while ((parts = outbound.peek()) != null) {
+            long written = channel.write(parts);
+            metrics.bytesOut.add(written);
+            queuedBytes.addAndGet(-written);
+            if (parts[parts.length - 1].hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            outbound.poll();
+        }
+        if (closeAfterFlush) {
+            close();
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // 关闭失败也没有可以补救的
+        }
+        outbound.clear();
+        metrics.connectionsClosed.increment();
+        router.onClose(this);
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.signaling;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一个IO线程和它的Selector
+ * 每个连接固定属于一个IoLoop，读取、写出和关闭都在这个线程上；
+ * 其他线程发给连接的消息进入连接的队列，再通过pendingWrites通知这里写出
+ */
+final class IoLoop implements Runnable {
+    private static final AtomicLong NEXT_CONNECTION_ID = new AtomicLong(1);
+
+    private final Selector selector;
+    private final SignalingRouter router;
+    private final Metrics metrics;
+    private final Thread thread;
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    IoLoop(int index, SignalingRouter router, Metrics metrics) throws IOException {
+        this.selector = Selector.open();
+        this.router = router;
+        this.metrics = metrics;
+        this.thread = new Thread(this, "signaling-io-" + index);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * 把acceptor线程接受的连接交给这个IO线程
+     */
+    void register(SocketChannel channel) {
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * 连接有待发送的数据，在IO线程上写出
+     * 当前就在IO线程时不立即写，留到本轮事件处理完，避免在处理一个连接时递归地写出和关闭其他连接
+     */
+    void requestWrite(Connection connection) {
+        pendingWrites.add(connection);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    void awaitTermination(long millis) throws InterruptedException {
+        thread.join(millis);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                SignalingServer.log(thread.getName() + " select失败: " + e.getMessage());
+                break;
+            }
+            registerPending();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                } catch (IOException e) {
+                    connection.close();
+                } catch (RuntimeException e) {
+                    SignalingServer.log("连接 " + connection.id + " 处理出错: " + e);
+                    connection.close();
+                }
+            }
+            flushPending();
+        }
+        closeAll();
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            Connection connection = new Connection(NEXT_CONNECTION_ID.getAndIncrement(), channel, this, router, metrics);
+            try {
+                connection.attach(channel.register(selector, SelectionKey.OP_READ, connection));
+                metrics.connectionsAccepted.increment();
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // 连接还没开始使用，关闭失败可以忽略
+                }
+            }
+        }
+    }
+
+    private void flushPending() {
+        Connection connection;
+        while ((connection = pendingWrites.poll()) != null) {
+            try {
+                connection.flush();
+            } catch (IOException e) {
+                connection.close();
+            }
+        }
+    }
+
+    // 服务器关闭：通知所有已握手的客户端，尽力写出一次后关闭
+    private void closeAll() {
+        ByteBuffer shutdown = ByteBuffer.wrap(
+                "{\"type\":\"serverShutdown\",\"message\":\"服务器正在关闭\"}".getBytes(StandardCharsets.UTF_8));
+        for (SelectionKey key : selector.keys()) {
+            Connection connection = (Connection) key.attachment();
+            if (connection.isHandshakeDone()) {
+                connection.sendText(shutdown.duplicate());
+                connection.closeGracefully(WebSocketCodec.CLOSE_NORMAL, "Server shutting down");
+            }
+        }
+        flushPending();
+        for (SelectionKey key : selector.keys()) {
+            ((Connection) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+            // 进程即将退出
+        }
+    }
+}
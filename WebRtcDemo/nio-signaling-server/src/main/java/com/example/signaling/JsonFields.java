@@ -0,0 +1,354 @@
+package com.example.signaling;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 消息顶层字段的索引
+ * 直接在收到的UTF-8字节上扫描一遍顶层对象，记录每个字段值的位置，只把路由用到的短字段
+ * （type、roomId、userId、targetUserId）解码成字符串；SDP、候选等内容不解码，转发时原样写出
+ */
+final class JsonFields {
+
+    /**
+     * 消息不是合法的JSON对象
+     */
+    static final class FormatException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        FormatException(String message) {
+            super(message);
+        }
+    }
+
+    // 每个字段占4个int：key起点、key终点（不含引号）、value起点、value终点（不含）
+    private static final int SLOT = 4;
+
+    private final byte[] bytes;
+    private final int end;
+    // 对象'{'之后的位置，转发时从这里开始引用原始内容
+    private int bodyStart;
+    private int[] members = new int[8 * SLOT];
+    private int memberCount = 0;
+
+    private JsonFields(byte[] bytes, int end) {
+        this.bytes = bytes;
+        this.end = end;
+    }
+
+    /**
+     * 索引payload（堆内存缓冲区，[0, limit)）中的顶层对象
+     */
+    static JsonFields parse(ByteBuffer payload) throws FormatException {
+        int offset = payload.arrayOffset();
+        JsonFields fields = new JsonFields(payload.array(), offset + payload.limit());
+        int i = fields.skipWhitespace(offset);
+        int objectEnd = fields.indexObject(i);
+        if (fields.skipWhitespace(objectEnd) != fields.end) {
+            throw new FormatException("消息末尾有多余内容");
+        }
+        fields.bodyStart -= offset;
+        return fields;
+    }
+
+    /**
+     * payload中'{'之后的内容去掉字段key的视图，共一到两段，与payload共享内容
+     * 转发时服务器给消息重新编号，发送方自己的seq不能再出现在转发的消息里
+     */
+    ByteBuffer[] bodyWithout(ByteBuffer payload, String key) {
+        int offset = payload.arrayOffset();
+        int slot = find(key);
+        if (slot < 0) {
+            return new ByteBuffer[]{range(payload, bodyStart, payload.limit())};
+        }
+        // 从字段名的引号到值之后的逗号；最后一个字段则连同它前面的逗号一起去掉
+        int cutStart = members[slot] - 1;
+        int cutEnd = skipWhitespace(members[slot + 3]);
+        if (bytes[cutEnd] == ',') {
+            cutEnd = skipWhitespace(cutEnd + 1);
+        } else if (slot > 0) {
+            cutStart = members[slot - SLOT + 3];
+        }
+        ByteBuffer tail = range(payload, cutEnd - offset, payload.limit());
+        if (cutStart - offset == bodyStart) {
+            return new ByteBuffer[]{tail};
+        }
+        return new ByteBuffer[]{range(payload, bodyStart, cutStart - offset), tail};
+    }
+
+    private static ByteBuffer range(ByteBuffer payload, int from, int to) {
+        ByteBuffer view = payload.duplicate();
+        view.limit(to).position(from);
+        return view.slice();
+    }
+
+    /**
+     * 字符串字段的值，字段不存在或不是字符串时返回null
+     */
+    String string(String key) throws FormatException {
+        int slot = find(key);
+        if (slot < 0 || bytes[members[slot + 2]] != '"') {
+            return null;
+        }
+        return unescape(members[slot + 2] + 1, members[slot + 3] - 1);
+    }
+
+    /**
+     * 整数字段的值，字段不存在或不是整数时返回defaultValue
+     */
+    long number(String key, long defaultValue) {
+        int slot = find(key);
+        if (slot < 0) {
+            return defaultValue;
+        }
+        int start = members[slot + 2];
+        int end = members[slot + 3];
+        if (end - start > 18) {
+            return defaultValue;
+        }
+        long value = 0;
+        boolean negative = bytes[start] == '-';
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            byte c = bytes[i];
+            if (c < '0' || c > '9') {
+                return defaultValue;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * JSON字符串字面量，用于拼接回复消息
+     */
+    static String quote(String value) {
+        StringBuilder builder = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+                    break;
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+    // ---------------------------------------------------------------- 扫描
+
+    private int indexObject(int i) throws FormatException {
+        if (i >= end || bytes[i] != '{') {
+            throw new FormatException("消息不是JSON对象");
+        }
+        bodyStart = i + 1;
+        i = skipWhitespace(i + 1);
+        if (i < end && bytes[i] == '}') {
+            return i + 1;
+        }
+        while (true) {
+            if (i >= end || bytes[i] != '"') {
+                throw new FormatException("字段名格式错误");
+            }
+            int keyEnd = skipString(i);
+            int colon = skipWhitespace(keyEnd);
+            if (colon >= end || bytes[colon] != ':') {
+                throw new FormatException("缺少冒号");
+            }
+            int valueStart = skipWhitespace(colon + 1);
+            int valueEnd = skipValue(valueStart);
+            addMember(i + 1, keyEnd - 1, valueStart, valueEnd);
+
+            i = skipWhitespace(valueEnd);
+            if (i >= end) {
+                throw new FormatException("对象未结束");
+            }
+            if (bytes[i] == '}') {
+                return i + 1;
+            }
+            if (bytes[i] != ',') {
+                throw new FormatException("字段之间缺少逗号");
+            }
+            i = skipWhitespace(i + 1);
+        }
+    }
+
+    private void addMember(int keyStart, int keyEnd, int valueStart, int valueEnd) {
+        int offset = memberCount * SLOT;
+        if (offset + SLOT > members.length) {
+            members = Arrays.copyOf(members, members.length * 2);
+        }
+        members[offset] = keyStart;
+        members[offset + 1] = keyEnd;
+        members[offset + 2] = valueStart;
+        members[offset + 3] = valueEnd;
+        memberCount++;
+    }
+
+    private int skipValue(int i) throws FormatException {
+        if (i >= end) {
+            throw new FormatException("缺少字段值");
+        }
+        byte c = bytes[i];
+        if (c == '"') {
+            return skipString(i);
+        }
+        if (c == '{' || c == '[') {
+            return skipContainer(i);
+        }
+        int j = i;
+        while (j < end) {
+            byte d = bytes[j];
+            if (d == ',' || d == '}' || d == ']' || isWhitespace(d)) {
+                break;
+            }
+            j++;
+        }
+        if (j == i) {
+            throw new FormatException("字段值格式错误");
+        }
+        return j;
+    }
+
+    private int skipString(int i) throws FormatException {
+        for (int j = i + 1; j < end; j++) {
+            byte c = bytes[j];
+            if (c == '\\') {
+                j++;
+            } else if (c == '"') {
+                return j + 1;
+            }
+        }
+        throw new FormatException("字符串未结束");
+    }
+
+    private int skipContainer(int i) throws FormatException {
+        int depth = 0;
+        for (int j = i; j < end; j++) {
+            byte c = bytes[j];
+            if (c == '"') {
+                j = skipString(j) - 1;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+                if (depth == 0) {
+                    return j + 1;
+                }
+            }
+        }
+        throw new FormatException("对象或数组未结束");
+    }
+
+    private int find(String key) {
+        int length = key.length();
+        for (int slot = 0; slot < memberCount * SLOT; slot += SLOT) {
+            int keyStart = members[slot];
+            if (members[slot + 1] - keyStart != length) {
+                continue;
+            }
+            boolean match = true;
+            for (int k = 0; k < length; k++) {
+                if (bytes[keyStart + k] != key.charAt(k)) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    // 解码[from, to)之间的字符串内容，没有转义时直接按UTF-8解码
+    private String unescape(int from, int to) throws FormatException {
+        int escape = -1;
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == '\\') {
+                escape = i;
+                break;
+            }
+        }
+        if (escape < 0) {
+            return new String(bytes, from, to - from, StandardCharsets.UTF_8);
+        }
+        StringBuilder builder = new StringBuilder(to - from);
+        builder.append(new String(bytes, from, escape - from, StandardCharsets.UTF_8));
+        int runStart = escape;
+        for (int i = escape; i < to; i++) {
+            if (bytes[i] != '\\') {
+                continue;
+            }
+            builder.append(new String(bytes, runStart, i - runStart, StandardCharsets.UTF_8));
+            if (++i >= to) {
+                throw new FormatException("转义字符不完整");
+            }
+            byte e = bytes[i];
+            switch (e) {
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'u':
+                    if (i + 4 >= to) {
+                        throw new FormatException("unicode转义不完整");
+                    }
+                    try {
+                        builder.append((char) Integer.parseInt(new String(bytes, i + 1, 4, StandardCharsets.ISO_8859_1), 16));
+                    } catch (NumberFormatException ex) {
+                        throw new FormatException("unicode转义格式错误");
+                    }
+                    i += 4;
+                    break;
+                default:
+                    builder.append((char) e);
+                    break;
+            }
+            runStart = i + 1;
+        }
+        builder.append(new String(bytes, runStart, to - runStart, StandardCharsets.UTF_8));
+        return builder.toString();
+    }
+
+    private int skipWhitespace(int i) {
+        while (i < end && isWhitespace(bytes[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isWhitespace(byte c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+}
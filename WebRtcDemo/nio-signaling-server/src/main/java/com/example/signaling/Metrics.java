@@ -0,0 +1,96 @@
+package com.example.signaling;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 服务器指标
+ * 各IO线程并发累加，GET /metrics 以Prometheus文本格式输出，定期日志也从这里取值
+ */
+final class Metrics {
+    // 计数的消息类型，其他类型都记为unknown，避免客户端随意的type撑大统计表
+    private static final String[] KNOWN_TYPES = {
+            "createRoom", "joinRoom", "leaveRoom", "getRoomInfo", "offer", "answer",
+            "iceCandidate", "iceCandidates", "selectLayer", "resume", "ping"
+    };
+
+    final LongAdder connectionsAccepted = new LongAdder();
+    final LongAdder connectionsClosed = new LongAdder();
+    final LongAdder handshakeFailures = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder messagesForwarded = new LongAdder();
+    final LongAdder forwardMisses = new LongAdder();
+    final LongAdder errorsSent = new LongAdder();
+    final LongAdder slowConsumerCloses = new LongAdder();
+    final LongAdder sessionsSuspended = new LongAdder();
+    final LongAdder sessionsResumed = new LongAdder();
+    final LongAdder sessionsExpired = new LongAdder();
+    final LongAdder resumeFailures = new LongAdder();
+    private final Map<String, LongAdder> messagesIn = new ConcurrentHashMap<>();
+
+    Metrics() {
+        for (String type : KNOWN_TYPES) {
+            messagesIn.put(type, new LongAdder());
+        }
+        messagesIn.put("unknown", new LongAdder());
+    }
+
+    void countMessage(String type) {
+        LongAdder counter = type != null ? messagesIn.get(type) : null;
+        (counter != null ? counter : messagesIn.get("unknown")).increment();
+    }
+
+    long openConnections() {
+        return connectionsAccepted.sum() - connectionsClosed.sum();
+    }
+
+    long totalMessagesIn() {
+        long total = 0;
+        for (LongAdder counter : messagesIn.values()) {
+            total += counter.sum();
+        }
+        return total;
+    }
+
+    String render(int rooms, int users) {
+        StringBuilder builder = new StringBuilder(1024);
+        gauge(builder, "signaling_connections_open", "当前打开的WebSocket连接数", openConnections());
+        counter(builder, "signaling_connections_accepted_total", "累计接受的连接数", connectionsAccepted.sum());
+        counter(builder, "signaling_handshake_failures_total", "握手失败次数", handshakeFailures.sum());
+        gauge(builder, "signaling_rooms", "当前房间数", rooms);
+        gauge(builder, "signaling_users", "当前在房间内的用户数", users);
+        builder.append("# HELP signaling_messages_in_total 按类型统计的收到的消息数\n")
+                .append("# TYPE signaling_messages_in_total counter\n");
+        for (Map.Entry<String, LongAdder> entry : messagesIn.entrySet()) {
+            builder.append("signaling_messages_in_total{type=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().sum()).append('\n');
+        }
+        counter(builder, "signaling_messages_forwarded_total", "原样转发的offer/answer/ICE等消息数", messagesForwarded.sum());
+        counter(builder, "signaling_forward_misses_total", "目标用户不在房间而未能转发的消息数", forwardMisses.sum());
+        counter(builder, "signaling_errors_sent_total", "发给客户端的error消息数", errorsSent.sum());
+        counter(builder, "signaling_slow_consumer_closes_total", "发送队列超限而关闭的连接数", slowConsumerCloses.sum());
+        counter(builder, "signaling_sessions_suspended_total", "连接意外断开后挂起等待恢复的会话数", sessionsSuspended.sum());
+        counter(builder, "signaling_sessions_resumed_total", "重连后成功恢复的会话数", sessionsResumed.sum());
+        counter(builder, "signaling_sessions_expired_total", "超过恢复时间而结束的会话数", sessionsExpired.sum());
+        counter(builder, "signaling_resume_failures_total", "会话恢复失败次数", resumeFailures.sum());
+        counter(builder, "signaling_bytes_in_total", "收到的字节数", bytesIn.sum());
+        counter(builder, "signaling_bytes_out_total", "发出的字节数", bytesOut.sum());
+        return builder.toString();
+    }
+
+    private static void gauge(StringBuilder builder, String name, String help, long value) {
+        metric(builder, name, help, "gauge", value);
+    }
+
+    private static void counter(StringBuilder builder, String name, String help, long value) {
+        metric(builder, name, help, "counter", value);
+    }
+
+    private static void metric(StringBuilder builder, String name, String help, String type, long value) {
+        builder.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(' ').append(type).append('\n')
+                .append(name).append(' ').append(value).append('\n');
+    }
+}
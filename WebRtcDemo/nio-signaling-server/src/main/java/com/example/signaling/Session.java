@@ -0,0 +1,174 @@
+package com.example.signaling;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * 一个客户端的信令会话，协议与signaling-server/server.js一致
+ * 发给客户端的消息编号（seq作为第一个字段）并保留最近REPLAY_BUFFER_SIZE条，连接意外断开后会话挂起，
+ * 客户端在恢复时间内带着token重连即可接上，补发断开期间的消息，房间状态不变。
+ *
+ * 两把锁：会话本身（this）保护房间状态和收到的编号，SignalingRouter处理这个会话的消息时一直持有；
+ * outLock保护当前连接、发出的编号和重放缓冲区，持有期间不再获取其他锁，
+ * 因此在任何锁内都可以给任意会话发消息
+ */
+final class Session {
+    static final int REPLAY_BUFFER_SIZE = 256;
+
+    final String token;
+    // 创建会话的连接ID，用于日志
+    final long id;
+
+    // ---- 由this保护
+    String roomId;
+    String userId;
+    // 转发时放在seq之后的 "from":"<userId>",
+    byte[] fromField;
+    // 收到的最大消息编号，编号不大于它的消息是重连前已处理过的重发
+    long lastInSeq = 0;
+    // 客户端发送过带编号的消息才支持恢复，旧客户端断开后立即离开房间
+    boolean resumable = false;
+    ScheduledFuture<?> expiryTask;
+
+    // ---- 由outLock保护
+    private final Object outLock = new Object();
+    private Connection connection;
+    private long outSeq = 0;
+    // 每条为 {前缀, 正文的各段}，编号为 outSeq - replay.size() + 1 到 outSeq
+    private final ArrayDeque<ByteBuffer[]> replay = new ArrayDeque<>();
+    private boolean suspended = false;
+    private boolean ended = false;
+
+    Session(String token, Connection connection) {
+        this.token = token;
+        this.id = connection.id;
+        this.connection = connection;
+    }
+
+    /**
+     * 发送一条JSON对象消息，在'{'之后插入seq字段
+     */
+    void send(String json) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        deliver(null, ByteBuffer.wrap(bytes, 1, bytes.length - 1).slice());
+    }
+
+    /**
+     * 发送一条去掉了'{'的消息正文（可以分成几段），正文可以是多个会话共享的同一块内容
+     * field不为null时插在seq之后（转发时的from字段）
+     */
+    void deliver(byte[] field, ByteBuffer... body) {
+        synchronized (outLock) {
+            if (ended) {
+                return;
+            }
+            long seq = ++outSeq;
+            byte[] seqField = ("{\"seq\":" + seq + ",").getBytes(StandardCharsets.US_ASCII);
+            ByteBuffer prefix;
+            if (field == null) {
+                prefix = ByteBuffer.wrap(seqField);
+            } else {
+                byte[] bytes = Arrays.copyOf(seqField, seqField.length + field.length);
+                System.arraycopy(field, 0, bytes, seqField.length, field.length);
+                prefix = ByteBuffer.wrap(bytes);
+            }
+            ByteBuffer[] parts = new ByteBuffer[body.length + 1];
+            parts[0] = prefix;
+            System.arraycopy(body, 0, parts, 1, body.length);
+            replay.addLast(parts);
+            if (replay.size() > REPLAY_BUFFER_SIZE) {
+                replay.removeFirst();
+            }
+            if (connection != null && !suspended) {
+                connection.sendText(duplicates(parts));
+            }
+        }
+    }
+
+    boolean isAttached(Connection candidate) {
+        synchronized (outLock) {
+            return connection == candidate && !ended;
+        }
+    }
+
+    boolean isSuspended() {
+        synchronized (outLock) {
+            return suspended && !ended;
+        }
+    }
+
+    /**
+     * 连接断开，之后的消息只进重放缓冲区
+     */
+    void suspend() {
+        synchronized (outLock) {
+            suspended = true;
+            connection = null;
+        }
+    }
+
+    /**
+     * 检查客户端的恢复请求，可以恢复时返回null，否则返回失败原因
+     * lastSeq是客户端收到的最后一条编号，firstSeq是客户端还能重发的最早编号；调用方持有this
+     */
+    String checkResume(long lastSeq, long firstSeq) {
+        synchronized (outLock) {
+            if (ended) {
+                return "会话不存在或已过期";
+            }
+            long oldest = outSeq - replay.size() + 1;
+            if (lastSeq < 0 || lastSeq > outSeq || lastSeq + 1 < oldest) {
+                return "服务器缓存的消息不足以恢复会话";
+            }
+        }
+        if (firstSeq < 0 || firstSeq > lastInSeq + 1) {
+            return "客户端缓存的消息不足以恢复会话";
+        }
+        return null;
+    }
+
+    /**
+     * 新连接接管会话：先发resumed，再补发编号大于lastSeq的消息，之后的新消息排在它们后面
+     * 返回被替换的旧连接（可能为null）；调用方持有this并已经用checkResume检查过
+     */
+    Connection attach(Connection next, ByteBuffer resumed, long lastSeq) {
+        synchronized (outLock) {
+            Connection previous = connection;
+            connection = next;
+            suspended = false;
+            next.sendText(resumed);
+            long seq = outSeq - replay.size();
+            for (ByteBuffer[] entry : replay) {
+                if (++seq > lastSeq) {
+                    next.sendText(duplicates(entry));
+                }
+            }
+            return previous != next ? previous : null;
+        }
+    }
+
+    // 缓冲区里的内容会被多次发送，每次用各自的读取位置
+    private static ByteBuffer[] duplicates(ByteBuffer[] parts) {
+        ByteBuffer[] copies = new ByteBuffer[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            copies[i] = parts[i].duplicate();
+        }
+        return copies;
+    }
+
+    /**
+     * 结束会话，返回结束时的连接（可能为null）
+     */
+    Connection end() {
+        synchronized (outLock) {
+            ended = true;
+            replay.clear();
+            Connection previous = connection;
+            connection = null;
+            return previous;
+        }
+    }
+}
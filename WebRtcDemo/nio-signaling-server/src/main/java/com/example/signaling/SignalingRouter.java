@@ -0,0 +1,482 @@
+package com.example.signaling;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 房间管理和消息路由，协议与signaling-server/server.js一致
+ * 被所有IO线程并发调用：房间表是ConcurrentHashMap，房间成员的增删在房间对象上加锁，
+ * 查找转发目标不加锁。房间成员是会话而不是连接，连接意外断开后会话挂起，重连恢复时房间状态不变；
+ * 一个会话的消息在会话对象上加锁处理，锁顺序为 会话 → 房间 → 发送（见Session）
+ */
+final class SignalingRouter {
+    // 连接意外断开后会话保留的时间
+    static final long RESUME_WINDOW_MS = 30_000;
+
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Metrics metrics;
+    private final SecureRandom random = new SecureRandom();
+    private final ScheduledExecutorService expiryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "signaling-session-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final class Room {
+        final String id;
+        final Map<String, Session> members = new ConcurrentHashMap<>();
+        // 房间变空后从表中移除，之后不能再加入（由this保护）
+        boolean removed = false;
+
+        Room(String id) {
+            this.id = id;
+        }
+    }
+
+    SignalingRouter(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void onOpen(Connection connection) {
+        Session session = new Session(newToken(), connection);
+        sessions.put(session.token, session);
+        connection.session = session;
+        sendControl(connection, "{\"type\":\"connected\",\"timestamp\":" + System.currentTimeMillis()
+                + ",\"connectionId\":\"" + connection.id + "\",\"sessionToken\":\"" + session.token
+                + "\",\"resumeWindowMs\":" + RESUME_WINDOW_MS + "}");
+    }
+
+    /**
+     * 连接关闭：客户端正常关闭或不支持恢复时结束会话、离开房间，否则挂起会话等待重连
+     */
+    void onClose(Connection connection) {
+        Session session = connection.session;
+        if (session == null) {
+            return;
+        }
+        synchronized (session) {
+            if (!session.isAttached(connection)) {
+                // 会话已经被新连接接管或已结束
+                return;
+            }
+            if (connection.closeCode() != WebSocketCodec.CLOSE_NORMAL && session.resumable) {
+                session.suspend();
+                session.expiryTask = expiryScheduler.schedule(() -> expire(session), RESUME_WINDOW_MS,
+                        TimeUnit.MILLISECONDS);
+                metrics.sessionsSuspended.increment();
+                SignalingServer.log("会话挂起, ID: " + session.id + ", 等待 " + RESUME_WINDOW_MS + "ms 内恢复");
+                return;
+            }
+            endSession(session);
+        }
+    }
+
+    void shutdown() {
+        expiryScheduler.shutdownNow();
+    }
+
+    /**
+     * 处理一条完整的文本消息，payload是堆内存缓冲区，[0, limit)为消息内容
+     */
+    void onMessage(Connection connection, ByteBuffer payload) {
+        JsonFields fields;
+        String type;
+        try {
+            fields = JsonFields.parse(payload);
+            type = fields.string("type");
+        } catch (JsonFields.FormatException e) {
+            metrics.countMessage(null);
+            sendError(connection.session, "消息处理时发生错误");
+            return;
+        }
+        metrics.countMessage(type);
+        try {
+            if ("resume".equals(type)) {
+                handleResume(connection, fields.string("sessionToken"), fields.number("lastSeq", -1),
+                        fields.number("firstSeq", -1));
+                return;
+            }
+            if ("ping".equals(type)) {
+                // 心跳直接在当前连接上回复，不编号，也不需要会话锁
+                sendControl(connection, "{\"type\":\"pong\",\"id\":" + fields.number("id", 0) + "}");
+                return;
+            }
+            Session session = connection.session;
+            synchronized (session) {
+                if (!session.isAttached(connection)) {
+                    // 旧连接上还没处理完的消息，会话已经由新连接接管
+                    return;
+                }
+                long seq = fields.number("seq", -1);
+                if (seq >= 0) {
+                    if (seq <= session.lastInSeq) {
+                        // 客户端重连后重发的、断开前已经处理过的消息
+                        return;
+                    }
+                    session.lastInSeq = seq;
+                    session.resumable = true;
+                }
+                dispatch(session, type, fields, payload);
+            }
+        } catch (JsonFields.FormatException e) {
+            sendError(connection.session, "消息处理时发生错误");
+        }
+    }
+
+    private void dispatch(Session session, String type, JsonFields fields, ByteBuffer payload)
+            throws JsonFields.FormatException {
+        switch (type != null ? type : "") {
+            case "createRoom":
+                handleCreateRoom(session, fields.string("roomId"));
+                break;
+            case "joinRoom":
+                handleJoinRoom(session, fields.string("roomId"), fields.string("userId"));
+                break;
+            case "leaveRoom":
+                handleLeaveRoom(session);
+                break;
+            case "getRoomInfo":
+                handleGetRoomInfo(session);
+                break;
+            case "offer":
+            case "answer":
+            case "iceCandidate":
+            case "iceCandidates":
+            case "selectLayer":
+                handleForward(session, type, fields, payload);
+                break;
+            default:
+                sendError(session, "未知消息类型: " + type);
+                break;
+        }
+    }
+
+    int roomCount() {
+        return rooms.size();
+    }
+
+    int userCount() {
+        int users = 0;
+        for (Room room : rooms.values()) {
+            users += room.members.size();
+        }
+        return users;
+    }
+
+    String renderMetrics() {
+        return metrics.render(roomCount(), userCount());
+    }
+
+    // ---------------------------------------------------------------- 会话
+
+    /**
+     * 新连接带着原会话的token重连：检查双方缓存的消息是否足够，接管原会话并补发断开期间的消息
+     * 失败时原会话立即结束（房间内其他人马上收到userLeft），客户端用这个连接自己的新会话重新加入
+     */
+    private void handleResume(Connection connection, String token, long lastSeq, long firstSeq) {
+        Session own = connection.session;
+        Session session = token != null ? sessions.get(token) : null;
+        if (session == null || session == own) {
+            failResume(connection, "会话不存在或已过期");
+            return;
+        }
+        Connection previous;
+        synchronized (session) {
+            String failure = session.checkResume(lastSeq, firstSeq);
+            if (failure != null) {
+                previous = endSession(session);
+                if (previous != null) {
+                    previous.closeGracefully(WebSocketCodec.CLOSE_NORMAL, "Session replaced");
+                }
+                failResume(connection, failure);
+                return;
+            }
+            if (session.expiryTask != null) {
+                session.expiryTask.cancel(false);
+                session.expiryTask = null;
+            }
+            connection.session = session;
+            ByteBuffer resumed = ByteBuffer.wrap(("{\"type\":\"resumed\",\"sessionToken\":\"" + session.token
+                    + "\",\"lastSeq\":" + session.lastInSeq + "}").getBytes(StandardCharsets.UTF_8));
+            previous = session.attach(connection, resumed, lastSeq);
+        }
+        // 新连接自己的会话不再需要；它在恢复前加入过房间的话在这里离开
+        synchronized (own) {
+            endSession(own);
+        }
+        if (previous != null) {
+            // 服务器还没发现旧连接断开，直接关闭；它的onClose会因为会话已被接管而被忽略
+            previous.closeGracefully(WebSocketCodec.CLOSE_NORMAL, "Session resumed");
+        }
+        metrics.sessionsResumed.increment();
+        SignalingServer.log("会话已恢复, ID: " + session.id + " (新连接 " + connection.id + ")");
+    }
+
+    private void failResume(Connection connection, String message) {
+        metrics.resumeFailures.increment();
+        SignalingServer.log("会话恢复失败 [" + connection.id + "]: " + message);
+        sendControl(connection, "{\"type\":\"resumeFailed\",\"message\":" + JsonFields.quote(message) + "}");
+    }
+
+    // 挂起的会话超过恢复时间
+    private void expire(Session session) {
+        synchronized (session) {
+            if (!session.isSuspended()) {
+                return;
+            }
+            metrics.sessionsExpired.increment();
+            SignalingServer.log("会话恢复超时, ID: " + session.id);
+            endSession(session);
+        }
+    }
+
+    // 调用方持有会话锁；返回会话结束时的连接（可能为null）
+    private Connection endSession(Session session) {
+        if (session.expiryTask != null) {
+            session.expiryTask.cancel(false);
+            session.expiryTask = null;
+        }
+        leave(session);
+        sessions.remove(session.token, session);
+        return session.end();
+    }
+
+    private String newToken() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(32);
+        for (byte b : bytes) {
+            token.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return token.toString();
+    }
+
+    // ---------------------------------------------------------------- 房间
+
+    private void handleCreateRoom(Session session, String roomId) {
+        if (roomId == null || roomId.trim().isEmpty()) {
+            sendError(session, "房间ID无效");
+            return;
+        }
+        boolean created;
+        while (true) {
+            Room room = rooms.get(roomId);
+            if (room == null) {
+                created = rooms.putIfAbsent(roomId, new Room(roomId)) == null;
+                if (created) {
+                    break;
+                }
+                continue;
+            }
+            synchronized (room) {
+                if (!room.removed) {
+                    created = false;
+                    break;
+                }
+            }
+            // 房间正在被移除，等它从表中消失后重新创建
+            rooms.remove(roomId, room);
+        }
+        if (created) {
+            SignalingServer.log("创建新房间: " + roomId);
+        }
+        session.send("{\"type\":\"" + (created ? "roomCreated" : "roomExists") + "\",\"roomId\":"
+                + JsonFields.quote(roomId) + ",\"message\":"
+                + JsonFields.quote("房间 " + roomId + (created ? " 创建成功" : " 已存在，可以直接加入")) + "}");
+    }
+
+    private void handleJoinRoom(Session session, String roomId, String userId) {
+        if (roomId == null || userId == null || roomId.trim().isEmpty() || userId.trim().isEmpty()) {
+            sendError(session, "房间ID或用户ID无效");
+            return;
+        }
+        // 换房间或换用户ID时先离开原来的房间；同一身份重复加入按重复处理
+        if (session.roomId != null && !(roomId.equals(session.roomId) && userId.equals(session.userId))) {
+            leave(session);
+        }
+        Room room = rooms.get(roomId);
+        List<Session> others = null;
+        List<String> otherIds = null;
+        boolean duplicate = false;
+        if (room != null) {
+            synchronized (room) {
+                if (room.removed) {
+                    room = null;
+                } else if (room.members.containsKey(userId)) {
+                    duplicate = true;
+                } else {
+                    // 其他会话的userId由它们各自的会话锁保护，这里从成员表取
+                    others = new ArrayList<>(room.members.size());
+                    otherIds = new ArrayList<>(room.members.size());
+                    for (Map.Entry<String, Session> member : room.members.entrySet()) {
+                        otherIds.add(member.getKey());
+                        others.add(member.getValue());
+                    }
+                    room.members.put(userId, session);
+                }
+            }
+        }
+        if (room == null) {
+            sendError(session, "房间 " + roomId + " 不存在，请先创建房间");
+            return;
+        }
+        if (duplicate) {
+            sendError(session, "用户已在房间中");
+            return;
+        }
+        session.roomId = roomId;
+        session.userId = userId;
+        session.fromField = ("\"from\":" + JsonFields.quote(userId) + ",").getBytes(StandardCharsets.UTF_8);
+        SignalingServer.log("用户 " + userId + " 加入房间 " + roomId + "，当前人数: " + room.members.size());
+
+        String quotedRoom = JsonFields.quote(roomId);
+        String quotedUser = JsonFields.quote(userId);
+        session.send("{\"type\":\"joined\",\"roomId\":" + quotedRoom + ",\"userId\":" + quotedUser + "}");
+        if (others.isEmpty()) {
+            return;
+        }
+        broadcast(others, "{\"type\":\"userJoined\",\"roomId\":" + quotedRoom + ",\"userId\":" + quotedUser + "}");
+        StringBuilder users = new StringBuilder("{\"type\":\"existingUsers\",\"roomId\":").append(quotedRoom)
+                .append(",\"users\":[");
+        for (int i = 0; i < otherIds.size(); i++) {
+            if (i > 0) {
+                users.append(',');
+            }
+            users.append(JsonFields.quote(otherIds.get(i)));
+        }
+        session.send(users.append("]}").toString());
+    }
+
+    private void handleLeaveRoom(Session session) {
+        String roomId = session.roomId;
+        if (roomId == null) {
+            sendError(session, "您未加入任何房间");
+            return;
+        }
+        String userId = session.userId;
+        leave(session);
+        session.send("{\"type\":\"left\",\"roomId\":" + JsonFields.quote(roomId) + ",\"message\":"
+                + JsonFields.quote("成功离开房间 " + roomId) + "}");
+        SignalingServer.log("用户 " + userId + " 主动离开房间 " + roomId);
+    }
+
+    // 把会话移出它所在的房间，通知其他成员；房间变空时删除。调用方持有会话锁
+    private void leave(Session session) {
+        String roomId = session.roomId;
+        String userId = session.userId;
+        if (roomId == null) {
+            return;
+        }
+        session.roomId = null;
+        session.userId = null;
+        session.fromField = null;
+        Room room = rooms.get(roomId);
+        if (room == null) {
+            return;
+        }
+        List<Session> remaining;
+        synchronized (room) {
+            if (!room.members.remove(userId, session)) {
+                return;
+            }
+            remaining = new ArrayList<>(room.members.values());
+            if (remaining.isEmpty()) {
+                room.removed = true;
+                rooms.remove(roomId, room);
+                SignalingServer.log("房间 " + roomId + " 已空，删除房间");
+            }
+        }
+        broadcast(remaining, "{\"type\":\"userLeft\",\"roomId\":" + JsonFields.quote(roomId)
+                + ",\"userId\":" + JsonFields.quote(userId) + "}");
+    }
+
+    private void handleGetRoomInfo(Session session) {
+        StringBuilder builder = new StringBuilder(256).append("{\"type\":\"roomInfo\",\"rooms\":[");
+        boolean first = true;
+        int totalRooms = 0;
+        for (Room room : rooms.values()) {
+            totalRooms++;
+            List<String> users = new ArrayList<>(room.members.keySet());
+            if (users.isEmpty()) {
+                continue;
+            }
+            if (!first) {
+                builder.append(',');
+            }
+            first = false;
+            builder.append("{\"roomId\":").append(JsonFields.quote(room.id))
+                    .append(",\"userCount\":").append(users.size()).append(",\"users\":[");
+            for (int i = 0; i < users.size(); i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(JsonFields.quote(users.get(i)));
+            }
+            builder.append("]}");
+        }
+        builder.append("],\"totalRooms\":").append(totalRooms)
+                .append(",\"timestamp\":").append(System.currentTimeMillis()).append('}');
+        session.send(builder.toString());
+    }
+
+    // ---------------------------------------------------------------- 转发
+
+    /**
+     * 把消息原样转发给targetUserId，只在最前面插入seq和from字段：
+     * 发出的内容是 {"seq":N,"from":"<userId>", + 原消息'{'之后去掉发送方seq的字节，原消息不解码也不复制
+     * 目标会话挂起时消息进它的重放缓冲区，恢复后补发
+     */
+    private void handleForward(Session session, String type, JsonFields fields, ByteBuffer payload)
+            throws JsonFields.FormatException {
+        // offer/answer丢失会让连接建立失败，需要告诉发送方；候选和选层丢了不影响，静默丢弃
+        boolean reportMiss = "offer".equals(type) || "answer".equals(type);
+        if (session.roomId == null) {
+            if (reportMiss) {
+                sendError(session, "您未加入任何房间");
+            }
+            return;
+        }
+        String targetUserId = fields.string("targetUserId");
+        Room room = rooms.get(session.roomId);
+        Session target = room != null && targetUserId != null ? room.members.get(targetUserId) : null;
+        if (target == null) {
+            metrics.forwardMisses.increment();
+            if (reportMiss) {
+                sendError(session, "目标用户 " + targetUserId + " 不存在或已断开连接");
+            }
+            return;
+        }
+        target.deliver(session.fromField, fields.bodyWithout(payload, "seq"));
+        metrics.messagesForwarded.increment();
+    }
+
+    // ---------------------------------------------------------------- 发送
+
+    // 不编号的控制消息（connected/resumed/resumeFailed），直接发给连接
+    private void sendControl(Connection connection, String json) {
+        connection.sendText(ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // 同一条消息只编码一次，各会话共享'{'之后的内容，各自加上自己的seq
+    private void broadcast(List<Session> targets, String json) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.wrap(bytes, 1, bytes.length - 1).slice();
+        for (Session target : targets) {
+            target.deliver(null, body);
+        }
+    }
+
+    private void sendError(Session session, String message) {
+        metrics.errorsSent.increment();
+        session.send("{\"type\":\"error\",\"message\":" + JsonFields.quote(message) + "}");
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.signaling;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于Java NIO的信令服务器，协议与signaling-server/server.js一致，不依赖任何第三方库
+ * 一个acceptor线程接受连接，按轮询分给固定数量的IO线程，每个IO线程用自己的Selector处理所属连接；
+ * offer/answer/ICE等消息只解析路由字段，内容原样转发。GET /metrics 输出Prometheus格式的指标
+ */
+public final class SignalingServer {
+    private static final int DEFAULT_PORT = 8080;
+    private static final int ACCEPT_BACKLOG = 1024;
+    private static final long STATS_INTERVAL_SECONDS = 30;
+
+    private final int port;
+    private final Metrics metrics = new Metrics();
+    private final SignalingRouter router = new SignalingRouter(metrics);
+    private final IoLoop[] loops;
+    private final ScheduledExecutorService statsExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "signaling-stats");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ServerSocketChannel serverChannel;
+    private Thread acceptor;
+    private volatile boolean running = false;
+
+    public SignalingServer(int port, int ioThreads) throws IOException {
+        this.port = port;
+        this.loops = new IoLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop(i, router, metrics);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int ioThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        SignalingServer server = new SignalingServer(port, ioThreads);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "signaling-shutdown"));
+        server.start();
+        log("在Android模拟器中使用地址: ws://10.0.2.2:" + server.getPort());
+        log("在真机调试中，请替换为您的本机IP地址");
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        running = true;
+        for (IoLoop loop : loops) {
+            loop.start();
+        }
+        acceptor = new Thread(this::acceptLoop, "signaling-acceptor");
+        acceptor.start();
+        statsExecutor.scheduleAtFixedRate(this::logStats, STATS_INTERVAL_SECONDS, STATS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        log("NIO信令服务器运行在端口 " + getPort() + "，IO线程数: " + loops.length);
+    }
+
+    /**
+     * 实际监听的端口（构造时传0则由系统分配）
+     */
+    public int getPort() {
+        return serverChannel != null ? serverChannel.socket().getLocalPort() : port;
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        log("正在关闭服务器...");
+        statsExecutor.shutdownNow();
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {
+            // 只是不再接受新连接
+        }
+        for (IoLoop loop : loops) {
+            loop.shutdown();
+        }
+        try {
+            for (IoLoop loop : loops) {
+                loop.awaitTermination(2000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        router.shutdown();
+        log("服务器已关闭");
+    }
+
+    private void acceptLoop() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                // 常见的是文件描述符用完，稍等再接受，避免空转
+                log("接受连接失败: " + e.getMessage());
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException interrupted) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private void logStats() {
+        log("当前连接数: " + metrics.openConnections()
+                + ", 房间数: " + router.roomCount()
+                + ", 用户数: " + router.userCount()
+                + ", 累计收到消息: " + metrics.totalMessagesIn()
+                + ", 累计转发: " + metrics.messagesForwarded.sum());
+    }
+
+    static void log(String message) {
+        System.out.println("[" + Instant.now() + "] " + message);
+    }
+}
@@ -0,0 +1,173 @@
+package com.example.signaling;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * WebSocket握手和帧格式（RFC 6455）
+ * 只处理服务端需要的部分：解析HTTP升级请求、生成握手响应、编码不带掩码的服务端帧头
+ */
+final class WebSocketCodec {
+    static final int OP_CONTINUATION = 0x0;
+    static final int OP_TEXT = 0x1;
+    static final int OP_BINARY = 0x2;
+    static final int OP_CLOSE = 0x8;
+    static final int OP_PING = 0x9;
+    static final int OP_PONG = 0xA;
+
+    static final int CLOSE_NORMAL = 1000;
+    static final int CLOSE_GOING_AWAY = 1001;
+    static final int CLOSE_PROTOCOL_ERROR = 1002;
+    static final int CLOSE_UNSUPPORTED = 1003;
+    static final int CLOSE_NO_STATUS = 1005;
+    static final int CLOSE_ABNORMAL = 1006;
+    static final int CLOSE_TOO_BIG = 1009;
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+    /**
+     * 解析后的HTTP请求行和请求头（请求头名称转为小写）
+     */
+    static final class HttpRequest {
+        final String method;
+        final String path;
+        final Map<String, String> headers;
+
+        HttpRequest(String method, String path, Map<String, String> headers) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+        }
+
+        String header(String name) {
+            return headers.get(name);
+        }
+
+        boolean isWebSocketUpgrade() {
+            String upgrade = headers.get("upgrade");
+            return upgrade != null && upgrade.equalsIgnoreCase("websocket") && headers.containsKey("sec-websocket-key");
+        }
+    }
+
+    private WebSocketCodec() {
+    }
+
+    /**
+     * 在[0, position)中查找请求头结束标记，返回请求头之后的位置，还不完整时返回-1
+     */
+    static int findHeaderEnd(ByteBuffer buffer) {
+        byte[] array = buffer.array();
+        int end = buffer.arrayOffset() + buffer.position();
+        outer:
+        for (int i = buffer.arrayOffset(); i + HEADER_END.length <= end; i++) {
+            for (int j = 0; j < HEADER_END.length; j++) {
+                if (array[i + j] != HEADER_END[j]) {
+                    continue outer;
+                }
+            }
+            return i - buffer.arrayOffset() + HEADER_END.length;
+        }
+        return -1;
+    }
+
+    /**
+     * 解析[0, headerEnd)之间的HTTP请求，格式错误时返回null
+     */
+    static HttpRequest parseRequest(ByteBuffer buffer, int headerEnd) {
+        String text = new String(buffer.array(), buffer.arrayOffset(), headerEnd, StandardCharsets.ISO_8859_1);
+        String[] lines = text.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3) {
+            return null;
+        }
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+            }
+        }
+        return new HttpRequest(requestLine[0], requestLine[1], headers);
+    }
+
+    static ByteBuffer handshakeResponse(String key) {
+        String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n";
+        return ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * 普通HTTP响应（/metrics等），发送后关闭连接
+     */
+    static ByteBuffer httpResponse(int status, String reason, String contentType, String body) {
+        byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + status + " " + reason + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + content.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        byte[] headBytes = head.getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer buffer = ByteBuffer.allocate(headBytes.length + content.length);
+        buffer.put(headBytes).put(content).flip();
+        return buffer;
+    }
+
+    /**
+     * 服务端帧头：FIN置位、不带掩码
+     */
+    static ByteBuffer frameHeader(int opcode, int payloadLength) {
+        ByteBuffer header;
+        if (payloadLength < 126) {
+            header = ByteBuffer.allocate(2);
+            header.put((byte) (0x80 | opcode)).put((byte) payloadLength);
+        } else if (payloadLength <= 0xFFFF) {
+            header = ByteBuffer.allocate(4);
+            header.put((byte) (0x80 | opcode)).put((byte) 126).putShort((short) payloadLength);
+        } else {
+            header = ByteBuffer.allocate(10);
+            header.put((byte) (0x80 | opcode)).put((byte) 127).putLong(payloadLength);
+        }
+        header.flip();
+        return header;
+    }
+
+    /**
+     * 关闭帧的内容：2字节状态码 + 原因
+     */
+    static ByteBuffer closePayload(int code, String reason) {
+        byte[] reasonBytes = reason.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(2 + reasonBytes.length);
+        payload.putShort((short) code).put(reasonBytes).flip();
+        return payload;
+    }
+
+    /**
+     * 客户端帧的掩码解码，原地进行
+     */
+    static void unmask(ByteBuffer payload, byte[] mask) {
+        byte[] array = payload.array();
+        int offset = payload.arrayOffset();
+        int length = payload.limit();
+        for (int i = 0; i < length; i++) {
+            array[offset + i] ^= mask[i & 3];
+        }
+    }
+
+    private static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("JVM不支持SHA-1", e);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.example.sfu;
+
+import com.example.webrtctest.VideoLayer;
+
+import dev.onvoid.webrtc.CreateSessionDescriptionObserver;
+import dev.onvoid.webrtc.PeerConnectionFactory;
+import dev.onvoid.webrtc.PeerConnectionObserver;
+import dev.onvoid.webrtc.RTCAnswerOptions;
+import dev.onvoid.webrtc.RTCConfiguration;
+import dev.onvoid.webrtc.RTCIceCandidate;
+import dev.onvoid.webrtc.RTCOfferOptions;
+import dev.onvoid.webrtc.RTCPeerConnection;
+import dev.onvoid.webrtc.RTCPeerConnectionState;
+import dev.onvoid.webrtc.RTCRtpEncodingParameters;
+import dev.onvoid.webrtc.RTCRtpSendParameters;
+import dev.onvoid.webrtc.RTCRtpSender;
+import dev.onvoid.webrtc.RTCRtpTransceiver;
+import dev.onvoid.webrtc.RTCSdpType;
+import dev.onvoid.webrtc.RTCSessionDescription;
+import dev.onvoid.webrtc.RTCSignalingState;
+import dev.onvoid.webrtc.SetSessionDescriptionObserver;
+import dev.onvoid.webrtc.media.MediaStreamTrack;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * 服务器与一个客户端之间的PeerConnection
+ * 接收客户端发布的轨道，发送转发给它的其他人的轨道；转发的轨道有增减时由服务器发起重新协商，
+ * 同一时间只有一轮协商，期间的变化合并到下一轮。除WebRTC回调外的方法都在worker线程调用
+ */
+class SfuPeer implements PeerConnectionObserver {
+    final String roomId;
+    final String userId;
+    // 该用户发布的轨道
+    final List<MediaStreamTrack> publishedTracks = new ArrayList<>();
+
+    private final SfuRouter router;
+    private RTCPeerConnection connection;
+    // 发布者用户ID → 转发该发布者轨道的sender
+    private final Map<String, List<RTCRtpSender>> forwardedSenders = new LinkedHashMap<>();
+    // 发布者用户ID → 这个客户端选择的视频层rid
+    private final Map<String, String> selectedLayers = new HashMap<>();
+    // 远程描述设置之前收到的ICE候选
+    private final List<RTCIceCandidate> pendingCandidates = new ArrayList<>();
+    private boolean remoteDescriptionSet = false;
+    // 已应答客户端的发布offer，可以开始转发
+    private boolean ready = false;
+    // 服务器发出了offer，等待客户端的answer
+    private boolean negotiating = false;
+    private boolean renegotiationPending = false;
+    private boolean closed = false;
+
+    SfuPeer(SfuRouter router, String roomId, String userId) {
+        this.router = router;
+        this.roomId = roomId;
+        this.userId = userId;
+    }
+
+    void connect(PeerConnectionFactory factory, RTCConfiguration config) {
+        connection = factory.createPeerConnection(config, this);
+    }
+
+    boolean isReady() {
+        return ready;
+    }
+
+    int getForwardedTrackCount() {
+        int count = 0;
+        for (List<RTCRtpSender> senders : forwardedSenders.values()) {
+            count += senders.size();
+        }
+        return count;
+    }
+
+    /**
+     * 客户端的offer：设置远程描述后应答
+     */
+    void onRemoteOffer(String sdp) {
+        if (connection.getSignalingState() != RTCSignalingState.STABLE) {
+            // 服务器的offer还在等待应答，客户端在SFU模式下不会主动重新协商，忽略冲突的offer
+            SfuServer.log("用户 " + userId + " 的offer与服务器的协商冲突，忽略");
+            return;
+        }
+        connection.setRemoteDescription(new RTCSessionDescription(RTCSdpType.OFFER, sdp),
+                setObserver("设置远程offer", this::createAnswer));
+    }
+
+    /**
+     * 客户端对服务器offer的应答，完成本轮协商后处理合并的变化
+     */
+    void onRemoteAnswer(String sdp) {
+        if (!negotiating) {
+            SfuServer.log("用户 " + userId + " 的answer没有对应的offer，忽略");
+            return;
+        }
+        connection.setRemoteDescription(new RTCSessionDescription(RTCSdpType.ANSWER, sdp),
+                setObserver("设置远程answer", () -> {
+                    negotiating = false;
+                    onRemoteDescriptionSet();
+                    negotiateIfNeeded();
+                }));
+    }
+
+    void addRemoteIceCandidate(RTCIceCandidate candidate) {
+        if (remoteDescriptionSet) {
+            connection.addIceCandidate(candidate);
+        } else {
+            pendingCandidates.add(candidate);
+        }
+    }
+
+    /**
+     * 把某个发布者的轨道转发给这个客户端
+     */
+    void forward(String publisherId, MediaStreamTrack track) {
+        if (closed) {
+            return;
+        }
+        // 流ID使用发布者的用户ID，客户端按它把轨道绑定到对应的画面
+        RTCRtpSender sender = connection.addTrack(track, Collections.singletonList(publisherId));
+        forwardedSenders.computeIfAbsent(publisherId, key -> new ArrayList<>()).add(sender);
+        String rid = selectedLayers.get(publisherId);
+        if (rid != null) {
+            applyLayer(sender, rid);
+        }
+        requestNegotiation();
+    }
+
+    /**
+     * 客户端选择了某个发布者的视频层（q/h/f）
+     * 转发的轨道在服务器上解码后重新编码，这里按层调整发给这个客户端的那一路的分辨率和码率；
+     * 真正的SFU应改为转发发布者simulcast中对应rid的那一层
+     */
+    void selectLayer(String publisherId, String rid) {
+        selectedLayers.put(publisherId, rid);
+        List<RTCRtpSender> senders = forwardedSenders.get(publisherId);
+        if (senders == null || closed) {
+            return;
+        }
+        for (RTCRtpSender sender : senders) {
+            applyLayer(sender, rid);
+        }
+    }
+
+    /**
+     * 停止转发某个发布者的轨道
+     */
+    void removeForwarded(String publisherId) {
+        List<RTCRtpSender> senders = forwardedSenders.remove(publisherId);
+        selectedLayers.remove(publisherId);
+        if (senders == null || closed) {
+            return;
+        }
+        for (RTCRtpSender sender : senders) {
+            connection.removeTrack(sender);
+        }
+        requestNegotiation();
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        forwardedSenders.clear();
+        pendingCandidates.clear();
+        connection.close();
+    }
+
+    private void applyLayer(RTCRtpSender sender, String rid) {
+        MediaStreamTrack track = sender.getTrack();
+        if (track == null || !MediaStreamTrack.VIDEO_TRACK_KIND.equals(track.getKind())) {
+            return;
+        }
+        // 分辨率和码率与客户端simulcast各层一致，未知的rid按最高层处理
+        VideoLayer layer = VideoLayer.fromRid(rid);
+        if (layer == null) {
+            layer = VideoLayer.HIGH;
+        }
+        RTCRtpSendParameters parameters = sender.getParameters();
+        for (RTCRtpEncodingParameters encoding : parameters.encodings) {
+            encoding.scaleResolutionDownBy = layer.scaleResolutionDownBy;
+            encoding.maxBitrate = layer.maxBitrateBps;
+        }
+        sender.setParameters(parameters);
+        SfuServer.log("转发给用户 " + userId + " 的视频切换到层 " + rid);
+    }
+
+    // ---------------------------------------------------------------- 协商
+
+    private void createAnswer() {
+        onRemoteDescriptionSet();
+        connection.createAnswer(new RTCAnswerOptions(), createObserver("创建answer", answer ->
+                connection.setLocalDescription(answer, setObserver("设置本地answer", () -> {
+                    JSONObject message = new JSONObject();
+                    message.put("type", "answer");
+                    message.put("sdp", answer.sdp);
+                    router.send(this, message);
+                    if (!ready) {
+                        ready = true;
+                        router.onPeerReady(this);
+                    }
+                    negotiateIfNeeded();
+                }))));
+    }
+
+    // 同一个任务里的多次变化只触发一轮协商
+    private void requestNegotiation() {
+        if (!renegotiationPending) {
+            renegotiationPending = true;
+            router.worker().execute(this::negotiateIfNeeded);
+        }
+    }
+
+    private void negotiateIfNeeded() {
+        if (closed || !ready || negotiating || !renegotiationPending
+                || connection.getSignalingState() != RTCSignalingState.STABLE) {
+            return;
+        }
+        renegotiationPending = false;
+        negotiating = true;
+        connection.createOffer(new RTCOfferOptions(), createObserver("创建offer", offer ->
+                connection.setLocalDescription(offer, setObserver("设置本地offer", () -> {
+                    JSONObject message = new JSONObject();
+                    message.put("type", "offer");
+                    message.put("sdp", offer.sdp);
+                    router.send(this, message);
+                }))));
+    }
+
+    private void onRemoteDescriptionSet() {
+        remoteDescriptionSet = true;
+        for (RTCIceCandidate candidate : pendingCandidates) {
+            connection.addIceCandidate(candidate);
+        }
+        pendingCandidates.clear();
+    }
+
+    // WebRTC回调在它自己的线程上，成功后切回worker线程继续；失败时结束本轮协商
+    private SetSessionDescriptionObserver setObserver(String step, Runnable onSuccess) {
+        return new SetSessionDescriptionObserver() {
+            @Override
+            public void onSuccess() {
+                runOnWorker(onSuccess);
+            }
+
+            @Override
+            public void onFailure(String error) {
+                runOnWorker(() -> onNegotiationFailure(step, error));
+            }
+        };
+    }
+
+    private CreateSessionDescriptionObserver createObserver(String step, Consumer<RTCSessionDescription> onSuccess) {
+        return new CreateSessionDescriptionObserver() {
+            @Override
+            public void onSuccess(RTCSessionDescription description) {
+                runOnWorker(() -> onSuccess.accept(description));
+            }
+
+            @Override
+            public void onFailure(String error) {
+                runOnWorker(() -> onNegotiationFailure(step, error));
+            }
+        };
+    }
+
+    private void onNegotiationFailure(String step, String error) {
+        negotiating = false;
+        SfuServer.log("用户 " + userId + " " + step + "失败: " + error);
+    }
+
+    private void runOnWorker(Runnable task) {
+        router.worker().execute(() -> {
+            if (!closed) {
+                task.run();
+            }
+        });
+    }
+
+    // ---------------------------------------------------------------- PeerConnectionObserver
+
+    @Override
+    public void onIceCandidate(RTCIceCandidate candidate) {
+        runOnWorker(() -> {
+            JSONObject message = new JSONObject();
+            message.put("type", "iceCandidate");
+            message.put("candidate", candidate.sdp);
+            message.put("sdpMid", candidate.sdpMid);
+            message.put("sdpMLineIndex", candidate.sdpMLineIndex);
+            router.send(this, message);
+        });
+    }
+
+    @Override
+    public void onTrack(RTCRtpTransceiver transceiver) {
+        MediaStreamTrack track = transceiver.getReceiver().getTrack();
+        SfuServer.log("收到用户 " + userId + " 发布的" + track.getKind() + "轨道");
+        runOnWorker(() -> router.onTrackPublished(this, track));
+    }
+
+    @Override
+    public void onConnectionChange(RTCPeerConnectionState state) {
+        SfuServer.log("与用户 " + userId + " 的SFU连接状态: " + state);
+    }
+}
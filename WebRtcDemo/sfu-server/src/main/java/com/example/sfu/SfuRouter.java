@@ -0,0 +1,189 @@
+package com.example.sfu;
+
+import dev.onvoid.webrtc.PeerConnectionFactory;
+import dev.onvoid.webrtc.RTCBundlePolicy;
+import dev.onvoid.webrtc.RTCConfiguration;
+import dev.onvoid.webrtc.RTCIceCandidate;
+import dev.onvoid.webrtc.RTCIceServer;
+import dev.onvoid.webrtc.RTCRtcpMuxPolicy;
+import dev.onvoid.webrtc.media.MediaStreamTrack;
+
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * SFU转发逻辑
+ * 每个客户端和服务器之间只有一个PeerConnection（SfuPeer）：客户端通过它发布一次本地流，
+ * 服务器把房间内其他人发布的轨道加到这个连接上并重新协商，流ID使用发布者的用户ID，客户端据此找到对应的画面。
+ * 所有方法都在SfuServer的worker线程调用，WebRTC回调也会切回这个线程
+ */
+class SfuRouter {
+
+    /**
+     * 以"sfu"身份向客户端发送信令
+     */
+    interface SignalingSender {
+        void sendFromSfu(String roomId, String userId, JSONObject message);
+    }
+
+    private final Executor worker;
+    private final SignalingSender sender;
+    private final RTCConfiguration rtcConfig;
+    private PeerConnectionFactory factory;
+
+    // 房间ID → (用户ID → 连接)
+    private final Map<String, Map<String, SfuPeer>> rooms = new HashMap<>();
+
+    SfuRouter(Executor worker, SignalingSender sender) {
+        this.worker = worker;
+        this.sender = sender;
+        rtcConfig = new RTCConfiguration();
+        RTCIceServer stun = new RTCIceServer();
+        stun.urls.add("stun:stun.l.google.com:19302");
+        rtcConfig.iceServers.add(stun);
+        rtcConfig.bundlePolicy = RTCBundlePolicy.MAX_BUNDLE;
+        rtcConfig.rtcpMuxPolicy = RTCRtcpMuxPolicy.REQUIRE;
+    }
+
+    /**
+     * 客户端发来offer：第一次是发布本地流，之后的offer按重新协商处理
+     */
+    void onOffer(String roomId, String userId, String sdp) {
+        SfuPeer peer = getPeer(roomId, userId);
+        if (peer == null) {
+            peer = createPeer(roomId, userId);
+        }
+        peer.onRemoteOffer(sdp);
+    }
+
+    void onAnswer(String roomId, String userId, String sdp) {
+        SfuPeer peer = getPeer(roomId, userId);
+        if (peer != null) {
+            peer.onRemoteAnswer(sdp);
+        }
+    }
+
+    void onIceCandidate(String roomId, String userId, RTCIceCandidate candidate) {
+        SfuPeer peer = getPeer(roomId, userId);
+        if (peer != null) {
+            peer.addRemoteIceCandidate(candidate);
+        }
+    }
+
+    /**
+     * 订阅方按画面大小选择了某个发布者的视频层
+     */
+    void onSelectLayer(String roomId, String userId, String publisherId, String rid) {
+        SfuPeer peer = getPeer(roomId, userId);
+        if (peer != null) {
+            peer.selectLayer(publisherId, rid);
+        }
+    }
+
+    /**
+     * 用户离开房间：关闭它的连接，并从其他人的连接上移除它发布的轨道
+     */
+    void onLeave(String roomId, String userId) {
+        Map<String, SfuPeer> room = rooms.get(roomId);
+        SfuPeer leaving = room != null ? room.remove(userId) : null;
+        if (leaving == null) {
+            return;
+        }
+        for (SfuPeer peer : room.values()) {
+            peer.removeForwarded(userId);
+        }
+        leaving.close();
+        if (room.isEmpty()) {
+            rooms.remove(roomId);
+        }
+        logRoom(roomId, room);
+    }
+
+    /**
+     * 某个用户发布的轨道到达服务器，转发给房间内其他已连接的用户
+     */
+    void onTrackPublished(SfuPeer publisher, MediaStreamTrack track) {
+        Map<String, SfuPeer> room = rooms.get(publisher.roomId);
+        if (room == null || room.get(publisher.userId) != publisher) {
+            return;
+        }
+        publisher.publishedTracks.add(track);
+        for (SfuPeer peer : room.values()) {
+            // 还没应答发布offer的连接在onPeerReady时统一转发
+            if (peer != publisher && peer.isReady()) {
+                peer.forward(publisher.userId, track);
+            }
+        }
+        logRoom(publisher.roomId, room);
+    }
+
+    /**
+     * 已应答客户端的发布offer，把房间里其他人已经发布的轨道转发给它
+     */
+    void onPeerReady(SfuPeer peer) {
+        Map<String, SfuPeer> room = rooms.get(peer.roomId);
+        if (room == null || room.get(peer.userId) != peer) {
+            return;
+        }
+        for (SfuPeer publisher : room.values()) {
+            if (publisher == peer) {
+                continue;
+            }
+            for (MediaStreamTrack track : publisher.publishedTracks) {
+                peer.forward(publisher.userId, track);
+            }
+        }
+    }
+
+    void send(SfuPeer peer, JSONObject message) {
+        sender.sendFromSfu(peer.roomId, peer.userId, message);
+    }
+
+    Executor worker() {
+        return worker;
+    }
+
+    void release() {
+        for (Map<String, SfuPeer> room : rooms.values()) {
+            for (SfuPeer peer : room.values()) {
+                peer.close();
+            }
+        }
+        rooms.clear();
+        if (factory != null) {
+            factory.dispose();
+            factory = null;
+        }
+    }
+
+    private SfuPeer getPeer(String roomId, String userId) {
+        Map<String, SfuPeer> room = rooms.get(roomId);
+        return room != null ? room.get(userId) : null;
+    }
+
+    private SfuPeer createPeer(String roomId, String userId) {
+        if (factory == null) {
+            // 第一个SFU连接出现时才加载原生库，只用作网状模式信令服务器时不需要
+            factory = new PeerConnectionFactory();
+        }
+        SfuPeer peer = new SfuPeer(this, roomId, userId);
+        peer.connect(factory, rtcConfig);
+        rooms.computeIfAbsent(roomId, key -> new LinkedHashMap<>()).put(userId, peer);
+        return peer;
+    }
+
+    private void logRoom(String roomId, Map<String, SfuPeer> room) {
+        int published = 0;
+        int forwarded = 0;
+        for (SfuPeer peer : room.values()) {
+            published += peer.publishedTracks.size();
+            forwarded += peer.getForwardedTrackCount();
+        }
+        SfuServer.log("房间 " + roomId + " SFU连接数: " + room.size() + "，发布轨道: " + published
+                + "，转发轨道: " + forwarded);
+    }
+}
@@ -0,0 +1,388 @@
+package com.example.sfu;
+
+import dev.onvoid.webrtc.RTCIceCandidate;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.InetSocketAddress;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地测试用的SFU信令服务器
+ * 信令协议与signaling-server/server.js一致（createRoom、joinRoom、leaveRoom、offer、answer、
+ * iceCandidate、iceCandidates、selectLayer、getRoomInfo），网状模式的客户端也可以直接连接；
+ * targetUserId为"sfu"的offer/answer/ICE交给SfuRouter，由服务器端的PeerConnection接收发布的流并转发给房间内其他人。
+ * 房间状态和SFU的连接都只在一个工作线程上操作
+ */
+public class SfuServer extends WebSocketServer implements SfuRouter.SignalingSender {
+    public static final String SFU_PEER_ID = "sfu";
+    private static final int DEFAULT_PORT = 8080;
+
+    private static class Client {
+        final WebSocket socket;
+        final String connectionId;
+        String roomId;
+        String userId;
+
+        Client(WebSocket socket, String connectionId) {
+            this.socket = socket;
+            this.connectionId = connectionId;
+        }
+    }
+
+    private final AtomicLong connectionCounter = new AtomicLong();
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "sfu-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final SfuRouter router = new SfuRouter(worker, this);
+
+    // 以下状态只在worker线程访问
+    private final Map<String, Map<String, Client>> rooms = new LinkedHashMap<>();
+
+    public SfuServer(int port) {
+        super(new InetSocketAddress(port));
+        setReuseAddr(true);
+    }
+
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        SfuServer server = new SfuServer(port);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown, "sfu-shutdown"));
+        server.start();
+    }
+
+    @Override
+    public void onStart() {
+        log("SFU信令服务器运行在端口 " + getPort() + "，SFU用户ID: " + SFU_PEER_ID);
+    }
+
+    @Override
+    public void onOpen(WebSocket socket, ClientHandshake handshake) {
+        Client client = new Client(socket, "conn_" + connectionCounter.incrementAndGet());
+        socket.setAttachment(client);
+        log("新的客户端连接, ID: " + client.connectionId + ", 地址: " + socket.getRemoteSocketAddress());
+        JSONObject connected = new JSONObject();
+        connected.put("type", "connected");
+        connected.put("timestamp", System.currentTimeMillis());
+        connected.put("connectionId", client.connectionId);
+        socket.send(connected.toString());
+    }
+
+    @Override
+    public void onMessage(WebSocket socket, String message) {
+        Client client = socket.getAttachment();
+        worker.execute(() -> handleMessage(client, message));
+    }
+
+    @Override
+    public void onClose(WebSocket socket, int code, String reason, boolean remote) {
+        Client client = socket.getAttachment();
+        log("客户端断开连接, ID: " + client.connectionId + ", 代码: " + code + ", 原因: " + reason);
+        worker.execute(() -> leaveRoomInternal(client));
+    }
+
+    @Override
+    public void onError(WebSocket socket, Exception e) {
+        log("WebSocket错误: " + e.getMessage());
+    }
+
+    // ---------------------------------------------------------------- 消息处理（worker线程）
+
+    private void handleMessage(Client client, String message) {
+        JSONObject data;
+        try {
+            data = new JSONObject(message);
+        } catch (JSONException e) {
+            sendError(client, "消息格式错误");
+            return;
+        }
+        try {
+            String type = data.optString("type", "");
+            switch (type) {
+                case "createRoom":
+                    handleCreateRoom(client, data);
+                    break;
+                case "joinRoom":
+                    handleJoinRoom(client, data);
+                    break;
+                case "leaveRoom":
+                    handleLeaveRoom(client);
+                    break;
+                case "offer":
+                case "answer":
+                case "iceCandidate":
+                case "iceCandidates":
+                case "selectLayer":
+                    handleRelay(client, type, data);
+                    break;
+                case "getRoomInfo":
+                    handleGetRoomInfo(client);
+                    break;
+                case "ping":
+                    handlePing(client, data);
+                    break;
+                default:
+                    sendError(client, "未知消息类型: " + type);
+                    break;
+            }
+        } catch (JSONException e) {
+            log("消息处理错误: " + e.getMessage());
+            sendError(client, "消息处理时发生错误");
+        }
+    }
+
+    // 客户端的心跳，原样带回id用于计算往返时间
+    private void handlePing(Client client, JSONObject data) {
+        JSONObject pong = new JSONObject();
+        pong.put("type", "pong");
+        pong.put("id", data.optLong("id", 0));
+        client.socket.send(pong.toString());
+    }
+
+    private void handleCreateRoom(Client client, JSONObject data) {
+        String roomId = data.optString("roomId", "").trim();
+        if (roomId.isEmpty()) {
+            sendError(client, "房间ID无效");
+            return;
+        }
+        JSONObject reply = new JSONObject();
+        reply.put("roomId", roomId);
+        if (!rooms.containsKey(roomId)) {
+            rooms.put(roomId, new LinkedHashMap<>());
+            log("创建新房间: " + roomId);
+            reply.put("type", "roomCreated");
+            reply.put("message", "房间 " + roomId + " 创建成功");
+        } else {
+            reply.put("type", "roomExists");
+            reply.put("message", "房间 " + roomId + " 已存在，可以直接加入");
+        }
+        client.socket.send(reply.toString());
+    }
+
+    private void handleJoinRoom(Client client, JSONObject data) {
+        String roomId = data.optString("roomId", "");
+        String userId = data.optString("userId", "");
+        if (roomId.isEmpty() || userId.isEmpty()) {
+            sendError(client, "房间ID或用户ID无效");
+            return;
+        }
+        Map<String, Client> room = rooms.get(roomId);
+        if (room == null) {
+            sendError(client, "房间 " + roomId + " 不存在，请先创建房间");
+            return;
+        }
+        if (room.containsKey(userId) || SFU_PEER_ID.equals(userId)) {
+            sendError(client, "用户已在房间中");
+            return;
+        }
+        if (client.roomId != null) {
+            // 先离开之前的房间，房间因此被清空删除时重新创建
+            leaveRoomInternal(client);
+            room = rooms.computeIfAbsent(roomId, key -> new LinkedHashMap<>());
+        }
+
+        List<String> existingUsers = new ArrayList<>(room.keySet());
+        room.put(userId, client);
+        client.roomId = roomId;
+        client.userId = userId;
+
+        JSONObject joined = new JSONObject();
+        joined.put("type", "joined");
+        joined.put("roomId", roomId);
+        joined.put("userId", userId);
+        client.socket.send(joined.toString());
+
+        JSONObject userJoined = new JSONObject();
+        userJoined.put("type", "userJoined");
+        userJoined.put("roomId", roomId);
+        userJoined.put("userId", userId);
+        broadcast(room, userId, userJoined.toString());
+
+        if (!existingUsers.isEmpty()) {
+            JSONObject existing = new JSONObject();
+            existing.put("type", "existingUsers");
+            existing.put("roomId", roomId);
+            existing.put("users", new JSONArray(existingUsers));
+            client.socket.send(existing.toString());
+        }
+        log("用户 " + userId + " 加入房间 " + roomId + "，房间内共有 " + room.size() + " 人");
+    }
+
+    private void handleLeaveRoom(Client client) {
+        if (client.roomId == null) {
+            sendError(client, "您未加入任何房间");
+            return;
+        }
+        String roomId = client.roomId;
+        leaveRoomInternal(client);
+        JSONObject left = new JSONObject();
+        left.put("type", "left");
+        left.put("roomId", roomId);
+        left.put("message", "成功离开房间 " + roomId);
+        client.socket.send(left.toString());
+    }
+
+    private void leaveRoomInternal(Client client) {
+        String roomId = client.roomId;
+        String userId = client.userId;
+        if (roomId == null) {
+            return;
+        }
+        client.roomId = null;
+        client.userId = null;
+        // 先停止转发，再通知其他人
+        router.onLeave(roomId, userId);
+
+        Map<String, Client> room = rooms.get(roomId);
+        if (room == null || room.remove(userId) == null) {
+            return;
+        }
+        JSONObject userLeft = new JSONObject();
+        userLeft.put("type", "userLeft");
+        userLeft.put("roomId", roomId);
+        userLeft.put("userId", userId);
+        broadcast(room, null, userLeft.toString());
+        if (room.isEmpty()) {
+            rooms.remove(roomId);
+            log("房间 " + roomId + " 已清空，删除房间");
+        }
+        log("用户 " + userId + " 离开房间 " + roomId);
+    }
+
+    // offer/answer/ICE：发给SFU的交给SfuRouter，其余的加上from原样转给房间内的目标用户
+    private void handleRelay(Client client, String type, JSONObject data) {
+        if (client.roomId == null) {
+            sendError(client, "您未加入任何房间");
+            return;
+        }
+        String targetUserId = data.optString("targetUserId", "");
+        if (SFU_PEER_ID.equals(targetUserId)) {
+            relayToSfu(client, type, data);
+            return;
+        }
+        Map<String, Client> room = rooms.get(client.roomId);
+        Client target = room != null ? room.get(targetUserId) : null;
+        if (target == null) {
+            sendError(client, "目标用户 " + targetUserId + " 不存在或已断开连接");
+            return;
+        }
+        data.remove("targetUserId");
+        data.put("from", client.userId);
+        target.socket.send(data.toString());
+    }
+
+    private void relayToSfu(Client client, String type, JSONObject data) {
+        switch (type) {
+            case "offer":
+                router.onOffer(client.roomId, client.userId, data.getString("sdp"));
+                break;
+            case "answer":
+                router.onAnswer(client.roomId, client.userId, data.getString("sdp"));
+                break;
+            case "iceCandidate":
+                router.onIceCandidate(client.roomId, client.userId, toIceCandidate(data));
+                break;
+            case "selectLayer":
+                router.onSelectLayer(client.roomId, client.userId, data.getString("publisherId"), data.getString("layer"));
+                break;
+            default:
+                JSONArray candidates = data.getJSONArray("candidates");
+                for (int i = 0; i < candidates.length(); i++) {
+                    router.onIceCandidate(client.roomId, client.userId, toIceCandidate(candidates.getJSONObject(i)));
+                }
+                break;
+        }
+    }
+
+    private static RTCIceCandidate toIceCandidate(JSONObject data) {
+        return new RTCIceCandidate(data.getString("sdpMid"), data.getInt("sdpMLineIndex"), data.getString("candidate"));
+    }
+
+    private void handleGetRoomInfo(Client client) {
+        JSONArray roomList = new JSONArray();
+        for (Map.Entry<String, Map<String, Client>> entry : rooms.entrySet()) {
+            JSONObject info = new JSONObject();
+            info.put("roomId", entry.getKey());
+            info.put("userCount", entry.getValue().size());
+            info.put("users", new JSONArray(entry.getValue().keySet()));
+            roomList.put(info);
+        }
+        JSONObject reply = new JSONObject();
+        reply.put("type", "roomInfo");
+        reply.put("rooms", roomList);
+        reply.put("totalRooms", rooms.size());
+        reply.put("timestamp", System.currentTimeMillis());
+        client.socket.send(reply.toString());
+    }
+
+    // ---------------------------------------------------------------- SfuRouter.SignalingSender
+
+    /**
+     * SFU以"sfu"的身份向房间内某个用户发送信令，在worker线程调用
+     */
+    @Override
+    public void sendFromSfu(String roomId, String userId, JSONObject message) {
+        Map<String, Client> room = rooms.get(roomId);
+        Client client = room != null ? room.get(userId) : null;
+        if (client == null || !client.socket.isOpen()) {
+            return;
+        }
+        message.put("from", SFU_PEER_ID);
+        client.socket.send(message.toString());
+    }
+
+    // ---------------------------------------------------------------- 工具方法
+
+    private void broadcast(Map<String, Client> room, String excludeUserId, String message) {
+        for (Map.Entry<String, Client> entry : room.entrySet()) {
+            if (!entry.getKey().equals(excludeUserId) && entry.getValue().socket.isOpen()) {
+                entry.getValue().socket.send(message);
+            }
+        }
+    }
+
+    private void sendError(Client client, String message) {
+        JSONObject error = new JSONObject();
+        error.put("type", "error");
+        error.put("message", message);
+        if (client.socket.isOpen()) {
+            client.socket.send(error.toString());
+        }
+    }
+
+    private void shutdown() {
+        log("正在关闭服务器...");
+        JSONObject shutdown = new JSONObject();
+        shutdown.put("type", "serverShutdown");
+        shutdown.put("message", "服务器正在关闭");
+        for (WebSocket socket : getConnections()) {
+            socket.send(shutdown.toString());
+            socket.close(1000, "Server shutting down");
+        }
+        try {
+            stop(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        worker.execute(router::release);
+        worker.shutdown();
+    }
+
+    static void log(String message) {
+        System.out.println("[" + Instant.now() + "] " + message);
+    }
+}
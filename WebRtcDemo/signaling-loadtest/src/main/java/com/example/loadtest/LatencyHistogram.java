@@ -0,0 +1,84 @@
+package com.example.loadtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 延迟直方图，单位微秒
+ * 64微秒以下每微秒一个桶，之上每个2的幂区间再分32个桶，相对误差约3%；
+ * 多个线程并发记录，不加锁，内存固定
+ */
+final class LatencyHistogram {
+    private static final int LINEAR_BUCKETS = 64;
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // 64 = 2^6，最高到2^46微秒，远超压测时长
+    private static final int FIRST_EXPONENT = 6;
+    private static final int LAST_EXPONENT = 46;
+
+    private final AtomicLongArray counts =
+            new AtomicLongArray(LINEAR_BUCKETS + (LAST_EXPONENT - FIRST_EXPONENT + 1) * SUB_BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void recordNanos(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(indexOf(micros));
+        total.increment();
+        sum.add(micros);
+        max.accumulateAndGet(micros, Math::max);
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    double meanMillis() {
+        long count = total.sum();
+        return count == 0 ? 0 : sum.sum() / 1000.0 / count;
+    }
+
+    double maxMillis() {
+        return max.get() / 1000.0;
+    }
+
+    /**
+     * 百分位数（0 < p ≤ 1），单位毫秒，取所在桶的上界
+     */
+    double percentileMillis(double p) {
+        long count = total.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(p * count);
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(upperBound(i), max.get()) / 1000.0;
+            }
+        }
+        return maxMillis();
+    }
+
+    private static int indexOf(long micros) {
+        if (micros < LINEAR_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), LAST_EXPONENT);
+        int sub = (int) ((micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return LINEAR_BUCKETS + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        int exponent = FIRST_EXPONENT + (index - LINEAR_BUCKETS) / SUB_BUCKETS;
+        int sub = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (sub + 1) * width - 1;
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.loadtest;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 压测统计：按消息类型的收发数量、字节数和延迟直方图，所有虚拟客户端共享
+ */
+final class LoadStats {
+    // 保留的错误消息样本数
+    private static final int MAX_ERROR_SAMPLES = 10;
+
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> sent = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> received = new ConcurrentHashMap<>();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final ConcurrentLinkedQueue<String> errorSamples = new ConcurrentLinkedQueue<>();
+    final AtomicInteger connectFailures = new AtomicInteger();
+    final AtomicInteger connected = new AtomicInteger();
+    final AtomicInteger joined = new AtomicInteger();
+    final AtomicInteger disconnected = new AtomicInteger();
+
+    void recordSent(String type, int length) {
+        counter(sent, type).increment();
+        bytesSent.add(length);
+    }
+
+    void recordReceived(String type, int length) {
+        counter(received, type != null ? type : "unknown").increment();
+        bytesReceived.add(length);
+    }
+
+    void recordLatency(String name, long nanos) {
+        latencies.computeIfAbsent(name, key -> new LatencyHistogram()).recordNanos(nanos);
+    }
+
+    void recordError(String message) {
+        errors.increment();
+        if (errorSamples.size() < MAX_ERROR_SAMPLES) {
+            errorSamples.add(message);
+        }
+    }
+
+    long totalReceived() {
+        return sum(received);
+    }
+
+    void print(PrintStream out, double elapsedSeconds) {
+        out.println();
+        out.printf("压测时长: %.1f 秒, 连接成功: %d, 连接失败: %d, 加入房间: %d, 异常断开: %d%n",
+                elapsedSeconds, connected.get(), connectFailures.get(), joined.get(), disconnected.get());
+        out.printf("发送: %d 条 / %.1f KB, 接收: %d 条 / %.1f KB, 服务器错误: %d%n",
+                sum(sent), bytesSent.sum() / 1024.0, totalReceived(), bytesReceived.sum() / 1024.0, errors.sum());
+
+        out.println();
+        out.println("消息吞吐（条/秒）");
+        out.printf("  %-16s %10s %10s %10s %10s%n", "类型", "发送", "发送/秒", "接收", "接收/秒");
+        Set<String> types = new TreeSet<>(sent.keySet());
+        types.addAll(received.keySet());
+        for (String type : types) {
+            long s = count(sent, type);
+            long r = count(received, type);
+            out.printf("  %-16s %10d %10.1f %10d %10.1f%n", type, s, s / elapsedSeconds, r, r / elapsedSeconds);
+        }
+
+        out.println();
+        out.println("延迟（毫秒）：请求类型为发送到收到服务器回复，转发类型为发送到对端收到，offer->answer为经对端的往返");
+        out.printf("  %-16s %8s %8s %8s %8s %8s %8s %8s%n", "类型", "样本", "平均", "p50", "p90", "p99", "p99.9", "最大");
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(latencies).entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            out.printf("  %-16s %8d %8.2f %8.2f %8.2f %8.2f %8.2f %8.2f%n", entry.getKey(), histogram.count(),
+                    histogram.meanMillis(), histogram.percentileMillis(0.5), histogram.percentileMillis(0.9),
+                    histogram.percentileMillis(0.99), histogram.percentileMillis(0.999), histogram.maxMillis());
+        }
+
+        List<String> samples = new ArrayList<>(errorSamples);
+        if (!samples.isEmpty()) {
+            out.println();
+            out.println("服务器错误示例:");
+            for (String sample : samples) {
+                out.println("  " + sample);
+            }
+        }
+    }
+
+    private static LongAdder counter(Map<String, LongAdder> counters, String type) {
+        return counters.computeIfAbsent(type, key -> new LongAdder());
+    }
+
+    private static long count(Map<String, LongAdder> counters, String type) {
+        LongAdder counter = counters.get(type);
+        return counter != null ? counter.sum() : 0;
+    }
+
+    private static long sum(Map<String, LongAdder> counters) {
+        long total = 0;
+        for (LongAdder counter : counters.values()) {
+            total += counter.sum();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.loadtest;
+
+/**
+ * 压测参数，命令行格式为 --名称 值
+ */
+final class LoadTestOptions {
+    String url = "ws://127.0.0.1:8080";
+    // 虚拟客户端总数
+    int clients = 1000;
+    // 每个房间的人数，网状模式下每对用户之间都有一次协商
+    int roomSize = 2;
+    int durationSeconds = 30;
+    // 每对用户重新协商的间隔
+    int cycleMillis = 2000;
+    // 每次协商每一方发送的ICE候选数
+    int iceCandidates = 4;
+    // 同时在进行握手的连接数上限
+    int connectConcurrency = 200;
+
+    static LoadTestOptions parse(String[] args) {
+        LoadTestOptions options = new LoadTestOptions();
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("参数缺少值: " + name);
+            }
+            String value = args[++i];
+            switch (name) {
+                case "--url":
+                    options.url = value;
+                    break;
+                case "--clients":
+                    options.clients = Integer.parseInt(value);
+                    break;
+                case "--room-size":
+                    options.roomSize = Integer.parseInt(value);
+                    break;
+                case "--duration":
+                    options.durationSeconds = Integer.parseInt(value);
+                    break;
+                case "--cycle-ms":
+                    options.cycleMillis = Integer.parseInt(value);
+                    break;
+                case "--ice":
+                    options.iceCandidates = Integer.parseInt(value);
+                    break;
+                case "--connect-concurrency":
+                    options.connectConcurrency = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("未知参数: " + name);
+            }
+        }
+        if (options.clients <= 0 || options.roomSize <= 0 || options.connectConcurrency <= 0) {
+            throw new IllegalArgumentException("clients、room-size、connect-concurrency必须大于0");
+        }
+        return options;
+    }
+
+    @Override
+    public String toString() {
+        return "url=" + url + ", clients=" + clients + ", roomSize=" + roomSize + ", duration=" + durationSeconds
+                + "s, cycle=" + cycleMillis + "ms, ice=" + iceCandidates + ", connectConcurrency=" + connectConcurrency;
+    }
+}
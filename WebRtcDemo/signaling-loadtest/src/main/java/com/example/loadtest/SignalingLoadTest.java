@@ -0,0 +1,124 @@
+package com.example.loadtest;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 信令服务器压测工具
+ * 在一个进程里启动大量虚拟客户端，按脚本走创建房间、加入、offer/answer和ICE的流程，
+ * 结束后输出按消息类型的延迟百分位和吞吐。所有客户端共享一个HttpClient，
+ * 连接数不受线程数限制；延迟用System.nanoTime()在压测进程内计算
+ *
+ * 用法: --url ws://127.0.0.1:8080 --clients 2000 --room-size 2 --duration 30
+ */
+public final class SignalingLoadTest {
+    private static final long PROGRESS_INTERVAL_SECONDS = 5;
+    private static final long LEAVE_TIMEOUT_SECONDS = 10;
+
+    private SignalingLoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options;
+        try {
+            options = LoadTestOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("用法: --url ws://127.0.0.1:8080 --clients 1000 --room-size 2 --duration 30 "
+                    + "--cycle-ms 2000 --ice 4 --connect-concurrency 200");
+            System.exit(1);
+            return;
+        }
+        System.out.println("压测参数: " + options);
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService callbackExecutor = Executors.newFixedThreadPool(threads, daemonThreads("loadtest-io"));
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("loadtest-scheduler"));
+        HttpClient httpClient = HttpClient.newBuilder().executor(callbackExecutor).build();
+        LoadStats stats = new LoadStats();
+        URI uri = URI.create(options.url);
+
+        // 每个压测进程用不同的房间前缀，多次运行不会进到上一次残留的房间
+        String runId = Long.toString(System.currentTimeMillis() % 1_000_000, 36);
+        List<VirtualClient> clients = new ArrayList<>(options.clients);
+        CompletableFuture<Void> roomCreated = null;
+        for (int i = 0; i < options.clients; i++) {
+            int member = i % options.roomSize;
+            if (member == 0) {
+                roomCreated = new CompletableFuture<>();
+            }
+            String roomId = "load-" + runId + "-" + (i / options.roomSize);
+            clients.add(new VirtualClient("user-" + runId + "-" + i, roomId, member == 0, roomCreated,
+                    options, stats, scheduler));
+        }
+
+        long start = System.nanoTime();
+        scheduler.scheduleAtFixedRate(() -> System.out.printf("[%.0fs] 已连接: %d, 已加入: %d, 连接失败: %d, 收到消息: %d%n",
+                        (System.nanoTime() - start) / 1e9, stats.connected.get(), stats.joined.get(),
+                        stats.connectFailures.get(), stats.totalReceived()),
+                PROGRESS_INTERVAL_SECONDS, PROGRESS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        // 限制同时握手的数量，避免一次性发起上千个连接把服务器的accept队列打满
+        Semaphore connecting = new Semaphore(options.connectConcurrency);
+        AtomicInteger pending = new AtomicInteger(options.clients);
+        CompletableFuture<Void> allConnected = new CompletableFuture<>();
+        for (VirtualClient client : clients) {
+            connecting.acquire();
+            client.connect(httpClient, uri).whenComplete((webSocket, error) -> {
+                connecting.release();
+                if (error != null) {
+                    int failures = stats.connectFailures.incrementAndGet();
+                    if (failures <= 3) {
+                        System.err.println("连接失败: " + error);
+                    }
+                }
+                if (pending.decrementAndGet() == 0) {
+                    allConnected.complete(null);
+                }
+            });
+        }
+        allConnected.join();
+        System.out.printf("全部连接完成，用时 %.1f 秒，开始持续 %d 秒的协商循环%n",
+                (System.nanoTime() - start) / 1e9, options.durationSeconds);
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(options.durationSeconds));
+
+        List<CompletableFuture<Void>> leaving = new ArrayList<>(clients.size());
+        for (VirtualClient client : clients) {
+            leaving.add(client.leave());
+        }
+        try {
+            CompletableFuture.allOf(leaving.toArray(new CompletableFuture<?>[0])).get(LEAVE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            System.err.println("部分客户端在 " + LEAVE_TIMEOUT_SECONDS + " 秒内没有收到离开房间的回复");
+        }
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        for (VirtualClient client : clients) {
+            client.close();
+        }
+
+        stats.print(System.out, elapsedSeconds);
+        scheduler.shutdownNow();
+        callbackExecutor.shutdownNow();
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
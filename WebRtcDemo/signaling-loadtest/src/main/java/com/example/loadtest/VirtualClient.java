@@ -0,0 +1,345 @@
+package com.example.loadtest;
+
+import com.example.webrtctest.SignalingMessage;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个虚拟客户端，按WebRtcSignalingClient的消息格式走完一次通话的信令：
+ * 连接 → 创建/加入房间 → 查询房间信息 → 对每个后加入的用户发offer，对端回answer，双方发送批量ICE候选；
+ * 之后每个周期重新协商一次，直到压测结束时离开房间。
+ * WebSocket回调和定时任务在不同线程上，状态都在synchronized方法里修改
+ */
+final class VirtualClient implements WebSocket.Listener {
+    private static final String SDP_JSON = syntheticSdp();
+
+    final String userId;
+    private final String roomId;
+    private final boolean creator;
+    private final CompletableFuture<Void> roomCreated;
+    private final LoadTestOptions options;
+    private final LoadStats stats;
+    private final ScheduledExecutorService scheduler;
+    private final CompletableFuture<Void> left = new CompletableFuture<>();
+
+    private WebSocket webSocket;
+    private final StringBuilder partial = new StringBuilder();
+    // JDK的WebSocket同一时间只能有一个未完成的发送，后续发送接在前一个后面
+    private CompletableFuture<WebSocket> sendChain = CompletableFuture.completedFuture(null);
+    private long connectStart;
+    // 请求类型 → 发送时间，同一类型同一时间只有一个请求
+    private final Map<String, Long> requestStarts = new HashMap<>();
+    // 对端用户ID → offer发送时间
+    private final Map<String, Long> offerStarts = new HashMap<>();
+    // 由本客户端发起协商的对端（在本客户端之后加入的用户）
+    private final Set<String> offeredPeers = new LinkedHashSet<>();
+    private int candidateCounter = 0;
+    private boolean joined = false;
+    private boolean stopping = false;
+
+    VirtualClient(String userId, String roomId, boolean creator, CompletableFuture<Void> roomCreated,
+                  LoadTestOptions options, LoadStats stats, ScheduledExecutorService scheduler) {
+        this.userId = userId;
+        this.roomId = roomId;
+        this.creator = creator;
+        this.roomCreated = roomCreated;
+        this.options = options;
+        this.stats = stats;
+        this.scheduler = scheduler;
+    }
+
+    CompletableFuture<WebSocket> connect(HttpClient httpClient, URI uri) {
+        connectStart = System.nanoTime();
+        return httpClient.newWebSocketBuilder()
+                .connectTimeout(Duration.ofSeconds(10))
+                .buildAsync(uri, this);
+    }
+
+    /**
+     * 停止重新协商并离开房间，返回收到left回复（或本来就不在房间）时完成的future
+     */
+    synchronized CompletableFuture<Void> leave() {
+        stopping = true;
+        if (joined && webSocket != null) {
+            request("leaveRoom", "{\"type\":\"leaveRoom\"}");
+        } else {
+            left.complete(null);
+        }
+        return left;
+    }
+
+    synchronized void close() {
+        if (webSocket != null) {
+            WebSocket socket = webSocket;
+            sendChain.whenComplete((ignored, error) -> socket.sendClose(WebSocket.NORMAL_CLOSURE, ""));
+        }
+    }
+
+    // ---------------------------------------------------------------- WebSocket.Listener
+
+    @Override
+    public void onOpen(WebSocket webSocket) {
+        synchronized (this) {
+            this.webSocket = webSocket;
+        }
+        stats.connected.incrementAndGet();
+        webSocket.request(1);
+    }
+
+    @Override
+    public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+        if (!last) {
+            partial.append(data);
+        } else if (partial.length() > 0) {
+            partial.append(data);
+            String text = partial.toString();
+            partial.setLength(0);
+            onMessage(text);
+        } else {
+            onMessage(data.toString());
+        }
+        webSocket.request(1);
+        return null;
+    }
+
+    @Override
+    public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+        onDisconnected();
+        return null;
+    }
+
+    @Override
+    public void onError(WebSocket webSocket, Throwable error) {
+        onDisconnected();
+    }
+
+    private synchronized void onDisconnected() {
+        if (!stopping) {
+            stats.disconnected.incrementAndGet();
+        }
+        stopping = true;
+        left.complete(null);
+    }
+
+    // ---------------------------------------------------------------- 消息处理
+
+    private synchronized void onMessage(String text) {
+        long now = System.nanoTime();
+        SignalingMessage message;
+        String type;
+        try {
+            message = SignalingMessage.decode(text);
+            type = message.type();
+        } catch (SignalingMessage.DecodeException e) {
+            stats.recordReceived(null, text.length());
+            stats.recordError(userId + ": 无法解析的消息: " + e.getMessage());
+            return;
+        }
+        stats.recordReceived(type, text.length());
+        if (type == null) {
+            return;
+        }
+        try {
+            handleMessage(type, message, now);
+        } catch (SignalingMessage.DecodeException e) {
+            stats.recordError(userId + ": " + type + "消息格式错误: " + e.getMessage());
+        }
+    }
+
+    // 调用方持有this锁
+    private void handleMessage(String type, SignalingMessage message, long now) throws SignalingMessage.DecodeException {
+        switch (type) {
+            case "connected":
+                stats.recordLatency("connect", now - connectStart);
+                if (creator) {
+                    request("createRoom", "{\"type\":\"createRoom\",\"roomId\":\"" + roomId + "\"}");
+                } else {
+                    roomCreated.thenRun(this::join);
+                }
+                break;
+            case "roomCreated":
+            case "roomExists":
+                completeRequest("createRoom", now);
+                join();
+                roomCreated.complete(null);
+                break;
+            case "joined":
+                completeRequest("joinRoom", now);
+                joined = true;
+                stats.joined.incrementAndGet();
+                request("getRoomInfo", "{\"type\":\"getRoomInfo\"}");
+                break;
+            case "roomInfo":
+                completeRequest("getRoomInfo", now);
+                break;
+            case "userJoined": {
+                // 和客户端一样由已在房间的一方向新加入的用户发起offer
+                String peer = message.optString("userId", null);
+                if (peer != null && offeredPeers.add(peer)) {
+                    sendOffer(peer);
+                }
+                break;
+            }
+            case "userLeft": {
+                String peer = message.optString("userId", null);
+                offeredPeers.remove(peer);
+                offerStarts.remove(peer);
+                break;
+            }
+            case "offer": {
+                recordDelivery(type, message, now);
+                if (stopping) {
+                    // 已经发出leaveRoom，不再应答，避免服务器回"未加入任何房间"
+                    break;
+                }
+                String from = message.getString("from");
+                send("answer", "{\"type\":\"answer\",\"targetUserId\":\"" + from + "\",\"sentAt\":"
+                        + System.nanoTime() + ",\"sdp\":" + SDP_JSON + "}");
+                sendCandidates(from);
+                break;
+            }
+            case "answer": {
+                recordDelivery(type, message, now);
+                String from = message.getString("from");
+                Long start = offerStarts.remove(from);
+                if (start != null) {
+                    stats.recordLatency("offer->answer", now - start);
+                }
+                if (stopping) {
+                    break;
+                }
+                sendCandidates(from);
+                scheduleRenegotiation(from);
+                break;
+            }
+            case "iceCandidate":
+            case "iceCandidates":
+                recordDelivery(type, message, now);
+                break;
+            case "left":
+                completeRequest("leaveRoom", now);
+                joined = false;
+                left.complete(null);
+                break;
+            case "error":
+                stats.recordError(userId + ": " + message.optString("message", null));
+                break;
+            default:
+                break;
+        }
+    }
+
+    private synchronized void join() {
+        if (!stopping) {
+            request("joinRoom", "{\"type\":\"joinRoom\",\"roomId\":\"" + roomId + "\",\"userId\":\"" + userId + "\"}");
+        }
+    }
+
+    private void sendOffer(String peer) {
+        offerStarts.put(peer, System.nanoTime());
+        send("offer", "{\"type\":\"offer\",\"targetUserId\":\"" + peer + "\",\"sentAt\":"
+                + System.nanoTime() + ",\"sdp\":" + SDP_JSON + "}");
+    }
+
+    // 和客户端发送队列的合并结果一致：一次协商的候选合并成一条iceCandidates
+    private void sendCandidates(String peer) {
+        int count = options.iceCandidates;
+        if (count <= 0) {
+            return;
+        }
+        StringBuilder candidates = new StringBuilder(count * 160);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                candidates.append(',');
+            }
+            int n = candidateCounter++;
+            candidates.append("{\"candidate\":\"candidate:").append(842163049 + n)
+                    .append(" 1 udp 1677729535 192.168.").append((n >> 8) & 0xFF).append('.').append(n & 0xFF)
+                    .append(' ').append(50000 + n % 10000)
+                    .append(" typ srflx raddr 10.0.2.15 rport 43567 generation 0 ufrag 4ZcD network-cost 999\"")
+                    .append(",\"sdpMid\":\"").append(i % 2).append("\",\"sdpMLineIndex\":").append(i % 2).append('}');
+        }
+        if (count == 1) {
+            String candidate = candidates.substring(1, candidates.length() - 1);
+            send("iceCandidate", "{\"type\":\"iceCandidate\",\"targetUserId\":\"" + peer + "\",\"sentAt\":"
+                    + System.nanoTime() + "," + candidate + "}");
+        } else {
+            send("iceCandidates", "{\"type\":\"iceCandidates\",\"targetUserId\":\"" + peer + "\",\"sentAt\":"
+                    + System.nanoTime() + ",\"candidates\":[" + candidates + "]}");
+        }
+    }
+
+    private void scheduleRenegotiation(String peer) {
+        if (stopping) {
+            return;
+        }
+        scheduler.schedule(() -> renegotiate(peer), options.cycleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void renegotiate(String peer) {
+        if (!stopping && offeredPeers.contains(peer)) {
+            sendOffer(peer);
+        }
+    }
+
+    // ---------------------------------------------------------------- 发送与计时
+
+    private void request(String type, String json) {
+        requestStarts.put(type, System.nanoTime());
+        send(type, json);
+    }
+
+    private void completeRequest(String type, long now) {
+        Long start = requestStarts.remove(type);
+        if (start != null) {
+            stats.recordLatency(type, now - start);
+        }
+    }
+
+    // 转发的消息带着发送方的System.nanoTime()，压测端在同一个进程内，可以直接相减
+    private void recordDelivery(String type, SignalingMessage message, long now) throws SignalingMessage.DecodeException {
+        if (message.has("sentAt")) {
+            stats.recordLatency(type, now - message.getLong("sentAt"));
+        }
+    }
+
+    private void send(String type, String json) {
+        if (webSocket == null) {
+            return;
+        }
+        stats.recordSent(type, json.length());
+        WebSocket socket = webSocket;
+        sendChain = sendChain.thenCompose(ignored -> socket.sendText(json, true));
+    }
+
+    // 大小和结构接近libwebrtc生成的音视频offer（约4KB）
+    private static String syntheticSdp() {
+        StringBuilder sdp = new StringBuilder(4096);
+        sdp.append("v=0\\r\\no=- 4611731400430051336 2 IN IP4 127.0.0.1\\r\\ns=-\\r\\nt=0 0\\r\\n")
+                .append("a=group:BUNDLE 0 1\\r\\na=extmap-allow-mixed\\r\\na=msid-semantic: WMS ARDAMS\\r\\n");
+        String[] kinds = {"audio 9 UDP/TLS/RTP/SAVPF 111 63 9 102 0 8 13 110 126",
+                "video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100 101 35 36 37 38 102 103 104 105 106 107 108 109 127 125"};
+        for (int m = 0; m < kinds.length; m++) {
+            sdp.append("m=").append(kinds[m]).append("\\r\\nc=IN IP4 0.0.0.0\\r\\na=rtcp:9 IN IP4 0.0.0.0\\r\\n")
+                    .append("a=ice-ufrag:4ZcD\\r\\na=ice-pwd:2/1muCWoOi3uLifh0NuRHlvy\\r\\na=ice-options:trickle renomination\\r\\n")
+                    .append("a=fingerprint:sha-256 75:74:5A:A6:A4:E5:52:F4:A7:67:4C:01:C7:EE:91:3F:21:3D:A2:E3:53:7B:6F:30:86:F2:30:AA:65:FB:04:24\\r\\n")
+                    .append("a=setup:actpass\\r\\na=mid:").append(m).append("\\r\\na=sendrecv\\r\\na=rtcp-mux\\r\\n");
+            for (int pt = 0; pt < 18; pt++) {
+                sdp.append("a=rtpmap:").append(96 + pt).append(" VP8/90000\\r\\na=rtcp-fb:").append(96 + pt)
+                        .append(" goog-remb\\r\\na=rtcp-fb:").append(96 + pt).append(" transport-cc\\r\\n");
+            }
+        }
+        return "\"" + sdp + "\"";
+    }
+}
@@ -20,16 +20,22 @@ const rooms = new Map(); // roomId -> Set of {ws, userId}
 // 全局存储所有连接
 const allConnections = new Map(); // 用于跟踪所有活跃连接
 
+// 会话恢复：连接意外断开后，客户端在这个时间内带着sessionToken重连可以保留房间状态，
+// 期间发给该用户的消息先缓存，恢复后补发
+const RESUME_WINDOW_MS = 30000;
+// 每个会话保留最近发出的消息数，超出后最早的消息不能再补发
+const REPLAY_BUFFER_SIZE = 256;
+const sessions = new Map(); // sessionToken -> session
+
 // 生成唯一ID
 function generateUniqueId() {
     return Math.random().toString(36).substring(2, 15) + Math.random().toString(36).substring(2, 15);
 }
 
-// 安全发送消息的函数
-function safeSend(ws, message) {
+function rawSend(socket, text) {
     try {
-        if (ws && ws.readyState === WebSocket.OPEN) {
-            ws.send(JSON.stringify(message));
+        if (socket && socket.readyState === WebSocket.OPEN) {
+            socket.send(text);
             return true;
         }
     } catch (e) {
@@ -38,6 +44,62 @@ function safeSend(ws, message) {
     return false;
 }
 
+// 安全发送消息的函数
+// 消息带上会话内递增的seq（放在第一个字段）并进入重放缓冲区；会话挂起时只缓存，恢复后补发
+function safeSend(ws, message) {
+    const session = ws && ws.session;
+    if (!session) {
+        return rawSend(ws, JSON.stringify(message));
+    }
+    if (session.ended) {
+        return false;
+    }
+    const seq = ++session.outSeq;
+    const text = JSON.stringify({ seq, ...message });
+    session.replay.push({ seq, text });
+    if (session.replay.length > REPLAY_BUFFER_SIZE) {
+        session.replay.shift();
+    }
+    if (session.suspended) {
+        return true;
+    }
+    return rawSend(session.socket, text);
+}
+
+// 用户是否还在线：会话挂起等待恢复期间也算在线，发给它的消息会缓存
+function isAlive(ws) {
+    const session = ws && ws.session;
+    if (session) {
+        return !session.ended && (session.suspended || (!!session.socket && session.socket.readyState === WebSocket.OPEN));
+    }
+    return !!ws && ws.readyState === WebSocket.OPEN;
+}
+
+function createSession(ws) {
+    const session = {
+        token: generateUniqueId() + generateUniqueId(),
+        owner: ws,            // 代表这个用户的ws对象，房间里保存的是它，恢复后也不变
+        socket: ws,           // 当前实际收发数据的连接，挂起时为null
+        outSeq: 0,            // 最后发给客户端的消息序号
+        lastInSeq: 0,         // 最后处理的客户端消息序号
+        replay: [],           // 最近发出的消息 {seq, text}
+        resumable: false,     // 客户端发过带seq的消息，说明支持会话恢复
+        suspended: false,
+        ended: false,
+        expiryTimer: null
+    };
+    sessions.set(session.token, session);
+    return session;
+}
+
+function endSession(session) {
+    session.ended = true;
+    session.suspended = false;
+    session.replay = [];
+    clearTimeout(session.expiryTimer);
+    sessions.delete(session.token);
+}
+
 wss.on('connection', (ws, req) => {
     // 生成连接ID
     const connectionId = generateUniqueId();
@@ -49,20 +111,25 @@ wss.on('connection', (ws, req) => {
     ws.currentUser = null;
     ws.joinedRooms = new Set(); // 跟踪用户加入的房间
     ws.connectionId = connectionId; // 存储连接ID
+    ws.session = createSession(ws);
     
-    // 发送连接成功的消息
-    safeSend(ws, {
+    // 发送连接成功的消息，会话控制消息不带seq、不进入重放缓冲区
+    rawSend(ws, JSON.stringify({
         type: 'connected',
         timestamp: Date.now(),
-        connectionId: connectionId
-    });
+        connectionId: connectionId,
+        sessionToken: ws.session.token,
+        resumeWindowMs: RESUME_WINDOW_MS
+    }));
     
     ws.on('message', (message) => {
+        // 恢复会话后的新连接代表原来的用户，消息按原来的ws处理
+        const owner = ws.owner || ws;
         try {
             // 健壮性检查
             if (!message || (typeof message !== 'string' && !Buffer.isBuffer(message))) {
                 console.warn('收到无效消息类型');
-                safeSend(ws, {
+                safeSend(owner, {
                     type: 'error',
                     message: '无效的消息格式'
                 });
@@ -75,7 +142,7 @@ wss.on('connection', (ws, req) => {
                 data = JSON.parse(message.toString());
             } catch (parseError) {
                 console.error('解析消息失败:', parseError);
-                safeSend(ws, {
+                safeSend(owner, {
                     type: 'error',
                     message: '消息解析失败，请检查JSON格式'
                 });
@@ -85,46 +152,74 @@ wss.on('connection', (ws, req) => {
             // 验证消息结构
             if (!data.type) {
                 console.warn('消息缺少type字段');
-                safeSend(ws, {
+                safeSend(owner, {
                     type: 'error',
                     message: '消息缺少必要的type字段'
                 });
                 return;
             }
             
+            if (data.type === 'resume') {
+                handleResume(ws, data);
+                return;
+            }
+            
+            // 心跳直接在当前连接上回复，不编号也不进入重放缓冲区
+            if (data.type === 'ping') {
+                rawSend(ws, JSON.stringify({ type: 'pong', id: data.id, timestamp: Date.now() }));
+                return;
+            }
+            
+            // 重连后客户端会补发对方可能没收到的消息，已处理过的序号直接丢弃
+            const session = owner.session;
+            if (typeof data.seq === 'number') {
+                if (data.seq <= session.lastInSeq) {
+                    console.log(`丢弃重复消息 [${connectionId}]: ${data.type}, seq=${data.seq}`);
+                    return;
+                }
+                session.lastInSeq = data.seq;
+                session.resumable = true;
+            }
+            
             console.log(`收到消息 [${connectionId}]:`, data.type);
             
             switch (data.type) {
                 case 'createRoom':
-                    handleCreateRoom(ws, data);
+                    handleCreateRoom(owner, data);
                     break;
                 case 'joinRoom':
-                    handleJoinRoom(ws, data);
+                    handleJoinRoom(owner, data);
                     break;
                 case 'leaveRoom':
-                    handleLeaveRoom(ws, data);
+                    handleLeaveRoom(owner, data);
                     break;
                 case 'offer':
-                    handleOffer(ws, data);
+                    handleOffer(owner, data);
                     break;
                 case 'answer':
-                    handleAnswer(ws, data);
+                    handleAnswer(owner, data);
                     break;
                 case 'iceCandidate':
-                    handleIceCandidate(ws, data);
+                    handleIceCandidate(owner, data);
+                    break;
+                case 'iceCandidates':
+                    handleIceCandidates(owner, data);
+                    break;
+                case 'selectLayer':
+                    handleSelectLayer(owner, data);
                     break;
                 case 'getRoomInfo':
-                    handleGetRoomInfo(ws, data);
+                    handleGetRoomInfo(owner, data);
                     break;
                 default:
-                    safeSend(ws, {
+                    safeSend(owner, {
                         type: 'error',
                         message: '未知消息类型: ' + data.type
                     });
             }
         } catch (e) {
             console.error('消息处理错误:', e);
-            safeSend(ws, {
+            safeSend(owner, {
                 type: 'error',
                 message: '消息处理时发生错误'
             });
@@ -133,7 +228,19 @@ wss.on('connection', (ws, req) => {
     
     ws.on('close', (code, reason) => {
         console.log(`[${new Date().toISOString()}] 客户端断开连接, ID: ${connectionId}, 代码: ${code}, 原因: ${reason}`);
-        handleDisconnect(ws);
+        const owner = ws.owner || ws;
+        const session = owner.session;
+        if (session.socket !== ws) {
+            // 这个连接已经被恢复会话的新连接替换
+            return;
+        }
+        if (code !== 1000 && session.resumable && !session.ended) {
+            // 意外断开：保留房间状态等待客户端恢复会话；不支持恢复的旧客户端立即离开房间
+            suspendSession(owner);
+            return;
+        }
+        endSession(session);
+        handleDisconnect(owner);
     });
     
     ws.on('error', (error) => {
@@ -141,6 +248,75 @@ wss.on('connection', (ws, req) => {
         // 注意：这里不立即调用handleDisconnect，因为close事件会被触发
     });
     
+    function suspendSession(owner) {
+        const session = owner.session;
+        session.suspended = true;
+        session.socket = null;
+        console.log(`[${new Date().toISOString()}] 会话挂起, ID: ${owner.connectionId}, 等待 ${RESUME_WINDOW_MS}ms 内恢复`);
+        session.expiryTimer = setTimeout(() => {
+            console.log(`[${new Date().toISOString()}] 会话恢复超时, ID: ${owner.connectionId}`);
+            endSession(session);
+            handleDisconnect(owner);
+        }, RESUME_WINDOW_MS);
+    }
+    
+    // 客户端重连后带着原来的sessionToken恢复会话：
+    // lastSeq是客户端收到的最后一条消息序号，firstSeq是客户端还能补发的最早序号
+    function handleResume(ws, data) {
+        const { sessionToken, lastSeq, firstSeq } = data;
+        const session = sessions.get(sessionToken);
+        let failure = null;
+        if (!session || session.ended || session.owner === ws) {
+            failure = '会话不存在或已过期';
+        } else {
+            const oldest = session.replay.length > 0 ? session.replay[0].seq : session.outSeq + 1;
+            if (typeof lastSeq !== 'number' || lastSeq > session.outSeq || lastSeq + 1 < oldest) {
+                failure = '服务器缓存的消息不足以恢复会话';
+            } else if (typeof firstSeq !== 'number' || firstSeq > session.lastInSeq + 1) {
+                failure = '客户端缓存的消息不足以恢复会话';
+            }
+        }
+        
+        if (failure) {
+            console.log(`[${new Date().toISOString()}] 会话恢复失败 [${connectionId}]: ${failure}`);
+            if (session && !session.ended && session.owner !== ws) {
+                // 客户端会以新会话重新加入，旧会话立即结束，房间内其他人马上收到userLeft
+                const previous = session.socket;
+                session.socket = null;
+                endSession(session);
+                handleDisconnect(session.owner);
+                if (previous) {
+                    previous.close(1000, 'Session replaced');
+                }
+            }
+            rawSend(ws, JSON.stringify({ type: 'resumeFailed', message: failure }));
+            return;
+        }
+        
+        // 新连接接管原会话，它自己的会话和连接记录不再需要
+        endSession(ws.session);
+        allConnections.delete(ws.connectionId);
+        clearTimeout(session.expiryTimer);
+        const previous = session.socket;
+        ws.owner = session.owner;
+        session.socket = ws;
+        session.suspended = false;
+        if (previous && previous !== ws) {
+            // 服务器还没发现旧连接断开，直接关闭；它的close事件会因为socket已替换而被忽略
+            previous.close(1000, 'Session resumed');
+        }
+        
+        rawSend(ws, JSON.stringify({ type: 'resumed', sessionToken, lastSeq: session.lastInSeq }));
+        let replayed = 0;
+        session.replay.forEach(entry => {
+            if (entry.seq > lastSeq) {
+                rawSend(ws, entry.text);
+                replayed++;
+            }
+        });
+        console.log(`[${new Date().toISOString()}] 会话已恢复, ID: ${session.owner.connectionId} (新连接 ${connectionId}), 补发 ${replayed} 条消息`);
+    }
+    
     function handleCreateRoom(ws, data) {
         try {
             const { roomId } = data;
@@ -264,7 +440,7 @@ wss.on('connection', (ws, req) => {
             // 向新加入的用户发送房间内现有用户的信息
             const existingUsers = [];
             roomSet.forEach(client => {
-                if (client.ws !== ws && client.ws.readyState === WebSocket.OPEN) {
+                if (client.ws !== ws && isAlive(client.ws)) {
                     existingUsers.push(client.userId);
                 }
             });
@@ -413,7 +589,7 @@ wss.on('connection', (ws, req) => {
                 
                 for (const client of room) {
                     if (client.userId === targetUserId) {
-                        if (client.ws.readyState === WebSocket.OPEN) {
+                        if (isAlive(client.ws)) {
                             safeSend(client.ws, {
                                 type: 'offer',
                                 sdp: sdp,
@@ -489,7 +665,7 @@ wss.on('connection', (ws, req) => {
                 
                 for (const client of room) {
                     if (client.userId === targetUserId) {
-                        if (client.ws.readyState === WebSocket.OPEN) {
+                        if (isAlive(client.ws)) {
                             safeSend(client.ws, {
                                 type: 'answer',
                                 sdp: sdp,
@@ -557,7 +733,7 @@ wss.on('connection', (ws, req) => {
                 
                 for (const client of room) {
                     if (client.userId === targetUserId) {
-                        if (client.ws.readyState === WebSocket.OPEN) {
+                        if (isAlive(client.ws)) {
                             safeSend(client.ws, {
                                 type: 'iceCandidate',
                                 candidate: candidate,
@@ -589,6 +765,83 @@ wss.on('connection', (ws, req) => {
         }
     }
     
+    // 订阅方按画面大小选择发布方视频的层，原样转给发布方
+    function handleSelectLayer(ws, data) {
+        try {
+            if (!ws.currentUser) {
+                console.log('用户未加入任何房间，无法选择视频层');
+                return;
+            }
+            
+            const { targetUserId, publisherId, layer } = data;
+            const { roomId, userId } = ws.currentUser;
+            
+            if (!targetUserId || !layer) {
+                console.warn('视频层选择缺少目标用户ID或层');
+                return;
+            }
+            
+            if (rooms.has(roomId)) {
+                const room = rooms.get(roomId);
+                for (const client of room) {
+                    if (client.userId === targetUserId) {
+                        if (isAlive(client.ws)) {
+                            safeSend(client.ws, {
+                                type: 'selectLayer',
+                                publisherId: publisherId,
+                                layer: layer,
+                                from: userId
+                            });
+                        } else {
+                            room.delete(client);
+                        }
+                        break;
+                    }
+                }
+            }
+        } catch (e) {
+            console.error('处理视频层选择错误:', e);
+        }
+    }
+    
+    // 客户端合并发送的一组ICE候选，原样转发给目标用户
+    function handleIceCandidates(ws, data) {
+        try {
+            if (!ws.currentUser) {
+                console.log('用户未加入任何房间，无法发送ICE候选');
+                return;
+            }
+            
+            const { targetUserId, candidates } = data;
+            const { roomId, userId } = ws.currentUser;
+            
+            if (!targetUserId || !Array.isArray(candidates)) {
+                console.warn('ICE候选缺少目标用户ID或候选列表');
+                return;
+            }
+            
+            if (rooms.has(roomId)) {
+                const room = rooms.get(roomId);
+                for (const client of room) {
+                    if (client.userId === targetUserId) {
+                        if (isAlive(client.ws)) {
+                            safeSend(client.ws, {
+                                type: 'iceCandidates',
+                                candidates: candidates,
+                                from: userId
+                            });
+                        } else {
+                            room.delete(client);
+                        }
+                        break;
+                    }
+                }
+            }
+        } catch (e) {
+            console.error('处理ICE候选错误:', e);
+        }
+    }
+    
     function handleDisconnect(ws) {
         try {
             const connectionId = ws.connectionId;
@@ -647,7 +900,7 @@ wss.on('connection', (ws, req) => {
                 const disconnectedClients = [];
                 
                 for (const client of room) {
-                    if (client.ws.readyState === WebSocket.OPEN) {
+                    if (isAlive(client.ws)) {
                         activeClients.push(client);
                     } else {
                         disconnectedClients.push(client);
@@ -699,7 +952,7 @@ wss.on('connection', (ws, req) => {
                 const userCount = room.size;
                 
                 for (const client of room) {
-                    if (client.ws.readyState === WebSocket.OPEN) {
+                    if (isAlive(client.ws)) {
                         activeUsers.push(client.userId);
                     } else {
                         // 标记为待清理
@@ -726,7 +979,7 @@ setInterval(() => {
             const disconnectedClients = [];
             
             for (const client of room) {
-                if (!client.ws || client.ws.readyState !== WebSocket.OPEN) {
+                if (!isAlive(client.ws)) {
                     disconnectedClients.push(client);
                 }
             }
@@ -754,7 +1007,7 @@ setInterval(() => {
         // 检查并清理孤立的WebSocket连接（未在任何房间中但仍连接）
         const inactiveConnections = [];
         allConnections.forEach((ws, connId) => {
-            if (ws.readyState !== WebSocket.OPEN) {
+            if (!isAlive(ws)) {
                 inactiveConnections.push(connId);
             }
         });
@@ -780,7 +1033,10 @@ function shutdown() {
                 type: 'serverShutdown',
                 message: '服务器正在关闭'
             });
-            ws.close(1000, 'Server shutting down');
+            const socket = ws.session ? ws.session.socket : ws;
+            if (socket) {
+                socket.close(1000, 'Server shutting down');
+            }
         } catch (e) {
             console.error('关闭连接时出错:', e);
         }
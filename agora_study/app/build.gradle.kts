@@ -42,6 +42,11 @@ android {
         }
     }
     
+    // 本地单元测试不调用真实的Android实现：android.util.Log等返回默认值，org.json由testImplementation提供
+    testOptions {
+        unitTests.isReturnDefaultValues = true
+    }
+
     packagingOptions {
         jniLibs {
             useLegacyPackaging = true
@@ -58,6 +63,7 @@ dependencies {
     implementation(libs.activity)
     implementation(libs.constraintlayout)
     testImplementation(libs.junit)
+    testImplementation(libs.json)
     androidTestImplementation(libs.ext.junit)
     androidTestImplementation(libs.espresso.core)
     // 添加Agora本地AAR库依赖
@@ -19,6 +19,9 @@ public class AgoraConfig {
     // 频道名称（可根据需要动态生成）
     public static final String DEFAULT_CHANNEL_NAME = "test_channel";
 
+    // 在线状态频道，所有客户端登录后订阅，用于查询用户是否在线
+    public static final String RTM_PRESENCE_CHANNEL = "presence_lobby";
+
     // 用户ID（在实际应用中应该从用户系统获取）
     public static final String DEFAULT_USER_ID = "user_" + System.currentTimeMillis();
 
@@ -37,9 +40,9 @@ public class AgoraConfig {
     public static final String CHAT_TEST_USERNAME = "test1";
     // 第二个测试用户
     public static final String CHAT_TEST_USERNAME_2 = "test2";
-    // test1测试用户的token
+    // test1测试用户的临时token，由LocalTokenProvider提供；TokenManager取不到token时登录Chat的兜底
     public static final String CHAT_TEST_TOKEN = "0007eJxTYHj3vFaoZbFs46yu6TFf2VL/fXIOX1cmLsEYH1e439Dy4C0FBnMLI4skM2OzRIM0cxMDIDvFPCkxycIk0SzJzMjcJDFLsDmzIZCRoTR/IhMjAysDIxCC+CoMFqbGqWZp5ga6BobmybqGhmmGuhYWScm6BsbJRgYphinGZpZmACz/Jc4=";
-    // test2测试用户的token
+    // test2测试用户的临时token，用途同上
     public static final String CHAT_TEST_TOKEN_2 = "007eJxTYFh/lWWmZqq8d9uHBe8E5tzmDZorc7hNeZXpiwCGkK6YafsVGMwtjCySzIzNEg3SzE0MgOwU86TEJAuTRLMkMyNzk8QawebMhkBGhiNRUkyMDKwMjEAI4qswWJgap5pYmBnoGhiaJ+saGqYZ6iYamKfqpiWZJ1kYmyQlp1haAADQ0yVp";
 
     /**
@@ -127,6 +127,8 @@ public class AgoraDemoActivity extends AppCompatActivity {
         try {
             serviceManager = new AgoraServiceManager(this);
             serviceManager.initialize();
+            // 频道固定，提前取好token，点击加入时不用等待
+            serviceManager.prefetchRoomTokens(DEFAULT_CHANNEL_NAME, "user_" + getApplicationInfo().uid);
 
             // 初始化后隐藏视频相关UI，显示连接提示
             llConnectPrompt.setVisibility(android.view.View.VISIBLE);
@@ -198,8 +200,9 @@ public class AgoraDemoActivity extends AppCompatActivity {
                     runOnUiThread(() -> {
                         // 添加消息到聊天列表
                         ChatMessage chatMessage = new ChatMessage(userId, message, false);
-                        chatMessageAdapter.addMessage(chatMessage);
-                        rvChatMessages.scrollToPosition(chatMessageAdapter.getItemCount() - 1);
+                        if (chatMessageAdapter.addMessage(chatMessage)) {
+                            rvChatMessages.scrollToPosition(chatMessageAdapter.getItemCount() - 1);
+                        }
 
                         // 如果聊天面板隐藏，显示红点提示
                         if (chatPanel.getVisibility() == View.GONE && chatRedDot != null) {
@@ -426,8 +429,9 @@ public class AgoraDemoActivity extends AppCompatActivity {
                             String userId = message.getFrom();
                             String content = message.getBody().toString();
                             ChatMessage chatMessage = new ChatMessage(userId, content, false);
-                            chatMessageAdapter.addMessage(chatMessage);
-                            rvChatMessages.scrollToPosition(chatMessageAdapter.getItemCount() - 1);
+                            if (chatMessageAdapter.addMessage(chatMessage)) {
+                                rvChatMessages.scrollToPosition(chatMessageAdapter.getItemCount() - 1);
+                            }
                         }
                         
                         // 如果聊天面板隐藏，显示红点提示
@@ -501,9 +505,17 @@ public class AgoraDemoActivity extends AppCompatActivity {
 
         // 初始化聊天消息列表
         rvChatMessages = findViewById(R.id.rvChatMessages);
-        chatMessageAdapter = new ChatMessageAdapter();
-        rvChatMessages.setLayoutManager(new LinearLayoutManager(this));
+        chatMessageAdapter = new ChatMessageAdapter(this, ChatMessageWindow.DEFAULT_CAPACITY);
+        LinearLayoutManager chatLayoutManager = new LinearLayoutManager(this);
+        rvChatMessages.setLayoutManager(chatLayoutManager);
         rvChatMessages.setAdapter(chatMessageAdapter);
+        rvChatMessages.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                chatMessageAdapter.onVisibleRangeChanged(chatLayoutManager.findFirstVisibleItemPosition(),
+                        chatLayoutManager.findLastVisibleItemPosition());
+            }
+        });
 
         // 初始化红点提示
         chatRedDot = findViewById(R.id.chatRedDot);
@@ -675,23 +687,34 @@ public class AgoraDemoActivity extends AppCompatActivity {
             if (chatController == null) {
                 chatController = new ChatController();
             }
+            chatController.setTokenManager(serviceManager.getTokenManager());
+            chatController.setOutboundListener(new ChatOutboundQueue.Listener() {
+                @Override
+                public void onDelivered(ChatOutboundQueue.Entry entry, long latencyMs) {
+                }
+
+                @Override
+                public void onSendFailed(ChatOutboundQueue.Entry entry, int code, String error, long retryDelayMs) {
+                }
+
+                @Override
+                public void onGaveUp(ChatOutboundQueue.Entry entry, int code, String error) {
+                    // 放弃发送的消息留在失败列表中，可通过chatController.retryFailedMessage重发
+                    runOnUiThread(() -> Toast.makeText(AgoraDemoActivity.this,
+                            getString(R.string.send_msg_failed, error), Toast.LENGTH_LONG).show());
+                }
+            });
             chatController.initChat(this, AgoraConfig.CHAT_APP_KEY);
             
-            // 根据应用的UID选择使用哪个用户的token
+            // 根据应用的UID选择登录的测试用户，token由TokenManager提供（AgoraServiceManager初始化时已预取）
             String username;
-            String token;
             if (appUid == 10337) {
                 username = AgoraConfig.CHAT_TEST_USERNAME_2;
-                token = AgoraConfig.CHAT_TEST_TOKEN_2;
-            } else if (appUid == 10379){
-                username = AgoraConfig.CHAT_TEST_USERNAME;
-                token = AgoraConfig.CHAT_TEST_TOKEN;
-            }else {
+            } else {
                 username = AgoraConfig.CHAT_TEST_USERNAME;
-                token = AgoraConfig.CHAT_TEST_TOKEN;
             }
-            Log.d(TAG, "准备登录Chat SDK，用户名: " + username + "，token长度: " + token.length() + "，用户ID: " + userId + "，应用UID: " + appUid);
-            chatController.login("test1", "0007eJxTYHj3vFaoZbFs46yu6TFf2VL/fXIOX1cmLsEYH1e439Dy4C0FBnMLI4skM2OzRIM0cxMDIDvFPCkxycIk0SzJzMjcJDFLsDmzIZCRoTR/IhMjAysDIxCC+CoMFqbGqWZp5ga6BobmybqGhmmGuhYWScm6BsbJRgYphinGZpZmACz/Jc4=", new io.agora.CallBack() {
+            Log.d(TAG, "准备登录Chat SDK，用户名: " + username + "，用户ID: " + userId + "，应用UID: " + appUid);
+            io.agora.CallBack chatLoginCallback = new io.agora.CallBack() {
                 @Override
                 public void onSuccess() {
                     Log.d(TAG, "Chat SDK登录成功");
@@ -754,8 +777,9 @@ public class AgoraDemoActivity extends AppCompatActivity {
                                 // 在UI线程更新聊天列表
                                 runOnUiThread(() -> {
                                     ChatMessage chatMessage = new ChatMessage(fromUser, content, false);
-                                    chatMessageAdapter.addMessage(chatMessage);
-                                    rvChatMessages.scrollToPosition(chatMessageAdapter.getItemCount() - 1);
+                                    if (chatMessageAdapter.addMessage(chatMessage)) {
+                                        rvChatMessages.scrollToPosition(chatMessageAdapter.getItemCount() - 1);
+                                    }
 
                                     // 显示红点提示
                                     if (chatRedDot != null && chatPanel.getVisibility() == View.GONE) {
@@ -781,7 +805,8 @@ public class AgoraDemoActivity extends AppCompatActivity {
                 public void onProgress(int progress, String status) {
                     Log.d(TAG, "Chat SDK登录进度: " + progress + "%，状态: " + status);
                 }
-            });
+            };
+            loginChat(chatController, username, chatLoginCallback);
         } catch (Exception e) {
             Log.e("Agora", "加入频道失败", e);
             Toast.makeText(this, getString(R.string.join_failed, e.getMessage()), Toast.LENGTH_LONG).show();
@@ -791,6 +816,27 @@ public class AgoraDemoActivity extends AppCompatActivity {
 
 
 
+    /**
+     * 用TokenManager缓存或新取的token登录Chat
+     * 取不到token时才退回AgoraConfig中的临时测试token，接入token服务器后不应再走到这里
+     */
+    private void loginChat(ChatController controller, String username, io.agora.CallBack callback) {
+        serviceManager.getTokenManager().getToken(TokenManager.TokenType.CHAT, null, username, new TokenManager.Callback() {
+            @Override
+            public void onToken(String token, long expiresAt) {
+                controller.login(username, token, callback);
+            }
+
+            @Override
+            public void onError(String error) {
+                Log.w(TAG, "获取Chat token失败: " + error + "，使用AgoraConfig中的测试token登录");
+                String fallbackToken = AgoraConfig.CHAT_TEST_USERNAME_2.equals(username)
+                        ? AgoraConfig.CHAT_TEST_TOKEN_2 : AgoraConfig.CHAT_TEST_TOKEN;
+                controller.login(username, fallbackToken, callback);
+            }
+        });
+    }
+
     /**
      * 离开频道
      */
@@ -986,7 +1032,8 @@ public class AgoraDemoActivity extends AppCompatActivity {
      * 发送聊天消息
      */
     private void sendChatMessage() {
-        if (chatController == null || !chatController.isSdkInited()) {
+        // SDK未就绪或未登录时消息会进入发送队列，登录成功后自动发出
+        if (chatController == null) {
             Toast.makeText(this, "Chat服务未初始化", Toast.LENGTH_SHORT).show();
             return;
         }
@@ -1012,14 +1059,15 @@ public class AgoraDemoActivity extends AppCompatActivity {
                 toUser = AgoraConfig.CHAT_TEST_USERNAME_2;
             }
             Log.d(TAG, "准备发送消息，内容: " + message + "，接收方: " + toUser + "，应用UID: " + appUid);
-            io.agora.chat.ChatMessage sentMessage = chatController.sendTextMessage(message, toUser);
-            Log.d(TAG, "发送消息成功，消息ID: " + sentMessage.getMsgId());
+            long clientSeq = chatController.sendTextMessage(message, toUser);
+            Log.d(TAG, "消息已加入发送队列，序号: " + clientSeq);
             etChatMessage.setText(""); // 清空输入框
 
             // 添加消息到聊天列表
             ChatMessage chatMessage = new ChatMessage("我", message, true);
-            chatMessageAdapter.addMessage(chatMessage);
-            rvChatMessages.scrollToPosition(chatMessageAdapter.getItemCount() - 1);
+            if (chatMessageAdapter.addMessage(chatMessage)) {
+                rvChatMessages.scrollToPosition(chatMessageAdapter.getItemCount() - 1);
+            }
             Log.d(TAG, "已将发送的消息添加到聊天列表，当前列表消息数: " + chatMessageAdapter.getItemCount());
 
             Toast.makeText(this, getString(R.string.message_sent), Toast.LENGTH_SHORT).show();
@@ -1212,6 +1260,14 @@ public class AgoraDemoActivity extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
 
+        if (chatMessageAdapter != null) {
+            chatMessageAdapter.release();
+        }
+
+        if (chatController != null) {
+            chatController.release();
+        }
+
         if (serviceManager != null) {
             serviceManager.destroy();
         }
@@ -16,6 +16,7 @@ public class AgoraServiceManager {
     private RTMController rtmController;
     private RoomManager roomManager;
     private DeviceManager deviceManager;
+    private TokenManager tokenManager;
 
     private boolean isInitialized = false;
 
@@ -36,6 +37,12 @@ public class AgoraServiceManager {
         Log.d("Agora", "=== 开始初始化 AgoraServiceManager ===");
         Log.d("Agora", "App ID: " + appId);
 
+        // 先启动token预取，与下面的SDK初始化并行；频道token由界面确定频道后调用prefetchRoomTokens预取
+        tokenManager = new TokenManager(new LocalTokenProvider());
+        String localUserId = "user_" + context.getApplicationInfo().uid;
+        tokenManager.prefetch(TokenManager.TokenType.RTM, null, localUserId);
+        tokenManager.prefetch(TokenManager.TokenType.CHAT, null, AgoraConfig.CHAT_TEST_USERNAME);
+
         // 初始化DeviceManager
         Log.d("Agora", "初始化 DeviceManager...");
         deviceManager = new DeviceManager(context, appId);
@@ -51,6 +58,7 @@ public class AgoraServiceManager {
         try {
             Log.d("Agora", "初始化 RTMController...");
             rtmController = new RTMController();
+            rtmController.setTokenManager(tokenManager);
             // 使用应用的UID生成用户ID，确保token和username一一对应
             int appUid = context.getApplicationInfo().uid;
             String userId = "user_" + appUid;
@@ -68,6 +76,7 @@ public class AgoraServiceManager {
         // 初始化ChatController
         Log.d(TAG, "初始化 ChatController...");
         chatController = new ChatController();
+        chatController.setTokenManager(tokenManager);
         try {
             // 使用Chat专用的AppKey初始化
             chatController.initChat(context, AgoraConfig.CHAT_APP_KEY);
@@ -83,6 +92,7 @@ public class AgoraServiceManager {
         Log.d("Agora", "初始化 RoomManager...");
         roomManager = new RoomManager(context, appId);
         roomManager.setRtcEngine(deviceManager.getRtcEngine());
+        roomManager.setTokenManager(tokenManager);
         roomManager.initialize();
         Log.d("Agora", "RoomManager 初始化完成");
 
@@ -128,6 +138,13 @@ public class AgoraServiceManager {
                     Log.e("Agora", "roomManager 为 null，无法处理离开频道事件");
                 }
             }
+
+            @Override
+            public void onTokenPrivilegeWillExpire(String token) {
+                if (roomManager != null) {
+                    roomManager.handleTokenPrivilegeWillExpire();
+                }
+            }
         });
         
         // 设置 DeviceManager 的 DeviceStatusListener，让它能够通知 RoomManager 设备状态变化
@@ -250,12 +267,36 @@ public class AgoraServiceManager {
         return deviceManager;
     }
 
+    /**
+     * 获取token管理器
+     */
+    public TokenManager getTokenManager() {
+        return tokenManager;
+    }
+
+    /**
+     * 预取加入频道所需的RTC和RTM token，界面确定频道名后即可调用
+     */
+    public void prefetchRoomTokens(String channelName, String userId) {
+        tokenManager.prefetch(TokenManager.TokenType.RTC, channelName, userId);
+        tokenManager.prefetch(TokenManager.TokenType.RTM, null, userId);
+    }
+
+    /**
+     * 读取缓存的RTC token，不等待网络请求；缓存未就绪时退回默认token
+     */
+    private String roomToken(String channelName, String userId) {
+        String token = tokenManager != null
+                ? tokenManager.peekToken(TokenManager.TokenType.RTC, channelName, userId) : null;
+        return token != null ? token : AgoraConfig.getDefaultToken();
+    }
+
     /**
      * 加入房间
      */
     public void joinRoom(String channelName, String userId, boolean isBroadcaster) {
         if (roomManager != null) {
-            roomManager.joinChatRoom(channelName, userId, AgoraConfig.getDefaultToken());
+            roomManager.joinChatRoom(channelName, userId, roomToken(channelName, userId));
         }
     }
 
@@ -267,7 +308,7 @@ public class AgoraServiceManager {
             // 不再主动调用 leaveRoom，让 joinChannel 自己处理频道切换
             // 这样可以避免 leaveChannel 阻塞导致的问题
             Log.d("Agora", "直接调用 createChatRoom，让 SDK 自动处理频道切换");
-            roomManager.createChatRoom(channelName, userId, AgoraConfig.getDefaultToken(), isBroadcaster);
+            roomManager.createChatRoom(channelName, userId, roomToken(channelName, userId), isBroadcaster);
         }
     }
 
@@ -296,6 +337,14 @@ public class AgoraServiceManager {
             rtmController.destroy();
         }
 
+        if (chatController != null) {
+            chatController.release();
+        }
+
+        if (tokenManager != null) {
+            tokenManager.release();
+        }
+
         isInitialized = false;
     }
 
@@ -0,0 +1,110 @@
+package com.example.aogra_study;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Bitmap复用池
+ * 图片压缩流程中的解码和缩放结果都从这里取，用完归还，避免每张图都重新分配几十MB的像素内存
+ */
+public class BitmapPool {
+    private static final String TAG = "Agora";
+
+    private final LinkedList<Bitmap> bitmaps = new LinkedList<>();
+    private final long maxBytes;
+    private long currentBytes = 0;
+
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 获取一个可容纳width*height像素的Bitmap，没有合适的则新建
+     * 返回的Bitmap已调整为目标尺寸，复用的Bitmap已清成透明，不会带出上一张图的内容
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        long needed = (long) width * height * bytesPerPixel(config);
+        Bitmap best = null;
+        // 选择能容纳目标尺寸的最小Bitmap，减少大块内存被小图占用
+        for (Bitmap candidate : bitmaps) {
+            if (candidate.getAllocationByteCount() >= needed
+                    && (best == null || candidate.getAllocationByteCount() < best.getAllocationByteCount())) {
+                best = candidate;
+            }
+        }
+        if (best != null) {
+            bitmaps.remove(best);
+            currentBytes -= best.getAllocationByteCount();
+            try {
+                best.reconfigure(width, height, config);
+                best.eraseColor(0);
+                return best;
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Bitmap复用失败，改为新建: " + e.getMessage());
+                best.recycle();
+            }
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * 获取一个可作为BitmapFactory.Options.inBitmap使用的Bitmap，没有则返回null
+     */
+    public synchronized Bitmap getForDecode(int width, int height, Bitmap.Config config) {
+        long needed = (long) width * height * bytesPerPixel(config);
+        Iterator<Bitmap> iterator = bitmaps.iterator();
+        while (iterator.hasNext()) {
+            Bitmap candidate = iterator.next();
+            if (candidate.getAllocationByteCount() >= needed) {
+                iterator.remove();
+                currentBytes -= candidate.getAllocationByteCount();
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 归还Bitmap，超过容量上限时回收最早放入的
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable() || bitmap.getAllocationByteCount() > maxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        bitmaps.addLast(bitmap);
+        currentBytes += bitmap.getAllocationByteCount();
+        while (currentBytes > maxBytes && !bitmaps.isEmpty()) {
+            Bitmap evicted = bitmaps.removeFirst();
+            currentBytes -= evicted.getAllocationByteCount();
+            evicted.recycle();
+        }
+    }
+
+    /**
+     * 清空并回收所有缓存的Bitmap
+     */
+    public synchronized void clear() {
+        for (Bitmap bitmap : bitmaps) {
+            bitmap.recycle();
+        }
+        bitmaps.clear();
+        currentBytes = 0;
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+}
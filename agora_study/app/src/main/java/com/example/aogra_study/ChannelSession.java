@@ -0,0 +1,226 @@
+package com.example.aogra_study;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.agora.rtc2.ChannelMediaOptions;
+import io.agora.rtc2.Constants;
+import io.agora.rtc2.IRtcEngineEventHandler;
+import io.agora.rtc2.RtcConnection;
+
+/**
+ * 单个频道的会话
+ * 通过RtcEngineEx的多频道接口加入，拥有独立的成员列表、角色、订阅设置和事件回调；
+ * 多个会话共用RoomManager的同一个RtcEngine和RtmClient
+ */
+public class ChannelSession {
+    private static final String TAG = "Agora";
+
+    public enum State {
+        JOINING, JOINED, LEFT
+    }
+
+    /**
+     * 会话事件，回调在SDK线程上
+     */
+    public interface Listener {
+        void onJoined(ChannelSession session, int localUid);
+
+        void onUserJoined(ChannelSession session, String userId);
+
+        void onUserLeft(ChannelSession session, String userId);
+
+        void onChatMessage(ChannelSession session, String publisherId, String message);
+
+        void onLeft(ChannelSession session);
+
+        void onError(ChannelSession session, String error);
+    }
+
+    /**
+     * 本会话的token即将过期或已过期，由RoomManager取新token后通过updateChannelMediaOptionsEx更新到本连接
+     */
+    interface TokenRenewer {
+        void onTokenRenewRequired(ChannelSession session);
+    }
+
+    private final String channelName;
+    // 加入时传给joinChannelEx的连接，之后的Ex接口都用它来标识频道，不能修改
+    private final RtcConnection connection;
+    private final Listener listener;
+    private final TokenRenewer tokenRenewer;
+    // 以下状态由this锁保护
+    private final List<String> members = new ArrayList<>();
+    private State state = State.JOINING;
+    // 本地在该频道的uid，加入时传0的话在加入成功后才知道
+    private int localUid;
+    private boolean broadcaster;
+    private boolean publishing;
+    private boolean subscribeAudio = true;
+    private boolean subscribeVideo = true;
+
+    // 本会话专用的RTC事件回调，事件不会和其他频道混在一起
+    final IRtcEngineEventHandler eventHandler = new IRtcEngineEventHandler() {
+        @Override
+        public void onJoinChannelSuccess(String channel, int uid, int elapsed) {
+            synchronized (ChannelSession.this) {
+                state = State.JOINED;
+                localUid = uid;
+                String self = String.valueOf(uid);
+                if (!members.contains(self)) {
+                    members.add(self);
+                }
+            }
+            Log.d(TAG, "频道会话加入成功: " + channelName + ", uid: " + uid + ", 耗时: " + elapsed + "ms");
+            if (listener != null) {
+                listener.onJoined(ChannelSession.this, uid);
+            }
+        }
+
+        @Override
+        public void onUserJoined(int uid, int elapsed) {
+            String userId = String.valueOf(uid);
+            boolean added;
+            synchronized (ChannelSession.this) {
+                added = !members.contains(userId) && members.add(userId);
+            }
+            if (added && listener != null) {
+                listener.onUserJoined(ChannelSession.this, userId);
+            }
+        }
+
+        @Override
+        public void onUserOffline(int uid, int reason) {
+            String userId = String.valueOf(uid);
+            boolean removed;
+            synchronized (ChannelSession.this) {
+                removed = members.remove(userId);
+            }
+            if (removed && listener != null) {
+                listener.onUserLeft(ChannelSession.this, userId);
+            }
+        }
+
+        @Override
+        public void onLeaveChannel(RtcStats stats) {
+            synchronized (ChannelSession.this) {
+                state = State.LEFT;
+                members.clear();
+            }
+            Log.d(TAG, "频道会话已离开: " + channelName);
+            if (listener != null) {
+                listener.onLeft(ChannelSession.this);
+            }
+        }
+
+        // 每个连接的token各自过期，只续期本会话的连接，不影响主频道和其他会话
+        @Override
+        public void onTokenPrivilegeWillExpire(String token) {
+            Log.d(TAG, "频道会话 token 即将过期: " + channelName);
+            if (tokenRenewer != null) {
+                tokenRenewer.onTokenRenewRequired(ChannelSession.this);
+            }
+        }
+
+        @Override
+        public void onRequestToken() {
+            Log.w(TAG, "频道会话 token 已过期: " + channelName);
+            if (tokenRenewer != null) {
+                tokenRenewer.onTokenRenewRequired(ChannelSession.this);
+            }
+        }
+
+        @Override
+        public void onError(int err) {
+            Log.e(TAG, "频道会话错误: " + channelName + ", 错误码: " + err);
+            if (listener != null) {
+                listener.onError(ChannelSession.this, "RTC error " + err);
+            }
+        }
+    };
+
+    ChannelSession(String channelName, int localUid, boolean broadcaster, Listener listener,
+                   TokenRenewer tokenRenewer) {
+        this.channelName = channelName;
+        this.connection = new RtcConnection(channelName, localUid);
+        this.localUid = localUid;
+        this.broadcaster = broadcaster;
+        this.listener = listener;
+        this.tokenRenewer = tokenRenewer;
+    }
+
+    public String getChannelName() {
+        return channelName;
+    }
+
+    public RtcConnection getConnection() {
+        return connection;
+    }
+
+    public synchronized int getLocalUid() {
+        return localUid;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized boolean isBroadcaster() {
+        return broadcaster;
+    }
+
+    public synchronized boolean isPublishing() {
+        return publishing;
+    }
+
+    public synchronized List<String> getMembers() {
+        return new ArrayList<>(members);
+    }
+
+    public synchronized int getMemberCount() {
+        return members.size();
+    }
+
+    synchronized void setRole(boolean broadcaster) {
+        this.broadcaster = broadcaster;
+        if (!broadcaster) {
+            publishing = false;
+        }
+    }
+
+    synchronized void setPublishing(boolean publishing) {
+        this.publishing = publishing && broadcaster;
+    }
+
+    synchronized void setSubscription(boolean audio, boolean video) {
+        this.subscribeAudio = audio;
+        this.subscribeVideo = video;
+    }
+
+    synchronized void markLeft() {
+        state = State.LEFT;
+        members.clear();
+    }
+
+    /**
+     * 按当前角色、发布和订阅设置生成媒体选项
+     */
+    synchronized ChannelMediaOptions buildMediaOptions() {
+        ChannelMediaOptions options = new ChannelMediaOptions();
+        options.channelProfile = Constants.CHANNEL_PROFILE_LIVE_BROADCASTING;
+        options.clientRoleType = broadcaster ? Constants.CLIENT_ROLE_BROADCASTER : Constants.CLIENT_ROLE_AUDIENCE;
+        options.autoSubscribeAudio = subscribeAudio;
+        options.autoSubscribeVideo = subscribeVideo;
+        options.publishMicrophoneTrack = publishing;
+        options.publishCameraTrack = publishing;
+        return options;
+    }
+
+    void dispatchChatMessage(String publisherId, String message) {
+        if (listener != null) {
+            listener.onChatMessage(this, publisherId, message);
+        }
+    }
+}
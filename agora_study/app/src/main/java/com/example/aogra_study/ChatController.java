@@ -5,12 +5,17 @@ import io.agora.chat.ChatManager;
 import io.agora.chat.Conversation;
 import io.agora.chat.ChatMessage;
 import io.agora.chat.ChatOptions;
+import io.agora.chat.ImageMessageBody;
 import io.agora.MessageListener;
 import io.agora.CallBack;
+import io.agora.ConnectionListener;
+import io.agora.Error;
 import android.content.Context;
 import android.util.Log;
+import java.io.File;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
 public class ChatController {
     private static final String TAG = "Agora";
@@ -19,11 +24,23 @@ public class ChatController {
     private String appId;
     private String currentUsername;
     private boolean isLoggedIn = false;
+    // 发送队列，未登录时发送的消息在这里排队，登录成功后打开该用户的存储并按序发出
+    private final ChatOutboundQueue outboundQueue;
+    // 图片消息预处理（压缩、缩略图）和上传并发控制
+    private volatile ChatImagePipeline imagePipeline;
+    // 正在进行的边录边编码语音
+    private StreamingVoiceRecorder voiceRecorder;
+    // 会话列表索引，首次获取时全量加载，之后由消息事件增量更新
+    private ConversationIndex conversationIndex;
+    // token缓存和续期，未设置时token过期需要外部重新登录
+    private TokenManager tokenManager;
+    private boolean connectionListenerAdded = false;
 
     public ChatController() {
         this.chatClient = ChatClient.getInstance();
         // 初始化时暂不获取chatManager，因为可能还未初始化
         this.chatManager = null;
+        this.outboundQueue = new ChatOutboundQueue(this::dispatchQueuedMessage);
     }
 
     /**
@@ -33,6 +50,9 @@ public class ChatController {
     
     public void initChat(Context context, String appId) {
         this.context = context;
+        if (imagePipeline == null) {
+            imagePipeline = new ChatImagePipeline(context.getApplicationContext());
+        }
         this.appId = AgoraConfig.CHAT_APP_KEY; // 强制使用Chat AppKey，避免使用RTC AppKey
         Log.d(TAG, "开始初始化Chat SDK，使用Chat AppKey: " + this.appId);
         
@@ -68,6 +88,10 @@ public class ChatController {
             // 初始化完成后获取chatManager
             this.chatManager = chatClient.chatManager();
             Log.d(TAG, "获取chatManager成功");
+            if (!connectionListenerAdded) {
+                chatClient.addConnectionListener(tokenConnectionListener);
+                connectionListenerAdded = true;
+            }
         } catch (UnsatisfiedLinkError e) {
             Log.e(TAG, "Failed to initialize Chat SDK due to native library error: " + e.getMessage());
             this.chatManager = null;
@@ -77,6 +101,44 @@ public class ChatController {
         }
     }
     
+    public void setTokenManager(TokenManager tokenManager) {
+        this.tokenManager = tokenManager;
+    }
+
+    /**
+     * token即将过期时续期，已过期时用新token重新登录
+     */
+    private final ConnectionListener tokenConnectionListener = new ConnectionListener() {
+        @Override
+        public void onConnected() {
+        }
+
+        @Override
+        public void onDisconnected(int errorCode) {
+        }
+
+        @Override
+        public void onTokenWillExpire() {
+            String username = currentUsername;
+            if (tokenManager == null || username == null) {
+                return;
+            }
+            tokenManager.renew(TokenManager.TokenType.CHAT, null, username, token -> chatClient.renewToken(token));
+        }
+
+        @Override
+        public void onTokenExpired() {
+            String username = currentUsername;
+            Log.w(TAG, "Chat token已过期，用户: " + username);
+            isLoggedIn = false;
+            outboundQueue.setOnline(false);
+            if (tokenManager == null || username == null) {
+                return;
+            }
+            tokenManager.renew(TokenManager.TokenType.CHAT, null, username, token -> doLogin(username, token, null));
+        }
+    };
+
     /**
      * 登录聊天服务器
      */
@@ -104,6 +166,7 @@ public class ChatController {
         // 先登出之前的用户（如果有）
         if (isLoggedIn) {
             Log.d(TAG, "当前已有用户登录，先登出: " + currentUsername);
+            outboundQueue.setOnline(false);
             chatClient.logout(false, new CallBack() {
                 @Override
                 public void onSuccess() {
@@ -139,6 +202,12 @@ public class ChatController {
                 currentUsername = username;
                 isLoggedIn = true;
                 Log.d(TAG, "当前登录状态: " + isLoggedIn + "，当前用户名: " + currentUsername);
+                if (context != null) {
+                    // 队列按用户持久化，不会发出其他用户留下的消息
+                    outboundQueue.open(context.getSharedPreferences(
+                            ChatOutboundQueue.storeName(appId, username), Context.MODE_PRIVATE));
+                }
+                outboundQueue.setOnline(true);
                 if (callback != null) {
                     callback.onSuccess();
                 }
@@ -172,6 +241,7 @@ public class ChatController {
             return;
         }
         
+        outboundQueue.close();
         chatClient.logout(true, new CallBack() {
             @Override
             public void onSuccess() {
@@ -221,53 +291,323 @@ public class ChatController {
 
     /**
      * 发送文本消息
+     * 消息先进入发送队列，未登录时会在登录成功后按序发出
+     *
+     * @return 客户端序号
      */
-    public ChatMessage sendTextMessage(String content, String toChatUsername) {
-        Log.d(TAG, "开始发送文本消息，内容: " + content + "，接收方: " + toChatUsername + "，当前登录用户名: " + currentUsername);
-        ensureChatManager();
-        if (chatManager == null) {
-            Log.e(TAG, "ChatManager未初始化，无法发送消息");
-            throw new IllegalStateException("ChatManager not initialized");
+    public long sendTextMessage(String content, String toChatUsername) {
+        Log.d(TAG, "发送文本消息入队，内容: " + content + "，接收方: " + toChatUsername + "，当前登录用户名: " + currentUsername);
+        return outboundQueue.enqueue(ChatOutboundQueue.Type.TXT, toChatUsername, content, 0);
+    }
+
+    /**
+     * 发送图片消息
+     *
+     * @return 客户端序号
+     */
+    public long sendImageMessage(String imagePath, String toChatUsername) {
+        return outboundQueue.enqueue(ChatOutboundQueue.Type.IMAGE, toChatUsername, imagePath, 0);
+    }
+
+    /**
+     * 发送语音消息
+     *
+     * @return 客户端序号
+     */
+    public long sendVoiceMessage(String filePath, int length, String toChatUsername) {
+        return outboundQueue.enqueue(ChatOutboundQueue.Type.VOICE, toChatUsername, filePath, length);
+    }
+
+    /**
+     * 语音录制结果回调
+     */
+    public interface VoiceMessageCallback {
+        /**
+         * 语音已编码完成并加入发送队列
+         */
+        void onQueued(long clientSeq, int durationSeconds);
+
+        void onError(String error);
+    }
+
+    /**
+     * 开始录制语音消息（按下录音键时调用）
+     * 录音过程中即编码为AAC，松开时只需处理最后一块数据
+     */
+    public void startVoiceMessage(String toChatUsername, final VoiceMessageCallback callback) {
+        if (context == null) {
+            throw new IllegalStateException("Chat not initialized");
         }
-        
-        if (!isLoggedIn) {
-            Log.e(TAG, "未登录，无法发送消息");
-            throw new IllegalStateException("Not logged in");
+        if (voiceRecorder != null) {
+            voiceRecorder.cancel();
         }
-        
-        ChatMessage message = ChatMessage.createTxtSendMessage(content, toChatUsername);
-        Log.d(TAG, "创建文本消息成功，消息ID: " + message.getMsgId() + "，消息类型: " + message.getType());
-        chatManager.sendMessage(message);
-        Log.d(TAG, "文本消息发送成功，消息ID: " + message.getMsgId() + "，发送方: " + currentUsername + "，接收方: " + toChatUsername);
-        return message;
+        File dir = new File(context.getCacheDir(), "chat_voice");
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e(TAG, "创建语音目录失败: " + dir.getAbsolutePath());
+        }
+        File outputFile = new File(dir, "voice_" + System.currentTimeMillis() + ".m4a");
+        StreamingVoiceRecorder recorder = new StreamingVoiceRecorder(outputFile);
+        voiceRecorder = recorder;
+        recorder.start(new StreamingVoiceRecorder.Callback() {
+            @Override
+            public void onFinished(String filePath, int durationSeconds, long finishLatencyMs) {
+                long clientSeq = sendVoiceMessage(filePath, durationSeconds, toChatUsername);
+                Log.d(TAG, "语音消息入队，序号: " + clientSeq + "，松开到入队耗时: " + finishLatencyMs + "ms");
+                if (callback != null) {
+                    callback.onQueued(clientSeq, durationSeconds);
+                }
+            }
+
+            @Override
+            public void onError(String error) {
+                if (callback != null) {
+                    callback.onError(error);
+                }
+            }
+        });
     }
 
     /**
-     * 发送图片消息
+     * 结束录制并发送语音消息（松开录音键时调用）
      */
-    public ChatMessage sendImageMessage(String imagePath, String toChatUsername) {
-        ensureChatManager();
-        if (chatManager == null) {
-            throw new IllegalStateException("ChatManager not initialized");
+    public void finishVoiceMessage() {
+        if (voiceRecorder != null) {
+            voiceRecorder.stop();
+            voiceRecorder = null;
         }
-        
-        ChatMessage message = ChatMessage.createImageSendMessage(imagePath, false, toChatUsername);
-        chatManager.sendMessage(message);
-        return message;
     }
 
     /**
-     * 发送语音消息
+     * 取消正在录制的语音消息
      */
-    public ChatMessage sendVoiceMessage(String filePath, int length, String toChatUsername) {
+    public void cancelVoiceMessage() {
+        if (voiceRecorder != null) {
+            voiceRecorder.cancel();
+            voiceRecorder = null;
+        }
+    }
+
+    /**
+     * 设置发送队列的送达/失败监听
+     */
+    public void setOutboundListener(ChatOutboundQueue.Listener listener) {
+        outboundQueue.setListener(listener);
+    }
+
+    /**
+     * 获取尚未送达的消息数
+     */
+    public int getPendingOutboundCount() {
+        return outboundQueue.getPendingCount();
+    }
+
+    /**
+     * 获取已放弃发送的消息，界面可以提示用户重发或删除
+     */
+    public List<ChatOutboundQueue.Entry> getFailedOutboundMessages() {
+        return outboundQueue.getFailedEntries();
+    }
+
+    /**
+     * 重发一条失败的消息
+     *
+     * @return 新的客户端序号，没有该消息时返回-1
+     */
+    public long retryFailedMessage(long clientSeq) {
+        return outboundQueue.retryFailed(clientSeq);
+    }
+
+    /**
+     * 删除一条失败的消息
+     */
+    public boolean discardFailedMessage(long clientSeq) {
+        return outboundQueue.discardFailed(clientSeq);
+    }
+
+    /**
+     * 由发送队列调用，真正通过SDK发送一条消息
+     */
+    private void dispatchQueuedMessage(ChatOutboundQueue.Entry entry, ChatOutboundQueue.SendCallback callback) {
         ensureChatManager();
-        if (chatManager == null) {
-            throw new IllegalStateException("ChatManager not initialized");
+        if (chatManager == null || !isLoggedIn) {
+            callback.onError(-1, chatManager == null ? "ChatManager not initialized" : "Not logged in");
+            return;
         }
-        
-        ChatMessage message = ChatMessage.createVoiceSendMessage(filePath, length, toChatUsername);
+
+        ChatImagePipeline pipeline = imagePipeline;
+        if (entry.type == ChatOutboundQueue.Type.IMAGE && pipeline != null) {
+            dispatchImageMessage(pipeline, entry, callback);
+            return;
+        }
+
+        ChatMessage message;
+        switch (entry.type) {
+            case IMAGE:
+                message = ChatMessage.createImageSendMessage(entry.content, false, entry.to);
+                break;
+            case VOICE:
+                message = ChatMessage.createVoiceSendMessage(entry.content, entry.length, entry.to);
+                break;
+            case TXT:
+            default:
+                message = ChatMessage.createTxtSendMessage(entry.content, entry.to);
+                break;
+        }
+        if (message == null) {
+            // 通常是本地文件不存在，重试也不会成功
+            callback.onRejected(-1, "Failed to create message");
+            return;
+        }
+        sendQueuedMessage(entry, message, callback);
+    }
+
+    /**
+     * 图片消息先在后台压缩并生成缩略图，再在上传并发上限内发送
+     * 发送队列同一时间只有一条消息在途，处理和上传完成、回调callback之前后面的消息不会发出，不会越过这张图片。
+     * 回调可能在release之后到达，只使用开始时取到的pipeline，不读字段
+     */
+    private void dispatchImageMessage(ChatImagePipeline pipeline, ChatOutboundQueue.Entry entry,
+                                      ChatOutboundQueue.SendCallback callback) {
+        pipeline.process(entry.content, new ChatImagePipeline.Callback() {
+            @Override
+            public void onSuccess(ChatImagePipeline.Result result) {
+                // 压缩后的文件只用于这次上传，结束后（无论成败）删除；重试时会重新处理原图
+                uploadImageMessage(pipeline, entry, callback, () -> ChatImagePipeline.deleteOutput(result), () -> {
+                    // 已经压缩过，让SDK按原图发送，不再二次压缩
+                    ChatMessage message = ChatMessage.createImageSendMessage(result.imagePath, true, entry.to);
+                    if (message != null && message.getBody() instanceof ImageMessageBody) {
+                        ImageMessageBody body = (ImageMessageBody) message.getBody();
+                        body.setThumbnailLocalPath(result.thumbnailPath);
+                        body.setThumbnailSize(result.thumbnailWidth, result.thumbnailHeight);
+                    }
+                    return message;
+                });
+            }
+
+            @Override
+            public void onError(String error) {
+                // 无法解码的图片按原图交给SDK处理，避免在队列里无限重试
+                Log.w(TAG, "图片预处理失败，按原图发送，序号: " + entry.clientSeq + "，原因: " + error);
+                uploadImageMessage(pipeline, entry, callback, null,
+                        () -> ChatMessage.createImageSendMessage(entry.content, false, entry.to));
+            }
+        });
+    }
+
+    /**
+     * 占用一个上传名额发送图片消息，发送结束后释放名额并执行cleanup（可为null）
+     */
+    private void uploadImageMessage(ChatImagePipeline pipeline, ChatOutboundQueue.Entry entry,
+                                    ChatOutboundQueue.SendCallback callback, Runnable cleanup,
+                                    Supplier<ChatMessage> messageFactory) {
+        Runnable finish = () -> {
+            pipeline.onUploadFinished();
+            if (cleanup != null) {
+                cleanup.run();
+            }
+        };
+        pipeline.runUpload(() -> {
+            if (pipeline != imagePipeline) {
+                // 已经release，不再发出
+                finish.run();
+                callback.onError(-1, "Chat released");
+                return;
+            }
+            boolean loggedIn = chatManager != null && isLoggedIn;
+            ChatMessage message = loggedIn ? messageFactory.get() : null;
+            if (message == null) {
+                finish.run();
+                if (loggedIn) {
+                    callback.onRejected(-1, "Failed to create message");
+                } else {
+                    callback.onError(-1, "Not logged in");
+                }
+                return;
+            }
+            sendQueuedMessage(entry, message, new ChatOutboundQueue.SendCallback() {
+                @Override
+                public void onSuccess() {
+                    finish.run();
+                    callback.onSuccess();
+                }
+
+                @Override
+                public void onError(int code, String error) {
+                    finish.run();
+                    callback.onError(code, error);
+                }
+
+                @Override
+                public void onRejected(int code, String error) {
+                    finish.run();
+                    callback.onRejected(code, error);
+                }
+            });
+        });
+    }
+
+    private void sendQueuedMessage(ChatOutboundQueue.Entry entry, ChatMessage message,
+                                   ChatOutboundQueue.SendCallback callback) {
+        message.setAttribute(ChatOutboundQueue.ATTR_CLIENT_SEQ, entry.clientSeq);
+        message.setMessageStatusCallback(new CallBack() {
+            @Override
+            public void onSuccess() {
+                ConversationIndex index = conversationIndex;
+                if (index != null) {
+                    index.onMessageSent(message);
+                }
+                callback.onSuccess();
+            }
+
+            @Override
+            public void onError(int code, String error) {
+                if (isPermanentSendError(code)) {
+                    callback.onRejected(code, error);
+                } else {
+                    callback.onError(code, error);
+                }
+            }
+
+            @Override
+            public void onProgress(int progress, String status) {
+            }
+        });
+        Log.d(TAG, "发送队列消息，序号: " + entry.clientSeq + "，消息ID: " + message.getMsgId() + "，类型: " + message.getType());
         chatManager.sendMessage(message);
-        return message;
+    }
+
+    /**
+     * 服务器明确拒绝、重试也不会成功的发送错误：内容或文件不合规、超过大小、接收方或群组不存在、没有权限
+     */
+    private static boolean isPermanentSendError(int code) {
+        switch (code) {
+            case Error.INVALID_USER_NAME:
+            case Error.INVALID_CONVERSATION:
+            case Error.INVALID_PARAM:
+            case Error.USER_NOT_FOUND:
+            case Error.USER_PERMISSION_DENIED:
+            case Error.FILE_NOT_FOUND:
+            case Error.FILE_INVALID:
+            case Error.FILE_TOO_LARGE:
+            case Error.FILE_CONTENT_IMPROPER:
+            case Error.MESSAGE_INVALID:
+            case Error.MESSAGE_INCLUDE_ILLEGAL_CONTENT:
+            case Error.MESSAGE_EXPIRED:
+            case Error.MESSAGE_ILLEGAL_WHITELIST:
+            case Error.MESSAGE_EXTERNAL_LOGIC_BLOCKED:
+            case Error.MESSAGE_SIZE_LIMIT:
+            case Error.GROUP_INVALID_ID:
+            case Error.GROUP_NOT_JOINED:
+            case Error.GROUP_PERMISSION_DENIED:
+            case Error.GROUP_NOT_EXIST:
+            case Error.GROUP_USER_IN_BLOCKLIST:
+            case Error.CHATROOM_INVALID_ID:
+            case Error.CHATROOM_PERMISSION_DENIED:
+            case Error.CHATROOM_USER_IN_BLOCKLIST:
+                return true;
+            default:
+                return false;
+        }
     }
 
     /**
@@ -310,6 +650,42 @@ public class ChatController {
         }
     }
 
+    /**
+     * 获取按最后消息时间排序的会话索引
+     * 第一次调用时从SDK全量加载并注册消息监听，之后随收发消息增量更新，界面应监听其增量变化而不是反复调用getAllConversations
+     */
+    public synchronized ConversationIndex getConversationIndex() {
+        if (conversationIndex != null) {
+            return conversationIndex;
+        }
+        ensureChatManager();
+        if (chatManager == null) {
+            return null;
+        }
+        ConversationIndex index = new ConversationIndex(chatManager);
+        index.load(chatManager.getAllConversations());
+        chatManager.addMessageListener(index);
+        conversationIndex = index;
+        Log.d(TAG, "会话索引初始化完成，会话数: " + index.size());
+        return index;
+    }
+
+    /**
+     * 进入/离开会话页面，进入时清空该会话未读数并同步到SDK
+     */
+    public void setActiveConversation(String conversationId) {
+        ConversationIndex index = conversationIndex;
+        if (index != null) {
+            index.setActiveConversation(conversationId);
+        }
+        if (conversationId != null && chatManager != null) {
+            Conversation conversation = chatManager.getConversation(conversationId);
+            if (conversation != null) {
+                conversation.markAllMessagesAsRead();
+            }
+        }
+    }
+
     /**
      * 获取会话列表
      */
@@ -321,6 +697,33 @@ public class ChatController {
         return chatManager.getAllConversations();
     }
 
+    /**
+     * 释放发送队列、图片处理和录音占用的线程，所有者销毁时调用；未发送的消息已持久化，同一用户下次登录时恢复。
+     * 之后可以重新initChat和login
+     */
+    public void release() {
+        cancelVoiceMessage();
+        outboundQueue.close();
+        ChatImagePipeline pipeline = imagePipeline;
+        imagePipeline = null;
+        if (pipeline != null) {
+            // 正在处理的图片回调会失败，发送队列已关闭，结果被忽略
+            pipeline.shutdown();
+        }
+        if (connectionListenerAdded) {
+            chatClient.removeConnectionListener(tokenConnectionListener);
+            connectionListenerAdded = false;
+        }
+        ConversationIndex index;
+        synchronized (this) {
+            index = conversationIndex;
+            conversationIndex = null;
+        }
+        if (index != null) {
+            index.release();
+        }
+    }
+
     /**
      * 删除会话
      */
@@ -329,5 +732,9 @@ public class ChatController {
         if (chatManager != null) {
             chatManager.deleteConversation(conversationId, deleteMessages);
         }
+        ConversationIndex index = conversationIndex;
+        if (index != null) {
+            index.remove(conversationId);
+        }
     }
 }
\ No newline at end of file
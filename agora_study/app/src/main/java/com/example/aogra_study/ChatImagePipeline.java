@@ -0,0 +1,341 @@
+package com.example.aogra_study;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.media.ExifInterface;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 图片消息预处理流水线
+ * 在后台线程池中完成降采样解码、缩放到目标长边、按体积预算压缩和生成缩略图，并限制同时上传的图片数
+ */
+public class ChatImagePipeline {
+    private static final String TAG = "Agora";
+
+    public static final int DEFAULT_TARGET_LONG_EDGE = 1280;
+    public static final int DEFAULT_THUMBNAIL_LONG_EDGE = 240;
+    public static final int DEFAULT_MAX_BYTES = 300 * 1024;
+    private static final int WORKER_COUNT = 2;
+    private static final int MAX_QUEUED_JOBS = 16;
+    private static final int DEFAULT_MAX_CONCURRENT_UPLOADS = 2;
+    private static final int START_QUALITY = 85;
+    private static final int MIN_QUALITY = 40;
+    private static final int QUALITY_STEP = 10;
+    private static final int THUMBNAIL_QUALITY = 70;
+    // 两张1280长边ARGB图片加缩略图的大小
+    private static final long POOL_MAX_BYTES = 16L * 1024 * 1024;
+
+    /**
+     * 处理结果
+     */
+    public static class Result {
+        public final String imagePath;
+        public final String thumbnailPath;
+        public final int width;
+        public final int height;
+        public final int thumbnailWidth;
+        public final int thumbnailHeight;
+        public final long bytes;
+
+        Result(String imagePath, String thumbnailPath, int width, int height,
+               int thumbnailWidth, int thumbnailHeight, long bytes) {
+            this.imagePath = imagePath;
+            this.thumbnailPath = thumbnailPath;
+            this.width = width;
+            this.height = height;
+            this.thumbnailWidth = thumbnailWidth;
+            this.thumbnailHeight = thumbnailHeight;
+            this.bytes = bytes;
+        }
+    }
+
+    public interface Callback {
+        void onSuccess(Result result);
+
+        void onError(String error);
+    }
+
+    private final File outputDir;
+    private final int targetLongEdge;
+    private final int thumbnailLongEdge;
+    private final int maxBytes;
+    private final int maxConcurrentUploads;
+    private final BitmapPool bitmapPool = new BitmapPool(POOL_MAX_BYTES);
+    private final ThreadPoolExecutor executor;
+    // Paint不是线程安全的，每个工作线程各用一个
+    private final ThreadLocal<Paint> paint = new ThreadLocal<Paint>() {
+        @Override
+        protected Paint initialValue() {
+            return new Paint(Paint.FILTER_BITMAP_FLAG);
+        }
+    };
+
+    // 上传并发控制，由this锁保护
+    private final ArrayDeque<Runnable> waitingUploads = new ArrayDeque<>();
+    private int activeUploads = 0;
+
+    public ChatImagePipeline(Context context) {
+        this(context, DEFAULT_TARGET_LONG_EDGE, DEFAULT_THUMBNAIL_LONG_EDGE, DEFAULT_MAX_BYTES,
+                DEFAULT_MAX_CONCURRENT_UPLOADS);
+    }
+
+    public ChatImagePipeline(Context context, int targetLongEdge, int thumbnailLongEdge, int maxBytes,
+                             int maxConcurrentUploads) {
+        this.outputDir = new File(context.getCacheDir(), "chat_images");
+        this.targetLongEdge = targetLongEdge;
+        this.thumbnailLongEdge = thumbnailLongEdge;
+        this.maxBytes = maxBytes;
+        this.maxConcurrentUploads = Math.max(1, maxConcurrentUploads);
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(MAX_QUEUED_JOBS), r -> {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, "chat-image-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 异步处理一张图片，回调在工作线程上
+     */
+    public void process(String imagePath, Callback callback) {
+        try {
+            executor.execute(() -> {
+                try {
+                    callback.onSuccess(processInternal(imagePath));
+                } catch (Exception | OutOfMemoryError e) {
+                    Log.e(TAG, "图片处理失败: " + imagePath, e);
+                    callback.onError(e.getMessage() != null ? e.getMessage() : e.toString());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "图片处理队列已满，拒绝: " + imagePath);
+            callback.onError("Image pipeline is busy");
+        }
+    }
+
+    /**
+     * 在上传并发上限内执行上传任务，上传结束后必须调用onUploadFinished
+     */
+    public void runUpload(Runnable upload) {
+        synchronized (this) {
+            if (activeUploads >= maxConcurrentUploads) {
+                waitingUploads.addLast(upload);
+                Log.d(TAG, "图片上传排队，当前上传数: " + activeUploads + "，排队数: " + waitingUploads.size());
+                return;
+            }
+            activeUploads++;
+        }
+        upload.run();
+    }
+
+    /**
+     * 一次上传结束（成功或失败），释放并发名额
+     */
+    public void onUploadFinished() {
+        Runnable next;
+        synchronized (this) {
+            next = waitingUploads.pollFirst();
+            if (next == null) {
+                activeUploads = Math.max(0, activeUploads - 1);
+                return;
+            }
+        }
+        next.run();
+    }
+
+    /**
+     * 删除一次处理生成的图片和缩略图，上传结束后调用
+     */
+    public static void deleteOutput(Result result) {
+        deleteQuietly(result.imagePath);
+        deleteQuietly(result.thumbnailPath);
+    }
+
+    private static void deleteQuietly(String path) {
+        File file = new File(path);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "删除临时图片失败: " + path);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        bitmapPool.clear();
+    }
+
+    private Result processInternal(String imagePath) throws IOException {
+        long startTime = System.currentTimeMillis();
+
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(imagePath, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IOException("Unable to decode image bounds");
+        }
+
+        Bitmap decoded = decodeSampled(imagePath, bounds.outWidth, bounds.outHeight);
+        Bitmap scaled = null;
+        Bitmap thumbnail = null;
+        try {
+            int rotation = readRotation(imagePath);
+            scaled = drawScaled(decoded, targetLongEdge, rotation);
+            bitmapPool.put(decoded);
+            decoded = null;
+            thumbnail = drawScaled(scaled, thumbnailLongEdge, 0);
+
+            if (!outputDir.exists() && !outputDir.mkdirs()) {
+                throw new IOException("Unable to create " + outputDir);
+            }
+            String baseName = "img_" + System.currentTimeMillis() + "_" + Thread.currentThread().getId();
+            File imageFile = new File(outputDir, baseName + ".jpg");
+            File thumbnailFile = new File(outputDir, baseName + "_thumb.jpg");
+            long bytes;
+            try {
+                bytes = writeWithinBudget(scaled, imageFile);
+                writeJpeg(thumbnail, THUMBNAIL_QUALITY, thumbnailFile);
+            } catch (IOException e) {
+                // 写了一半的文件不会再被使用
+                deleteQuietly(imageFile.getAbsolutePath());
+                deleteQuietly(thumbnailFile.getAbsolutePath());
+                throw e;
+            }
+
+            Result result = new Result(imageFile.getAbsolutePath(), thumbnailFile.getAbsolutePath(),
+                    scaled.getWidth(), scaled.getHeight(), thumbnail.getWidth(), thumbnail.getHeight(), bytes);
+            Log.d(TAG, "图片处理完成，原图: " + bounds.outWidth + "x" + bounds.outHeight
+                    + "，输出: " + result.width + "x" + result.height + "，大小: " + bytes
+                    + "字节，耗时: " + (System.currentTimeMillis() - startTime) + "ms");
+            return result;
+        } finally {
+            bitmapPool.put(decoded);
+            bitmapPool.put(scaled);
+            bitmapPool.put(thumbnail);
+        }
+    }
+
+    /**
+     * 用2的幂降采样解码，解码结果长边不小于目标长边
+     */
+    private Bitmap decodeSampled(String imagePath, int width, int height) throws IOException {
+        int longEdge = Math.max(width, height);
+        int sampleSize = 1;
+        while (longEdge / (sampleSize * 2) >= targetLongEdge) {
+            sampleSize *= 2;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        int sampledWidth = (width + sampleSize - 1) / sampleSize;
+        int sampledHeight = (height + sampleSize - 1) / sampleSize;
+        options.inBitmap = bitmapPool.getForDecode(sampledWidth, sampledHeight, Bitmap.Config.ARGB_8888);
+
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(imagePath, options);
+        } catch (IllegalArgumentException e) {
+            // 复用的Bitmap不满足解码要求时退回到新分配
+            Log.w(TAG, "inBitmap复用失败，重新解码: " + e.getMessage());
+            bitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(imagePath, options);
+        }
+        if (bitmap == null) {
+            bitmapPool.put(options.inBitmap);
+            throw new IOException("Unable to decode image");
+        }
+        return bitmap;
+    }
+
+    /**
+     * 把source缩放（必要时旋转）到长边不超过maxLongEdge，目标Bitmap取自复用池
+     */
+    private Bitmap drawScaled(Bitmap source, int maxLongEdge, int rotation) {
+        int sourceLongEdge = Math.max(source.getWidth(), source.getHeight());
+        float scale = sourceLongEdge > maxLongEdge ? (float) maxLongEdge / sourceLongEdge : 1f;
+
+        Matrix matrix = new Matrix();
+        matrix.postScale(scale, scale);
+        matrix.postRotate(rotation);
+        RectF bounds = new RectF(0, 0, source.getWidth(), source.getHeight());
+        matrix.mapRect(bounds);
+        matrix.postTranslate(-bounds.left, -bounds.top);
+
+        int width = Math.max(1, Math.round(bounds.width()));
+        int height = Math.max(1, Math.round(bounds.height()));
+        Bitmap target = bitmapPool.get(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(target);
+        canvas.drawBitmap(source, matrix, paint.get());
+        return target;
+    }
+
+    /**
+     * 从起始质量开始逐步降低，直到体积不超过预算或到达最低质量
+     */
+    private long writeWithinBudget(Bitmap bitmap, File file) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(maxBytes);
+        int quality = START_QUALITY;
+        while (true) {
+            buffer.reset();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, quality, buffer);
+            if (buffer.size() <= maxBytes || quality - QUALITY_STEP < MIN_QUALITY) {
+                break;
+            }
+            quality -= QUALITY_STEP;
+        }
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            buffer.writeTo(out);
+        }
+        Log.d(TAG, "图片压缩质量: " + quality + "，大小: " + buffer.size() + "字节");
+        return buffer.size();
+    }
+
+    private static void writeJpeg(Bitmap bitmap, int quality, File file) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
+        }
+    }
+
+    private static int readRotation(String imagePath) {
+        try {
+            ExifInterface exif = new ExifInterface(imagePath);
+            int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+            switch (orientation) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+                default:
+                    return 0;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "读取图片EXIF失败: " + e.getMessage());
+            return 0;
+        }
+    }
+}
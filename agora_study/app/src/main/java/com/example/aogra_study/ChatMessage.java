@@ -1,6 +1,8 @@
 package com.example.aogra_study;
 
 public class ChatMessage {
+    // SDK消息ID，本地构造的消息可以为空
+    private String msgId;
     private String userId;
     private String message;
     private long timestamp;
@@ -13,6 +15,14 @@ public class ChatMessage {
         this.timestamp = System.currentTimeMillis();
     }
 
+    public String getMsgId() {
+        return msgId;
+    }
+
+    public void setMsgId(String msgId) {
+        this.msgId = msgId;
+    }
+
     public String getUserId() {
         return userId;
     }
@@ -1,22 +1,54 @@
 package com.example.aogra_study;
 
+import android.content.Context;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 import androidx.annotation.NonNull;
+import androidx.core.content.ContextCompat;
 import androidx.recyclerview.widget.RecyclerView;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
 import java.util.Locale;
 
 public class ChatMessageAdapter extends RecyclerView.Adapter<ChatMessageAdapter.ChatMessageViewHolder> {
-    private List<ChatMessage> messages = new ArrayList<>();
+    // 只保留可见范围附近的消息，淘汰的消息写在本地日志中，回滚时读回
+    private final ChatMessageWindow messages;
+    private final ChatMessageStore messageStore;
+    private final Date bindDate = new Date();
     private SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm", Locale.getDefault());
 
+    /**
+     * 不带本地日志，超出窗口的旧消息直接丢弃
+     */
+    public ChatMessageAdapter() {
+        this(null, ChatMessageWindow.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * 带本地日志，超出窗口的消息在回滚时从缓存目录读回
+     */
+    public ChatMessageAdapter(Context context, int windowCapacity) {
+        this.messageStore = context != null
+                ? new ChatMessageStore(ChatMessageStore.sessionFile(context.getCacheDir()),
+                        ContextCompat.getMainExecutor(context))
+                : null;
+        this.messages = new ChatMessageWindow(windowCapacity, messageStore);
+        this.messages.setObserver(new ChatMessageWindow.Observer() {
+            @Override
+            public void onInserted(int position, int count) {
+                notifyItemRangeInserted(position, count);
+            }
+
+            @Override
+            public void onRemoved(int position, int count) {
+                notifyItemRangeRemoved(position, count);
+            }
+        });
+    }
+
     @NonNull
     @Override
     public ChatMessageViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
@@ -26,19 +58,18 @@ public class ChatMessageAdapter extends RecyclerView.Adapter<ChatMessageAdapter.
 
     @Override
     public void onBindViewHolder(@NonNull ChatMessageViewHolder holder, int position) {
-        ChatMessage message = messages.get(position);
-        
-        if (message.isSelf()) {
+        bindDate.setTime(messages.getTimestamp(position));
+        if (messages.isSelf(position)) {
             holder.llSelf.setVisibility(View.VISIBLE);
             holder.llOther.setVisibility(View.GONE);
-            holder.tvSelfMessage.setText(message.getMessage());
-            holder.tvSelfTime.setText(timeFormat.format(new Date(message.getTimestamp())));
+            holder.tvSelfMessage.setText(messages.getText(position));
+            holder.tvSelfTime.setText(timeFormat.format(bindDate));
         } else {
             holder.llSelf.setVisibility(View.GONE);
             holder.llOther.setVisibility(View.VISIBLE);
-            holder.tvOtherUser.setText(message.getUserId());
-            holder.tvOtherMessage.setText(message.getMessage());
-            holder.tvOtherTime.setText(timeFormat.format(new Date(message.getTimestamp())));
+            holder.tvOtherUser.setText(messages.getUserId(position));
+            holder.tvOtherMessage.setText(messages.getText(position));
+            holder.tvOtherTime.setText(timeFormat.format(bindDate));
         }
     }
 
@@ -47,14 +78,33 @@ public class ChatMessageAdapter extends RecyclerView.Adapter<ChatMessageAdapter.
         return messages.size();
     }
 
-    public void addMessage(ChatMessage message) {
-        messages.add(message);
-        notifyItemInserted(messages.size() - 1);
+    /**
+     * 添加一条新消息
+     *
+     * @return 消息是否显示在列表末尾（用户正在回看历史时返回false，调用方不应滚动到底部）
+     */
+    public boolean addMessage(ChatMessage message) {
+        return messages.append(message);
     }
 
     public void clearMessages() {
         messages.clear();
-        notifyDataSetChanged();
+    }
+
+    /**
+     * 列表滚动时调用，窗口据此淘汰或读回消息
+     */
+    public void onVisibleRangeChanged(int firstVisible, int lastVisible) {
+        messages.onVisibleRangeChanged(firstVisible, lastVisible);
+    }
+
+    /**
+     * 释放本地日志，页面销毁时调用
+     */
+    public void release() {
+        if (messageStore != null) {
+            messageStore.close();
+        }
     }
 
     static class ChatMessageViewHolder extends RecyclerView.ViewHolder {
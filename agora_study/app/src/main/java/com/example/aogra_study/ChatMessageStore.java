@@ -0,0 +1,239 @@
+package com.example.aogra_study;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 聊天消息本地日志
+ * 本次会话收到的每条消息按顺序追加到缓存文件，内存中只保留每条消息的文件偏移，
+ * 聊天列表窗口淘汰的消息在用户回滚时从这里读回。
+ * 每条记录先在内存中编码好再一次写入，字符串为 长度(int) + UTF-8字节，不限制长度；
+ * 写入失败时截掉不完整的记录，下标仍然占位，保证和调用方的计数一致
+ */
+public class ChatMessageStore {
+    private static final String TAG = "Agora";
+    // 写入失败的记录的偏移
+    private static final long MISSING = -1;
+    private static final String FILE_PREFIX = "chat_messages_";
+    private static final String FILE_SUFFIX = ".log";
+
+    public interface ReadCallback {
+        /**
+         * 读取完成，messages按下标升序，回调在构造时传入的callbackExecutor上
+         */
+        void onRead(long fromIndex, List<ChatMessage> messages);
+    }
+
+    private final File file;
+    private final Executor callbackExecutor;
+    private final ExecutorService ioExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "chat-message-store");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // 以下字段只在ioExecutor线程上访问
+    private RandomAccessFile raf;
+    private long[] offsets = new long[256];
+    private int count = 0;
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(256);
+    private final DataOutputStream recordOut = new DataOutputStream(recordBuffer);
+
+    /**
+     * 在dir下为本次会话生成一个新的日志文件名
+     */
+    public static File sessionFile(File dir) {
+        return new File(dir, FILE_PREFIX + System.currentTimeMillis() + FILE_SUFFIX);
+    }
+
+    public ChatMessageStore(File file, Executor callbackExecutor) {
+        this.file = file;
+        this.callbackExecutor = callbackExecutor;
+        ioExecutor.execute(() -> {
+            deleteStaleFiles();
+            try {
+                // 日志只在本次会话内有效，打开时清空
+                raf = new RandomAccessFile(file, "rw");
+                raf.setLength(0);
+            } catch (IOException e) {
+                Log.e(TAG, "打开消息日志失败: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * 追加一条消息，写入在后台线程完成；调用方负责维护下标（第n次追加的下标为n-1）
+     */
+    public void append(ChatMessage message) {
+        String msgId = message.getMsgId();
+        String userId = message.getUserId();
+        String text = message.getMessage();
+        long timestamp = message.getTimestamp();
+        boolean self = message.isSelf();
+        ioExecutor.execute(() -> {
+            if (raf == null) {
+                return;
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            long offset = MISSING;
+            try {
+                recordBuffer.reset();
+                writeString(recordOut, msgId);
+                writeString(recordOut, userId);
+                writeString(recordOut, text);
+                recordOut.writeLong(timestamp);
+                recordOut.writeBoolean(self);
+                offset = raf.length();
+                raf.seek(offset);
+                raf.write(recordBuffer.toByteArray(), 0, recordBuffer.size());
+            } catch (IOException e) {
+                Log.e(TAG, "写入消息日志失败: " + e.getMessage());
+                truncate(offset);
+                offset = MISSING;
+            }
+            offsets[count++] = offset;
+        });
+    }
+
+    /**
+     * 读取[fromIndex, toIndex)范围的消息
+     */
+    public void read(long fromIndex, long toIndex, ReadCallback callback) {
+        ioExecutor.execute(() -> {
+            List<ChatMessage> messages = new ArrayList<>();
+            int from = (int) Math.max(0, fromIndex);
+            int to = (int) Math.min(count, toIndex);
+            if (raf != null && from < to) {
+                try {
+                    readRange(from, to, messages);
+                } catch (IOException e) {
+                    Log.e(TAG, "读取消息日志失败: " + e.getMessage());
+                }
+            }
+            callbackExecutor.execute(() -> callback.onRead(from, messages));
+        });
+    }
+
+    // 进程被杀时close来不及执行，上次会话的日志会留在目录中，打开新日志前清掉。
+    // 同一进程中仍在使用的日志即使被删除，已打开的文件句柄也能继续读写，close时再删除一次不会出错
+    private void deleteStaleFiles() {
+        File dir = file.getParentFile();
+        if (dir == null) {
+            return;
+        }
+        File[] stale = dir.listFiles((d, name) -> name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX)
+                && !name.equals(file.getName()));
+        if (stale == null) {
+            return;
+        }
+        for (File old : stale) {
+            if (!old.delete()) {
+                Log.w(TAG, "删除残留的消息日志失败: " + old.getAbsolutePath());
+            }
+        }
+        if (stale.length > 0) {
+            Log.d(TAG, "已清理残留的消息日志: " + stale.length);
+        }
+    }
+
+    /**
+     * 关闭并删除日志文件
+     */
+    public void close() {
+        ioExecutor.execute(() -> {
+            try {
+                if (raf != null) {
+                    raf.close();
+                    raf = null;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "关闭消息日志失败: " + e.getMessage());
+            }
+            if (file.exists() && !file.delete()) {
+                Log.w(TAG, "删除消息日志失败: " + file.getAbsolutePath());
+            }
+        });
+        ioExecutor.shutdown();
+    }
+
+    // 范围内的记录是连续的，一次读出再逐条解码；写入失败的记录用占位消息代替，保持下标连续
+    private void readRange(int from, int to, List<ChatMessage> messages) throws IOException {
+        long start = MISSING;
+        long end = MISSING;
+        for (int i = from; i < count && end == MISSING; i++) {
+            if (offsets[i] == MISSING) {
+                continue;
+            }
+            if (i < to && start == MISSING) {
+                start = offsets[i];
+            } else if (i >= to) {
+                end = offsets[i];
+            }
+        }
+        byte[] bytes = new byte[0];
+        if (start != MISSING) {
+            bytes = new byte[(int) ((end != MISSING ? end : raf.length()) - start)];
+            raf.seek(start);
+            raf.readFully(bytes);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        for (int i = from; i < to; i++) {
+            if (offsets[i] == MISSING) {
+                messages.add(new ChatMessage("", "[消息未能保存]", false));
+                continue;
+            }
+            String msgId = readString(in);
+            String userId = readString(in);
+            String text = readString(in);
+            long timestamp = in.readLong();
+            boolean self = in.readBoolean();
+            ChatMessage message = new ChatMessage(userId, text, self);
+            message.setTimestamp(timestamp);
+            message.setMsgId(msgId.isEmpty() ? null : msgId);
+            messages.add(message);
+        }
+    }
+
+    // 去掉写了一半的记录
+    private void truncate(long length) {
+        if (length == MISSING) {
+            return;
+        }
+        try {
+            raf.setLength(length);
+        } catch (IOException e) {
+            Log.e(TAG, "截断消息日志失败: " + e.getMessage());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("记录长度无效: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
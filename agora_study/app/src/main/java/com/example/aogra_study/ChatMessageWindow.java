@@ -0,0 +1,263 @@
+package com.example.aogra_study;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 聊天消息滑动窗口
+ * 内存中只保留可见范围附近的固定条数消息，窗口外的消息被淘汰，滚动到窗口边缘时再从ChatMessageStore读回。
+ * 所有方法都需在主线程调用
+ */
+public class ChatMessageWindow {
+    public static final int DEFAULT_CAPACITY = 200;
+    // 距离窗口边缘多少条时开始预加载
+    private static final int PREFETCH_DISTANCE = 20;
+
+    /**
+     * 窗口内容变化通知，位置为窗口内下标
+     */
+    public interface Observer {
+        void onInserted(int position, int count);
+
+        void onRemoved(int position, int count);
+    }
+
+    /**
+     * 窗口内的一条消息，用户ID以驻留表下标保存
+     */
+    private static final class CompactMessage {
+        final String msgId;
+        final String text;
+        final long timestamp;
+        // 低31位为用户ID在驻留表中的下标，最高位表示是否为自己发送
+        final int userRefAndSelf;
+
+        CompactMessage(String msgId, String text, long timestamp, int userRef, boolean self) {
+            this.msgId = msgId;
+            this.text = text;
+            this.timestamp = timestamp;
+            this.userRefAndSelf = self ? (userRef | Integer.MIN_VALUE) : userRef;
+        }
+    }
+
+    private final int capacity;
+    private final int loadBatch;
+    private final ChatMessageStore store;
+    private final ArrayList<CompactMessage> items = new ArrayList<>();
+    // 用户ID驻留表，同一用户的所有消息共用一个String
+    private final Map<String, Integer> userRefs = new HashMap<>();
+    private final ArrayList<String> userIds = new ArrayList<>();
+    private Observer observer;
+    // items.get(0)在全部消息中的下标
+    private long firstIndex = 0;
+    // 已追加的消息总数
+    private long totalCount = 0;
+    // 可回读的最小下标，clear之后之前的消息不再读回
+    private long floorIndex = 0;
+    private int visibleFirst = -1;
+    private int visibleLast = -1;
+    private boolean loadingOlder = false;
+    private boolean loadingNewer = false;
+
+    /**
+     * @param store 淘汰消息的回读来源，为null时淘汰的消息直接丢弃
+     */
+    public ChatMessageWindow(int capacity, ChatMessageStore store) {
+        this.capacity = Math.max(PREFETCH_DISTANCE * 4, capacity);
+        this.loadBatch = this.capacity / 4;
+        this.store = store;
+    }
+
+    public void setObserver(Observer observer) {
+        this.observer = observer;
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    public String getUserId(int position) {
+        return userIds.get(items.get(position).userRefAndSelf & Integer.MAX_VALUE);
+    }
+
+    public String getText(int position) {
+        return items.get(position).text;
+    }
+
+    public long getTimestamp(int position) {
+        return items.get(position).timestamp;
+    }
+
+    public boolean isSelf(int position) {
+        return items.get(position).userRefAndSelf < 0;
+    }
+
+    public String getMsgId(int position) {
+        return items.get(position).msgId;
+    }
+
+    /**
+     * 窗口是否包含最新的消息（此时新消息会直接显示）
+     */
+    public boolean isAtLatest() {
+        return firstIndex + items.size() == totalCount;
+    }
+
+    /**
+     * 追加一条新消息
+     *
+     * @return 消息是否进入了窗口（用户正在回看历史时不会进入，滚动到底部时再读回）
+     */
+    public boolean append(ChatMessage message) {
+        boolean atLatest = isAtLatest();
+        totalCount++;
+        if (store != null) {
+            store.append(message);
+        }
+        // 用户停留在历史位置且窗口已满时不再追加，避免窗口无限增长；滚回底部时从日志读回
+        boolean viewingHistory = visibleLast >= 0 && visibleLast < items.size() - PREFETCH_DISTANCE;
+        if (!atLatest || (store != null && items.size() >= capacity && viewingHistory)) {
+            return false;
+        }
+        items.add(toCompact(message));
+        notifyInserted(items.size() - 1, 1);
+        trimFront();
+        return true;
+    }
+
+    /**
+     * 清空窗口和计数（日志文件中的旧消息不再可见）
+     */
+    public void clear() {
+        int size = items.size();
+        items.clear();
+        firstIndex = totalCount;
+        floorIndex = totalCount;
+        visibleFirst = -1;
+        visibleLast = -1;
+        if (size > 0) {
+            notifyRemoved(0, size);
+        }
+    }
+
+    /**
+     * 列表可见范围变化时调用，接近窗口边缘时从日志中读回相邻的消息
+     */
+    public void onVisibleRangeChanged(int first, int last) {
+        visibleFirst = first;
+        visibleLast = last;
+        if (store == null || first < 0) {
+            return;
+        }
+        if (first < PREFETCH_DISTANCE && firstIndex > floorIndex && !loadingOlder) {
+            loadingOlder = true;
+            long from = Math.max(floorIndex, firstIndex - loadBatch);
+            long to = firstIndex;
+            store.read(from, to, (fromIndex, messages) -> {
+                loadingOlder = false;
+                // 等待期间窗口已被清空或移动则丢弃结果
+                if (fromIndex + messages.size() != firstIndex || messages.isEmpty()) {
+                    return;
+                }
+                List<CompactMessage> loaded = new ArrayList<>(messages.size());
+                for (ChatMessage message : messages) {
+                    loaded.add(toCompact(message));
+                }
+                items.addAll(0, loaded);
+                firstIndex = fromIndex;
+                shiftVisible(loaded.size());
+                notifyInserted(0, loaded.size());
+                trimBack();
+            });
+        }
+        long windowEnd = firstIndex + items.size();
+        if (last > items.size() - PREFETCH_DISTANCE && windowEnd < totalCount && !loadingNewer) {
+            loadingNewer = true;
+            store.read(windowEnd, Math.min(totalCount, windowEnd + loadBatch), (fromIndex, messages) -> {
+                loadingNewer = false;
+                if (fromIndex != firstIndex + items.size() || messages.isEmpty()) {
+                    return;
+                }
+                int position = items.size();
+                for (ChatMessage message : messages) {
+                    items.add(toCompact(message));
+                }
+                notifyInserted(position, messages.size());
+                trimFront();
+            });
+        }
+    }
+
+    /**
+     * 从顶部淘汰超出容量的消息，但不淘汰可见范围内的
+     */
+    private void trimFront() {
+        int excess = items.size() - capacity;
+        if (excess <= 0) {
+            return;
+        }
+        // 有日志可回读时保留可见范围；没有时必须保证内存上限
+        if (store != null && visibleFirst >= 0) {
+            excess = Math.min(excess, Math.max(0, visibleFirst - PREFETCH_DISTANCE));
+        }
+        if (excess <= 0) {
+            return;
+        }
+        firstIndex += excess;
+        items.subList(0, excess).clear();
+        shiftVisible(-excess);
+        notifyRemoved(0, excess);
+    }
+
+    /**
+     * 从底部淘汰超出容量的消息，但不淘汰可见范围内的
+     */
+    private void trimBack() {
+        int excess = items.size() - capacity;
+        if (excess <= 0) {
+            return;
+        }
+        if (visibleLast >= 0) {
+            excess = Math.min(excess, Math.max(0, items.size() - 1 - visibleLast - PREFETCH_DISTANCE));
+        }
+        if (excess <= 0) {
+            return;
+        }
+        int position = items.size() - excess;
+        items.subList(position, items.size()).clear();
+        notifyRemoved(position, excess);
+    }
+
+    private void shiftVisible(int delta) {
+        if (visibleFirst >= 0) {
+            visibleFirst += delta;
+            visibleLast += delta;
+        }
+    }
+
+    private CompactMessage toCompact(ChatMessage message) {
+        String userId = message.getUserId() != null ? message.getUserId() : "";
+        Integer ref = userRefs.get(userId);
+        if (ref == null) {
+            ref = userIds.size();
+            userIds.add(userId);
+            userRefs.put(userId, ref);
+        }
+        return new CompactMessage(message.getMsgId(), message.getMessage(), message.getTimestamp(), ref,
+                message.isSelf());
+    }
+
+    private void notifyInserted(int position, int count) {
+        if (observer != null) {
+            observer.onInserted(position, count);
+        }
+    }
+
+    private void notifyRemoved(int position, int count) {
+        if (observer != null) {
+            observer.onRemoved(position, count);
+        }
+    }
+}
@@ -0,0 +1,498 @@
+package com.example.aogra_study;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 聊天消息发送队列
+ * 未登录或SDK未就绪时消息先入队，登录成功后打开该用户的持久化存储，按客户端序号顺序分批发送，失败按指数退避重试。
+ * 同一时间只有一条消息在途，前一条确认后才交出下一条：某条失败时后面的消息不会先于它送达。
+ * 服务器明确拒绝、重试次数用完或在队列中太久的消息移到失败列表，交给界面处理，后面的消息继续发送
+ */
+public class ChatOutboundQueue {
+    private static final String TAG = "Agora";
+    private static final String KEY_ENTRIES = "entries";
+    private static final String KEY_FAILED = "failed";
+    private static final String KEY_NEXT_SEQ = "next_seq";
+    private static final String STORE_PREFIX = "chat_outbound_queue_";
+
+    // 客户端序号在消息扩展字段中的key，接收方可用于去重和排序
+    public static final String ATTR_CLIENT_SEQ = "client_seq";
+
+    public static final int DEFAULT_BATCH_SIZE = 10;
+    public static final int DEFAULT_MAX_ATTEMPTS = 8;
+    public static final long DEFAULT_MAX_AGE_MS = 24 * 60 * 60 * 1000L;
+    private static final long BASE_RETRY_DELAY_MS = 1000;
+    private static final long MAX_RETRY_DELAY_MS = 30_000;
+
+    public enum Type {
+        TXT, IMAGE, VOICE
+    }
+
+    /**
+     * 队列中的一条待发送消息
+     */
+    public static class Entry {
+        public final long clientSeq;
+        public final Type type;
+        public final String to;
+        // 文本内容，或图片/语音的本地文件路径
+        public final String content;
+        // 语音时长（秒），其他类型为0
+        public final int length;
+        public final long enqueuedAt;
+        int attempts;
+
+        Entry(long clientSeq, Type type, String to, String content, int length, long enqueuedAt) {
+            this.clientSeq = clientSeq;
+            this.type = type;
+            this.to = to;
+            this.content = content;
+            this.length = length;
+            this.enqueuedAt = enqueuedAt;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("seq", clientSeq);
+            json.put("type", type.name());
+            json.put("to", to);
+            json.put("content", content);
+            json.put("length", length);
+            json.put("enqueuedAt", enqueuedAt);
+            json.put("attempts", attempts);
+            return json;
+        }
+
+        static Entry fromJson(JSONObject json) throws JSONException {
+            Entry entry = new Entry(json.getLong("seq"), Type.valueOf(json.getString("type")),
+                    json.getString("to"), json.getString("content"), json.optInt("length"),
+                    json.getLong("enqueuedAt"));
+            entry.attempts = json.optInt("attempts");
+            return entry;
+        }
+    }
+
+    /**
+     * 实际发送通道，由ChatController基于Chat SDK实现
+     */
+    public interface Transport {
+        /**
+         * 发送一条消息，完成后必须回调callback且只回调一次
+         */
+        void send(Entry entry, SendCallback callback);
+    }
+
+    public interface SendCallback {
+        void onSuccess();
+
+        /**
+         * 暂时性的失败（网络、限流等），消息留在队首等待重试
+         */
+        void onError(int code, String error);
+
+        /**
+         * 服务器明确拒绝（内容违规、超过大小、接收方不存在等），重试也不会成功，消息直接移到失败列表
+         */
+        void onRejected(int code, String error);
+    }
+
+    /**
+     * 发送结果监听，回调在队列工作线程上（持有队列锁，不要在回调中做耗时操作）
+     */
+    public interface Listener {
+        /**
+         * 消息送达，latencyMs为入队到服务器确认的耗时
+         */
+        void onDelivered(Entry entry, long latencyMs);
+
+        /**
+         * 单次发送失败，消息会保留在队列中等待重试
+         */
+        void onSendFailed(Entry entry, int code, String error, long retryDelayMs);
+
+        /**
+         * 放弃发送：服务器拒绝、尝试次数用完或在队列中太久。消息已移到失败列表，
+         * 可以用retryFailed重新发送或discardFailed删除，后面的消息继续发送
+         */
+        void onGaveUp(Entry entry, int code, String error);
+    }
+
+    private final Transport transport;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final long maxAgeMs;
+    private final long baseRetryDelayMs;
+    // 以下状态均由this锁保护，SDK回调和重试定时任务在executor线程上执行
+    private final List<Entry> pending = new ArrayList<>();
+    private final List<Entry> failed = new ArrayList<>();
+    // 工作线程随open创建、close销毁，和登录会话的生命周期一致
+    private ScheduledExecutorService executor;
+    private SharedPreferences store;
+    private Listener listener;
+    private long nextSeq = 1;
+    private boolean online = false;
+    private boolean batchInFlight = false;
+    private int consecutiveFailures = 0;
+    private ScheduledFuture<?> retryFuture;
+
+    public ChatOutboundQueue(Transport transport) {
+        this(transport, DEFAULT_BATCH_SIZE);
+    }
+
+    public ChatOutboundQueue(Transport transport, int batchSize) {
+        this(transport, batchSize, DEFAULT_MAX_ATTEMPTS, DEFAULT_MAX_AGE_MS, BASE_RETRY_DELAY_MS);
+    }
+
+    ChatOutboundQueue(Transport transport, int batchSize, int maxAttempts, long maxAgeMs, long baseRetryDelayMs) {
+        this.transport = transport;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.maxAgeMs = maxAgeMs;
+        this.baseRetryDelayMs = baseRetryDelayMs;
+    }
+
+    /**
+     * 某个用户的持久化存储名，不同用户、不同appKey的队列互不影响
+     */
+    public static String storeName(String appKey, String username) {
+        return STORE_PREFIX + (appKey + "_" + username).replaceAll("[^A-Za-z0-9_.-]", "_");
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 登录成功后打开该用户的持久化存储，恢复上次未发送完的消息和失败列表，并启动工作线程
+     * 打开前已入队的消息排在恢复的消息之后，并重新分配序号
+     */
+    public synchronized void open(SharedPreferences preferences) {
+        if (store == preferences) {
+            return;
+        }
+        if (store != null) {
+            close();
+        }
+        store = preferences;
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "chat-outbound");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Entry> restored = new ArrayList<>();
+        long restoredNextSeq = preferences.getLong(KEY_NEXT_SEQ, 1);
+        try {
+            readEntries(preferences.getString(KEY_ENTRIES, "[]"), restored);
+            readEntries(preferences.getString(KEY_FAILED, "[]"), failed);
+        } catch (JSONException e) {
+            Log.e(TAG, "恢复发送队列失败，丢弃损坏的数据: " + e.getMessage());
+            restored.clear();
+            failed.clear();
+        }
+        for (Entry entry : pending) {
+            Entry renumbered = new Entry(restoredNextSeq++, entry.type, entry.to, entry.content,
+                    entry.length, entry.enqueuedAt);
+            renumbered.attempts = entry.attempts;
+            restored.add(renumbered);
+        }
+        pending.clear();
+        pending.addAll(restored);
+        nextSeq = restoredNextSeq;
+        persist();
+        Log.d(TAG, "发送队列已恢复，待发送消息数: " + pending.size() + "，失败消息数: " + failed.size()
+                + "，下一个序号: " + nextSeq);
+        drain();
+    }
+
+    /**
+     * 登出或所有者销毁时调用：停止工作线程并卸下存储，未发送的消息已持久化，下次同一用户open时恢复。
+     * 之后还可以再次open
+     */
+    public synchronized void close() {
+        online = false;
+        cancelRetry();
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        if (store == null) {
+            return;
+        }
+        persist();
+        store = null;
+        pending.clear();
+        failed.clear();
+        nextSeq = 1;
+        batchInFlight = false;
+        consecutiveFailures = 0;
+    }
+
+    /**
+     * 消息入队，任何时候都可以调用
+     *
+     * @return 该消息的客户端序号
+     */
+    public synchronized long enqueue(Type type, String to, String content, int length) {
+        Entry entry = new Entry(nextSeq++, type, to, content, length, System.currentTimeMillis());
+        pending.add(entry);
+        persist();
+        Log.d(TAG, "消息入队，序号: " + entry.clientSeq + "，类型: " + type + "，接收方: " + to);
+        drain();
+        return entry.clientSeq;
+    }
+
+    /**
+     * 设置是否可以发送（登录成功后为true，登出或断线后为false）
+     */
+    public synchronized void setOnline(boolean online) {
+        this.online = online;
+        if (online) {
+            cancelRetry();
+            consecutiveFailures = 0;
+            drain();
+        }
+    }
+
+    /**
+     * 当前待发送消息数
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * 已放弃发送的消息
+     */
+    public synchronized List<Entry> getFailedEntries() {
+        return new ArrayList<>(failed);
+    }
+
+    /**
+     * 重新发送一条失败的消息，排到队尾并分配新序号
+     *
+     * @return 新的客户端序号，没有该消息时返回-1
+     */
+    public synchronized long retryFailed(long clientSeq) {
+        Entry entry = removeFailed(clientSeq);
+        if (entry == null) {
+            return -1;
+        }
+        return enqueue(entry.type, entry.to, entry.content, entry.length);
+    }
+
+    /**
+     * 删除一条失败的消息
+     */
+    public synchronized boolean discardFailed(long clientSeq) {
+        if (removeFailed(clientSeq) == null) {
+            return false;
+        }
+        persist();
+        return true;
+    }
+
+    private Entry removeFailed(long clientSeq) {
+        for (int i = 0; i < failed.size(); i++) {
+            if (failed.get(i).clientSeq == clientSeq) {
+                return failed.remove(i);
+            }
+        }
+        return null;
+    }
+
+    private void drain() {
+        if (!online || executor == null || batchInFlight || retryFuture != null || pending.isEmpty()) {
+            return;
+        }
+        batchInFlight = true;
+        BatchState state = new BatchState(Math.min(batchSize, pending.size()));
+        Log.d(TAG, "开始发送一批消息，数量: " + state.remaining + "，起始序号: " + pending.get(0).clientSeq);
+        sendHead(state);
+    }
+
+    // 发送队首的消息，回调切到executor线程处理
+    private void sendHead(BatchState state) {
+        Entry entry = pending.get(0);
+        entry.attempts++;
+        try {
+            transport.send(entry, new SendCallback() {
+                @Override
+                public void onSuccess() {
+                    execute(() -> onEntrySent(state, entry));
+                }
+
+                @Override
+                public void onError(int code, String error) {
+                    execute(() -> onEntryFailed(entry, code, error, false));
+                }
+
+                @Override
+                public void onRejected(int code, String error) {
+                    execute(() -> onEntryFailed(entry, code, error, true));
+                }
+            });
+        } catch (Exception e) {
+            onEntryFailed(entry, -1, e.getMessage(), false);
+        }
+    }
+
+    // 只有队首在途，结果不是队首的说明来自close之前的会话，忽略
+    private boolean isStale(Entry entry) {
+        return pending.isEmpty() || pending.get(0) != entry;
+    }
+
+    private synchronized void onEntrySent(BatchState state, Entry entry) {
+        if (isStale(entry)) {
+            return;
+        }
+        pending.remove(entry);
+        persist();
+        long latency = System.currentTimeMillis() - entry.enqueuedAt;
+        Log.d(TAG, "消息送达，序号: " + entry.clientSeq + "，尝试次数: " + entry.attempts + "，耗时: " + latency + "ms");
+        if (listener != null) {
+            listener.onDelivered(entry, latency);
+        }
+        consecutiveFailures = 0;
+        if (--state.remaining > 0 && online && !pending.isEmpty()) {
+            sendHead(state);
+            return;
+        }
+        batchInFlight = false;
+        drain();
+    }
+
+    // 失败的消息留在队首，本批剩下的消息不再发送，退避后从它开始重新发送；
+    // 被拒绝、尝试次数用完或太旧的消息移到失败列表，后面的消息立即继续
+    private synchronized void onEntryFailed(Entry entry, int code, String error, boolean rejected) {
+        if (isStale(entry)) {
+            return;
+        }
+        batchInFlight = false;
+        boolean expired = System.currentTimeMillis() - entry.enqueuedAt > maxAgeMs;
+        if (rejected || expired || entry.attempts >= maxAttempts) {
+            pending.remove(entry);
+            failed.add(entry);
+            persist();
+            Log.e(TAG, "消息放弃发送，序号: " + entry.clientSeq + "，尝试次数: " + entry.attempts
+                    + (rejected ? "，服务器拒绝" : expired ? "，在队列中太久" : "，重试次数用完")
+                    + "，错误码: " + code + "，错误信息: " + error);
+            if (listener != null) {
+                listener.onGaveUp(entry, code, error);
+            }
+            drain();
+            return;
+        }
+        consecutiveFailures++;
+        long delay = nextRetryDelay(consecutiveFailures);
+        persist();
+        Log.e(TAG, "消息发送失败，序号: " + entry.clientSeq + "，错误码: " + code + "，错误信息: " + error);
+        if (listener != null) {
+            listener.onSendFailed(entry, code, error, delay);
+        }
+        if (online) {
+            scheduleRetry(delay);
+        }
+    }
+
+    private void execute(Runnable task) {
+        ScheduledExecutorService current;
+        synchronized (this) {
+            current = executor;
+        }
+        if (current == null) {
+            Log.w(TAG, "发送队列已关闭，忽略发送结果");
+            return;
+        }
+        try {
+            current.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "发送队列已关闭，忽略发送结果");
+        }
+    }
+
+    private void scheduleRetry(long delayMs) {
+        cancelRetry();
+        if (executor == null) {
+            return;
+        }
+        Log.d(TAG, "发送队列将在 " + delayMs + "ms 后重试，待发送消息数: " + pending.size());
+        retryFuture = executor.schedule(() -> {
+            synchronized (ChatOutboundQueue.this) {
+                retryFuture = null;
+                drain();
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelRetry() {
+        if (retryFuture != null) {
+            retryFuture.cancel(false);
+            retryFuture = null;
+        }
+    }
+
+    private long nextRetryDelay(int failures) {
+        long delay = baseRetryDelayMs << Math.min(failures - 1, 5);
+        return Math.min(delay, MAX_RETRY_DELAY_MS);
+    }
+
+    private void persist() {
+        if (store == null) {
+            return;
+        }
+        String entries;
+        String failedEntries;
+        try {
+            entries = writeEntries(pending);
+            failedEntries = writeEntries(failed);
+        } catch (JSONException e) {
+            Log.e(TAG, "序列化发送队列失败: " + e.getMessage());
+            return;
+        }
+        store.edit()
+                .putString(KEY_ENTRIES, entries)
+                .putString(KEY_FAILED, failedEntries)
+                .putLong(KEY_NEXT_SEQ, nextSeq)
+                .apply();
+    }
+
+    private static void readEntries(String json, List<Entry> out) throws JSONException {
+        JSONArray array = new JSONArray(json);
+        for (int i = 0; i < array.length(); i++) {
+            out.add(Entry.fromJson(array.getJSONObject(i)));
+        }
+    }
+
+    private static String writeEntries(List<Entry> entries) throws JSONException {
+        JSONArray array = new JSONArray();
+        for (Entry entry : entries) {
+            array.put(entry.toJson());
+        }
+        return array.toString();
+    }
+
+    private static class BatchState {
+        int remaining;
+
+        BatchState(int size) {
+            this.remaining = size;
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package com.example.aogra_study;
+
+import io.agora.MessageListener;
+import io.agora.chat.ChatManager;
+import io.agora.chat.ChatMessage;
+import io.agora.chat.Conversation;
+import io.agora.chat.FileMessageBody;
+import io.agora.chat.TextMessageBody;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 会话列表索引
+ * 按最后一条消息时间倒序维护会话，收到或发出消息时只调整受影响的会话，并把位置变化以增量形式通知界面。
+ * 通知在持有锁时按修改顺序提交到单个通知线程，监听方收到的增量与索引内的修改顺序一致
+ */
+public class ConversationIndex implements MessageListener {
+
+    /**
+     * 会话列表中的一项（不可变，每次更新生成新对象）
+     */
+    public static class Item {
+        public final String conversationId;
+        public final long lastMessageTime;
+        public final String lastMessageId;
+        public final String preview;
+        public final int unreadCount;
+
+        Item(String conversationId, long lastMessageTime, String lastMessageId, String preview, int unreadCount) {
+            this.conversationId = conversationId;
+            this.lastMessageTime = lastMessageTime;
+            this.lastMessageId = lastMessageId;
+            this.preview = preview;
+            this.unreadCount = unreadCount;
+        }
+    }
+
+    /**
+     * 一次变化，位置均为按时间倒序的列表下标，-1表示不存在
+     */
+    public static class Change {
+        public enum Type {
+            INSERTED, UPDATED, MOVED, REMOVED
+        }
+
+        public final Type type;
+        public final Item item;
+        public final int fromPosition;
+        public final int toPosition;
+
+        Change(Type type, Item item, int fromPosition, int toPosition) {
+            this.type = type;
+            this.item = item;
+            this.fromPosition = fromPosition;
+            this.toPosition = toPosition;
+        }
+    }
+
+    public interface Listener {
+        /**
+         * 全量列表，注册监听时和重新加载后调用，之后的增量都基于这份列表
+         * 回调都在索引的通知线程上，界面需要自行切到主线程
+         */
+        void onConversationsReloaded(List<Item> items);
+
+        /**
+         * 会话列表发生变化
+         */
+        void onConversationsChanged(List<Change> changes);
+    }
+
+    // 按lastMessageTime倒序，时间相同时按conversationId排序，保证顺序稳定
+    private final ArrayList<Item> sorted = new ArrayList<>();
+    private final Map<String, Item> byId = new HashMap<>();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService notifyExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "conversation-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // 撤回消息时用来读取会话的最新状态
+    private final ChatManager chatManager;
+    // 当前正在查看的会话，新消息不计入未读
+    private volatile String activeConversationId;
+    // release之后不再接收SDK事件，也不再提交通知，由this锁保护
+    private boolean released = false;
+
+    public ConversationIndex(ChatManager chatManager) {
+        this.chatManager = chatManager;
+    }
+
+    /**
+     * 注册监听，并先把当前列表通过onConversationsReloaded交给它
+     */
+    public void addListener(Listener listener) {
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            listeners.add(listener);
+            List<Item> items = new ArrayList<>(sorted);
+            notifyExecutor.execute(() -> listener.onConversationsReloaded(items));
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 用SDK的会话列表做一次全量初始化，之后只做增量更新
+     */
+    public void load(Map<String, Conversation> conversations) {
+        List<Item> items = new ArrayList<>();
+        if (conversations != null) {
+            for (Conversation conversation : conversations.values()) {
+                items.add(fromConversation(conversation));
+            }
+        }
+        loadItems(items);
+    }
+
+    /**
+     * 用已生成的会话项做全量初始化，load和测试共用
+     */
+    synchronized void loadItems(List<Item> items) {
+        if (released) {
+            return;
+        }
+        sorted.clear();
+        byId.clear();
+        for (Item item : items) {
+            sorted.add(item);
+            byId.put(item.conversationId, item);
+        }
+        Collections.sort(sorted, ConversationIndex::compare);
+        List<Item> snapshot = new ArrayList<>(sorted);
+        List<Listener> targets = new ArrayList<>(listeners);
+        notifyExecutor.execute(() -> {
+            for (Listener listener : targets) {
+                listener.onConversationsReloaded(snapshot);
+            }
+        });
+    }
+
+    /**
+     * 从ChatManager注销消息监听并停止通知线程，所有者销毁时调用；之后的调用和SDK事件都被忽略
+     */
+    public void release() {
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            released = true;
+            listeners.clear();
+            notifyExecutor.shutdown();
+        }
+        if (chatManager != null) {
+            chatManager.removeMessageListener(this);
+        }
+    }
+
+    /**
+     * 当前会话列表快照
+     */
+    public synchronized List<Item> snapshot() {
+        return new ArrayList<>(sorted);
+    }
+
+    public synchronized int size() {
+        return sorted.size();
+    }
+
+    public synchronized Item get(int position) {
+        return sorted.get(position);
+    }
+
+    public synchronized Item find(String conversationId) {
+        return byId.get(conversationId);
+    }
+
+    /**
+     * 所有会话的未读总数
+     */
+    public synchronized int getTotalUnreadCount() {
+        int total = 0;
+        for (Item item : sorted) {
+            total += item.unreadCount;
+        }
+        return total;
+    }
+
+    /**
+     * 设置正在查看的会话，并清空它的未读数
+     */
+    public void setActiveConversation(String conversationId) {
+        activeConversationId = conversationId;
+        if (conversationId != null) {
+            markRead(conversationId);
+        }
+    }
+
+    /**
+     * 清空某个会话的未读数
+     */
+    public synchronized void markRead(String conversationId) {
+        Item old = byId.get(conversationId);
+        if (old == null || old.unreadCount == 0) {
+            return;
+        }
+        notifyListeners(Collections.singletonList(
+                replace(old, new Item(old.conversationId, old.lastMessageTime, old.lastMessageId, old.preview, 0))));
+    }
+
+    /**
+     * 自己发出的消息
+     */
+    public synchronized void onMessageSent(ChatMessage message) {
+        List<Change> changes = new ArrayList<>(1);
+        applyMessage(message, message.getTo(), false, changes);
+        notifyListeners(changes);
+    }
+
+    /**
+     * 按消息的会话、时间、ID和预览更新索引，不依赖SDK的消息对象
+     */
+    synchronized void applyMessage(String conversationId, long time, String messageId, String preview,
+                                   boolean incoming) {
+        List<Change> changes = new ArrayList<>(1);
+        applyMessage(conversationId, time, messageId, preview, incoming, changes);
+        notifyListeners(changes);
+    }
+
+    /**
+     * 删除会话
+     */
+    public synchronized void remove(String conversationId) {
+        Item old = byId.get(conversationId);
+        if (old == null) {
+            return;
+        }
+        int position = indexOf(old);
+        sorted.remove(position);
+        byId.remove(conversationId);
+        notifyListeners(Collections.singletonList(new Change(Change.Type.REMOVED, old, position, -1)));
+    }
+
+    /**
+     * 用SDK中的会话重新计算一项（例如消息撤回后最后一条消息变化）
+     */
+    public synchronized void refresh(Conversation conversation) {
+        if (conversation == null) {
+            return;
+        }
+        Item updated = fromConversation(conversation);
+        Item old = byId.get(updated.conversationId);
+        notifyListeners(Collections.singletonList(old == null ? insert(updated) : replace(old, updated)));
+    }
+
+    @Override
+    public synchronized void onMessageReceived(List<ChatMessage> messages) {
+        List<Change> changes = new ArrayList<>(messages.size());
+        for (ChatMessage message : messages) {
+            String conversationId = message.getChatType() == ChatMessage.ChatType.Chat
+                    ? message.getFrom() : message.getTo();
+            applyMessage(message, conversationId, true, changes);
+        }
+        notifyListeners(changes);
+    }
+
+    /**
+     * 撤回的消息可能是会话的最后一条，按SDK中的会话重新计算预览和排序
+     */
+    @Override
+    public void onMessageRecalled(List<ChatMessage> messages) {
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+        }
+        for (ChatMessage message : messages) {
+            String conversationId = message.conversationId();
+            if (conversationId != null) {
+                refresh(chatManager.getConversation(conversationId));
+            }
+        }
+    }
+
+    /**
+     * 生成消息的列表预览文字
+     */
+    public static String previewOf(ChatMessage message) {
+        if (message == null) {
+            return "";
+        }
+        if (message.getBody() == null) {
+            return "[空消息]";
+        }
+        switch (message.getType()) {
+            case TXT:
+                return message.getBody() instanceof TextMessageBody
+                        ? ((TextMessageBody) message.getBody()).getMessage() : "";
+            case IMAGE:
+                return "[图片消息]";
+            case VOICE:
+                return "[语音消息]";
+            case VIDEO:
+                return "[视频消息]";
+            case FILE:
+                return message.getBody() instanceof FileMessageBody
+                        ? "[文件消息: " + ((FileMessageBody) message.getBody()).getFileName() + "]" : "[文件消息]";
+            default:
+                return message.getBody().toString();
+        }
+    }
+
+    private void applyMessage(ChatMessage message, String conversationId, boolean incoming, List<Change> changes) {
+        applyMessage(conversationId, message.getMsgTime(), message.getMsgId(), previewOf(message), incoming, changes);
+    }
+
+    private void applyMessage(String conversationId, long time, String messageId, String preview, boolean incoming,
+                              List<Change> changes) {
+        if (conversationId == null) {
+            return;
+        }
+        Item old = byId.get(conversationId);
+        boolean countUnread = incoming && !conversationId.equals(activeConversationId);
+        if (old == null) {
+            changes.add(insert(new Item(conversationId, time, messageId, preview, countUnread ? 1 : 0)));
+            return;
+        }
+        int unread = old.unreadCount + (countUnread ? 1 : 0);
+        // 乱序到达的旧消息只影响未读数，不改变预览和排序
+        if (time < old.lastMessageTime) {
+            if (unread != old.unreadCount) {
+                changes.add(replace(old, new Item(conversationId, old.lastMessageTime, old.lastMessageId,
+                        old.preview, unread)));
+            }
+            return;
+        }
+        changes.add(replace(old, new Item(conversationId, time, messageId, preview, unread)));
+    }
+
+    private Change insert(Item item) {
+        int position = insertionPoint(item);
+        sorted.add(position, item);
+        byId.put(item.conversationId, item);
+        return new Change(Change.Type.INSERTED, item, -1, position);
+    }
+
+    private Change replace(Item old, Item updated) {
+        int from = indexOf(old);
+        sorted.remove(from);
+        int to = insertionPoint(updated);
+        sorted.add(to, updated);
+        byId.put(updated.conversationId, updated);
+        return new Change(from == to ? Change.Type.UPDATED : Change.Type.MOVED, updated, from, to);
+    }
+
+    private int indexOf(Item item) {
+        int position = Collections.binarySearch(sorted, item, ConversationIndex::compare);
+        if (position < 0) {
+            throw new IllegalStateException("Conversation index out of sync: " + item.conversationId);
+        }
+        return position;
+    }
+
+    private int insertionPoint(Item item) {
+        int position = Collections.binarySearch(sorted, item, ConversationIndex::compare);
+        return position < 0 ? -position - 1 : position;
+    }
+
+    private static int compare(Item a, Item b) {
+        int byTime = Long.compare(b.lastMessageTime, a.lastMessageTime);
+        return byTime != 0 ? byTime : a.conversationId.compareTo(b.conversationId);
+    }
+
+    private static Item fromConversation(Conversation conversation) {
+        ChatMessage last = conversation.getLastMessage();
+        return new Item(conversation.conversationId(),
+                last != null ? last.getMsgTime() : 0,
+                last != null ? last.getMsgId() : null,
+                previewOf(last),
+                conversation.getUnreadMsgCount());
+    }
+
+    // 调用方持有锁，保证提交顺序就是修改顺序；接收方在提交时确定，
+    // 之后才注册的监听已从addListener拿到包含这次修改的全量列表，不能再收到这次增量
+    private void notifyListeners(List<Change> changes) {
+        if (changes.isEmpty() || released) {
+            return;
+        }
+        List<Listener> targets = new ArrayList<>(listeners);
+        notifyExecutor.execute(() -> {
+            for (Listener listener : targets) {
+                listener.onConversationsChanged(changes);
+            }
+        });
+    }
+}
@@ -93,6 +93,8 @@ public class DeviceManager {
         void onUserLeft(int uid);
         void onJoinChannelSuccess(String channel, int uid, int elapsed);
         void onLeaveChannel();
+        // RTC token即将过期或已过期，需要调用renewToken
+        void onTokenPrivilegeWillExpire(String token);
     }
 
     public void setRoomEventListener(RoomEventListener listener) {
@@ -262,6 +264,22 @@ public class DeviceManager {
                 }
             }
 
+            @Override
+            public void onTokenPrivilegeWillExpire(String token) {
+                Log.d("Agora", "RTC token 即将过期");
+                if (roomEventListener != null) {
+                    roomEventListener.onTokenPrivilegeWillExpire(token);
+                }
+            }
+
+            @Override
+            public void onRequestToken() {
+                Log.w("Agora", "RTC token 已过期");
+                if (roomEventListener != null) {
+                    roomEventListener.onTokenPrivilegeWillExpire(null);
+                }
+            }
+
             @Override
             public void onConnectionStateChanged(int state, int reason) {
                 Log.d("Agora", "=== onConnectionStateChanged ===");
@@ -0,0 +1,52 @@
+package com.example.aogra_study;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 本地token来源，代替token服务器返回AgoraConfig中的临时token
+ * 回调在后台线程上，与真实的网络请求一致；接入token服务器时实现TokenManager.Provider替换本类即可
+ */
+public class LocalTokenProvider implements TokenManager.Provider {
+    // 控制台生成的临时token有效期为24小时
+    private static final long TEMP_TOKEN_LIFETIME_MS = 24 * 60 * 60 * 1000L;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "local-token-provider");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Override
+    public void fetchToken(TokenManager.TokenType type, String channelName, String userId,
+                           TokenManager.Callback callback) {
+        executor.execute(() -> {
+            long expiresAt = System.currentTimeMillis() + TEMP_TOKEN_LIFETIME_MS;
+            switch (type) {
+                case RTC:
+                    callback.onToken(AgoraConfig.getDefaultToken(), expiresAt);
+                    break;
+                case RTM:
+                    // RTM在开发模式下不使用token，RTC token不能用于RTM
+                    if (AgoraConfig.DEVELOPMENT_MODE) {
+                        callback.onToken(null, TokenManager.NEVER_EXPIRES);
+                    } else {
+                        callback.onError("No local RTM token available");
+                    }
+                    break;
+                case CHAT:
+                    if (AgoraConfig.CHAT_TEST_USERNAME_2.equals(userId)) {
+                        callback.onToken(AgoraConfig.CHAT_TEST_TOKEN_2, expiresAt);
+                    } else if (AgoraConfig.CHAT_TEST_USERNAME.equals(userId)) {
+                        callback.onToken(AgoraConfig.CHAT_TEST_TOKEN, expiresAt);
+                    } else {
+                        callback.onError("No local chat token for user: " + userId);
+                    }
+                    break;
+                default:
+                    callback.onError("Unknown token type: " + type);
+                    break;
+            }
+        });
+    }
+}
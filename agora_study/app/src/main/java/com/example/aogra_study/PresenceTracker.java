@@ -0,0 +1,311 @@
+package com.example.aogra_study;
+
+import io.agora.rtm.ErrorInfo;
+import io.agora.rtm.IntervalInfo;
+import io.agora.rtm.PresenceEvent;
+import io.agora.rtm.PresenceOptions;
+import io.agora.rtm.ResultCallback;
+import io.agora.rtm.RtmClient;
+import io.agora.rtm.RtmConstants.RtmChannelType;
+import io.agora.rtm.RtmEventListener;
+import io.agora.rtm.SnapshotInfo;
+import io.agora.rtm.SubscribeOptions;
+import io.agora.rtm.UserState;
+import io.agora.rtm.WhoNowResult;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 用户在线状态跟踪
+ * 所有客户端订阅同一个presence频道，通过频道的presence事件维护带TTL的在线状态缓存；
+ * 缓存未命中的查询在短时间窗口内合并，用一次whoNow（分页）完成
+ */
+public class PresenceTracker implements RtmEventListener {
+    private static final String TAG = "Agora";
+
+    public static final long DEFAULT_TTL_MS = 60_000;
+    // 合并查询的等待窗口
+    private static final long BATCH_WINDOW_MS = 30;
+
+    private static class CacheEntry {
+        final boolean online;
+        final long expiresAt;
+
+        CacheEntry(boolean online, long expiresAt) {
+            this.online = online;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class PendingQuery {
+        final List<String> peers;
+        final ResultCallback<List<Boolean>> callback;
+
+        PendingQuery(List<String> peers, ResultCallback<List<Boolean>> callback) {
+            this.peers = peers;
+            this.callback = callback;
+        }
+    }
+
+    private final RtmClient rtmClient;
+    private final String presenceChannel;
+    private final long ttlMs;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "rtm-presence");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // 以下状态由this锁保护
+    private final Map<String, CacheEntry> cache = new HashMap<>();
+    // 等待下一次批量查询的用户
+    private final Set<String> queuedPeers = new HashSet<>();
+    // 正在查询中的用户
+    private final Set<String> inFlightPeers = new HashSet<>();
+    private final List<PendingQuery> waitingQueries = new ArrayList<>();
+    private boolean flushScheduled = false;
+    private int cacheHits = 0;
+    private int batchLookups = 0;
+
+    public PresenceTracker(RtmClient rtmClient, String presenceChannel, long ttlMs) {
+        this.rtmClient = rtmClient;
+        this.presenceChannel = presenceChannel;
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * 订阅presence频道，RTM登录成功后调用
+     */
+    public void start() {
+        SubscribeOptions options = new SubscribeOptions();
+        options.setWithMessage(false);
+        options.setWithPresence(true);
+        rtmClient.subscribe(presenceChannel, options, new ResultCallback<Void>() {
+            @Override
+            public void onSuccess(Void responseInfo) {
+                Log.d(TAG, "订阅presence频道成功: " + presenceChannel);
+            }
+
+            @Override
+            public void onFailure(ErrorInfo errorInfo) {
+                Log.e(TAG, "订阅presence频道失败: " + errorInfo.toString());
+            }
+        });
+    }
+
+    /**
+     * 取消订阅并清空缓存，登出前调用
+     */
+    public void stop() {
+        synchronized (this) {
+            cache.clear();
+        }
+        rtmClient.unsubscribe(presenceChannel, null);
+    }
+
+    public void release() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 查询一组用户是否在线，结果与peerIds顺序一致
+     * 缓存命中的直接返回，其余与同一时间窗口内的其他查询合并后批量查询
+     */
+    public void query(List<String> peerIds, ResultCallback<List<Boolean>> callback) {
+        List<Boolean> cached = null;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            boolean allFresh = true;
+            for (String peer : peerIds) {
+                CacheEntry entry = cache.get(peer);
+                if (entry == null || entry.expiresAt < now) {
+                    allFresh = false;
+                    if (!inFlightPeers.contains(peer)) {
+                        queuedPeers.add(peer);
+                    }
+                }
+            }
+            if (allFresh) {
+                cacheHits++;
+                cached = resultFor(peerIds);
+            } else {
+                waitingQueries.add(new PendingQuery(new ArrayList<>(peerIds), callback));
+                if (!queuedPeers.isEmpty() && !flushScheduled) {
+                    flushScheduled = true;
+                    scheduler.schedule(this::flush, BATCH_WINDOW_MS, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        if (cached != null && callback != null) {
+            callback.onSuccess(cached);
+        }
+    }
+
+    /**
+     * 缓存命中次数和批量查询次数，用于观察合并效果
+     */
+    public synchronized String getStats() {
+        return "cacheHits=" + cacheHits + ", batchLookups=" + batchLookups + ", cached=" + cache.size();
+    }
+
+    @Override
+    public void onPresenceEvent(PresenceEvent event) {
+        if (event == null || !presenceChannel.equals(event.getChannelName())) {
+            return;
+        }
+        synchronized (this) {
+            long expiresAt = System.currentTimeMillis() + ttlMs;
+            switch (event.getEventType()) {
+                case SNAPSHOT:
+                    SnapshotInfo snapshot = event.getSnapshot();
+                    // 快照是频道内的完整成员列表，缓存中不在快照里的都视为离线
+                    for (Map.Entry<String, CacheEntry> entry : cache.entrySet()) {
+                        entry.setValue(new CacheEntry(false, expiresAt));
+                    }
+                    if (snapshot != null) {
+                        for (UserState state : snapshot.getUserStateList()) {
+                            cache.put(state.getUserId(), new CacheEntry(true, expiresAt));
+                        }
+                    }
+                    break;
+                case INTERVAL:
+                    IntervalInfo interval = event.getInterval();
+                    if (interval != null) {
+                        putAll(interval.getJoinUserList(), true, expiresAt);
+                        putAll(interval.getLeaveUserList(), false, expiresAt);
+                        putAll(interval.getTimeoutUserList(), false, expiresAt);
+                    }
+                    break;
+                case REMOTE_JOIN:
+                    cache.put(event.getPublisherId(), new CacheEntry(true, expiresAt));
+                    break;
+                case REMOTE_LEAVE:
+                case REMOTE_TIMEOUT:
+                    cache.put(event.getPublisherId(), new CacheEntry(false, expiresAt));
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void putAll(List<String> users, boolean online, long expiresAt) {
+        if (users == null) {
+            return;
+        }
+        for (String user : users) {
+            cache.put(user, new CacheEntry(online, expiresAt));
+        }
+    }
+
+    private void flush() {
+        Set<String> batch;
+        synchronized (this) {
+            flushScheduled = false;
+            if (queuedPeers.isEmpty()) {
+                return;
+            }
+            batch = new HashSet<>(queuedPeers);
+            queuedPeers.clear();
+            inFlightPeers.addAll(batch);
+            batchLookups++;
+        }
+        Log.d(TAG, "批量查询在线状态，用户数: " + batch.size());
+        lookupPage(batch, new HashSet<>(), null);
+    }
+
+    /**
+     * 分页读取presence频道的在线用户
+     */
+    private void lookupPage(Set<String> batch, Set<String> online, String page) {
+        PresenceOptions options = new PresenceOptions(true, false);
+        if (page != null) {
+            options.setPage(page);
+        }
+        rtmClient.getPresence().whoNow(presenceChannel, RtmChannelType.MESSAGE, options,
+                new ResultCallback<WhoNowResult>() {
+                    @Override
+                    public void onSuccess(WhoNowResult result) {
+                        for (UserState state : result.getUserStateList()) {
+                            online.add(state.getUserId());
+                        }
+                        String next = result.getNextPage();
+                        if (next != null && !next.isEmpty()) {
+                            lookupPage(batch, online, next);
+                        } else {
+                            completeBatch(batch, online, null);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(ErrorInfo errorInfo) {
+                        completeBatch(batch, online, errorInfo);
+                    }
+                });
+    }
+
+    private void completeBatch(Set<String> batch, Set<String> online, ErrorInfo error) {
+        List<PendingQuery> succeeded = new ArrayList<>();
+        List<PendingQuery> failed = new ArrayList<>();
+        List<List<Boolean>> results = new ArrayList<>();
+        synchronized (this) {
+            inFlightPeers.removeAll(batch);
+            if (error == null) {
+                long expiresAt = System.currentTimeMillis() + ttlMs;
+                for (String peer : batch) {
+                    cache.put(peer, new CacheEntry(online.contains(peer), expiresAt));
+                }
+            }
+            Iterator<PendingQuery> iterator = waitingQueries.iterator();
+            while (iterator.hasNext()) {
+                PendingQuery query = iterator.next();
+                boolean touchesBatch = false;
+                boolean stillWaiting = false;
+                for (String peer : query.peers) {
+                    touchesBatch |= batch.contains(peer);
+                    stillWaiting |= queuedPeers.contains(peer) || inFlightPeers.contains(peer);
+                }
+                if (error != null && touchesBatch) {
+                    iterator.remove();
+                    failed.add(query);
+                } else if (!stillWaiting) {
+                    iterator.remove();
+                    succeeded.add(query);
+                    results.add(resultFor(query.peers));
+                }
+            }
+        }
+        if (error != null) {
+            Log.e(TAG, "批量查询在线状态失败: " + error.toString());
+        }
+        for (int i = 0; i < succeeded.size(); i++) {
+            if (succeeded.get(i).callback != null) {
+                succeeded.get(i).callback.onSuccess(results.get(i));
+            }
+        }
+        for (PendingQuery query : failed) {
+            if (query.callback != null) {
+                query.callback.onFailure(error);
+            }
+        }
+    }
+
+    private List<Boolean> resultFor(List<String> peers) {
+        List<Boolean> result = new ArrayList<>(peers.size());
+        for (String peer : peers) {
+            CacheEntry entry = cache.get(peer);
+            result.add(entry != null && entry.online);
+        }
+        return result;
+    }
+}
@@ -12,11 +12,53 @@ import io.agora.rtm.RtmConstants.RtmChannelType;
 import io.agora.rtm.RtmConstants.RtmErrorCode;
 import android.util.Log;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class RTMController {
     private static final String TAG = "RTMController";
     private RtmClient rtmClient;
     private String currentUserId;
+    private PresenceTracker presenceTracker;
+    private RtmLinkSupervisor linkSupervisor;
+    private TokenManager tokenManager;
+    private final List<TopicStreamer> topicStreamers = new CopyOnWriteArrayList<>();
+    // 每次登录成功后订阅presence频道、恢复流频道；重新登录前的订阅已随登出失效
+    private final RtmLinkSupervisor.SessionListener sessionListener = new RtmLinkSupervisor.SessionListener() {
+        @Override
+        public void onLoggedIn() {
+            PresenceTracker tracker = presenceTracker;
+            if (tracker != null) {
+                tracker.start();
+            }
+            for (TopicStreamer streamer : topicStreamers) {
+                streamer.restore();
+            }
+        }
+
+        @Override
+        public void onLoginAbandoned(ErrorInfo errorInfo) {
+            Log.e("Agora", "RTM登录无法恢复，需要重新初始化: " + errorInfo.toString());
+        }
+    };
+    // 处理token即将过期
+    private final RtmEventListener tokenListener = new RtmEventListener() {
+        @Override
+        public void onTokenPrivilegeWillExpire(String channelName) {
+            if (tokenManager == null || currentUserId == null) {
+                return;
+            }
+            tokenManager.renew(TokenManager.TokenType.RTM, null, currentUserId, token -> {
+                if (rtmClient != null) {
+                    rtmClient.renewToken(token, null);
+                    linkSupervisor.setToken(token);
+                }
+            });
+        }
+    };
+
+    public void setTokenManager(TokenManager tokenManager) {
+        this.tokenManager = tokenManager;
+    }
 
     /**
      * 初始化RTM客户端
@@ -28,6 +70,13 @@ public class RTMController {
                     .eventListener(eventListener)
                     .build();
             this.rtmClient = RtmClient.create(rtmConfig);
+            this.presenceTracker = new PresenceTracker(rtmClient, AgoraConfig.RTM_PRESENCE_CHANNEL,
+                    PresenceTracker.DEFAULT_TTL_MS);
+            rtmClient.addEventListener(presenceTracker);
+            this.linkSupervisor = new RtmLinkSupervisor(rtmClient, RtmLinkSupervisor.DEFAULT_BUFFER_CAPACITY);
+            linkSupervisor.addSessionListener(sessionListener);
+            rtmClient.addEventListener(linkSupervisor);
+            rtmClient.addEventListener(tokenListener);
         } catch (UnsatisfiedLinkError e) {
             Log.e("Agora", "Failed to initialize RTM client due to native library error: " + e.getMessage());
         } catch (Exception e) {
@@ -36,11 +85,16 @@ public class RTMController {
     }
 
     /**
-     * 登录RTM服务
+     * 登录RTM服务，之后断线由RtmLinkSupervisor自动重连
+     *
+     * @param callback 首次登录失败时会在后台重试，登录成功或无法恢复时才回调
      */
     public void login(String token, ResultCallback<Void> callback) {
         if(rtmClient != null) {
-            rtmClient.login(token, callback);
+            if (tokenManager != null) {
+                linkSupervisor.setTokenManager(tokenManager, currentUserId);
+            }
+            linkSupervisor.start(token, callback);
         } else {
             Log.w("Agora", "RTM client is not initialized");
             if (callback != null) {
@@ -54,6 +108,8 @@ public class RTMController {
      */
     public void logout(ResultCallback<Void> callback) {
         if(rtmClient != null) {
+            presenceTracker.stop();
+            linkSupervisor.stop();
             rtmClient.logout(callback);
         } else {
             Log.w("Agora", "RTM client is not initialized");
@@ -70,7 +126,8 @@ public class RTMController {
         if(rtmClient != null) {
             PublishOptions options = new PublishOptions();
             options.setChannelType(RtmChannelType.USER);
-            rtmClient.publish(peerId, message, options, callback);
+            // 断线期间先缓冲，恢复后按顺序补发
+            linkSupervisor.publish(peerId, message, options, callback);
         } else {
             Log.w("Agora", "RTM client is not initialized");
             if (callback != null) {
@@ -96,13 +153,37 @@ public class RTMController {
     }
 
     /**
-     * 查询用户在线状态
+     * 创建基于流频道topic的状态同步器，调用方需先join再发布或订阅topic
+     */
+    public TopicStreamer createTopicStreamer(String channelName) {
+        StreamChannel streamChannel = createStreamChannel(channelName);
+        if (streamChannel == null) {
+            return null;
+        }
+        TopicStreamer streamer = new TopicStreamer(streamChannel);
+        rtmClient.addEventListener(streamer);
+        topicStreamers.add(streamer);
+        return streamer;
+    }
+
+    /**
+     * 释放状态同步器并离开流频道
+     */
+    public void releaseTopicStreamer(TopicStreamer streamer) {
+        topicStreamers.remove(streamer);
+        if (rtmClient != null) {
+            rtmClient.removeEventListener(streamer);
+        }
+        streamer.release();
+    }
+
+    /**
+     * 查询用户在线状态，结果与peerIds顺序一致
+     * 通过PresenceTracker实现：命中缓存直接返回，其余与并发的查询合并为一次批量查询
      */
     public void queryPeersOnlineStatus(List<String> peerIds, ResultCallback<List<Boolean>> callback) {
-        // RTM SDK中没有queryPeersOnlineStatus方法，该功能可能需要通过presence来实现
-        // 这里暂时保留接口但不实现具体逻辑
         if(rtmClient != null) {
-            // 实际上RTM SDK中没有这个方法，需要通过其他方式实现
+            presenceTracker.query(peerIds, callback);
         } else {
             Log.w("Agora", "RTM client is not initialized");
             if (callback != null) {
@@ -111,6 +192,13 @@ public class RTMController {
         }
     }
 
+    /**
+     * 获取连接监护（状态、断线指标）
+     */
+    public RtmLinkSupervisor getLinkSupervisor() {
+        return linkSupervisor;
+    }
+
     /**
      * 获取RTM客户端实例
      */
@@ -123,6 +211,14 @@ public class RTMController {
      */
     public void destroy() {
         if (rtmClient != null) {
+            rtmClient.removeEventListener(presenceTracker);
+            presenceTracker.release();
+            presenceTracker = null;
+            rtmClient.removeEventListener(linkSupervisor);
+            rtmClient.removeEventListener(tokenListener);
+            linkSupervisor.removeSessionListener(sessionListener);
+            linkSupervisor.release();
+            linkSupervisor = null;
             rtmClient.release();
             rtmClient = null;
         }
@@ -10,8 +10,10 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import io.agora.rtc2.RtcEngine;
+import io.agora.rtc2.RtcEngineEx;
 import io.agora.rtc2.RtcEngineConfig;
 import io.agora.rtc2.IRtcEngineEventHandler;
 import io.agora.rtc2.ChannelMediaOptions;
@@ -25,6 +27,7 @@ import io.agora.rtm.PublishOptions;
 import io.agora.rtm.RtmConstants.RtmChannelType;
 import io.agora.rtm.ResultCallback;
 import io.agora.rtm.ErrorInfo;
+import io.agora.rtm.SubscribeOptions;
 
 /**
  * 房间管理器，负责聊天室、连麦申请、房间管理等功能
@@ -35,6 +38,22 @@ public class RoomManager {
 
     private RtcEngine rtcEngine;
     private RtmClient rtmClient;
+    // RTM断线重连和断线期间的消息缓冲
+    private RtmLinkSupervisor linkSupervisor;
+    // 每次RTM登录成功后重新订阅频道会话的消息频道，重新登录前的订阅已随登出失效
+    private final RtmLinkSupervisor.SessionListener rtmSessionListener = new RtmLinkSupervisor.SessionListener() {
+        @Override
+        public void onLoggedIn() {
+            for (ChannelSession session : channelSessions.values()) {
+                subscribeSessionChannel(session.getChannelName());
+            }
+        }
+
+        @Override
+        public void onLoginAbandoned(ErrorInfo errorInfo) {
+            Log.e(TAG, "RTM 登录无法恢复（聊天功能不可用）: " + errorInfo.toString());
+        }
+    };
 
     private String currentUserId;
     private String currentChannelName;
@@ -70,6 +89,12 @@ public class RoomManager {
     // 标记是否使用外部传入的 RtcEngine
     private boolean useExternalRtcEngine = false;
 
+    // token 缓存和续期
+    private TokenManager tokenManager;
+
+    // 主频道之外同时加入的频道（例如分组讨论），共用同一个 RtcEngine 和 RtmClient
+    private final Map<String, ChannelSession> channelSessions = new ConcurrentHashMap<>();
+
     public RoomManager(Context context, String appId) {
         this.context = context;
         this.appId = appId;
@@ -83,6 +108,10 @@ public class RoomManager {
         this.useExternalRtcEngine = true;
     }
 
+    public void setTokenManager(TokenManager tokenManager) {
+        this.tokenManager = tokenManager;
+    }
+
     /**
      * 设备状态回调接口
      */
@@ -159,6 +188,15 @@ public class RoomManager {
                 RtmMessage message = event.getMessage();
                 String msgContent = new String((byte[])message.getData()); // 修正类型转换
 
+                // 其他频道会话的频道消息交给对应会话处理
+                if (event.getChannelType() == RtmChannelType.MESSAGE) {
+                    ChannelSession session = channelSessions.get(event.getChannelName());
+                    if (session != null) {
+                        session.dispatchChatMessage(event.getPublisherId(), msgContent);
+                        return;
+                    }
+                }
+
                 // 解析消息类型
                 if (msgContent.contains("mic_apply")) {
                     // 连麦申请消息
@@ -180,7 +218,25 @@ public class RoomManager {
             // 修正事件处理方法
             @Override
             public void onLinkStateEvent(io.agora.rtm.LinkStateEvent event) { // 使用正确的事件类型
-                // 处理连接状态变化
+                // 重连和消息补发由 RtmLinkSupervisor 处理，这里只记录状态
+                Log.d(TAG, "RTM 连接状态: " + event.getCurrentState());
+            }
+
+            @Override
+            public void onTokenPrivilegeWillExpire(String channelName) {
+                Log.d(TAG, "RTM token 即将过期");
+                if (tokenManager == null || currentUserId == null) {
+                    return;
+                }
+                String userId = currentUserId;
+                tokenManager.renew(TokenManager.TokenType.RTM, null, userId, token -> {
+                    if (rtmClient != null) {
+                        rtmClient.renewToken(token, null);
+                    }
+                    if (linkSupervisor != null) {
+                        linkSupervisor.setToken(token);
+                    }
+                });
             }
         };
     }
@@ -295,6 +351,10 @@ public class RoomManager {
                     if (rtmClient != null) {
                         Log.d(TAG, "释放旧的 RTM 客户端");
                         try {
+                            if (linkSupervisor != null) {
+                                linkSupervisor.release();
+                                linkSupervisor = null;
+                            }
                             rtmClient.logout(null);
                             rtmClient.release();
                         } catch (Exception e) {
@@ -308,6 +368,10 @@ public class RoomManager {
                     // RTM 在开发模式下使用 null Token
                     // RTC Token 不能用于 RTM
                     String rtmToken = null;
+                    if (tokenManager != null) {
+                        // 只读缓存，不等待网络请求
+                        rtmToken = tokenManager.peekToken(TokenManager.TokenType.RTM, null, userId);
+                    }
                     if (!AgoraConfig.DEVELOPMENT_MODE) {
                         // 非开发模式下使用有效的 RTM token
                         // 注意：RTM token 需要单独生成，不能使用 RTC token
@@ -320,11 +384,17 @@ public class RoomManager {
                             .eventListener(rtmEventListener)
                             .build();
                     this.rtmClient = RtmClient.create(rtmConfig);
+                    this.linkSupervisor = new RtmLinkSupervisor(rtmClient, RtmLinkSupervisor.DEFAULT_BUFFER_CAPACITY);
+                    if (tokenManager != null) {
+                        linkSupervisor.setTokenManager(tokenManager, userId);
+                    }
+                    linkSupervisor.addSessionListener(rtmSessionListener);
+                    rtmClient.addEventListener(linkSupervisor);
                     Log.d(TAG, "RTM 客户端创建完成");
 
-                    // 登录RTM
+                    // 登录RTM，之后的断线重连由 linkSupervisor 负责
                     Log.d(TAG, "开始 RTM 登录...");
-                    rtmClient.login(rtmToken, new ResultCallback<Void>() {
+                    linkSupervisor.start(rtmToken, new ResultCallback<Void>() {
                         @Override
                         public void onSuccess(Void responseInfo) {
                             Log.d(TAG, "RTM 登录成功（聊天功能可用）");
@@ -544,13 +614,13 @@ public class RoomManager {
      * 发起连麦申请
      */
     public void applyForMic(String anchorUserId) {
-        if (rtmClient != null) {
+        if (linkSupervisor != null) {
             String messageContent = "{\"type\":\"mic_apply\",\"from_user\":\"" + currentUserId + "\",\"to_user\":\"" + anchorUserId + "\",\"timestamp\":" + System.currentTimeMillis() + "}";
 
             PublishOptions options = new PublishOptions();
             options.setChannelType(RtmChannelType.USER);
 
-            rtmClient.publish(anchorUserId, messageContent, options, new ResultCallback<Void>() {
+            linkSupervisor.publish(anchorUserId, messageContent, options, new ResultCallback<Void>() {
                 @Override
                 public void onSuccess(Void responseInfo) {
                     // 申请发送成功
@@ -609,13 +679,13 @@ public class RoomManager {
      * 同意连麦申请
      */
     public void acceptMicApply(String userId) {
-        if (rtmClient != null) {
+        if (linkSupervisor != null) {
             String messageContent = "{\"type\":\"mic_response\",\"from_user\":\"" + currentUserId + "\",\"to_user\":\"" + userId + "\",\"accepted\":true,\"timestamp\":" + System.currentTimeMillis() + "}";
 
             PublishOptions options = new PublishOptions();
             options.setChannelType(RtmChannelType.USER);
 
-            rtmClient.publish(userId, messageContent, options, new ResultCallback<Void>() {
+            linkSupervisor.publish(userId, messageContent, options, new ResultCallback<Void>() {
                 @Override
                 public void onSuccess(Void responseInfo) {
                     // 响应发送成功，将用户提升为主播
@@ -634,13 +704,13 @@ public class RoomManager {
      * 拒绝连麦申请
      */
     public void rejectMicApply(String userId) {
-        if (rtmClient != null) {
+        if (linkSupervisor != null) {
             String messageContent = "{\"type\":\"mic_response\",\"from_user\":\"" + currentUserId + "\",\"to_user\":\"" + userId + "\",\"accepted\":false,\"timestamp\":" + System.currentTimeMillis() + "}";
 
             PublishOptions options = new PublishOptions();
             options.setChannelType(RtmChannelType.USER);
 
-            rtmClient.publish(userId, messageContent, options, new ResultCallback<Void>() {
+            linkSupervisor.publish(userId, messageContent, options, new ResultCallback<Void>() {
                 @Override
                 public void onSuccess(Void responseInfo) {
                     // 响应发送成功
@@ -690,11 +760,11 @@ public class RoomManager {
      * 发送聊天消息
      */
     public void sendChatMessage(String channelName, String message) {
-        if (rtmClient != null) {
+        if (linkSupervisor != null) {
             PublishOptions options = new PublishOptions();
             options.setChannelType(RtmChannelType.MESSAGE); // 发送到频道
 
-            rtmClient.publish(channelName, message, options, new ResultCallback<Void>() {
+            linkSupervisor.publish(channelName, message, options, new ResultCallback<Void>() {
                 @Override
                 public void onSuccess(Void responseInfo) {
                     // 消息发送成功
@@ -708,10 +778,203 @@ public class RoomManager {
         }
     }
 
+    /**
+     * 在主频道之外再加入一个频道，不影响主频道的连接
+     *
+     * @param localUid 本地在该频道的uid，0表示由SDK分配
+     * @param token    为null时从TokenManager缓存读取
+     * @return 新建或已存在的会话，失败返回null
+     */
+    public ChannelSession joinChannelSession(String channelName, int localUid, String token, boolean broadcaster,
+                                             ChannelSession.Listener listener) {
+        if (channelName == null || channelName.equals(currentChannelName)) {
+            Log.w(TAG, "频道会话不能与主频道相同: " + channelName);
+            return null;
+        }
+        ChannelSession existing = channelSessions.get(channelName);
+        if (existing != null && existing.getState() != ChannelSession.State.LEFT) {
+            return existing;
+        }
+        if (!(rtcEngine instanceof RtcEngineEx)) {
+            Log.e(TAG, "当前 RtcEngine 不支持多频道");
+            return null;
+        }
+        if (token == null && tokenManager != null) {
+            token = tokenManager.peekToken(TokenManager.TokenType.RTC, channelName, currentUserId);
+        }
+
+        String tokenUserId = currentUserId;
+        ChannelSession session = new ChannelSession(channelName, localUid, broadcaster, listener,
+                target -> renewChannelSessionToken(target, tokenUserId));
+        channelSessions.put(channelName, session);
+        int ret = ((RtcEngineEx) rtcEngine).joinChannelEx(token, session.getConnection(),
+                session.buildMediaOptions(), session.eventHandler);
+        if (ret != 0) {
+            Log.e(TAG, "加入频道会话失败: " + channelName + ", 错误码: " + ret);
+            channelSessions.remove(channelName);
+            return null;
+        }
+
+        // 订阅同名的 RTM 频道，消息按频道名分发到会话
+        subscribeSessionChannel(channelName);
+        Log.d(TAG, "开始加入频道会话: " + channelName + ", 当前会话数: " + channelSessions.size());
+        return session;
+    }
+
+    /**
+     * 续期某个频道会话的RTC token，新token只通过该会话的连接更新，主频道用handleTokenPrivilegeWillExpire续期
+     */
+    private void renewChannelSessionToken(ChannelSession session, String userId) {
+        if (tokenManager == null) {
+            Log.w(TAG, "未设置TokenManager，无法续期频道会话 token: " + session.getChannelName());
+            return;
+        }
+        String channelName = session.getChannelName();
+        tokenManager.renew(TokenManager.TokenType.RTC, channelName, userId, token -> {
+            // 续期期间已经离开该会话则丢弃
+            if (channelSessions.get(channelName) != session || !(rtcEngine instanceof RtcEngineEx)) {
+                return;
+            }
+            ChannelMediaOptions options = session.buildMediaOptions();
+            options.token = token;
+            int ret = ((RtcEngineEx) rtcEngine).updateChannelMediaOptionsEx(options, session.getConnection());
+            if (ret != 0) {
+                Log.e(TAG, "更新频道会话 token 失败: " + channelName + ", 错误码: " + ret);
+            } else {
+                Log.d(TAG, "频道会话 token 已续期: " + channelName);
+            }
+        });
+    }
+
+    private void subscribeSessionChannel(String channelName) {
+        if (rtmClient == null) {
+            return;
+        }
+        SubscribeOptions subscribeOptions = new SubscribeOptions();
+        subscribeOptions.setWithMessage(true);
+        rtmClient.subscribe(channelName, subscribeOptions, new ResultCallback<Void>() {
+            @Override
+            public void onSuccess(Void responseInfo) {
+                Log.d(TAG, "频道会话 RTM 订阅成功: " + channelName);
+            }
+
+            @Override
+            public void onFailure(ErrorInfo errorInfo) {
+                Log.w(TAG, "频道会话 RTM 订阅失败: " + channelName + ", " + errorInfo.toString());
+            }
+        });
+    }
+
+    /**
+     * 离开一个频道会话，主频道不受影响
+     */
+    public void leaveChannelSession(String channelName) {
+        ChannelSession session = channelSessions.remove(channelName);
+        if (session == null) {
+            return;
+        }
+        if (rtcEngine instanceof RtcEngineEx) {
+            ((RtcEngineEx) rtcEngine).leaveChannelEx(session.getConnection());
+        }
+        if (rtmClient != null) {
+            rtmClient.unsubscribe(channelName, null);
+        }
+        session.markLeft();
+        Log.d(TAG, "离开频道会话: " + channelName);
+    }
+
+    /**
+     * 离开所有频道会话
+     */
+    public void leaveAllChannelSessions() {
+        for (String channelName : new ArrayList<>(channelSessions.keySet())) {
+            leaveChannelSession(channelName);
+        }
+    }
+
+    public ChannelSession getChannelSession(String channelName) {
+        return channelSessions.get(channelName);
+    }
+
+    public List<ChannelSession> getChannelSessions() {
+        return new ArrayList<>(channelSessions.values());
+    }
+
+    /**
+     * 修改在某个频道会话中的角色
+     */
+    public void setChannelSessionRole(String channelName, boolean broadcaster) {
+        ChannelSession session = channelSessions.get(channelName);
+        if (session == null) {
+            return;
+        }
+        session.setRole(broadcaster);
+        updateSessionOptions(session);
+    }
+
+    /**
+     * 修改某个频道会话的自动订阅设置
+     */
+    public void setChannelSessionSubscription(String channelName, boolean audio, boolean video) {
+        ChannelSession session = channelSessions.get(channelName);
+        if (session == null) {
+            return;
+        }
+        session.setSubscription(audio, video);
+        updateSessionOptions(session);
+    }
+
+    /**
+     * 切换本地音视频发布到哪个频道（主频道或某个会话），只更新媒体选项，不需要离开再加入
+     *
+     * @param channelName 为null或主频道名时发布到主频道；会话必须已是主播角色，否则先调用setChannelSessionRole
+     * @return 会话不存在或不是主播时返回false，发布状态不变
+     */
+    public boolean setPublishingChannel(String channelName) {
+        boolean publishToMain = channelName == null || channelName.equals(currentChannelName);
+        if (!publishToMain) {
+            ChannelSession target = channelSessions.get(channelName);
+            if (target == null) {
+                Log.w(TAG, "切换发布频道失败，没有该频道会话: " + channelName);
+                return false;
+            }
+            if (!target.isBroadcaster()) {
+                Log.w(TAG, "切换发布频道失败，会话不是主播角色: " + channelName);
+                return false;
+            }
+        }
+        for (ChannelSession session : channelSessions.values()) {
+            session.setPublishing(!publishToMain && session.getChannelName().equals(channelName));
+            updateSessionOptions(session);
+        }
+        if (rtcEngine != null && isInRoom) {
+            ChannelMediaOptions options = new ChannelMediaOptions();
+            options.publishMicrophoneTrack = publishToMain;
+            options.publishCameraTrack = publishToMain;
+            rtcEngine.updateChannelMediaOptions(options);
+        }
+        Log.d(TAG, "本地音视频发布到: " + (publishToMain ? currentChannelName : channelName));
+        return true;
+    }
+
+    private void updateSessionOptions(ChannelSession session) {
+        if (rtcEngine instanceof RtcEngineEx) {
+            int ret = ((RtcEngineEx) rtcEngine).updateChannelMediaOptionsEx(session.buildMediaOptions(),
+                    session.getConnection());
+            if (ret != 0) {
+                Log.e(TAG, "更新频道会话媒体选项失败: " + session.getChannelName() + ", 错误码: " + ret);
+            }
+        }
+    }
+
     /**
      * 获取房间成员列表
      */
     public List<String> getRoomMembers(String channelName) {
+        ChannelSession session = channelSessions.get(channelName);
+        if (session != null) {
+            return session.getMembers();
+        }
         Log.d(TAG, "=== RoomManager.getRoomMembers 被调用 === ");
         Log.d(TAG, "请求的频道名称: " + channelName);
         Log.d(TAG, "当前频道名称: " + currentChannelName);
@@ -752,6 +1015,9 @@ public class RoomManager {
             return;
         }
 
+        // 离开主频道时一并离开其他频道会话
+        leaveAllChannelSessions();
+
         // 通知开始离开房间
         isLeavingRoom = true;
         if (roomStateListener != null) {
@@ -817,6 +1083,24 @@ public class RoomManager {
         Log.d(TAG, "=== RoomManager.leaveRoom 发起完成 ===");
     }
 
+    /**
+     * 处理 RTC token 即将过期事件（由 DeviceManager 调用）
+     */
+    public void handleTokenPrivilegeWillExpire() {
+        if (tokenManager == null || currentChannelName == null) {
+            return;
+        }
+        String channelName = currentChannelName;
+        String userId = currentUserId;
+        tokenManager.renew(TokenManager.TokenType.RTC, channelName, userId, token -> {
+            // 续期期间已经离开或切换了频道则丢弃
+            if (rtcEngine != null && channelName.equals(currentChannelName)) {
+                currentToken = token;
+                rtcEngine.renewToken(token);
+            }
+        });
+    }
+
     /**
      * 处理离开频道成功事件（由 DeviceManager 调用）
      */
@@ -938,6 +1222,7 @@ public class RoomManager {
 
     /**
      * 处理用户加入事件（由 DeviceManager 调用）
+     * DeviceManager 的回调只属于主频道，其他频道会话的事件由各自的 ChannelSession 处理
      */
     public void handleUserJoined(int uid) {
         String userId = String.valueOf(uid);
@@ -0,0 +1,681 @@
+package com.example.aogra_study;
+
+import io.agora.rtm.ErrorInfo;
+import io.agora.rtm.LinkStateEvent;
+import io.agora.rtm.PublishOptions;
+import io.agora.rtm.ResultCallback;
+import io.agora.rtm.RtmClient;
+import io.agora.rtm.RtmConstants.RtmErrorCode;
+import io.agora.rtm.RtmConstants.RtmLinkState;
+import io.agora.rtm.RtmConstants.RtmLinkStateChangeReason;
+import io.agora.rtm.RtmConstants.RtmServiceType;
+import io.agora.rtm.RtmEventListener;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RTM连接监护
+ * 跟踪RTM链路状态：SDK放弃重连（FAILED）或长时间停在DISCONNECTED后用带抖动的指数退避重新登录，
+ * token无效时先通过TokenManager换新token，appId错误等无法重试的错误直接停止并上报；
+ * 重新登录会先登出，之前的订阅全部失效，由SessionListener在每次登录成功后重新订阅；
+ * 断线期间的publish放入有界队列，恢复连接后按原顺序补发；记录断线时长和重连耗时
+ */
+public class RtmLinkSupervisor implements RtmEventListener {
+    private static final String TAG = "Agora";
+
+    private static final long BASE_RETRY_DELAY_MS = 1000;
+    private static final long MAX_RETRY_DELAY_MS = 30_000;
+    // 断线后等待SDK自行重连的时间，超时时仍停在DISCONNECTED才主动重新登录，SDK还在重连（CONNECTING、SUSPENDED）就继续等
+    public static final long DEFAULT_STALL_TIMEOUT_MS = 120_000;
+    public static final int DEFAULT_BUFFER_CAPACITY = 100;
+
+    public interface Listener {
+        void onLinkStateChanged(RtmLinkState state);
+
+        /**
+         * 断线恢复
+         *
+         * @param outageMs           从断线到恢复连接的时长
+         * @param reconnectLatencyMs 从最后一次发起重新登录到连接成功的耗时，SDK自动恢复时为0
+         * @param replayCount        待补发的消息数
+         */
+        void onLinkRecovered(long outageMs, long reconnectLatencyMs, int replayCount);
+    }
+
+    /**
+     * 登录会话事件，RTM的频道订阅都挂在登录会话上
+     */
+    public interface SessionListener {
+        /**
+         * 每次登录成功后调用：首次登录、首次失败后重试成功、断线后重新登录。
+         * 重新登录前会先登出，之前的订阅都已失效，需要在这里（重新）订阅
+         */
+        void onLoggedIn();
+
+        /**
+         * 遇到无法重试的错误（appId无效、token无效且换新后仍无效等），监护已停止
+         */
+        void onLoginAbandoned(ErrorInfo errorInfo);
+    }
+
+    private enum FailureKind {
+        // 网络、超时等，退避后重试
+        RETRY,
+        // token无效或过期，换新token后重试
+        TOKEN,
+        // 配置错误，重试也不会成功
+        FATAL
+    }
+
+    /**
+     * 连接指标
+     */
+    public static class Metrics {
+        public int outageCount;
+        public long lastOutageMs;
+        public long maxOutageMs;
+        public long totalOutageMs;
+        public int reconnectAttempts;
+        public long lastReconnectLatencyMs;
+        public int bufferedMessages;
+        public int droppedMessages;
+        public int replayedMessages;
+
+        @Override
+        public String toString() {
+            return "outages=" + outageCount + ", lastOutage=" + lastOutageMs + "ms, maxOutage=" + maxOutageMs
+                    + "ms, totalOutage=" + totalOutageMs + "ms, reconnectAttempts=" + reconnectAttempts
+                    + ", lastReconnectLatency=" + lastReconnectLatencyMs + "ms, buffered=" + bufferedMessages
+                    + ", dropped=" + droppedMessages + ", replayed=" + replayedMessages;
+        }
+    }
+
+    private static class PendingPublish {
+        // publish调用的顺序，失败放回队列时按它找回原来的位置
+        final long sequence;
+        final String channelName;
+        final String message;
+        final PublishOptions options;
+        final ResultCallback<Void> callback;
+
+        PendingPublish(long sequence, String channelName, String message, PublishOptions options,
+                       ResultCallback<Void> callback) {
+            this.sequence = sequence;
+            this.channelName = channelName;
+            this.message = message;
+            this.options = options;
+            this.callback = callback;
+        }
+    }
+
+    private final RtmClient rtmClient;
+    private final int bufferCapacity;
+    private final long stallTimeoutMs;
+    private final Random random = new Random();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "rtm-link-supervisor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Listener listener;
+    private final List<SessionListener> sessionListeners = new CopyOnWriteArrayList<>();
+
+    // 以下状态由this锁保护；buffer按sequence升序
+    private final LinkedList<PendingPublish> buffer = new LinkedList<>();
+    private long nextSequence = 0;
+    private final Metrics metrics = new Metrics();
+    private String token;
+    private TokenManager tokenManager;
+    private String userId;
+    // start的回调，在第一次登录成功或放弃时回调一次
+    private ResultCallback<Void> startCallback;
+    // 这一轮失败里已经换过token，再因token失败就放弃
+    private boolean tokenRefreshed = false;
+    private boolean started = false;
+    private RtmLinkState state = RtmLinkState.IDLE;
+    private boolean loginInFlight = false;
+    private boolean replaying = false;
+    // 直接发出、还没有回调的publish数；补发要等它们都有结果，失败放回的消息才能排到正确的位置
+    private int sendsInFlight = 0;
+    private int retryAttempt = 0;
+    // 断线开始时间，0表示当前没有断线
+    private long outageStartedAt = 0;
+    private long lastLoginStartedAt = 0;
+    private ScheduledFuture<?> pendingRetry;
+
+    public RtmLinkSupervisor(RtmClient rtmClient, int bufferCapacity) {
+        this(rtmClient, bufferCapacity, DEFAULT_STALL_TIMEOUT_MS);
+    }
+
+    /**
+     * @param stallTimeoutMs 断线后等待SDK自行重连的时间，网络差的环境应该设得更长
+     */
+    public RtmLinkSupervisor(RtmClient rtmClient, int bufferCapacity, long stallTimeoutMs) {
+        this.rtmClient = rtmClient;
+        this.bufferCapacity = bufferCapacity;
+        this.stallTimeoutMs = stallTimeoutMs;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void addSessionListener(SessionListener sessionListener) {
+        sessionListeners.add(sessionListener);
+    }
+
+    public void removeSessionListener(SessionListener sessionListener) {
+        sessionListeners.remove(sessionListener);
+    }
+
+    /**
+     * 更新重新登录使用的token
+     */
+    public synchronized void setToken(String token) {
+        this.token = token;
+    }
+
+    /**
+     * 设置后token无效或过期时从TokenManager换新token再登录，否则直接放弃
+     */
+    public synchronized void setTokenManager(TokenManager tokenManager, String userId) {
+        this.tokenManager = tokenManager;
+        this.userId = userId;
+    }
+
+    /**
+     * 首次登录并开始监护
+     *
+     * @param callback 第一次登录成功时回调onSuccess（首次失败会在后台重试），放弃或停止时回调onFailure，只回调一次
+     */
+    public void start(String token, ResultCallback<Void> callback) {
+        synchronized (this) {
+            this.token = token;
+            this.started = true;
+            this.retryAttempt = 0;
+            this.tokenRefreshed = false;
+            this.startCallback = callback;
+        }
+        login();
+    }
+
+    /**
+     * 停止监护（主动登出前调用），未发出的消息回调失败
+     */
+    public void stop() {
+        shutdown(new ErrorInfo(RtmErrorCode.NOT_CONNECTED, "RTM supervisor stopped"));
+    }
+
+    public void release() {
+        stop();
+        scheduler.shutdownNow();
+    }
+
+    public synchronized boolean isConnected() {
+        return state == RtmLinkState.CONNECTED;
+    }
+
+    /**
+     * 当前指标的副本
+     */
+    public synchronized Metrics getMetrics() {
+        Metrics copy = new Metrics();
+        copy.outageCount = metrics.outageCount;
+        copy.lastOutageMs = metrics.lastOutageMs;
+        copy.maxOutageMs = metrics.maxOutageMs;
+        copy.totalOutageMs = metrics.totalOutageMs;
+        copy.reconnectAttempts = metrics.reconnectAttempts;
+        copy.lastReconnectLatencyMs = metrics.lastReconnectLatencyMs;
+        copy.bufferedMessages = buffer.size();
+        copy.droppedMessages = metrics.droppedMessages;
+        copy.replayedMessages = metrics.replayedMessages;
+        return copy;
+    }
+
+    /**
+     * 发布消息；未连接或正在补发时先放入队列，队列满时丢弃最早的一条
+     */
+    public void publish(String channelName, String message, PublishOptions options, ResultCallback<Void> callback) {
+        PendingPublish pending;
+        PendingPublish dropped = null;
+        synchronized (this) {
+            pending = new PendingPublish(nextSequence++, channelName, message, options, callback);
+            if (state != RtmLinkState.CONNECTED || replaying || !buffer.isEmpty()) {
+                if (buffer.size() >= bufferCapacity) {
+                    dropped = buffer.pollFirst();
+                    metrics.droppedMessages++;
+                }
+                buffer.addLast(pending);
+                metrics.bufferedMessages = buffer.size();
+                pending = null;
+            } else {
+                sendsInFlight++;
+            }
+        }
+        if (dropped != null) {
+            Log.w(TAG, "RTM断线缓冲已满，丢弃最早的消息: " + dropped.channelName);
+            fail(dropped, "RTM outage buffer overflow");
+        }
+        if (pending != null) {
+            send(pending);
+        }
+    }
+
+    @Override
+    public void onLinkStateEvent(LinkStateEvent event) {
+        if (event == null) {
+            return;
+        }
+        if (event.getServiceType() == RtmServiceType.STREAM) {
+            // 流通道的链路由TopicStreamer处理，publish只走消息通道
+            return;
+        }
+        RtmLinkState current = event.getCurrentState();
+        Log.d(TAG, "RTM链路状态: " + event.getPreviousState() + " -> " + current + ", 原因: " + event.getReason());
+        long outageMs = -1;
+        long reconnectLatency = 0;
+        int replayCount = 0;
+        boolean scheduleRetry = false;
+        synchronized (this) {
+            state = current;
+            if (!started) {
+                // 未开始监护或已主动登出，只记录状态
+            } else if (current == RtmLinkState.CONNECTED) {
+                cancelRetry();
+                retryAttempt = 0;
+                long now = System.currentTimeMillis();
+                if (outageStartedAt > 0) {
+                    outageMs = now - outageStartedAt;
+                    reconnectLatency = lastLoginStartedAt > outageStartedAt ? now - lastLoginStartedAt : 0;
+                    metrics.outageCount++;
+                    metrics.lastOutageMs = outageMs;
+                    metrics.maxOutageMs = Math.max(metrics.maxOutageMs, outageMs);
+                    metrics.totalOutageMs += outageMs;
+                    metrics.lastReconnectLatencyMs = reconnectLatency;
+                    outageStartedAt = 0;
+                }
+                replayCount = buffer.size();
+            } else if (current == RtmLinkState.DISCONNECTED || current == RtmLinkState.SUSPENDED
+                    || current == RtmLinkState.FAILED) {
+                if (outageStartedAt == 0) {
+                    outageStartedAt = System.currentTimeMillis();
+                }
+                if (current == RtmLinkState.FAILED) {
+                    // SDK不再自动重连
+                    scheduleRetry = true;
+                } else if (pendingRetry == null) {
+                    // SDK会自行重连，超时仍未恢复再主动处理
+                    pendingRetry = scheduler.schedule(this::onStallTimeout, stallTimeoutMs, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        if (outageMs >= 0) {
+            Log.d(TAG, "RTM连接恢复，断线时长: " + outageMs + "ms，重连耗时: " + reconnectLatency
+                    + "ms，待补发: " + replayCount);
+            Listener l = listener;
+            if (l != null) {
+                l.onLinkRecovered(outageMs, reconnectLatency, replayCount);
+            }
+        }
+        if (scheduleRetry) {
+            RtmLinkStateChangeReason reason = event.getReasonCode();
+            if (reason == RtmLinkStateChangeReason.INVALID_TOKEN || reason == RtmLinkStateChangeReason.TOKEN_EXPIRED) {
+                onLoginFailed(new ErrorInfo(reason == RtmLinkStateChangeReason.INVALID_TOKEN
+                        ? RtmErrorCode.INVALID_TOKEN : RtmErrorCode.TOKEN_EXPIRED, event.getReason()));
+            } else {
+                scheduleRelogin();
+            }
+        }
+        if (current == RtmLinkState.CONNECTED) {
+            replayNext();
+        }
+        Listener l = listener;
+        if (l != null) {
+            l.onLinkStateChanged(current);
+        }
+    }
+
+    private void onStallTimeout() {
+        synchronized (this) {
+            pendingRetry = null;
+            if (!started || state == RtmLinkState.CONNECTED || loginInFlight) {
+                return;
+            }
+            if (state != RtmLinkState.DISCONNECTED && state != RtmLinkState.FAILED) {
+                // SDK还在重连，登出会打断它并丢掉所有订阅，继续等
+                pendingRetry = scheduler.schedule(this::onStallTimeout, stallTimeoutMs, TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+        Log.w(TAG, "RTM自动重连超时，主动重新登录");
+        relogin();
+    }
+
+    private void scheduleRelogin() {
+        synchronized (this) {
+            if (!started || loginInFlight) {
+                return;
+            }
+            cancelRetry();
+            long delay = Math.min(MAX_RETRY_DELAY_MS, BASE_RETRY_DELAY_MS << Math.min(retryAttempt, 5));
+            // 一半固定一半随机，避免大量客户端同时重连
+            delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+            retryAttempt++;
+            Log.d(TAG, "RTM将在" + delay + "ms后重新登录（第" + retryAttempt + "次）");
+            pendingRetry = scheduler.schedule(this::relogin, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void relogin() {
+        synchronized (this) {
+            pendingRetry = null;
+            if (!started || loginInFlight) {
+                return;
+            }
+            metrics.reconnectAttempts++;
+        }
+        // 先登出清理SDK内部状态，无论结果如何都重新登录
+        rtmClient.logout(new ResultCallback<Void>() {
+            @Override
+            public void onSuccess(Void responseInfo) {
+                login();
+            }
+
+            @Override
+            public void onFailure(ErrorInfo errorInfo) {
+                login();
+            }
+        });
+    }
+
+    private void login() {
+        String loginToken;
+        synchronized (this) {
+            if (!started) {
+                return;
+            }
+            loginInFlight = true;
+            lastLoginStartedAt = System.currentTimeMillis();
+            loginToken = token;
+        }
+        rtmClient.login(loginToken, new ResultCallback<Void>() {
+            @Override
+            public void onSuccess(Void responseInfo) {
+                ResultCallback<Void> callback;
+                synchronized (RtmLinkSupervisor.this) {
+                    loginInFlight = false;
+                    if (!started) {
+                        return;
+                    }
+                    tokenRefreshed = false;
+                    callback = startCallback;
+                    startCallback = null;
+                }
+                Log.d(TAG, "RTM登录成功");
+                if (callback != null) {
+                    callback.onSuccess(responseInfo);
+                }
+                for (SessionListener sessionListener : sessionListeners) {
+                    sessionListener.onLoggedIn();
+                }
+            }
+
+            @Override
+            public void onFailure(ErrorInfo errorInfo) {
+                Log.w(TAG, "RTM登录失败: " + errorInfo.toString());
+                synchronized (RtmLinkSupervisor.this) {
+                    loginInFlight = false;
+                }
+                onLoginFailed(errorInfo);
+            }
+        });
+    }
+
+    /**
+     * 按错误类型处理登录失败：可重试的退避重试，token问题换新token，其余停止监护并上报
+     */
+    private void onLoginFailed(ErrorInfo errorInfo) {
+        FailureKind kind = classify(errorInfo);
+        if (kind == FailureKind.RETRY) {
+            scheduleRelogin();
+            return;
+        }
+        TokenManager manager = null;
+        String tokenUserId = null;
+        synchronized (this) {
+            // 登录或换token还在进行时，结果由那次请求处理；链路FAILED事件和登录失败回调会先后到达
+            if (!started || loginInFlight) {
+                return;
+            }
+            if (kind == FailureKind.TOKEN && tokenManager != null && !tokenRefreshed) {
+                tokenRefreshed = true;
+                loginInFlight = true;
+                cancelRetry();
+                manager = tokenManager;
+                tokenUserId = userId;
+            }
+        }
+        if (manager == null) {
+            Log.e(TAG, "RTM登录遇到无法重试的错误，停止重连: " + errorInfo.toString());
+            abandon(errorInfo);
+            return;
+        }
+        Log.w(TAG, "RTM token无效，换新token后重新登录");
+        manager.invalidate(TokenManager.TokenType.RTM, null, tokenUserId);
+        manager.getToken(TokenManager.TokenType.RTM, null, tokenUserId, new TokenManager.Callback() {
+            @Override
+            public void onToken(String newToken, long expiresAt) {
+                synchronized (RtmLinkSupervisor.this) {
+                    loginInFlight = false;
+                    token = newToken;
+                }
+                relogin();
+            }
+
+            @Override
+            public void onError(String error) {
+                // 取token失败通常是网络问题，下次登录失败时再换
+                synchronized (RtmLinkSupervisor.this) {
+                    loginInFlight = false;
+                    tokenRefreshed = false;
+                }
+                scheduleRelogin();
+            }
+        });
+    }
+
+    private void abandon(ErrorInfo errorInfo) {
+        shutdown(errorInfo);
+        for (SessionListener sessionListener : sessionListeners) {
+            sessionListener.onLoginAbandoned(errorInfo);
+        }
+    }
+
+    /**
+     * 停止监护，未发出的消息和还没结果的start回调失败
+     */
+    private void shutdown(ErrorInfo errorInfo) {
+        ArrayDeque<PendingPublish> dropped;
+        ResultCallback<Void> callback;
+        synchronized (this) {
+            started = false;
+            cancelRetry();
+            outageStartedAt = 0;
+            dropped = new ArrayDeque<>(buffer);
+            buffer.clear();
+            metrics.bufferedMessages = 0;
+            callback = startCallback;
+            startCallback = null;
+        }
+        failAll(dropped, errorInfo.getErrorReason());
+        if (callback != null) {
+            callback.onFailure(errorInfo);
+        }
+    }
+
+    private static FailureKind classify(ErrorInfo errorInfo) {
+        RtmErrorCode code = errorInfo != null ? errorInfo.getErrorCode() : null;
+        if (code == null) {
+            return FailureKind.RETRY;
+        }
+        switch (code) {
+            case INVALID_TOKEN:
+            case TOKEN_EXPIRED:
+            case LOGIN_NOT_AUTHORIZED:
+                return FailureKind.TOKEN;
+            case INVALID_APP_ID:
+            case INCONSISTENT_APPID:
+            case INVALID_USER_ID:
+            case INVALID_PARAMETER:
+            case INVALID_EVENT_HANDLER:
+            case INVALID_PRIVATE_CONFIG:
+            case INVALID_ENCRYPTION_PARAMETER:
+            case LOGIN_REJECTED:
+                return FailureKind.FATAL;
+            default:
+                return FailureKind.RETRY;
+        }
+    }
+
+    /**
+     * 逐条补发缓冲的消息，上一条完成后再发下一条以保证顺序
+     */
+    private void replayNext() {
+        PendingPublish next;
+        synchronized (this) {
+            if (replaying || sendsInFlight > 0 || state != RtmLinkState.CONNECTED || buffer.isEmpty()) {
+                return;
+            }
+            replaying = true;
+            next = buffer.peekFirst();
+        }
+        rtmClient.publish(next.channelName, next.message, next.options, new ResultCallback<Void>() {
+            @Override
+            public void onSuccess(Void responseInfo) {
+                synchronized (RtmLinkSupervisor.this) {
+                    // 补发期间可能有更早的消息失败放回队首，按对象移除
+                    buffer.remove(next);
+                    metrics.bufferedMessages = buffer.size();
+                    metrics.replayedMessages++;
+                    replaying = false;
+                }
+                if (next.callback != null) {
+                    next.callback.onSuccess(responseInfo);
+                }
+                replayNext();
+            }
+
+            @Override
+            public void onFailure(ErrorInfo errorInfo) {
+                boolean linkLost = isLinkError(errorInfo);
+                synchronized (RtmLinkSupervisor.this) {
+                    replaying = false;
+                    if (!linkLost) {
+                        buffer.remove(next);
+                        metrics.bufferedMessages = buffer.size();
+                    } else if (started && state == RtmLinkState.CONNECTED) {
+                        // 超时等错误发生时链路仍是连接状态，不会再有CONNECTED事件触发补发，稍后自己重试
+                        scheduler.schedule(RtmLinkSupervisor.this::replayNext, BASE_RETRY_DELAY_MS,
+                                TimeUnit.MILLISECONDS);
+                    }
+                }
+                // 链路问题时留在队列里等待重试，其他错误直接回调失败
+                if (!linkLost) {
+                    if (next.callback != null) {
+                        next.callback.onFailure(errorInfo);
+                    }
+                    replayNext();
+                }
+            }
+        });
+    }
+
+    private void send(PendingPublish pending) {
+        rtmClient.publish(pending.channelName, pending.message, pending.options, new ResultCallback<Void>() {
+            @Override
+            public void onSuccess(Void responseInfo) {
+                boolean resume;
+                synchronized (RtmLinkSupervisor.this) {
+                    sendsInFlight--;
+                    resume = sendsInFlight == 0 && !buffer.isEmpty();
+                }
+                if (pending.callback != null) {
+                    pending.callback.onSuccess(responseInfo);
+                }
+                if (resume) {
+                    replayNext();
+                }
+            }
+
+            @Override
+            public void onFailure(ErrorInfo errorInfo) {
+                // 状态事件还没到达时链路已断，或者发送超时：放回队列等待补发，之后的publish都会排在它后面。
+                // 链路仍是连接状态时不会再有CONNECTED事件，最后一个直接发送有结果后由这里开始补发
+                boolean requeued = false;
+                boolean resume;
+                synchronized (RtmLinkSupervisor.this) {
+                    sendsInFlight--;
+                    if (started && isLinkError(errorInfo)) {
+                        requeueLocked(pending);
+                        requeued = true;
+                    }
+                    resume = sendsInFlight == 0 && !buffer.isEmpty();
+                }
+                if (!requeued && pending.callback != null) {
+                    pending.callback.onFailure(errorInfo);
+                }
+                if (resume) {
+                    replayNext();
+                }
+            }
+        });
+    }
+
+    /**
+     * 把发送失败的消息放回队列中按sequence的位置，几条并发发送先后失败时仍保持原来的顺序
+     */
+    private void requeueLocked(PendingPublish pending) {
+        int index = 0;
+        Iterator<PendingPublish> iterator = buffer.iterator();
+        while (iterator.hasNext() && iterator.next().sequence < pending.sequence) {
+            index++;
+        }
+        buffer.add(index, pending);
+        metrics.bufferedMessages = buffer.size();
+    }
+
+    private static boolean isLinkError(ErrorInfo errorInfo) {
+        RtmErrorCode code = errorInfo != null ? errorInfo.getErrorCode() : null;
+        return code == RtmErrorCode.NOT_CONNECTED || code == RtmErrorCode.NOT_LOGIN
+                || code == RtmErrorCode.CHANNEL_NOT_CONNECTED || code == RtmErrorCode.CHANNEL_PUBLISH_MESSAGE_TIMEOUT;
+    }
+
+    private void cancelRetry() {
+        if (pendingRetry != null) {
+            pendingRetry.cancel(false);
+            pendingRetry = null;
+        }
+    }
+
+    private void failAll(ArrayDeque<PendingPublish> pending, String reason) {
+        for (PendingPublish publish : pending) {
+            fail(publish, reason);
+        }
+    }
+
+    private static void fail(PendingPublish pending, String reason) {
+        if (pending.callback != null) {
+            pending.callback.onFailure(new ErrorInfo(RtmErrorCode.NOT_CONNECTED, reason));
+        }
+    }
+}
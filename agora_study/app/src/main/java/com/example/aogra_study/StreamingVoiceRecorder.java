@@ -0,0 +1,236 @@
+package com.example.aogra_study;
+
+import android.annotation.SuppressLint;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.media.MediaRecorder;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 边录边编码的语音录制器
+ * 录音线程每读到一块PCM就立即送入AAC编码器并写入m4a文件，松开录音键时只需编码最后一块并写文件尾，
+ * 结束耗时与语音长度无关
+ */
+public class StreamingVoiceRecorder {
+    private static final String TAG = "Agora";
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int CHANNEL_COUNT = 1;
+    private static final int BIT_RATE = 32000;
+    // 每块PCM 40ms
+    private static final int CHUNK_SAMPLES = SAMPLE_RATE / 25;
+    private static final long DEQUEUE_TIMEOUT_US = 10_000;
+
+    public interface Callback {
+        /**
+         * 录制完成，回调在录音线程上
+         *
+         * @param durationSeconds 语音时长（秒，向上取整）
+         * @param finishLatencyMs 从调用stop到文件写完的耗时
+         */
+        void onFinished(String filePath, int durationSeconds, long finishLatencyMs);
+
+        void onError(String error);
+    }
+
+    private final File outputFile;
+    private volatile boolean stopRequested = false;
+    private volatile boolean cancelled = false;
+    private volatile long stopRequestedAt;
+    private Thread recordThread;
+    private Callback callback;
+
+    public StreamingVoiceRecorder(File outputFile) {
+        this.outputFile = outputFile;
+    }
+
+    /**
+     * 开始录音，调用方需已获得RECORD_AUDIO权限
+     */
+    public synchronized void start(Callback callback) {
+        if (recordThread != null) {
+            throw new IllegalStateException("Recorder already started");
+        }
+        this.callback = callback;
+        recordThread = new Thread(this::recordLoop, "voice-recorder");
+        recordThread.start();
+    }
+
+    /**
+     * 停止录音，剩余数据编码完成后通过Callback.onFinished返回文件
+     */
+    public void stop() {
+        stopRequestedAt = System.currentTimeMillis();
+        stopRequested = true;
+    }
+
+    /**
+     * 取消录音并删除已写入的文件，不会回调onFinished
+     */
+    public void cancel() {
+        cancelled = true;
+        stopRequested = true;
+    }
+
+    @SuppressLint("MissingPermission")
+    private void recordLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+        AudioRecord audioRecord = null;
+        MediaCodec encoder = null;
+        MediaMuxer muxer = null;
+        try {
+            int minBufferSize = AudioRecord.getMinBufferSize(SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
+                    AudioFormat.ENCODING_PCM_16BIT);
+            int chunkBytes = CHUNK_SAMPLES * 2 * CHANNEL_COUNT;
+            audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
+                    AudioFormat.ENCODING_PCM_16BIT, Math.max(minBufferSize, chunkBytes * 4));
+            if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+                throw new IOException("AudioRecord initialization failed");
+            }
+
+            MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, SAMPLE_RATE, CHANNEL_COUNT);
+            format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
+            format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, chunkBytes);
+            encoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            encoder.start();
+
+            muxer = new MediaMuxer(outputFile.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            EncoderState state = new EncoderState();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            byte[] pcm = new byte[chunkBytes];
+
+            audioRecord.startRecording();
+            Log.d(TAG, "开始边录边编码，输出文件: " + outputFile.getAbsolutePath());
+            long totalSamples = 0;
+            while (!stopRequested) {
+                int read = audioRecord.read(pcm, 0, pcm.length);
+                if (read < 0) {
+                    throw new IOException("AudioRecord read failed: " + read);
+                }
+                if (read > 0) {
+                    queueInput(encoder, muxer, state, info, pcm, read, totalSamples, false);
+                    totalSamples += read / 2 / CHANNEL_COUNT;
+                }
+                drainOutput(encoder, muxer, state, info, false);
+            }
+            audioRecord.stop();
+
+            if (cancelled) {
+                return;
+            }
+            // 只剩最后一块：发送EOS并把编码器里的数据写完
+            queueInput(encoder, muxer, state, info, pcm, 0, totalSamples, true);
+            drainOutput(encoder, muxer, state, info, true);
+            if (state.muxerStarted) {
+                muxer.stop();
+            }
+
+            int durationSeconds = (int) Math.max(1, (totalSamples + SAMPLE_RATE - 1) / SAMPLE_RATE);
+            long finishLatency = System.currentTimeMillis() - stopRequestedAt;
+            Log.d(TAG, "语音录制完成，时长: " + durationSeconds + "s，大小: " + outputFile.length()
+                    + "字节，结束耗时: " + finishLatency + "ms");
+            if (callback != null) {
+                callback.onFinished(outputFile.getAbsolutePath(), durationSeconds, finishLatency);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "语音录制失败", e);
+            if (callback != null && !cancelled) {
+                callback.onError(e.getMessage() != null ? e.getMessage() : e.toString());
+            }
+        } finally {
+            if (audioRecord != null) {
+                audioRecord.release();
+            }
+            if (encoder != null) {
+                try {
+                    encoder.stop();
+                } catch (IllegalStateException ignored) {
+                }
+                encoder.release();
+            }
+            if (muxer != null) {
+                try {
+                    muxer.release();
+                } catch (IllegalStateException ignored) {
+                }
+            }
+            if (cancelled && outputFile.exists() && !outputFile.delete()) {
+                Log.w(TAG, "删除取消的语音文件失败: " + outputFile.getAbsolutePath());
+            }
+        }
+    }
+
+    private static void queueInput(MediaCodec encoder, MediaMuxer muxer, EncoderState state, MediaCodec.BufferInfo info,
+                                   byte[] pcm, int length, long samplePosition, boolean endOfStream) {
+        int offset = 0;
+        while (offset < length || endOfStream) {
+            int index = encoder.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+            if (index < 0) {
+                // 输入缓冲区用完时先取走输出，否则编码器会一直阻塞
+                drainOutput(encoder, muxer, state, info, false);
+                continue;
+            }
+            ByteBuffer input = encoder.getInputBuffer(index);
+            input.clear();
+            int size = Math.min(length - offset, input.remaining());
+            input.put(pcm, offset, size);
+            long presentationTimeUs = (samplePosition + offset / 2 / CHANNEL_COUNT) * 1_000_000L / SAMPLE_RATE;
+            offset += size;
+            boolean last = endOfStream && offset >= length;
+            encoder.queueInputBuffer(index, 0, size, presentationTimeUs,
+                    last ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+            if (last) {
+                return;
+            }
+        }
+    }
+
+    private static void drainOutput(MediaCodec encoder, MediaMuxer muxer, EncoderState state,
+                                    MediaCodec.BufferInfo info, boolean untilEndOfStream) {
+        while (true) {
+            int index = encoder.dequeueOutputBuffer(info, untilEndOfStream ? DEQUEUE_TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!untilEndOfStream) {
+                    return;
+                }
+                continue;
+            }
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                state.trackIndex = muxer.addTrack(encoder.getOutputFormat());
+                muxer.start();
+                state.muxerStarted = true;
+                continue;
+            }
+            if (index < 0) {
+                continue;
+            }
+            ByteBuffer output = encoder.getOutputBuffer(index);
+            boolean codecConfig = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+            if (output != null && info.size > 0 && !codecConfig && state.muxerStarted) {
+                output.position(info.offset);
+                output.limit(info.offset + info.size);
+                muxer.writeSampleData(state.trackIndex, output, info);
+            }
+            encoder.releaseOutputBuffer(index, false);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                return;
+            }
+        }
+    }
+
+    private static class EncoderState {
+        int trackIndex = -1;
+        boolean muxerStarted = false;
+    }
+}
@@ -0,0 +1,244 @@
+package com.example.aogra_study;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token生命周期管理
+ * RTC、RTM、Chat三类token统一从Provider异步获取并按过期时间缓存，在过期前自动预取；
+ * 加入频道时直接读取缓存（peekToken）而不等待网络请求，SDK的即将过期回调通过renew换上预取好的token
+ */
+public class TokenManager {
+    private static final String TAG = "Agora";
+
+    // 有效期过了这个比例就在后台预取新token
+    private static final double REFRESH_AT_FRACTION = 0.8;
+    public static final long NEVER_EXPIRES = Long.MAX_VALUE;
+
+    public enum TokenType {
+        RTC, RTM, CHAT
+    }
+
+    /**
+     * token来源，例如业务服务器；本地开发使用LocalTokenProvider
+     */
+    public interface Provider {
+        void fetchToken(TokenType type, String channelName, String userId, Callback callback);
+    }
+
+    public interface Callback {
+        /**
+         * @param expiresAt 过期时间（毫秒时间戳），不过期时为NEVER_EXPIRES
+         */
+        void onToken(String token, long expiresAt);
+
+        void onError(String error);
+    }
+
+    /**
+     * 把新token交给SDK，例如rtcEngine.renewToken
+     */
+    public interface Renewer {
+        void apply(String token);
+    }
+
+    private static class Entry {
+        final String token;
+        final long fetchedAt;
+        final long expiresAt;
+
+        Entry(String token, long fetchedAt, long expiresAt) {
+            this.token = token;
+            this.fetchedAt = fetchedAt;
+            this.expiresAt = expiresAt;
+        }
+
+        long refreshAt() {
+            if (expiresAt == NEVER_EXPIRES) {
+                return NEVER_EXPIRES;
+            }
+            return fetchedAt + (long) ((expiresAt - fetchedAt) * REFRESH_AT_FRACTION);
+        }
+    }
+
+    private final Provider provider;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "token-manager");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // 以下状态由this锁保护
+    private final Map<String, Entry> cache = new HashMap<>();
+    // 正在请求的key及等待结果的回调，同一个key同时只有一个请求
+    private final Map<String, List<Callback>> inFlight = new HashMap<>();
+    private final Map<String, ScheduledFuture<?>> refreshTimers = new HashMap<>();
+
+    public TokenManager(Provider provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * 后台预取token，已有未到刷新时间的缓存时不发请求
+     */
+    public void prefetch(TokenType type, String channelName, String userId) {
+        String key = key(type, channelName, userId);
+        synchronized (this) {
+            Entry entry = cache.get(key);
+            if (entry != null && System.currentTimeMillis() < entry.refreshAt()) {
+                return;
+            }
+        }
+        fetch(type, channelName, userId, null);
+    }
+
+    /**
+     * 立即返回缓存中未过期的token，没有时返回null（并在后台预取），不会等待网络请求
+     */
+    public String peekToken(TokenType type, String channelName, String userId) {
+        Entry entry;
+        synchronized (this) {
+            entry = cache.get(key(type, channelName, userId));
+        }
+        long now = System.currentTimeMillis();
+        if (entry == null || now >= entry.refreshAt()) {
+            prefetch(type, channelName, userId);
+        }
+        return entry != null && now < entry.expiresAt ? entry.token : null;
+    }
+
+    /**
+     * 获取token，有未过期的缓存时直接回调，否则等待请求完成
+     */
+    public void getToken(TokenType type, String channelName, String userId, Callback callback) {
+        Entry entry;
+        synchronized (this) {
+            entry = cache.get(key(type, channelName, userId));
+        }
+        if (entry != null && System.currentTimeMillis() < entry.expiresAt) {
+            callback.onToken(entry.token, entry.expiresAt);
+            return;
+        }
+        fetch(type, channelName, userId, callback);
+    }
+
+    /**
+     * SDK提示token即将过期时调用：取新token并交给renewer
+     * SDK手上的token已经过了刷新时间，缓存里还没到刷新时间的只能是预取到的新token，直接复用不再请求；
+     * 预取失败时缓存仍是旧token，才重新请求
+     */
+    public void renew(TokenType type, String channelName, String userId, Renewer renewer) {
+        Callback callback = new Callback() {
+            @Override
+            public void onToken(String token, long expiresAt) {
+                Log.d(TAG, "更新" + type + " token，频道: " + channelName + "，用户: " + userId);
+                renewer.apply(token);
+            }
+
+            @Override
+            public void onError(String error) {
+                Log.e(TAG, "更新" + type + " token失败: " + error);
+            }
+        };
+        Entry entry;
+        synchronized (this) {
+            entry = cache.get(key(type, channelName, userId));
+        }
+        long now = System.currentTimeMillis();
+        if (entry != null && now < entry.refreshAt() && now < entry.expiresAt) {
+            callback.onToken(entry.token, entry.expiresAt);
+            return;
+        }
+        fetch(type, channelName, userId, callback);
+    }
+
+    /**
+     * 清除某个token（例如离开频道后）
+     */
+    public synchronized void invalidate(TokenType type, String channelName, String userId) {
+        String key = key(type, channelName, userId);
+        cache.remove(key);
+        ScheduledFuture<?> timer = refreshTimers.remove(key);
+        if (timer != null) {
+            timer.cancel(false);
+        }
+    }
+
+    public void release() {
+        scheduler.shutdownNow();
+    }
+
+    private void fetch(TokenType type, String channelName, String userId, Callback callback) {
+        String key = key(type, channelName, userId);
+        synchronized (this) {
+            List<Callback> waiters = inFlight.get(key);
+            if (waiters != null) {
+                if (callback != null) {
+                    waiters.add(callback);
+                }
+                return;
+            }
+            waiters = new ArrayList<>();
+            if (callback != null) {
+                waiters.add(callback);
+            }
+            inFlight.put(key, waiters);
+        }
+        provider.fetchToken(type, channelName, userId, new Callback() {
+            @Override
+            public void onToken(String token, long expiresAt) {
+                List<Callback> waiters;
+                synchronized (TokenManager.this) {
+                    Entry entry = new Entry(token, System.currentTimeMillis(), expiresAt);
+                    cache.put(key, entry);
+                    waiters = inFlight.remove(key);
+                    scheduleRefresh(key, entry, type, channelName, userId);
+                }
+                Log.d(TAG, type + " token已缓存，频道: " + channelName + "，用户: " + userId
+                        + (expiresAt == NEVER_EXPIRES ? "" : "，剩余有效期: "
+                        + (expiresAt - System.currentTimeMillis()) / 1000 + "s"));
+                for (Callback waiter : waiters) {
+                    waiter.onToken(token, expiresAt);
+                }
+            }
+
+            @Override
+            public void onError(String error) {
+                List<Callback> waiters;
+                synchronized (TokenManager.this) {
+                    waiters = inFlight.remove(key);
+                }
+                Log.e(TAG, "获取" + type + " token失败: " + error);
+                for (Callback waiter : waiters) {
+                    waiter.onError(error);
+                }
+            }
+        });
+    }
+
+    private void scheduleRefresh(String key, Entry entry, TokenType type, String channelName, String userId) {
+        ScheduledFuture<?> old = refreshTimers.remove(key);
+        if (old != null) {
+            old.cancel(false);
+        }
+        long refreshAt = entry.refreshAt();
+        if (refreshAt == NEVER_EXPIRES || scheduler.isShutdown()) {
+            return;
+        }
+        long delay = Math.max(0, refreshAt - System.currentTimeMillis());
+        refreshTimers.put(key, scheduler.schedule(() -> prefetch(type, channelName, userId),
+                delay, TimeUnit.MILLISECONDS));
+    }
+
+    private static String key(TokenType type, String channelName, String userId) {
+        return type + "|" + (channelName != null ? channelName : "") + "|" + (userId != null ? userId : "");
+    }
+}
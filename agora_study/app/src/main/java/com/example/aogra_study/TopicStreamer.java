@@ -0,0 +1,660 @@
+package com.example.aogra_study;
+
+import io.agora.rtm.ErrorInfo;
+import io.agora.rtm.JoinChannelOptions;
+import io.agora.rtm.JoinTopicOptions;
+import io.agora.rtm.MessageEvent;
+import io.agora.rtm.ResultCallback;
+import io.agora.rtm.RtmConstants.RtmChannelType;
+import io.agora.rtm.RtmConstants.RtmMessagePriority;
+import io.agora.rtm.RtmConstants.RtmMessageQos;
+import io.agora.rtm.RtmEventListener;
+import io.agora.rtm.StreamChannel;
+import io.agora.rtm.SubscribeTopicResult;
+import io.agora.rtm.TopicMessageOptions;
+import io.agora.rtm.TopicOptions;
+import android.util.Log;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于StreamChannel topic的高频状态同步
+ * 状态类topic（光标位置、白板笔迹端点等）只发送与上次发布相比变化的字段，发送频率受每个topic的上限约束，
+ * 两次发送之间的更新合并为最新值，增量帧依赖前一帧，所以状态topic也按ORDERED发送；
+ * 事件类topic（表情等）在有界队列中排队，满时丢弃最早的。
+ * 接收端为每个发布者缓存若干帧状态，按固定延迟插值输出平滑的值
+ */
+public class TopicStreamer implements RtmEventListener {
+    private static final String TAG = "Agora";
+
+    private static final byte FRAME_STATE_KEY = 1;
+    private static final byte FRAME_STATE_DELTA = 2;
+    private static final byte FRAME_EVENTS = 3;
+    // 定期发送全量帧，让新加入或丢包的接收端重新同步
+    private static final long KEYFRAME_INTERVAL_MS = 2000;
+    // 单个事件帧的最大字节数
+    private static final int MAX_EVENT_FRAME_BYTES = 1024;
+    // 事件帧头部（类型、序号、时间、事件数）和单个事件的长度字段
+    private static final int EVENT_FRAME_HEADER_BYTES = 11;
+    private static final int EVENT_LENGTH_BYTES = 2;
+    // 单个事件的最大字节数，保证一帧至少能放下一个事件
+    public static final int MAX_EVENT_BYTES = MAX_EVENT_FRAME_BYTES - EVENT_FRAME_HEADER_BYTES - EVENT_LENGTH_BYTES;
+    private static final int SNAPSHOT_CAPACITY = 8;
+    public static final int MAX_STATE_DIMENSION = 32;
+
+    public interface Listener {
+        /**
+         * 收到事件，回调在SDK线程上
+         */
+        void onTopicEvent(String topic, String publisherId, byte[] payload);
+
+        /**
+         * 某个发布者的状态首次同步完成，之后可以用sample读取
+         */
+        void onRemoteStateAvailable(String topic, String publisherId);
+    }
+
+    /**
+     * 发送统计
+     */
+    public static class Stats {
+        public long framesSent;
+        public long bytesSent;
+        public long keyFrames;
+        public long coalescedUpdates;
+        public long droppedEvents;
+        public long skippedTicks;
+
+        @Override
+        public String toString() {
+            return "frames=" + framesSent + ", bytes=" + bytesSent + ", keyFrames=" + keyFrames
+                    + ", coalesced=" + coalescedUpdates + ", droppedEvents=" + droppedEvents
+                    + ", skippedTicks=" + skippedTicks;
+        }
+    }
+
+    /**
+     * 本地发布的topic
+     */
+    private static class LocalTopic {
+        final String name;
+        final boolean stateTopic;
+        final int dimension;
+        final float epsilon;
+        final long intervalMs;
+        final int eventCapacity;
+        // 以下字段由LocalTopic自身锁保护
+        final float[] pending;
+        final float[] published;
+        boolean dirty;
+        boolean hasPublished;
+        long lastKeyFrameAt;
+        final ArrayDeque<byte[]> events = new ArrayDeque<>();
+        boolean inFlight;
+        int seq;
+        ScheduledFuture<?> ticker;
+
+        LocalTopic(String name, boolean stateTopic, int dimension, float epsilon, int maxRateHz, int eventCapacity) {
+            this.name = name;
+            this.stateTopic = stateTopic;
+            this.dimension = dimension;
+            this.epsilon = epsilon;
+            this.intervalMs = Math.max(1, 1000 / Math.max(1, maxRateHz));
+            this.eventCapacity = eventCapacity;
+            this.pending = new float[dimension];
+            this.published = new float[dimension];
+        }
+    }
+
+    /**
+     * 某个远端发布者在某个topic上的状态
+     */
+    private static class RemoteState {
+        final float[] current;
+        final long[] times = new long[SNAPSHOT_CAPACITY];
+        final float[][] snapshots;
+        int count;
+        int head;
+        int lastSeq;
+        boolean synced;
+        long clockOffset = Long.MAX_VALUE;
+
+        RemoteState(int dimension) {
+            current = new float[dimension];
+            snapshots = new float[SNAPSHOT_CAPACITY][dimension];
+        }
+
+        void push(long time) {
+            int index = (head + count) % SNAPSHOT_CAPACITY;
+            if (count == SNAPSHOT_CAPACITY) {
+                head = (head + 1) % SNAPSHOT_CAPACITY;
+            } else {
+                count++;
+            }
+            times[index] = time;
+            System.arraycopy(current, 0, snapshots[index], 0, current.length);
+        }
+    }
+
+    private final StreamChannel streamChannel;
+    private final String channelName;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "rtm-topic-streamer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, LocalTopic> localTopics = new ConcurrentHashMap<>();
+    // 远端状态topic的维度和插值延迟，由subscribeStateTopic登记
+    private final Map<String, int[]> remoteTopicConfig = new ConcurrentHashMap<>();
+    private final Map<String, RemoteState> remoteStates = new ConcurrentHashMap<>();
+    // 订阅过的远端topic，重新登录后按它恢复订阅
+    private final Set<String> subscribedTopics = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Stats stats = new Stats();
+    private volatile Listener listener;
+    // 加入频道时的选项，重新登录后用它重新加入；null表示还没有调用join
+    private volatile JoinChannelOptions joinOptions;
+
+    public TopicStreamer(StreamChannel streamChannel) {
+        this.streamChannel = streamChannel;
+        this.channelName = streamChannel.getChannelName();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 加入流频道
+     */
+    public void join(String token, ResultCallback<Void> callback) {
+        JoinChannelOptions options = new JoinChannelOptions();
+        if (token != null) {
+            options.setToken(token);
+        }
+        joinOptions = options;
+        streamChannel.join(options, callback);
+    }
+
+    /**
+     * RTM重新登录后调用：频道和topic随登出失效，重新加入频道并恢复发布和订阅的topic
+     */
+    public void restore() {
+        JoinChannelOptions options = joinOptions;
+        if (options == null) {
+            return;
+        }
+        streamChannel.join(options, new ResultCallback<Void>() {
+            @Override
+            public void onSuccess(Void responseInfo) {
+                Log.d(TAG, "重新加入流频道: " + channelName + "，发布topic: " + localTopics.size()
+                        + "，订阅topic: " + subscribedTopics.size());
+                for (LocalTopic local : localTopics.values()) {
+                    rejoinLocalTopic(local);
+                }
+                for (String topic : subscribedTopics) {
+                    streamChannel.subscribeTopic(topic, new TopicOptions(), null);
+                }
+            }
+
+            @Override
+            public void onFailure(ErrorInfo errorInfo) {
+                Log.e(TAG, "重新加入流频道失败: " + channelName + ", " + errorInfo.toString());
+            }
+        });
+    }
+
+    /**
+     * 开始发布一个状态topic
+     *
+     * @param dimension 状态字段数，最多MAX_STATE_DIMENSION个
+     * @param epsilon   字段变化小于该值时不发送
+     * @param maxRateHz 每秒最多发送的帧数
+     */
+    public void publishStateTopic(String topic, int dimension, float epsilon, int maxRateHz,
+                                  ResultCallback<Void> callback) {
+        if (dimension <= 0 || dimension > MAX_STATE_DIMENSION) {
+            throw new IllegalArgumentException("State dimension must be in [1, " + MAX_STATE_DIMENSION + "]");
+        }
+        openLocalTopic(new LocalTopic(topic, true, dimension, epsilon, maxRateHz, 0), callback);
+    }
+
+    /**
+     * 开始发布一个事件topic
+     *
+     * @param queueCapacity 待发送事件上限，超出时丢弃最早的
+     */
+    public void publishEventTopic(String topic, int maxRateHz, int queueCapacity, ResultCallback<Void> callback) {
+        openLocalTopic(new LocalTopic(topic, false, 0, 0, maxRateHz, queueCapacity), callback);
+    }
+
+    /**
+     * 订阅远端的状态topic
+     *
+     * @param dimension 与发布端一致的状态字段数
+     * @param maxRateHz 发布端的频率上限，用于确定插值延迟
+     */
+    public void subscribeStateTopic(String topic, int dimension, int maxRateHz,
+                                    ResultCallback<SubscribeTopicResult> callback) {
+        // 延迟约两个发送间隔，保证插值时通常有前后两帧可用
+        int delayMs = Math.max(50, 2 * 1000 / Math.max(1, maxRateHz));
+        remoteTopicConfig.put(topic, new int[]{dimension, delayMs});
+        subscribedTopics.add(topic);
+        streamChannel.subscribeTopic(topic, new TopicOptions(), callback);
+    }
+
+    /**
+     * 订阅远端的事件topic
+     */
+    public void subscribeEventTopic(String topic, ResultCallback<SubscribeTopicResult> callback) {
+        subscribedTopics.add(topic);
+        streamChannel.subscribeTopic(topic, new TopicOptions(), callback);
+    }
+
+    /**
+     * 更新本地状态，实际发送由topic的频率上限决定
+     */
+    public void updateState(String topic, float[] values) {
+        LocalTopic local = localTopics.get(topic);
+        if (local == null || !local.stateTopic) {
+            Log.w(TAG, "状态topic未发布: " + topic);
+            return;
+        }
+        boolean coalesced;
+        synchronized (local) {
+            coalesced = local.dirty;
+            System.arraycopy(values, 0, local.pending, 0, Math.min(values.length, local.dimension));
+            local.dirty = true;
+        }
+        if (coalesced) {
+            synchronized (stats) {
+                stats.coalescedUpdates++;
+            }
+        }
+    }
+
+    /**
+     * 发送一个事件，队列满时丢弃最早的
+     *
+     * @param payload 不超过MAX_EVENT_BYTES字节
+     */
+    public void sendEvent(String topic, byte[] payload) {
+        if (payload.length > MAX_EVENT_BYTES) {
+            throw new IllegalArgumentException("Event payload must be at most " + MAX_EVENT_BYTES + " bytes");
+        }
+        LocalTopic local = localTopics.get(topic);
+        if (local == null || local.stateTopic) {
+            Log.w(TAG, "事件topic未发布: " + topic);
+            return;
+        }
+        boolean dropped = false;
+        synchronized (local) {
+            if (local.events.size() >= local.eventCapacity) {
+                local.events.pollFirst();
+                dropped = true;
+            }
+            local.events.addLast(payload);
+        }
+        if (dropped) {
+            synchronized (stats) {
+                stats.droppedEvents++;
+            }
+        }
+    }
+
+    /**
+     * 读取远端发布者在当前时刻的插值状态，适合在每帧绘制时调用
+     *
+     * @return 是否有可用的状态
+     */
+    public boolean sample(String topic, String publisherId, long nowMs, float[] out) {
+        RemoteState remote = remoteStates.get(key(topic, publisherId));
+        int[] config = remoteTopicConfig.get(topic);
+        if (remote == null || config == null) {
+            return false;
+        }
+        synchronized (remote) {
+            if (remote.count == 0) {
+                return false;
+            }
+            long renderTime = nowMs - config[1];
+            int newest = (remote.head + remote.count - 1) % SNAPSHOT_CAPACITY;
+            int length = Math.min(out.length, remote.current.length);
+            // 找到renderTime两侧的快照做线性插值，超出范围时取最近的一帧，不外推
+            for (int i = remote.count - 1; i > 0; i--) {
+                int b = (remote.head + i) % SNAPSHOT_CAPACITY;
+                int a = (remote.head + i - 1) % SNAPSHOT_CAPACITY;
+                if (remote.times[a] <= renderTime && renderTime <= remote.times[b]) {
+                    long span = remote.times[b] - remote.times[a];
+                    float t = span > 0 ? (float) (renderTime - remote.times[a]) / span : 1f;
+                    for (int k = 0; k < length; k++) {
+                        float from = remote.snapshots[a][k];
+                        out[k] = from + (remote.snapshots[b][k] - from) * t;
+                    }
+                    return true;
+                }
+            }
+            int nearest = renderTime < remote.times[remote.head] ? remote.head : newest;
+            System.arraycopy(remote.snapshots[nearest], 0, out, 0, length);
+            return true;
+        }
+    }
+
+    public Stats getStats() {
+        synchronized (stats) {
+            Stats copy = new Stats();
+            copy.framesSent = stats.framesSent;
+            copy.bytesSent = stats.bytesSent;
+            copy.keyFrames = stats.keyFrames;
+            copy.coalescedUpdates = stats.coalescedUpdates;
+            copy.droppedEvents = stats.droppedEvents;
+            copy.skippedTicks = stats.skippedTicks;
+            return copy;
+        }
+    }
+
+    /**
+     * 停止发送并离开频道
+     */
+    public void release() {
+        for (LocalTopic local : localTopics.values()) {
+            if (local.ticker != null) {
+                local.ticker.cancel(false);
+            }
+        }
+        localTopics.clear();
+        remoteStates.clear();
+        subscribedTopics.clear();
+        joinOptions = null;
+        scheduler.shutdownNow();
+        streamChannel.leave(null);
+        streamChannel.release();
+    }
+
+    @Override
+    public void onMessageEvent(MessageEvent event) {
+        if (event == null || event.getChannelType() != RtmChannelType.STREAM
+                || !channelName.equals(event.getChannelName()) || event.getTopicName() == null) {
+            return;
+        }
+        Object data = event.getMessage() != null ? event.getMessage().getData() : null;
+        if (!(data instanceof byte[])) {
+            return;
+        }
+        try {
+            decodeFrame(event.getTopicName(), event.getPublisherId(), ByteBuffer.wrap((byte[]) data));
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            Log.w(TAG, "无法解析topic消息: " + event.getTopicName() + ", " + e.getMessage());
+        }
+    }
+
+    private static JoinTopicOptions topicOptions() {
+        // 增量帧只包含变化的字段，乱序时被丢弃的增量要等下一个全量帧才能恢复，所以两类topic都要求有序
+        return new JoinTopicOptions(RtmMessageQos.ORDERED, RtmMessagePriority.HIGH);
+    }
+
+    /**
+     * 重新加入本地发布的topic，ticker一直在运行，下一帧发全量帧让接收端重新同步
+     */
+    private void rejoinLocalTopic(LocalTopic local) {
+        synchronized (local) {
+            local.lastKeyFrameAt = 0;
+        }
+        streamChannel.joinTopic(local.name, topicOptions(), new ResultCallback<Void>() {
+            @Override
+            public void onSuccess(Void responseInfo) {
+                Log.d(TAG, "重新加入topic: " + local.name);
+            }
+
+            @Override
+            public void onFailure(ErrorInfo errorInfo) {
+                Log.e(TAG, "重新加入topic失败: " + local.name + ", " + errorInfo.toString());
+            }
+        });
+    }
+
+    private void openLocalTopic(LocalTopic local, ResultCallback<Void> callback) {
+        streamChannel.joinTopic(local.name, topicOptions(), new ResultCallback<Void>() {
+            @Override
+            public void onSuccess(Void responseInfo) {
+                localTopics.put(local.name, local);
+                local.ticker = scheduler.scheduleAtFixedRate(() -> tick(local), local.intervalMs,
+                        local.intervalMs, TimeUnit.MILLISECONDS);
+                if (callback != null) {
+                    callback.onSuccess(responseInfo);
+                }
+            }
+
+            @Override
+            public void onFailure(ErrorInfo errorInfo) {
+                Log.e(TAG, "加入topic失败: " + local.name + ", " + errorInfo.toString());
+                if (callback != null) {
+                    callback.onFailure(errorInfo);
+                }
+            }
+        });
+    }
+
+    /**
+     * 按频率上限触发，上一帧还未发送完成时跳过本次，更新继续合并
+     */
+    private void tick(LocalTopic local) {
+        byte[] frame;
+        synchronized (local) {
+            if (local.inFlight) {
+                if (local.dirty || !local.events.isEmpty()) {
+                    synchronized (stats) {
+                        stats.skippedTicks++;
+                    }
+                }
+                return;
+            }
+            frame = local.stateTopic ? encodeState(local) : encodeEvents(local);
+            if (frame == null) {
+                return;
+            }
+            local.inFlight = true;
+        }
+        synchronized (stats) {
+            stats.framesSent++;
+            stats.bytesSent += frame.length;
+            if (frame[0] == FRAME_STATE_KEY) {
+                stats.keyFrames++;
+            }
+        }
+        streamChannel.publishTopicMessage(local.name, frame, new TopicMessageOptions(), new ResultCallback<Void>() {
+            @Override
+            public void onSuccess(Void responseInfo) {
+                synchronized (local) {
+                    local.inFlight = false;
+                }
+            }
+
+            @Override
+            public void onFailure(ErrorInfo errorInfo) {
+                synchronized (local) {
+                    local.inFlight = false;
+                }
+                Log.w(TAG, "topic消息发送失败: " + local.name + ", " + errorInfo.toString());
+            }
+        });
+    }
+
+    /**
+     * 帧格式：类型(1) 序号(4) 发送时间低32位(4)，之后
+     * 全量帧：维度(1) + 全部字段；增量帧：变化字段掩码(4) + 变化字段的新值
+     */
+    private byte[] encodeState(LocalTopic local) {
+        long now = System.currentTimeMillis();
+        if (!local.dirty && !local.hasPublished) {
+            return null;
+        }
+        boolean keyFrame = !local.hasPublished || now - local.lastKeyFrameAt >= KEYFRAME_INTERVAL_MS;
+        if (!local.dirty && !keyFrame) {
+            return null;
+        }
+        int mask = 0;
+        int changed = 0;
+        if (!keyFrame) {
+            for (int i = 0; i < local.dimension; i++) {
+                if (Math.abs(local.pending[i] - local.published[i]) > local.epsilon) {
+                    mask |= 1 << i;
+                    changed++;
+                }
+            }
+            local.dirty = false;
+            if (changed == 0) {
+                return null;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(9 + (keyFrame ? 1 + 4 * local.dimension : 4 + 4 * changed));
+        buffer.put(keyFrame ? FRAME_STATE_KEY : FRAME_STATE_DELTA);
+        buffer.putInt(++local.seq);
+        buffer.putInt((int) now);
+        if (keyFrame) {
+            buffer.put((byte) local.dimension);
+            for (int i = 0; i < local.dimension; i++) {
+                buffer.putFloat(local.pending[i]);
+            }
+            System.arraycopy(local.pending, 0, local.published, 0, local.dimension);
+            local.hasPublished = true;
+            local.lastKeyFrameAt = now;
+            local.dirty = false;
+        } else {
+            buffer.putInt(mask);
+            for (int i = 0; i < local.dimension; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    buffer.putFloat(local.pending[i]);
+                    local.published[i] = local.pending[i];
+                }
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * 帧格式：类型(1) 序号(4) 发送时间低32位(4) 事件数(2)，之后每个事件为长度(2) + 内容
+     */
+    private byte[] encodeEvents(LocalTopic local) {
+        if (local.events.isEmpty()) {
+            return null;
+        }
+        // sendEvent限制了单个事件的大小，一帧至少放得下一个事件，事件数和长度都在short范围内
+        int size = EVENT_FRAME_HEADER_BYTES;
+        int count = 0;
+        for (byte[] payload : local.events) {
+            if (size + EVENT_LENGTH_BYTES + payload.length > MAX_EVENT_FRAME_BYTES) {
+                break;
+            }
+            size += EVENT_LENGTH_BYTES + payload.length;
+            count++;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(FRAME_EVENTS);
+        buffer.putInt(++local.seq);
+        buffer.putInt((int) System.currentTimeMillis());
+        buffer.putShort((short) count);
+        for (int i = 0; i < count; i++) {
+            byte[] payload = local.events.pollFirst();
+            buffer.putShort((short) payload.length);
+            buffer.put(payload);
+        }
+        return buffer.array();
+    }
+
+    private void decodeFrame(String topic, String publisherId, ByteBuffer buffer) {
+        byte type = buffer.get();
+        int seq = buffer.getInt();
+        int sendTs = buffer.getInt();
+        if (type == FRAME_EVENTS) {
+            Listener l = listener;
+            int count = buffer.getShort() & 0xffff;
+            for (int i = 0; i < count; i++) {
+                byte[] payload = new byte[buffer.getShort() & 0xffff];
+                buffer.get(payload);
+                if (l != null) {
+                    l.onTopicEvent(topic, publisherId, payload);
+                }
+            }
+            return;
+        }
+        int[] config = remoteTopicConfig.get(topic);
+        if (config == null || (type != FRAME_STATE_KEY && type != FRAME_STATE_DELTA)) {
+            return;
+        }
+        String key = key(topic, publisherId);
+        RemoteState remote = remoteStates.get(key);
+        if (remote == null) {
+            remote = new RemoteState(config[0]);
+            RemoteState existing = remoteStates.putIfAbsent(key, remote);
+            if (existing != null) {
+                remote = existing;
+            }
+        }
+        boolean becameAvailable = false;
+        synchronized (remote) {
+            // 重复或过期的帧直接丢弃
+            if (remote.synced && seq - remote.lastSeq <= 0) {
+                return;
+            }
+            if (type == FRAME_STATE_KEY) {
+                int dimension = buffer.get();
+                for (int i = 0; i < dimension; i++) {
+                    float value = buffer.getFloat();
+                    if (i < remote.current.length) {
+                        remote.current[i] = value;
+                    }
+                }
+                becameAvailable = !remote.synced;
+                remote.synced = true;
+            } else {
+                if (!remote.synced) {
+                    // 没有收到全量帧之前无法应用增量
+                    return;
+                }
+                int mask = buffer.getInt();
+                for (int i = 0; i < remote.current.length; i++) {
+                    if ((mask & (1 << i)) != 0) {
+                        remote.current[i] = buffer.getFloat();
+                    }
+                }
+            }
+            remote.lastSeq = seq;
+            remote.push(toLocalTime(remote, sendTs));
+        }
+        if (becameAvailable) {
+            Listener l = listener;
+            if (l != null) {
+                l.onRemoteStateAvailable(topic, publisherId);
+            }
+        }
+    }
+
+    /**
+     * 把发送端时间换算为本地时间：取观测到的最小(接收时间-发送时间)作为时钟偏差，
+     * 这样网络抖动不会反映到插值时间轴上
+     */
+    private static long toLocalTime(RemoteState remote, int sendTs) {
+        long now = System.currentTimeMillis();
+        // 用本地时间补全发送时间的高32位
+        long sendTime = now - ((int) now - sendTs);
+        long offset = now - sendTime;
+        if (offset < remote.clockOffset) {
+            remote.clockOffset = offset;
+        }
+        return sendTime + remote.clockOffset;
+    }
+
+    private static String key(String topic, String publisherId) {
+        return topic + '\u0000' + publisherId;
+    }
+}
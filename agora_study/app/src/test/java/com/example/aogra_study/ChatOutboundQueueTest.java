@@ -0,0 +1,415 @@
+package com.example.aogra_study;
+
+import android.content.SharedPreferences;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * ChatOutboundQueue的发送顺序、单条在途、重试、放弃发送、持久化和会话生命周期测试
+ */
+public class ChatOutboundQueueTest {
+    private static final long TIMEOUT_MS = 2000;
+
+    private final FakeTransport transport = new FakeTransport();
+    private final RecordingListener listener = new RecordingListener();
+    private final List<ChatOutboundQueue> queues = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (ChatOutboundQueue queue : queues) {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void enqueueBeforeLogin_sendsInOrderAfterOpen() throws Exception {
+        ChatOutboundQueue queue = newQueue(3);
+        queue.enqueue(ChatOutboundQueue.Type.TXT, "bob", "a", 0);
+        queue.enqueue(ChatOutboundQueue.Type.TXT, "bob", "b", 0);
+        queue.setOnline(true);
+        assertNull(transport.sent.poll(50, TimeUnit.MILLISECONDS));
+
+        queue.open(new FakePreferences());
+        assertEquals("a", transport.next().entry.content);
+        assertNull("前一条未确认时不发送下一条", transport.sent.poll(50, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void success_sendsNextAndReportsDelivery() throws Exception {
+        ChatOutboundQueue queue = openedQueue(3, new FakePreferences());
+        queue.enqueue(ChatOutboundQueue.Type.TXT, "bob", "a", 0);
+        queue.enqueue(ChatOutboundQueue.Type.TXT, "bob", "b", 0);
+
+        transport.next().callback.onSuccess();
+        assertEquals("delivered:a", listener.next());
+        Sent second = transport.next();
+        assertEquals("b", second.entry.content);
+        second.callback.onSuccess();
+        assertEquals("delivered:b", listener.next());
+        assertEquals(0, queue.getPendingCount());
+    }
+
+    @Test
+    public void error_retriesHeadBeforeLaterMessages() throws Exception {
+        ChatOutboundQueue queue = openedQueue(3, new FakePreferences());
+        queue.enqueue(ChatOutboundQueue.Type.TXT, "bob", "a", 0);
+        queue.enqueue(ChatOutboundQueue.Type.TXT, "bob", "b", 0);
+
+        transport.next().callback.onError(300, "network");
+        assertEquals("failed:a", listener.next());
+        Sent retry = transport.next();
+        assertEquals("a", retry.entry.content);
+        assertEquals(2, retry.entry.getAttempts());
+        retry.callback.onSuccess();
+        assertEquals("delivered:a", listener.next());
+        assertEquals("b", transport.next().entry.content);
+    }
+
+    @Test
+    public void rejected_movesToFailedAndContinues() throws Exception {
+        ChatOutboundQueue queue = openedQueue(3, new FakePreferences());
+        long seq = queue.enqueue(ChatOutboundQueue.Type.TXT, "bob", "a", 0);
+        queue.enqueue(ChatOutboundQueue.Type.TXT, "bob", "b", 0);
+
+        transport.next().callback.onRejected(510, "too large");
+        assertEquals("gaveUp:a", listener.next());
+        assertEquals("b", transport.next().entry.content);
+        assertEquals(1, queue.getPendingCount());
+        List<ChatOutboundQueue.Entry> failed = queue.getFailedEntries();
+        assertEquals(1, failed.size());
+        assertEquals(seq, failed.get(0).clientSeq);
+    }
+
+    @Test
+    public void maxAttempts_givesUpAfterLastRetry() throws Exception {
+        ChatOutboundQueue queue = openedQueue(2, new FakePreferences());
+        queue.enqueue(ChatOutboundQueue.Type.TXT, "bob", "a", 0);
+        queue.enqueue(ChatOutboundQueue.Type.TXT, "bob", "b", 0);
+
+        transport.next().callback.onError(300, "network");
+        assertEquals("failed:a", listener.next());
+        transport.next().callback.onError(300, "network");
+        assertEquals("gaveUp:a", listener.next());
+        assertEquals("b", transport.next().entry.content);
+        assertEquals(1, queue.getFailedEntries().size());
+    }
+
+    @Test
+    public void retryFailed_requeuesWithNewSequence() throws Exception {
+        ChatOutboundQueue queue = openedQueue(3, new FakePreferences());
+        long seq = queue.enqueue(ChatOutboundQueue.Type.TXT, "bob", "a", 0);
+        transport.next().callback.onRejected(510, "too large");
+        assertEquals("gaveUp:a", listener.next());
+
+        long newSeq = queue.retryFailed(seq);
+        assertTrue(newSeq > seq);
+        Sent resent = transport.next();
+        assertEquals("a", resent.entry.content);
+        assertEquals(newSeq, resent.entry.clientSeq);
+        assertTrue(queue.getFailedEntries().isEmpty());
+        assertEquals(-1, queue.retryFailed(seq));
+    }
+
+    @Test
+    public void discardFailed_removesEntry() throws Exception {
+        ChatOutboundQueue queue = openedQueue(3, new FakePreferences());
+        long seq = queue.enqueue(ChatOutboundQueue.Type.TXT, "bob", "a", 0);
+        transport.next().callback.onRejected(510, "too large");
+        assertEquals("gaveUp:a", listener.next());
+
+        assertTrue(queue.discardFailed(seq));
+        assertFalse(queue.discardFailed(seq));
+        assertTrue(queue.getFailedEntries().isEmpty());
+    }
+
+    @Test
+    public void pendingAndFailed_surviveNewQueue() throws Exception {
+        FakePreferences preferences = new FakePreferences();
+        ChatOutboundQueue first = openedQueue(3, preferences);
+        first.enqueue(ChatOutboundQueue.Type.TXT, "bob", "a", 0);
+        first.enqueue(ChatOutboundQueue.Type.IMAGE, "bob", "/tmp/b.jpg", 0);
+        first.enqueue(ChatOutboundQueue.Type.VOICE, "bob", "/tmp/c.amr", 7);
+        transport.next().callback.onRejected(510, "too large");
+        assertEquals("gaveUp:a", listener.next());
+        assertEquals("/tmp/b.jpg", transport.next().entry.content);
+        first.close();
+
+        ChatOutboundQueue second = newQueue(3);
+        second.open(preferences);
+        assertEquals(2, second.getPendingCount());
+        assertEquals(1, second.getFailedEntries().size());
+        second.setOnline(true);
+        Sent image = transport.next();
+        assertEquals(ChatOutboundQueue.Type.IMAGE, image.entry.type);
+        image.callback.onSuccess();
+        Sent voice = transport.next();
+        assertEquals(ChatOutboundQueue.Type.VOICE, voice.entry.type);
+        assertEquals(7, voice.entry.length);
+        long next = second.enqueue(ChatOutboundQueue.Type.TXT, "bob", "d", 0);
+        assertTrue(next > voice.entry.clientSeq);
+    }
+
+    @Test
+    public void differentUsers_doNotShareStore() throws Exception {
+        assertNotEquals(ChatOutboundQueue.storeName("app", "alice"), ChatOutboundQueue.storeName("app", "bob"));
+        assertNotEquals(ChatOutboundQueue.storeName("app1", "alice"), ChatOutboundQueue.storeName("app2", "alice"));
+
+        FakePreferences alice = new FakePreferences();
+        FakePreferences bob = new FakePreferences();
+        ChatOutboundQueue queue = newQueue(3);
+        queue.open(alice);
+        queue.enqueue(ChatOutboundQueue.Type.TXT, "carol", "from alice", 0);
+        queue.close();
+
+        queue.open(bob);
+        assertEquals(0, queue.getPendingCount());
+        queue.close();
+        queue.open(alice);
+        assertEquals(1, queue.getPendingCount());
+    }
+
+    @Test
+    public void reopenAfterClose_sendsAgain() throws Exception {
+        ChatOutboundQueue queue = openedQueue(3, new FakePreferences());
+        queue.close();
+
+        queue.open(new FakePreferences());
+        queue.setOnline(true);
+        queue.enqueue(ChatOutboundQueue.Type.TXT, "bob", "a", 0);
+        Sent sent = transport.next();
+        sent.callback.onSuccess();
+        assertEquals("delivered:a", listener.next());
+    }
+
+    @Test
+    public void resultAfterClose_isIgnored() throws Exception {
+        FakePreferences preferences = new FakePreferences();
+        ChatOutboundQueue queue = openedQueue(3, preferences);
+        queue.enqueue(ChatOutboundQueue.Type.TXT, "bob", "a", 0);
+        Sent stale = transport.next();
+        queue.close();
+
+        queue.open(preferences);
+        queue.setOnline(true);
+        Sent resent = transport.next();
+        stale.callback.onSuccess();
+        assertNull(listener.events.poll(50, TimeUnit.MILLISECONDS));
+        assertEquals(1, queue.getPendingCount());
+        resent.callback.onSuccess();
+        assertEquals("delivered:a", listener.next());
+    }
+
+    private ChatOutboundQueue newQueue(int maxAttempts) {
+        ChatOutboundQueue queue = new ChatOutboundQueue(transport, ChatOutboundQueue.DEFAULT_BATCH_SIZE,
+                maxAttempts, ChatOutboundQueue.DEFAULT_MAX_AGE_MS, 10);
+        queue.setListener(listener);
+        queues.add(queue);
+        return queue;
+    }
+
+    private ChatOutboundQueue openedQueue(int maxAttempts, SharedPreferences preferences) {
+        ChatOutboundQueue queue = newQueue(maxAttempts);
+        queue.open(preferences);
+        queue.setOnline(true);
+        return queue;
+    }
+
+    private static class Sent {
+        final ChatOutboundQueue.Entry entry;
+        final ChatOutboundQueue.SendCallback callback;
+
+        Sent(ChatOutboundQueue.Entry entry, ChatOutboundQueue.SendCallback callback) {
+            this.entry = entry;
+            this.callback = callback;
+        }
+    }
+
+    private static class FakeTransport implements ChatOutboundQueue.Transport {
+        final BlockingQueue<Sent> sent = new LinkedBlockingQueue<>();
+
+        @Override
+        public void send(ChatOutboundQueue.Entry entry, ChatOutboundQueue.SendCallback callback) {
+            sent.add(new Sent(entry, callback));
+        }
+
+        Sent next() throws InterruptedException {
+            Sent next = sent.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull("等待发送超时", next);
+            return next;
+        }
+    }
+
+    private static class RecordingListener implements ChatOutboundQueue.Listener {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onDelivered(ChatOutboundQueue.Entry entry, long latencyMs) {
+            events.add("delivered:" + entry.content);
+        }
+
+        @Override
+        public void onSendFailed(ChatOutboundQueue.Entry entry, int code, String error, long retryDelayMs) {
+            events.add("failed:" + entry.content);
+        }
+
+        @Override
+        public void onGaveUp(ChatOutboundQueue.Entry entry, int code, String error) {
+            events.add("gaveUp:" + entry.content);
+        }
+
+        String next() throws InterruptedException {
+            String next = events.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull("等待发送结果超时", next);
+            return next;
+        }
+    }
+
+    /**
+     * 内存中的SharedPreferences，只实现队列用到的读写
+     */
+    private static class FakePreferences implements SharedPreferences {
+        private final Map<String, Object> values = new HashMap<>();
+
+        @Override
+        public synchronized Map<String, ?> getAll() {
+            return new HashMap<>(values);
+        }
+
+        @Override
+        public synchronized String getString(String key, String defValue) {
+            Object value = values.get(key);
+            return value != null ? (String) value : defValue;
+        }
+
+        @Override
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            return defValues;
+        }
+
+        @Override
+        public synchronized int getInt(String key, int defValue) {
+            Object value = values.get(key);
+            return value != null ? (Integer) value : defValue;
+        }
+
+        @Override
+        public synchronized long getLong(String key, long defValue) {
+            Object value = values.get(key);
+            return value != null ? (Long) value : defValue;
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return defValue;
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return defValue;
+        }
+
+        @Override
+        public synchronized boolean contains(String key) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new FakeEditor();
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+
+        private class FakeEditor implements Editor {
+            private final Map<String, Object> changes = new HashMap<>();
+
+            @Override
+            public Editor putString(String key, String value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putStringSet(String key, Set<String> values) {
+                changes.put(key, values != null ? Collections.unmodifiableSet(values) : null);
+                return this;
+            }
+
+            @Override
+            public Editor putInt(String key, int value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putLong(String key, long value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putFloat(String key, float value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putBoolean(String key, boolean value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor remove(String key) {
+                changes.put(key, null);
+                return this;
+            }
+
+            @Override
+            public Editor clear() {
+                synchronized (FakePreferences.this) {
+                    values.clear();
+                }
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                apply();
+                return true;
+            }
+
+            @Override
+            public void apply() {
+                synchronized (FakePreferences.this) {
+                    for (Map.Entry<String, Object> change : changes.entrySet()) {
+                        if (change.getValue() == null) {
+                            values.remove(change.getKey());
+                        } else {
+                            values.put(change.getKey(), change.getValue());
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
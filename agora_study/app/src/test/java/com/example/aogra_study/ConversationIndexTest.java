@@ -0,0 +1,173 @@
+package com.example.aogra_study;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * ConversationIndex的排序、增量变化、未读数和释放后行为测试
+ */
+public class ConversationIndexTest {
+    private static final long TIMEOUT_MS = 2000;
+
+    private final ConversationIndex index = new ConversationIndex(null);
+    private final RecordingListener listener = new RecordingListener();
+
+    @After
+    public void tearDown() {
+        index.release();
+    }
+
+    @Test
+    public void load_sortsByTimeDescendingThenId() throws Exception {
+        index.loadItems(Arrays.asList(item("b", 100), item("c", 300), item("a", 100)));
+        assertEquals(Arrays.asList("c", "a", "b"), ids(index.snapshot()));
+
+        index.addListener(listener);
+        assertEquals(Arrays.asList("c", "a", "b"), ids(listener.nextReload()));
+    }
+
+    @Test
+    public void newMessage_movesConversationToTop() throws Exception {
+        index.loadItems(Arrays.asList(item("a", 300), item("b", 200), item("c", 100)));
+        index.addListener(listener);
+        listener.nextReload();
+
+        index.applyMessage("c", 400, "m1", "hi", true);
+        ConversationIndex.Change change = listener.nextChange();
+        assertEquals(ConversationIndex.Change.Type.MOVED, change.type);
+        assertEquals(2, change.fromPosition);
+        assertEquals(0, change.toPosition);
+        assertEquals("hi", change.item.preview);
+        assertEquals(Arrays.asList("c", "a", "b"), ids(index.snapshot()));
+    }
+
+    @Test
+    public void newConversation_isInsertedAtItsPosition() throws Exception {
+        index.loadItems(Arrays.asList(item("a", 300), item("c", 100)));
+        index.addListener(listener);
+        listener.nextReload();
+
+        index.applyMessage("b", 200, "m1", "hi", false);
+        ConversationIndex.Change change = listener.nextChange();
+        assertEquals(ConversationIndex.Change.Type.INSERTED, change.type);
+        assertEquals(-1, change.fromPosition);
+        assertEquals(1, change.toPosition);
+        assertEquals(0, change.item.unreadCount);
+    }
+
+    @Test
+    public void olderMessage_onlyCountsUnread() throws Exception {
+        index.loadItems(Arrays.asList(item("a", 300), item("b", 200)));
+        index.addListener(listener);
+        listener.nextReload();
+
+        index.applyMessage("b", 50, "old", "old message", true);
+        ConversationIndex.Change change = listener.nextChange();
+        assertEquals(ConversationIndex.Change.Type.UPDATED, change.type);
+        assertEquals(1, change.toPosition);
+        assertEquals(200, change.item.lastMessageTime);
+        assertEquals("preview-b", change.item.preview);
+        assertEquals(1, change.item.unreadCount);
+    }
+
+    @Test
+    public void activeConversation_doesNotCountUnread() throws Exception {
+        index.loadItems(Arrays.asList(item("a", 300), item("b", 200)));
+        index.applyMessage("b", 400, "m1", "hi", true);
+        assertEquals(1, index.getTotalUnreadCount());
+
+        index.setActiveConversation("b");
+        assertEquals(0, index.getTotalUnreadCount());
+        index.applyMessage("b", 500, "m2", "again", true);
+        assertEquals(0, index.find("b").unreadCount);
+    }
+
+    @Test
+    public void remove_reportsOldPosition() throws Exception {
+        index.loadItems(Arrays.asList(item("a", 300), item("b", 200), item("c", 100)));
+        index.addListener(listener);
+        listener.nextReload();
+
+        index.remove("b");
+        ConversationIndex.Change change = listener.nextChange();
+        assertEquals(ConversationIndex.Change.Type.REMOVED, change.type);
+        assertEquals(1, change.fromPosition);
+        assertEquals(Arrays.asList("a", "c"), ids(index.snapshot()));
+    }
+
+    @Test
+    public void changes_arriveInModificationOrder() throws Exception {
+        index.loadItems(new ArrayList<>());
+        index.addListener(listener);
+        listener.nextReload();
+
+        for (int i = 0; i < 50; i++) {
+            index.applyMessage("c" + (i % 5), i, "m" + i, "p" + i, false);
+        }
+        for (int i = 0; i < 50; i++) {
+            ConversationIndex.Change change = listener.nextChange();
+            assertEquals("p" + i, change.item.preview);
+        }
+    }
+
+    @Test
+    public void release_stopsNotifications() throws Exception {
+        index.loadItems(Arrays.asList(item("a", 300)));
+        index.addListener(listener);
+        listener.nextReload();
+
+        index.release();
+        index.release();
+        index.applyMessage("a", 400, "m1", "hi", true);
+        index.addListener(listener);
+        assertNull(listener.events.poll(50, TimeUnit.MILLISECONDS));
+    }
+
+    private static ConversationIndex.Item item(String id, long time) {
+        return new ConversationIndex.Item(id, time, "msg-" + id, "preview-" + id, 0);
+    }
+
+    private static List<String> ids(List<ConversationIndex.Item> items) {
+        List<String> ids = new ArrayList<>(items.size());
+        for (ConversationIndex.Item item : items) {
+            ids.add(item.conversationId);
+        }
+        return ids;
+    }
+
+    private static class RecordingListener implements ConversationIndex.Listener {
+        final BlockingQueue<Object> events = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onConversationsReloaded(List<ConversationIndex.Item> items) {
+            events.add(items);
+        }
+
+        @Override
+        public void onConversationsChanged(List<ConversationIndex.Change> changes) {
+            events.addAll(changes);
+        }
+
+        @SuppressWarnings("unchecked")
+        List<ConversationIndex.Item> nextReload() throws InterruptedException {
+            Object next = events.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertTrue("等待全量列表超时", next instanceof List);
+            return (List<ConversationIndex.Item>) next;
+        }
+
+        ConversationIndex.Change nextChange() throws InterruptedException {
+            Object next = events.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertTrue("等待增量变化超时", next instanceof ConversationIndex.Change);
+            return (ConversationIndex.Change) next;
+        }
+    }
+}